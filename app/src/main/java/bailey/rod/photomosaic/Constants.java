@@ -10,20 +10,112 @@ import android.graphics.Bitmap;
 public abstract class Constants {
 
     /**
-     * Pixel width of mosaic tiles
+     * Pixel width of mosaic tiles. When tiling adaptively, the width of the smallest tiles.
      */
     public static final int TILE_WIDTH_PX = 32;
 
     /**
-     * Pixel height of mosaic tiles
+     * Pixel height of mosaic tiles. When tiling adaptively, the height of the smallest tiles.
      */
     public static final int TILE_HEIGHT_PX = 32;
 
     /**
-     * Simple file name of the scratch file that is the app's private storage
+     * True to vary the size of tiles with the amount of detail in the image - large tiles where it is flat and
+     * small tiles where it is detailed - rather than using tiles of a single size throughout.
+     */
+    public static final boolean ADAPTIVE_TILING_ENABLED = false;
+
+    /**
+     * When tiling adaptively, the pixel width of the largest tiles
+     */
+    public static final int MAX_TILE_WIDTH_PX = 128;
+
+    /**
+     * When tiling adaptively, the pixel height of the largest tiles
+     */
+    public static final int MAX_TILE_HEIGHT_PX = 128;
+
+    /**
+     * When tiling adaptively, areas whose color variance (the mean of the red, green and blue variances) is above
+     * this are split into smaller tiles. 144 is a standard deviation of 12 levels.
+     */
+    public static final double ADAPTIVE_TILING_MAX_VARIANCE = 144.0;
+
+    /**
+     * Simple file name of the scratch file that is the app's private storage. Each job's ID is inserted before the
+     * extension e.g. "mosaic_3.jpg".
      */
     public static final String SCRATCH_FILE_NAME = "mosaic.jpg";
 
+    /**
+     * Simple file name of the uncompressed scratch canvas in which the mosaic is built up, next to the scratch file.
+     * Each job's ID is inserted before the extension, as for the scratch file.
+     */
+    public static final String SCRATCH_CANVAS_FILE_NAME = "mosaic.raw";
+
+    /**
+     * Simple file name of the journal recording which tiles of the scratch canvas are finished, next to the scratch
+     * canvas. Each job's ID is inserted before the extension, as for the scratch file.
+     */
+    public static final String SCRATCH_JOURNAL_FILE_NAME = "mosaic.journal";
+
+    /**
+     * Images whose decoded pixels would take more than this fraction of the max heap are never decoded whole.
+     * Instead they are streamed through the mosaic process one row of tiles at a time. Zero streams every image.
+     */
+    public static final double STREAMING_MAX_HEAP_FRACTION = 0.25;
+
+    /**
+     * True to mosaic a screen-resolution copy of an image first, as a quick preview, using a coarse grid of tiles.
+     * The preview is shown as its rows of tiles are finished. The full-size mosaic then reuses its tiles, as below.
+     */
+    public static final boolean QUICK_PREVIEW_ENABLED = true;
+
+    /**
+     * True to move each full-size tile's average color to the color of a preview tile, if it is within
+     * PREVIEW_MAX_DELTA_E, so that it is served by the preview's tile, already cached. False keeps every color as it
+     * is, so the preview's tiles are rarely used again and the preview only adds to the tiles fetched.
+     */
+    public static final boolean PREVIEW_SNAP_ENABLED = true;
+
+    /**
+     * Max CIE76 delta-E by which a tile's average color may be moved to the color of a preview tile, if
+     * PREVIEW_SNAP_ENABLED. Used instead of QUANTIZE_MAX_DELTA_E if larger.
+     */
+    public static final double PREVIEW_MAX_DELTA_E = 2.3;
+
+    /**
+     * True to survey a much reduced copy of an image for the tiles it is likely to need, if it has no preview. Those
+     * tiles are fetched from the tile server while the full-size image is still being averaged. Only done if
+     * SURVEY_SNAP_ENABLED, or if QUANTIZE_BITS_PER_CHANNEL is below 8, as otherwise few of the tiles are ever used.
+     */
+    public static final boolean PREFETCH_SURVEY_ENABLED = true;
+
+    /**
+     * True to move each tile's average color to the color of a tile found by the survey, if it is within
+     * SURVEY_MAX_DELTA_E, so that it is served by the tile already fetched. False keeps every color as it is, so
+     * only tiles whose color the survey found exactly are served from the prefetch.
+     */
+    public static final boolean SURVEY_SNAP_ENABLED = true;
+
+    /**
+     * Max CIE76 delta-E by which a tile's average color may be moved to the color of a tile found by the survey,
+     * if SURVEY_SNAP_ENABLED. Used instead of QUANTIZE_MAX_DELTA_E if larger.
+     */
+    public static final double SURVEY_MAX_DELTA_E = 2.3;
+
+    /**
+     * Fraction of TILE_CACHE_MAX_BYTES that tiles fetched for the survey may fill. The rest is left for tiles in use,
+     * so that tiles fetched early aren't evicted before they are needed.
+     */
+    public static final double SURVEY_PREFETCH_CACHE_FRACTION = 0.5;
+
+    /**
+     * Simple file name, within the app's private files directory, to which a summary of where the last job's time
+     * went is written when it finishes
+     */
+    public static final String JOB_METRICS_FILE_NAME = "job_metrics.txt";
+
     /**
      * The beginning of the simple file name that is output by this app to a
      * public directory. e.g. "mosaic_2016_02_04_12_35.jpg"
@@ -71,14 +163,155 @@ public abstract class Constants {
      */
     public static final String MOSAIC_SERVER_URL = "http://192.168.1.4:8765/color/%d/%d/%s";
 
+    /**
+     * URL to which a whole set of tiles can be requested in one POST, if the tile server supports it.
+     * See MosaicTileClient for the format. If the server doesn't support it, single tile requests to
+     * MOSAIC_SERVER_URL are used instead. Null never to try batch requests.
+     */
+    public static final String MOSAIC_SERVER_BATCH_URL = "http://192.168.1.4:8765/batch";
+
+    /**
+     * Max millis to wait for a connection to the tile server
+     */
+    public static final int TILE_CONNECT_TIMEOUT_MS = 5000;
+
+    /**
+     * Max millis to wait for each read of a response from the tile server. A batch response is read in many
+     * reads, so may take longer than this in all.
+     */
+    public static final int TILE_READ_TIMEOUT_MS = 15000;
+
+    /**
+     * Single tile requests that fail in a row, across every job, before the tile server is left alone for
+     * TILE_BREAKER_OPEN_MS. Tiles are drawn locally in the meantime.
+     */
+    public static final int TILE_BREAKER_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Millis to leave the tile server alone after it has failed TILE_BREAKER_FAILURE_THRESHOLD times in a row
+     */
+    public static final long TILE_BREAKER_OPEN_MS = 30000;
+
+    /**
+     * Max times a single tile request is made again after the tile server fails it with a 5xx status or a timeout
+     */
+    public static final int TILE_FETCH_MAX_RETRIES = 2;
+
+    /**
+     * Millis to wait before the first retry of a single tile request. Doubles with each retry, with jitter.
+     */
+    public static final long TILE_FETCH_RETRY_BACKOFF_MS = 250;
+
+    /**
+     * Least millis to wait for a single tile before making a second, hedged request for it. Otherwise the wait is
+     * how long the tile server takes to answer 95% of requests.
+     */
+    public static final long TILE_HEDGE_MIN_DELAY_MS = 50;
+
+    /**
+     * Max bytes of tile bitmaps that are kept in memory for re-use by later tiles of the same size and color.
+     */
+    public static final long TILE_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Name of the directory, within the app's private files directory, where tiles fetched from the server
+     * are kept so that later jobs needn't fetch them again.
+     */
+    public static final String TILE_DISK_CACHE_DIR_NAME = "tiles";
+
+    /**
+     * Name of the directory, within the app's private files directory, where the jobs that need no more work are
+     * recorded, so that they aren't run again if their Intents are redelivered.
+     */
+    public static final String FINISHED_JOBS_DIR_NAME = "finished_jobs";
+
+    /**
+     * Max bytes of encoded tile images kept in the tile disk cache
+     */
+    public static final long TILE_DISK_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Max number of tile images kept in the tile disk cache
+     */
+    public static final int TILE_DISK_CACHE_MAX_ENTRIES = 32 * 1024;
+
+    /**
+     * Name of the directory, within the public "Pictures" directory, whose images are used as mosaic tiles when
+     * TILE_STRATEGY is LIBRARY.
+     */
+    public static final String TILE_LIBRARY_DIR_NAME = "MosaicTiles";
+
+    /**
+     * Name of the file, within the app's private files directory, in which tile size thumbnails of every image
+     * in the tile library are packed. Rebuilt automatically whenever the library changes.
+     */
+    public static final String TILE_ATLAS_FILE_NAME = "library.atlas";
+
+    /**
+     * Name of the file, next to the tile atlas, holding the table from color to nearest library image. Rebuilt
+     * automatically whenever the atlas changes.
+     */
+    public static final String TILE_LUT_FILE_NAME = "library.lut";
+
+    /**
+     * Number of high bits of each of R, G and B that select a cell of the table from color to nearest library
+     * image, from 1 to 8. 6 gives 64 x 64 x 64 cells - 1MB of table - and is finer than the eye can tell apart in
+     * a tile's average color.
+     */
+    public static final int TILE_LUT_BITS_PER_CHANNEL = 6;
+
+    /**
+     * Number of high bits kept in each of the R, G and B components of a tile's average color, from 1 to 8.
+     * Fewer bits means fewer distinct tiles (and server requests) per image, at the cost of color accuracy.
+     * 8 leaves colors unchanged.
+     */
+    public static final int QUANTIZE_BITS_PER_CHANNEL = 8;
+
+    /**
+     * Max CIE76 delta-E by which a tile's average color may be moved so as to share a tile with a similar color
+     * already used in the same image. Around 2.3 is a "just noticeable difference". 0 leaves colors unchanged.
+     */
+    public static final double QUANTIZE_MAX_DELTA_E = 0;
+
     /**
      * Possible ways of getting the image for a mosaic tile
      */
     public enum MosaicTileImageStrategy {
         TEST, // Fill tile programmatically with average color - good for testing
-        SERVER; // Fetch tile image from external tile server
+        SERVER, // Fetch tile image from external tile server
+        LIBRARY, // Use the local photo whose average color is nearest, from TILE_LIBRARY_DIR_NAME
+        CIRCLE; // Draw a circle of the average color over the image locally, as the tile server would
     }
 
-    // Max concurrent threads when finding mosaic tiles for a given row
+    // Max concurrent threads when averaging, creating and decoding tiles, and the number of tile fetches allowed in
+    // flight at first. The fetch limit then adapts to how quickly the tile server responds, between the two limits
+    // below. Fetches don't take up threads while the server answers, so the two needn't match.
     public static final int MAX_THREAD_POOL_SIZE = 10;
+
+    // Fewest tile fetches allowed in flight, however slow or unreliable the tile server
+    public static final int MIN_FETCH_CONCURRENCY = 2;
+
+    // Most tile fetches allowed in flight, however quickly the tile server responds. There is a connection to the
+    // server for each, all served by one thread. The connections are shared by every job in progress.
+    public static final int MAX_FETCH_CONCURRENCY = 32;
+
+    /**
+     * Max number of idle bitmaps of each size kept for decoding and drawing tiles into. One for each thread that
+     * may decode a tile at once.
+     */
+    public static final int TILE_BITMAP_POOL_MAX_PER_SIZE = MAX_THREAD_POOL_SIZE;
+
+    /**
+     * Max number of different sizes of bitmap kept for decoding and drawing tiles into. Enough for every tile size
+     * the adaptive tiler uses, with room to spare for the clipped tiles at the edges of the image.
+     */
+    public static final int TILE_BITMAP_POOL_MAX_SIZES = 16;
+
+    // Max mosaic jobs in progress at once. Further jobs wait in the job queue, highest priority first. While one
+    // job is decoding or encoding its image, the others keep the shared tile threads busy.
+    public static final int MAX_CONCURRENT_JOBS = 2;
+
+    // Max tiles that may have been averaged but not yet composited into the mosaic. Once this many
+    // are in flight, averaging waits for the fetch and composite stages to catch up.
+    public static final int MAX_TILES_IN_FLIGHT = 256;
 }
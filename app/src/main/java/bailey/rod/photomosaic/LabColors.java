@@ -0,0 +1,57 @@
+package bailey.rod.photomosaic;
+
+/**
+ * Conversions between packed sRGB colors and CIE L*a*b*, in which straight-line distance approximates how
+ * different two colors look to a person.
+ */
+public abstract class LabColors {
+
+    // CIE standard illuminant D65 reference white
+    private static final double WHITE_X = 0.95047;
+
+    private static final double WHITE_Y = 1.00000;
+
+    private static final double WHITE_Z = 1.08883;
+
+    // Linear-light value of each possible 8 bit sRGB component value
+    private static final double[] LINEAR = new double[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (c <= 0.04045) ? (c / 12.92) : Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    /**
+     * @param color Packed RGB color. Alpha is ignored.
+     * @param lab   Receives L*, a* and b* in that order
+     */
+    public static void toLab(int color, float[] lab) {
+        double r = LINEAR[(color >> 16) & 0xFF];
+        double g = LINEAR[(color >> 8) & 0xFF];
+        double b = LINEAR[color & 0xFF];
+
+        double x = f(((0.4124 * r) + (0.3576 * g) + (0.1805 * b)) / WHITE_X);
+        double y = f(((0.2126 * r) + (0.7152 * g) + (0.0722 * b)) / WHITE_Y);
+        double z = f(((0.0193 * r) + (0.1192 * g) + (0.9505 * b)) / WHITE_Z);
+
+        lab[0] = (float) ((116 * y) - 16);
+        lab[1] = (float) (500 * (x - y));
+        lab[2] = (float) (200 * (y - z));
+    }
+
+    /**
+     * @return Squared CIE76 delta-E between two L*a*b* colors
+     */
+    public static float distanceSquared(float[] lab1, float[] lab2) {
+        float dl = lab1[0] - lab2[0];
+        float da = lab1[1] - lab2[1];
+        float db = lab1[2] - lab2[2];
+        return (dl * dl) + (da * da) + (db * db);
+    }
+
+    private static double f(double t) {
+        return (t > 0.008856) ? Math.cbrt(t) : ((7.787 * t) + (16.0 / 116.0));
+    }
+}
@@ -9,6 +9,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.provider.MediaStore;
+import android.util.DisplayMetrics;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -17,9 +18,14 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -28,6 +34,9 @@ import java.io.IOException;
  * allPurposeButton will Cancel the mosaic'ing process in progress. At the end of processing, pressing the button
  * enables the user to Share To the mosaic with other apps. The mosaic image is always stored in the public "Pictures"
  * directory and is registered in the Android Media Store.
+ * <p/>
+ * Several images may be shared at once. The first is shown and mosaic'd as above, ahead of the rest, which are
+ * mosaic'd in the background and exported to the "Pictures" directory and Media Store as each is finished.
  *
  * @see MosaicService
  */
@@ -35,6 +44,12 @@ public class MosaicActivity extends AppCompatActivity {
 
     private static final String TAG = MosaicActivity.class.getSimpleName();
 
+    // Priority of the job whose mosaic is shown, so that it is run ahead of the rest of a batch
+    private static final int SHOWN_JOB_PRIORITY = 1;
+
+    // Priority of the other jobs in a batch
+    private static final int BATCH_JOB_PRIORITY = 0;
+
     private final IntentFilter mosaicProgressedIntentFilter =
             new IntentFilter(MosaicService.MOSAIC_CREATION_PROGRESSED);
 
@@ -50,9 +65,21 @@ public class MosaicActivity extends AppCompatActivity {
 
     private final BroadcastReceiver mosaicRowFinishedReceiver = new MosaicRowFinishedBroadcastReceiver();
 
+    private final IntentFilter mosaicPreviewUpdatedIntentFilter =
+            new IntentFilter(MosaicService.MOSAIC_PREVIEW_UPDATED);
+
+    private final BroadcastReceiver mosaicPreviewUpdatedReceiver = new MosaicPreviewUpdatedBroadcastReceiver();
+
     private Button allPurposeButton;
 
-    private Uri imageUri;
+    // Images to be mosaic'd. The first is the one shown.
+    private List<Uri> imageUris;
+
+    // ID of the job whose mosaic is shown, or 0 if it hasn't been started
+    private long shownJobId;
+
+    // IDs of this activity's jobs that are queued or in progress
+    private final Set<Long> pendingJobIds = new HashSet<Long>();
 
     private ImageView imageView;
 
@@ -64,6 +91,12 @@ public class MosaicActivity extends AppCompatActivity {
 
     private TextView helpTextView;
 
+    // Screen-resolution copy of the mosaic under construction, updated a band at a time as rows are finished
+    private MosaicDisplayBitmap displayBitmap;
+
+    // Quick preview of the mosaic being shown, until the mosaic itself is begun
+    private Bitmap shownPreview;
+
     /**
      * Adjusts the visibility of UI components and the label on the all-purpose button
      * to suit the current operating mode.
@@ -124,27 +157,52 @@ public class MosaicActivity extends AppCompatActivity {
         allPurposeButton = (Button) findViewById(R.id.mosaic_all_purpose_button);
         helpTextView = (TextView) findViewById(R.id.mosaic_help_text_view);
 
-        imageUri = (Uri) getIntent().getParcelableExtra(Intent.EXTRA_STREAM);
+        imageUris = getImageUris(getIntent());
 
-        if (imageUri == null) {
+        if (imageUris.isEmpty()) {
             switchToNoImageToMosaicMode();
         } else {
-            allPurposeButton.setOnClickListener(new AllPurposeButtonOnClickListener(imageUri));
+            allPurposeButton.setOnClickListener(new AllPurposeButtonOnClickListener(imageUris));
             switchToReadyToStartMode();
         }
     }
 
     /**
-     * Resets the UI ready for the user to start the mosaic process. The image shown is the one whose URI was
+     * @param intent Intent that started this activity
+     * @return The images shared with this activity - one for ACTION_SEND, any number for ACTION_SEND_MULTIPLE -
+     * or an empty list if there are none
+     */
+    private static List<Uri> getImageUris(Intent intent) {
+        List<Uri> uris = new ArrayList<Uri>();
+        if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+            List<Uri> streams = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            if (streams != null) {
+                for (Uri uri : streams) {
+                    if (uri != null) {
+                        uris.add(uri);
+                    }
+                }
+            }
+        } else {
+            Uri uri = (Uri) intent.getParcelableExtra(Intent.EXTRA_STREAM);
+            if (uri != null) {
+                uris.add(uri);
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Resets the UI ready for the user to start the mosaic process. The image shown is the first whose URI was
      * passed into the Intent that started this activity (if any).
      */
     private void switchToReadyToStartMode() {
         mode = OperatingMode.READY_TO_START_MOSAIC_PROCESSING;
         adjustUIPerMode();
 
-        if (imageUri != null) {
+        if (!imageUris.isEmpty()) {
             try {
-                Bitmap bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), imageUri);
+                Bitmap bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), imageUris.get(0));
                 if (bitmap != null) {
                     imageView.setImageBitmap(bitmap);
                 }
@@ -165,6 +223,7 @@ public class MosaicActivity extends AppCompatActivity {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mosaicProgressReceiver);
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mosaicFinishedReceiver);
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mosaicRowFinishedReceiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mosaicPreviewUpdatedReceiver);
     }
 
     @Override
@@ -173,6 +232,8 @@ public class MosaicActivity extends AppCompatActivity {
         LocalBroadcastManager.getInstance(this).registerReceiver(mosaicProgressReceiver, mosaicProgressedIntentFilter);
         LocalBroadcastManager.getInstance(this).registerReceiver(mosaicFinishedReceiver, mosaicFinishedIntentFilter);
         LocalBroadcastManager.getInstance(this).registerReceiver(mosaicRowFinishedReceiver, mosaicRowFinishedIntentFilter);
+        LocalBroadcastManager.getInstance(this).registerReceiver(mosaicPreviewUpdatedReceiver,
+                                                                 mosaicPreviewUpdatedIntentFilter);
     }
 
     /**
@@ -186,9 +247,35 @@ public class MosaicActivity extends AppCompatActivity {
         MOSIAC_PROCESSING_COMPLETED; // Finished mosaic is displaying, now ready to send to Media Store
     }
 
+    /**
+     * @param intent Intent broadcast by the MosaicService
+     * @return True if the intent is about the job whose mosaic is shown
+     */
+    private boolean isAboutShownJob(Intent intent) {
+        return (shownJobId != 0) && (intent.getLongExtra(MosaicService.EXTRA_JOB_ID, 0) == shownJobId);
+    }
+
+    /**
+     * Shows the progress of the job whose mosaic is shown, and for a batch, how many of its mosaics are finished
+     *
+     * @param percentComplete Progress of the job whose mosaic is shown, in [0,100]
+     */
+    private void showProgress(int percentComplete) {
+        progressBar.setProgress(percentComplete);
+        if (imageUris.size() == 1) {
+            String progressBarMsgFormat = getString(R.string.progress_bar_percent_msg);
+            progressMsg.setText(String.format(progressBarMsgFormat, percentComplete));
+        } else {
+            String progressBarMsgFormat = getString(R.string.progress_bar_batch_percent_msg);
+            progressMsg.setText(String.format(progressBarMsgFormat, percentComplete,
+                                              imageUris.size() - pendingJobIds.size(), imageUris.size()));
+        }
+    }
+
     /**
      * Listens for messages broadcast by the accompanying MosaicService, which is doing all the heavy lifting of
-     * producing the mosaic image. Messages may be progress updates or error notifications.
+     * producing the mosaic image. Messages may be progress updates or error notifications. Only those about the
+     * job whose mosaic is shown are acted upon.
      *
      * @see MosaicService
      */
@@ -196,63 +283,159 @@ public class MosaicActivity extends AppCompatActivity {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            // Update progress bar from data in the intent
-            int percentComplete = intent.getIntExtra(MosaicService.EXTRA_PROGRESS, 0);
+            if (isAboutShownJob(intent)) {
+                // Update progress bar from data in the intent
+                showProgress(intent.getIntExtra(MosaicService.EXTRA_PROGRESS, 0));
+            }
+        }
+    }
 
-            progressBar.setProgress(percentComplete);
-            String progressBarMsgFormat = getString(R.string.progress_bar_percent_msg);
-            progressMsg.setText(String.format(progressBarMsgFormat, percentComplete));
+    /**
+     * @return Screen-resolution copy of the mosaic in progress, or null if there is no mosaic in progress
+     */
+    private MosaicDisplayBitmap getDisplayBitmap() {
+        MosaicScratchCanvas canvas = MosaicService.getActiveCanvas(shownJobId);
+        if (canvas == null) {
+            return null;
         }
+
+        if ((displayBitmap == null) || (displayBitmap.getCanvas() != canvas)) {
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            // Rows of the mosaic that aren't finished yet are shown from the preview, if there is one
+            displayBitmap = new MosaicDisplayBitmap(canvas, metrics.widthPixels, metrics.heightPixels,
+                                                    MosaicService.getPreviewBitmap(shownJobId),
+                                                    MosaicService.getFinishedBottomY(shownJobId));
+            imageView.setImageBitmap(displayBitmap.getBitmap());
+        }
+        return displayBitmap;
     }
 
     /**
-     * Listens for a "row finished" intent from the MosaicService, which indicates the scratch file
-     * now has another complete row of tiles finished.
+     * Shows the finished mosaic of a job from its scratch file, for when there is no display copy to show it from.
+     * The file is decoded, reduced to the size of the screen, on a thread of its own rather than the main thread.
+     *
+     * @param jobId ID of the job. Its mosaic is only shown if it is still the job shown once it has been decoded.
      */
-    private class MosaicRowFinishedBroadcastReceiver extends BroadcastReceiver {
+    private void showScratchFile(final long jobId) {
+        final MosaicScratchFile mosaicScratchFile = new MosaicScratchFile(this, jobId);
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final Handler handler = new Handler(getMainLooper());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = mosaicScratchFile.loadScreenBitmapFromScratchFile(metrics.widthPixels,
+                                                                                        metrics.heightPixels);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if ((bitmap != null) && (jobId == shownJobId) && (displayBitmap == null)) {
+                            imageView.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        }, "Mosaic scratch file decode").start();
+    }
 
-        private final Handler handler = new Handler();
+    /**
+     * Listens for a "row finished" intent from the MosaicService, which indicates the scratch canvas
+     * now has another complete row of tiles finished. Only the band of the image that has changed is
+     * re-sampled, straight from the service's canvas in memory, so this is cheap enough for the main thread.
+     */
+    private class MosaicRowFinishedBroadcastReceiver extends BroadcastReceiver {
 
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.d(TAG, "*** Received ROW FINISHED ***");
+            if (!isAboutShownJob(intent)) {
+                return;
+            }
+
+            MosaicDisplayBitmap display = getDisplayBitmap();
+            if (display != null) {
+                display.updateBand(intent.getIntExtra(MosaicService.EXTRA_DIRTY_TOP_Y, 0),
+                                   intent.getIntExtra(MosaicService.EXTRA_DIRTY_BOTTOM_Y, 0));
+                imageView.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Listens for a "preview updated" intent from the MosaicService, which indicates a quick, screen-resolution
+     * preview of the mosaic is ready to be shown, or has had another row of tiles drawn over it.
+     */
+    private class MosaicPreviewUpdatedBroadcastReceiver extends BroadcastReceiver {
 
-            MosaicScratchFile mosaicScratchFile = new MosaicScratchFile(MosaicActivity.this);
-            Bitmap bitmap = mosaicScratchFile.loadMutableBitmapFromScratchFile();
-            imageView.setImageBitmap(bitmap);
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "*** Received PREVIEW UPDATED ***");
+            if (!isAboutShownJob(intent) || (displayBitmap != null)) {
+                return;
+            }
+
+            Bitmap preview = MosaicService.getPreviewBitmap(shownJobId);
+            if (preview == null) {
+                return;
+            }
+            if (preview == shownPreview) {
+                imageView.invalidate();
+            } else {
+                shownPreview = preview;
+                imageView.setImageBitmap(preview);
+            }
         }
     }
 
     /**
      * Listens for a "finished" intent from the MosaicService, which indicates the scratch file now
-     * contains the completed mosaic.
+     * contains the completed mosaic. Once every job of a batch has finished, the batch is complete.
      */
     private class MosaicFinishedBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            MosaicScratchFile mosaicScratchFile = new MosaicScratchFile(MosaicActivity.this);
-            imageView.setImageBitmap(mosaicScratchFile.loadMutableBitmapFromScratchFile());
+            if (!pendingJobIds.remove(intent.getLongExtra(MosaicService.EXTRA_JOB_ID, 0))) {
+                return;
+            }
 
-            mode = OperatingMode.MOSIAC_PROCESSING_COMPLETED;
-            adjustUIPerMode();
+            if (intent.getBooleanExtra(MosaicService.EXTRA_EXPORT_FAILED, false)) {
+                Toast.makeText(MosaicActivity.this, R.string.export_failed_msg, Toast.LENGTH_LONG).show();
+            }
+
+            if (isAboutShownJob(intent)) {
+                // The display copy is already up to date with every row, so there's no need to decode the scratch
+                // file
+                MosaicDisplayBitmap display = getDisplayBitmap();
+                if (display == null) {
+                    showScratchFile(shownJobId);
+                } else {
+                    imageView.invalidate();
+                }
+            }
+
+            if (pendingJobIds.isEmpty()) {
+                mode = OperatingMode.MOSIAC_PROCESSING_COMPLETED;
+                adjustUIPerMode();
+            } else {
+                showProgress(progressBar.getProgress());
+            }
         }
     }
 
     /**
      * Listens for a click on the "Start Mosaic" allPurposeButton and sends an Intent
      * off to start that service, which begins the process of creating the mosaic for the
-     * image in the media store that is currently displayed.
+     * image in the media store that is currently displayed (and any others shared with it).
      */
     private class AllPurposeButtonOnClickListener implements View.OnClickListener {
 
-        private final Uri imageUri;
+        private final List<Uri> imageUris;
 
         /**
-         * @param imageUri URI of the image to be mosaic'd. This will be a link to somewhere
-         *                 in the Android Media Store.
+         * @param imageUris URIs of the images to be mosaic'd, the one displayed first. These will be links to
+         *                  somewhere in the Android Media Store.
          */
-        public AllPurposeButtonOnClickListener(Uri imageUri) {
-            this.imageUri = imageUri;
+        public AllPurposeButtonOnClickListener(List<Uri> imageUris) {
+            this.imageUris = imageUris;
         }
 
         @Override
@@ -267,7 +450,10 @@ public class MosaicActivity extends AppCompatActivity {
                 // Button is labelled "Cancel" and user has just clicked it. Cancel the mosaic service
                 // and rever to "Ready to Start" mode.
                 case MOSAIC_PROCESSING_IN_PROGRESS:
-                    MosaicService.abortRequested = true;
+                    for (long jobId : pendingJobIds) {
+                        MosaicService.cancelJob(jobId);
+                    }
+                    pendingJobIds.clear();
 
                     // Resets the scratch file to the original contents from the Media Store
                     switchToReadyToStartMode();
@@ -276,8 +462,12 @@ public class MosaicActivity extends AppCompatActivity {
                 // Button is labelled "Send To", and mosaic processing has finished. User clicks button to elect
                 // to "Send to" some other. Scratch file contains completed mosaic.
                 case MOSIAC_PROCESSING_COMPLETED:
-                    MosaicScratchFile scratchFile = new MosaicScratchFile(MosaicActivity.this);
+                    MosaicScratchFile scratchFile = new MosaicScratchFile(MosaicActivity.this, shownJobId);
                     File publicCopyOfScratchFile = scratchFile.copyScratchFileToPublicDirectory();
+                    if (publicCopyOfScratchFile == null) {
+                        Toast.makeText(MosaicActivity.this, R.string.export_failed_msg, Toast.LENGTH_LONG).show();
+                        break;
+                    }
                     scratchFile.addScratchFileToAndroidMediaStore(publicCopyOfScratchFile, new IAddedToMediaStore() {
 
                         @Override
@@ -306,10 +496,27 @@ public class MosaicActivity extends AppCompatActivity {
         }
 
         private void startMosaicService() {
-            Log.i(TAG, "Into startMosaicService with imageUri=" + imageUri);
-            Intent serviceIntent = new Intent(MosaicActivity.this, MosaicService.class);
-            serviceIntent.setData(imageUri);
-            MosaicActivity.this.startService(serviceIntent);
+            Log.i(TAG, "Into startMosaicService with imageUris=" + imageUris);
+
+            // The mosaic of the last run is no longer wanted
+            if (shownJobId != 0) {
+                new MosaicScratchFile(MosaicActivity.this, shownJobId).delete();
+            }
+            displayBitmap = null;
+            shownPreview = null;
+            pendingJobIds.clear();
+
+            // The rest of a batch is exported as it is finished, as only the first is shown
+            for (int i = 0; i < imageUris.size(); i++) {
+                boolean shown = (i == 0);
+                long jobId = MosaicService.startJob(MosaicActivity.this, imageUris.get(i),
+                                                    shown ? SHOWN_JOB_PRIORITY : BATCH_JOB_PRIORITY, !shown);
+                if (shown) {
+                    shownJobId = jobId;
+                }
+                pendingJobIds.add(jobId);
+            }
+            showProgress(0);
         }
     }
 }
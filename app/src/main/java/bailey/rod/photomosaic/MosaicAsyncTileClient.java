@@ -0,0 +1,1209 @@
+package bailey.rod.photomosaic;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches encoded tile images from the mosaic tile server's single tile endpoint without tying up a thread per
+ * request. All network I/O is done by one selector thread over non-blocking channels, so hundreds of tiles can be
+ * waiting on the server while the threads that asked for them get on with something else. Each tile is handed to
+ * a Callback once it has arrived, or failed.
+ * <p/>
+ * Requests go over persistent HTTP/1.1 connections, one request at a time per connection, and are queued until a
+ * connection is free. At most maxConnections are open at once. If a MosaicConcurrencyLimiter is given, a queued
+ * request is only sent once the limiter has room for it, and the limiter is told how each request went - so it is
+ * the limiter, not a number of threads, that decides how many requests the server is asked to handle at once.
+ * <p/>
+ * Every request has connect and read timeouts, and is abandoned as soon as the job it is for is cancelled.
+ * Responses may be delimited by Content-Length, chunked encoding or the server closing the connection. Only
+ * plain "http" URLs are supported.
+ * <p/>
+ * A Resilience can be given to protect against a slow or failing server. A fetch that fails with a timeout, a
+ * connection error or a 5xx status is tried again after a backoff. A fetch that is still waiting once most
+ * fetches have been answered is hedged - sent a second time - and whichever answer arrives first is used, so a
+ * single stalled request doesn't hold up its tile for the whole read timeout. A circuit breaker stops requests
+ * being sent at all while the server keeps failing, failing fetches at once instead.
+ * <p/>
+ * Fetches may be started from any thread. They are handed to the client's own thread through a queue, and only
+ * that thread ever touches a connection.
+ */
+public class MosaicAsyncTileClient {
+
+    private static final String TAG = MosaicAsyncTileClient.class.getSimpleName();
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] CRLF_CRLF = {'\r', '\n', '\r', '\n'};
+
+    // Size of the buffer that every connection reads into
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // A response header longer than this is taken to be garbage
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    // A fetch is hedged once it has waited longer than this fraction of fetches took to be answered
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    // Fetches that must have been answered before their latencies are trusted enough to hedge by
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    // The backoff before a retry doubles with each retry, up to this many times
+    private static final int MAX_BACKOFF_DOUBLINGS = 10;
+
+    /**
+     * Receives the outcome of a fetch. Exactly one method is called for each fetch, on the client's selector
+     * thread, so it should be quick and must not block - e.g. hand the tile on to another thread.
+     */
+    public interface Callback {
+
+        /**
+         * @param key      Size and color of the tile that was fetched
+         * @param tileData Encoded image of the tile
+         */
+        void onTile(MosaicTileKey key, byte[] tileData);
+
+        /**
+         * @param key     Size and color of the tile that couldn't be fetched
+         * @param failure Why not. An InterruptedIOException if the job was cancelled, a SocketTimeoutException if
+         *                the server took too long.
+         */
+        void onFailure(MosaicTileKey key, IOException failure);
+    }
+
+    /**
+     * How a client protects itself, and its callers, from a slow or failing server
+     */
+    public static class Resilience {
+
+        // Neither retries, hedges nor breaks the circuit
+        public static final Resilience NONE = new Resilience(null, 0, 0, 0);
+
+        final MosaicCircuitBreaker breaker;
+
+        final int maxRetries;
+
+        final long retryBackoffNanos;
+
+        final long hedgeMinDelayNanos;
+
+        /**
+         * @param breaker             Stops requests being sent while the server keeps failing, or null never to
+         *                            stop them. Told the outcome of every request.
+         * @param maxRetries          Max times a failed fetch is tried again
+         * @param retryBackoffMillis  Wait before the first retry. Each retry after that waits up to twice as long
+         *                            as the one before. Half of each wait is chosen at random (jitter), so that
+         *                            fetches which failed together aren't all retried together.
+         * @param hedgeMinDelayMillis Least time a fetch waits for an answer before it is hedged, however quickly
+         *                            other fetches are answered. 0 never to hedge.
+         */
+        public Resilience(MosaicCircuitBreaker breaker, int maxRetries, long retryBackoffMillis,
+                          long hedgeMinDelayMillis) {
+            this.breaker = breaker;
+            this.maxRetries = maxRetries;
+            this.retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(retryBackoffMillis);
+            this.hedgeMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMillis);
+        }
+    }
+
+    /**
+     * What a request's outcome says about the server, for the limiter and the circuit breaker
+     */
+    private enum Outcome {
+        ANSWERED, // The server answered in good time, even if it had no tile to give
+        FAILED, // The server failed, or didn't answer in time
+        ABANDONED // The request was given up on by this end, which says nothing about the server
+    }
+
+    // Format of the single tile URL - width, height and 6 character hex color
+    private final String tileUrlFormat;
+
+    private final String host;
+
+    private final int port;
+
+    // Value of the Host header of every request
+    private final String hostHeader;
+
+    // Max number of connections open at once, busy or idle
+    private final int maxConnections;
+
+    private final long connectTimeoutNanos;
+
+    private final long readTimeoutNanos;
+
+    // Decides how many requests may be in flight at once, or null to leave it to maxConnections
+    private final MosaicConcurrencyLimiter limiter;
+
+    private final Resilience resilience;
+
+    // How long requests that were answered took
+    private final MosaicLatencyHistogram latencies = new MosaicLatencyHistogram();
+
+    // Work handed to the selector thread by other threads
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // Fetches that have been asked for but not yet called back
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    // Requests sent again because the first was slow
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    // Requests sent again because the first failed
+    private final AtomicLong retryCount = new AtomicLong();
+
+    // Requests not sent because the circuit breaker was open
+    private final AtomicLong refusedCount = new AtomicLong();
+
+    // Set up by the first fetch, and never changed after that. Guarded by this.
+    private Selector selector;
+
+    // Set by #close. Guarded by this.
+    private boolean closed;
+
+    // From here on, touched only by the selector thread
+
+    // Requests waiting for a connection, oldest first apart from hedges, which jump the queue
+    private final ArrayDeque<Exchange> queued = new ArrayDeque<Exchange>();
+
+    // Open connections, busy or idle
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    // Fetches waiting to be hedged or retried
+    private final Set<Fetch> timed = new LinkedHashSet<Fetch>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // Jitter for retry backoffs
+    private final Random random = new Random();
+
+    // Address of the server, or null until it has been looked up
+    private InetSocketAddress address;
+
+    /**
+     * A client that neither retries, hedges nor breaks the circuit.
+     *
+     * @see #MosaicAsyncTileClient(String, int, int, int, MosaicConcurrencyLimiter, Resilience)
+     */
+    public MosaicAsyncTileClient(String tileUrlFormat, int maxConnections, int connectTimeoutMillis,
+                                 int readTimeoutMillis, MosaicConcurrencyLimiter limiter) {
+        this(tileUrlFormat, maxConnections, connectTimeoutMillis, readTimeoutMillis, limiter, Resilience.NONE);
+    }
+
+    /**
+     * @param tileUrlFormat        Format of the single tile URL, as for Constants.MOSAIC_SERVER_URL
+     * @param maxConnections       Max number of connections to the server open at once
+     * @param connectTimeoutMillis Max millis to wait for a connection to the server
+     * @param readTimeoutMillis    Max millis to wait for the server between sending a request and finishing its
+     *                             response, and for each read of the response
+     * @param limiter              Decides how many requests may be in flight at once, or null for no limit other
+     *                             than maxConnections
+     * @param resilience           How to deal with a slow or failing server
+     */
+    public MosaicAsyncTileClient(String tileUrlFormat, int maxConnections, int connectTimeoutMillis,
+                                 int readTimeoutMillis, MosaicConcurrencyLimiter limiter, Resilience resilience) {
+        this.tileUrlFormat = tileUrlFormat;
+        this.maxConnections = maxConnections;
+        this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        this.limiter = limiter;
+        this.resilience = resilience;
+
+        URL url = parseUrl(tileUrl(new MosaicTileKey(1, 1, 0)));
+        if (!"http".equals(url.getProtocol())) {
+            throw new IllegalArgumentException("Only http tile URLs are supported: " + tileUrlFormat);
+        }
+        host = url.getHost();
+        port = (url.getPort() == -1) ? 80 : url.getPort();
+        hostHeader = (url.getPort() == -1) ? host : host + ":" + port;
+    }
+
+    /**
+     * @param key Size and color of the tile wanted
+     * @return URL of the single tile endpoint for the given tile
+     */
+    public String tileUrl(MosaicTileKey key) {
+        return String.format(Locale.US, tileUrlFormat, key.width, key.height,
+                             Utils.packagedColorIntToRGBHexString(key.rgb));
+    }
+
+    /**
+     * Starts fetching a single tile and returns straight away.
+     *
+     * @param key      Size and color of the tile wanted
+     * @param token    Cancellation of the job that wants the tile, which abandons the request
+     * @param callback Told of the tile, or the failure, once the request is over
+     * @throws IOException If the client has been closed, in which case the callback is never called
+     */
+    public void fetch(MosaicTileKey key, MosaicCancellationToken token, Callback callback) throws IOException {
+        final Fetch fetch = new Fetch(key, requestBytes(key), token, callback);
+        pendingCount.incrementAndGet();
+        try {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    enqueue(fetch);
+                }
+            });
+        } catch (IOException iox) {
+            pendingCount.decrementAndGet();
+            throw iox;
+        }
+
+        // Runs straight away if the job is already cancelled. Either way it runs after the fetch is queued.
+        fetch.setCancelRegistration(token.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            terminate(fetch, cancelledFailure());
+                        }
+                    });
+                } catch (IOException iox) {
+                    // Closed, so the fetch has been failed already
+                }
+            }
+        }));
+    }
+
+    /**
+     * @return Number of fetches that have been started but not yet called back
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return Number of requests sent a second time because the first was slow to be answered
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * @return Number of requests sent again because the one before failed
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return Number of requests not sent because the circuit breaker was open
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     * Fails every fetch that hasn't yet been called back, closes every connection and stops the selector thread.
+     * Later fetches throw. Only the first call has any effect.
+     */
+    public void close() {
+        Selector toWake;
+        synchronized (this) {
+            closed = true;
+            toWake = selector;
+        }
+        if (toWake != null) {
+            toWake.wakeup();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "pending=%d, hedged=%d, retried=%d, refused=%d, p%d<=%.1fms",
+                             pendingCount.get(), hedgeCount.get(), retryCount.get(), refusedCount.get(),
+                             Math.round(HEDGE_PERCENTILE * 100), latencies.percentileNanos(HEDGE_PERCENTILE) / 1e6);
+    }
+
+    private static URL parseUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException muex) {
+            throw new IllegalArgumentException("Bad tile URL: " + url, muex);
+        }
+    }
+
+    private byte[] requestBytes(MosaicTileKey key) {
+        String path = parseUrl(tileUrl(key)).getFile();
+        String request = "GET " + (path.isEmpty() ? "/" : path) + " HTTP/1.1\r\n" +
+                "Host: " + hostHeader + "\r\n" +
+                "Accept: */*\r\n" +
+                "\r\n";
+        return request.getBytes(US_ASCII);
+    }
+
+    /**
+     * Hands a task to the selector thread, starting the thread if this is the first
+     *
+     * @throws IOException If the client has been closed, or the selector couldn't be opened
+     */
+    private void post(Runnable task) throws IOException {
+        Selector target;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Tile client closed");
+            }
+            if (selector == null) {
+                selector = Selector.open();
+                Thread selectorThread = new Thread(new SelectorLoop(selector), "Mosaic tile client");
+                selectorThread.setDaemon(true);
+                selectorThread.start();
+            }
+            target = selector;
+        }
+        tasks.add(task);
+        target.wakeup();
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Body of the selector thread, which does all of the client's network I/O
+     */
+    private class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (isClosed()) {
+                        break;
+                    }
+                    startQueued(selector);
+
+                    selector.select(millisToNextDeadline());
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        handle((Connection) key.attachment(), key);
+                    }
+                    expireDeadlines();
+                    runTimers();
+                }
+            } catch (IOException iox) {
+                Log.e(TAG, "Tile client selector failed", iox);
+            } catch (RuntimeException rex) {
+                Log.e(TAG, "Tile client selector failed", rex);
+            } finally {
+                shutDown(selector);
+            }
+        }
+    }
+
+    private void enqueue(Fetch fetch) {
+        if (fetch.token.isCancelled()) {
+            finish(fetch, null, cancelledFailure());
+        } else {
+            startAttempt(fetch);
+        }
+    }
+
+    private void startAttempt(Fetch fetch) {
+        Exchange exchange = new Exchange(fetch);
+        fetch.attempts.add(exchange);
+        queued.add(exchange);
+    }
+
+    /**
+     * Sends as many queued requests as there are connections, room in the limiter and leave from the circuit
+     * breaker for
+     */
+    private void startQueued(Selector selector) {
+        while (!queued.isEmpty()) {
+            Connection connection = idleConnection();
+            if ((connection == null) && (connections.size() >= maxConnections)) {
+                return;
+            }
+            if ((limiter != null) && !limiter.tryAcquire()) {
+                return;
+            }
+
+            Exchange exchange = queued.poll();
+            exchange.holdsPermit = limiter != null;
+            if (resilience.breaker != null) {
+                if (!resilience.breaker.allowRequest()) {
+                    refused(exchange);
+                    continue;
+                }
+                exchange.holdsBreakerPermit = true;
+            }
+
+            try {
+                send((connection == null) ? openConnection(selector) : connection, exchange);
+            } catch (IOException iox) {
+                attemptFailed(exchange, iox, true);
+            }
+        }
+    }
+
+    /**
+     * Drops a request that the circuit breaker wouldn't let through. Its fetch fails at once, unless another
+     * request for it is still going.
+     */
+    private void refused(Exchange exchange) {
+        refusedCount.incrementAndGet();
+        release(exchange, Outcome.ABANDONED);
+        Fetch fetch = exchange.fetch;
+        fetch.attempts.remove(exchange);
+        if (fetch.attempts.isEmpty()) {
+            finish(fetch, null, new IOException("Tile server circuit breaker is open"));
+        }
+    }
+
+    private Connection idleConnection() {
+        for (Connection connection : connections) {
+            if (connection.exchange == null) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private Connection openConnection(Selector selector) throws IOException {
+        if (address == null) {
+            InetSocketAddress resolved = new InetSocketAddress(host, port);
+            if (resolved.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+            address = resolved;
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.connected = channel.connect(address);
+            connection.key = channel.register(selector, connection.connected ? 0 : SelectionKey.OP_CONNECT,
+                                              connection);
+            connections.add(connection);
+            return connection;
+        } catch (IOException iox) {
+            closeQuietly(channel);
+            throw iox;
+        }
+    }
+
+    private void send(Connection connection, Exchange exchange) {
+        connection.exchange = exchange;
+        connection.resetResponse();
+        connection.request = ByteBuffer.wrap(exchange.fetch.request);
+        long now = System.nanoTime();
+        if (exchange.startNanos == 0) {
+            exchange.startNanos = now;
+            scheduleHedge(exchange.fetch, now);
+        }
+        if (connection.connected) {
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+            connection.deadlineNanos = now + readTimeoutNanos;
+        } else {
+            connection.deadlineNanos = now + connectTimeoutNanos;
+        }
+    }
+
+    /**
+     * Arranges for a fetch to be hedged if its first request is slow to be answered, once enough requests have
+     * been answered to know what slow is
+     */
+    private void scheduleHedge(Fetch fetch, long now) {
+        if ((resilience.hedgeMinDelayNanos <= 0) || fetch.hedgeScheduled || (fetch.attempts.size() != 1) ||
+                (latencies.getCount() < HEDGE_MIN_SAMPLES)) {
+            return;
+        }
+        fetch.hedgeScheduled = true;
+        fetch.hedgeAtNanos = now + Math.max(resilience.hedgeMinDelayNanos,
+                                            latencies.percentileNanos(HEDGE_PERCENTILE));
+        timed.add(fetch);
+    }
+
+    private void handle(Connection connection, SelectionKey key) {
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                connection.channel.finishConnect();
+                connection.connected = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+                connection.deadlineNanos = System.nanoTime() + readTimeoutNanos;
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.channel.write(connection.request);
+                if (!connection.request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(connection);
+            }
+        } catch (IOException iox) {
+            connectionFailed(connection, iox);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        readBuffer.clear();
+        int count = connection.channel.read(readBuffer);
+
+        if (connection.exchange == null) {
+            // An idle connection has nothing to say, except that the server has closed it
+            closeConnection(connection);
+            return;
+        }
+
+        if (count < 0) {
+            byte[] body = connection.bodyAtEndOfStream();
+            if (body != null) {
+                connection.closeAfterResponse = true;
+                completed(connection, body);
+            } else {
+                connectionFailed(connection, new IOException("Tile server closed the connection mid-response"));
+            }
+            return;
+        }
+
+        connection.append(readBuffer.array(), count);
+        connection.deadlineNanos = System.nanoTime() + readTimeoutNanos;
+        byte[] body = connection.parse();
+        if (body != null) {
+            completed(connection, body);
+        }
+    }
+
+    private void completed(Connection connection, byte[] body) {
+        Exchange exchange = connection.exchange;
+        connection.exchange = null;
+        connection.deadlineNanos = 0;
+        if (connection.closeAfterResponse) {
+            closeConnection(connection);
+        } else {
+            connection.reused = true;
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        if (connection.status == 200) {
+            attemptSucceeded(exchange, body);
+        } else {
+            // A 5xx is the server in trouble, and worth another try. Anything else won't change if asked again.
+            attemptFailed(exchange, new IOException("Tile server returned " + connection.status + " for " +
+                                                            exchange.fetch.key), connection.status >= 500);
+        }
+    }
+
+    /**
+     * Closes a connection that has failed, failing its request. A request that failed before any of its response
+     * arrived, on a connection that had already been used, is sent once more on a new connection straight away -
+     * the server may simply have closed the idle connection just as the request was sent.
+     */
+    private void connectionFailed(Connection connection, IOException failure) {
+        Exchange exchange = connection.exchange;
+        boolean resend = (exchange != null) && connection.reused && (connection.length == 0) && !exchange.resent;
+        closeConnection(connection);
+        if (exchange == null) {
+            return;
+        }
+
+        if (resend) {
+            exchange.resent = true;
+            try {
+                send(openConnection(connection.key.selector()), exchange);
+                return;
+            } catch (IOException iox) {
+                failure = iox;
+            }
+        }
+        attemptFailed(exchange, failure, true);
+    }
+
+    private void attemptSucceeded(Exchange exchange, byte[] tileData) {
+        Fetch fetch = exchange.fetch;
+        fetch.attempts.remove(exchange);
+        latencies.record(System.nanoTime() - exchange.startNanos);
+        release(exchange, Outcome.ANSWERED);
+
+        // Whichever other request there is for the tile has lost the race
+        for (Exchange other : new ArrayList<Exchange>(fetch.attempts)) {
+            abandon(other);
+        }
+        finish(fetch, tileData, null);
+    }
+
+    /**
+     * Fails a request. Its fetch fails too, unless another request for it is still going, or it is to be retried.
+     *
+     * @param serverFault True if the failure suggests the server is in trouble, and the request is worth retrying
+     */
+    private void attemptFailed(Exchange exchange, IOException failure, boolean serverFault) {
+        Fetch fetch = exchange.fetch;
+        fetch.attempts.remove(exchange);
+        release(exchange, serverFault ? Outcome.FAILED : Outcome.ANSWERED);
+
+        if (!fetch.attempts.isEmpty()) {
+            // A hedge may yet succeed
+            return;
+        }
+
+        boolean breakerOpen = (resilience.breaker != null) && resilience.breaker.isOpen();
+        if (serverFault && (fetch.retries < resilience.maxRetries) && !breakerOpen) {
+            fetch.retries++;
+            retryCount.incrementAndGet();
+            fetch.retryAtNanos = System.nanoTime() + backoffNanos(fetch.retries);
+            timed.add(fetch);
+            return;
+        }
+        finish(fetch, null, failure);
+    }
+
+    /**
+     * @param retry 1 for the first retry of a fetch, 2 for the second, ...
+     * @return How long to wait before the retry - between half and all of a backoff that doubles with each retry
+     */
+    private long backoffNanos(int retry) {
+        long ceiling = resilience.retryBackoffNanos << Math.min(retry - 1, MAX_BACKOFF_DOUBLINGS);
+        return (ceiling / 2) + (long) (random.nextDouble() * (ceiling / 2));
+    }
+
+    /**
+     * Gives up on a request that is no longer wanted, closing its connection if it has been sent
+     */
+    private void abandon(Exchange exchange) {
+        exchange.fetch.attempts.remove(exchange);
+        if (!queued.remove(exchange)) {
+            for (Connection connection : connections) {
+                if (connection.exchange == exchange) {
+                    // Part way through a response, so the connection can't be used again
+                    closeConnection(connection);
+                    break;
+                }
+            }
+        }
+        release(exchange, Outcome.ABANDONED);
+    }
+
+    /**
+     * Gives up on every request for a fetch, and fails it
+     */
+    private void terminate(Fetch fetch, IOException failure) {
+        if (fetch.finished) {
+            return;
+        }
+        for (Exchange exchange : new ArrayList<Exchange>(fetch.attempts)) {
+            abandon(exchange);
+        }
+        finish(fetch, null, failure);
+    }
+
+    /**
+     * Tells the limiter and the circuit breaker how a request went, if they let it through. Only the first call
+     * for each request has any effect.
+     */
+    private void release(Exchange exchange, Outcome outcome) {
+        if (exchange.holdsPermit) {
+            exchange.holdsPermit = false;
+            if (outcome == Outcome.ANSWERED) {
+                limiter.onSuccess(System.nanoTime() - exchange.startNanos);
+            } else if (outcome == Outcome.FAILED) {
+                limiter.onFailure();
+            } else {
+                limiter.onIgnore();
+            }
+        }
+        if (exchange.holdsBreakerPermit) {
+            exchange.holdsBreakerPermit = false;
+            if (outcome == Outcome.ANSWERED) {
+                resilience.breaker.onSuccess();
+            } else if (outcome == Outcome.FAILED) {
+                resilience.breaker.onFailure();
+            } else {
+                resilience.breaker.onIgnore();
+            }
+        }
+    }
+
+    /**
+     * Fails the request of every connection whose deadline has passed
+     */
+    private void expireDeadlines() {
+        long now = System.nanoTime();
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            if ((connection.deadlineNanos != 0) && (now - connection.deadlineNanos >= 0)) {
+                Exchange exchange = connection.exchange;
+                closeConnection(connection);
+                if (exchange != null) {
+                    long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(connection.connected ? readTimeoutNanos :
+                                                                               connectTimeoutNanos);
+                    attemptFailed(exchange, new SocketTimeoutException(
+                            (connection.connected ? "Tile server didn't answer" : "Couldn't connect to tile server") +
+                                    " within " + timeoutMillis + "ms"), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hedges and retries every fetch whose time has come
+     */
+    private void runTimers() {
+        long now = System.nanoTime();
+        for (Fetch fetch : new ArrayList<Fetch>(timed)) {
+            if ((fetch.hedgeAtNanos != 0) && (now - fetch.hedgeAtNanos >= 0)) {
+                fetch.hedgeAtNanos = 0;
+                if (!fetch.finished && (fetch.attempts.size() == 1)) {
+                    hedgeCount.incrementAndGet();
+                    Exchange hedge = new Exchange(fetch);
+                    fetch.attempts.add(hedge);
+                    queued.addFirst(hedge);
+                }
+            }
+            if ((fetch.retryAtNanos != 0) && (now - fetch.retryAtNanos >= 0)) {
+                fetch.retryAtNanos = 0;
+                if (!fetch.finished) {
+                    startAttempt(fetch);
+                }
+            }
+            if ((fetch.hedgeAtNanos == 0) && (fetch.retryAtNanos == 0)) {
+                timed.remove(fetch);
+            }
+        }
+    }
+
+    /**
+     * @return Millis until the nearest connection deadline, hedge or retry, at least 1, or 0 if there is none
+     */
+    private long millisToNextDeadline() {
+        long now = System.nanoTime();
+        long nearest = Long.MAX_VALUE;
+        for (Connection connection : connections) {
+            if (connection.deadlineNanos != 0) {
+                nearest = Math.min(nearest, connection.deadlineNanos - now);
+            }
+        }
+        for (Fetch fetch : timed) {
+            if (fetch.hedgeAtNanos != 0) {
+                nearest = Math.min(nearest, fetch.hedgeAtNanos - now);
+            }
+            if (fetch.retryAtNanos != 0) {
+                nearest = Math.min(nearest, fetch.retryAtNanos - now);
+            }
+        }
+        return (nearest == Long.MAX_VALUE) ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nearest) + 1);
+    }
+
+    /**
+     * Reports the outcome of a fetch to its callback. Only the first call for each fetch has any effect.
+     *
+     * @param tileData The tile, or null if the fetch failed
+     * @param failure  Why the fetch failed, or null if it didn't
+     */
+    private void finish(Fetch fetch, byte[] tileData, IOException failure) {
+        if (fetch.finished) {
+            return;
+        }
+        fetch.finished = true;
+        fetch.unregisterCancel();
+        timed.remove(fetch);
+        pendingCount.decrementAndGet();
+
+        try {
+            if (tileData != null) {
+                fetch.callback.onTile(fetch.key, tileData);
+            } else {
+                fetch.callback.onFailure(fetch.key, failure);
+            }
+        } catch (RuntimeException rex) {
+            Log.e(TAG, "Tile callback failed for " + fetch.key, rex);
+        }
+    }
+
+    private static InterruptedIOException cancelledFailure() {
+        return new InterruptedIOException("Mosaic job cancelled");
+    }
+
+    private void closeConnection(Connection connection) {
+        connections.remove(connection);
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        closeQuietly(connection.channel);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException iox) {
+            Log.d(TAG, "Failed to close tile connection: " + iox);
+        }
+    }
+
+    private void shutDown(Selector selector) {
+        synchronized (this) {
+            closed = true;
+        }
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+
+        // Every unfinished fetch has a request on a connection or in the queue, or is waiting for a retry
+        Set<Fetch> unfinished = new LinkedHashSet<Fetch>(timed);
+        for (Connection connection : connections) {
+            if (connection.exchange != null) {
+                unfinished.add(connection.exchange.fetch);
+            }
+        }
+        for (Exchange exchange : queued) {
+            unfinished.add(exchange.fetch);
+        }
+        IOException closedFailure = new IOException("Tile client closed");
+        for (Fetch fetch : unfinished) {
+            terminate(fetch, closedFailure);
+        }
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            closeConnection(connection);
+        }
+
+        try {
+            selector.close();
+        } catch (IOException iox) {
+            Log.d(TAG, "Failed to close selector: " + iox);
+        }
+    }
+
+    /**
+     * @return Index of the first occurrence of the pattern in buffer[from, to), or -1 if there is none
+     */
+    private static int indexOf(byte[] buffer, byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A single tile wanted by a caller, from being asked for until its callback is called. It may take more than
+     * one request to the server.
+     */
+    private static class Fetch {
+
+        final MosaicTileKey key;
+
+        final byte[] request;
+
+        final MosaicCancellationToken token;
+
+        final Callback callback;
+
+        // Requests for the tile that are queued or in flight - two at most, while the fetch is hedged
+        final List<Exchange> attempts = new ArrayList<Exchange>(2);
+
+        // Number of times the fetch has been retried
+        int retries;
+
+        // Whether a hedge has been arranged for the fetch. Only ever one is.
+        boolean hedgeScheduled;
+
+        // Nanos at which the fetch is to be hedged, or 0 if it isn't
+        long hedgeAtNanos;
+
+        // Nanos at which the fetch is to be retried, or 0 if it isn't
+        long retryAtNanos;
+
+        // Whether the callback has been called
+        boolean finished;
+
+        // Registered with the token until the fetch is finished. Guarded by this.
+        private MosaicCancellationToken.Registration cancelRegistration;
+
+        // Set once finished, so that a registration made after that is undone straight away. Guarded by this.
+        private boolean unregistered;
+
+        Fetch(MosaicTileKey key, byte[] request, MosaicCancellationToken token, Callback callback) {
+            this.key = key;
+            this.request = request;
+            this.token = token;
+            this.callback = callback;
+        }
+
+        synchronized void setCancelRegistration(MosaicCancellationToken.Registration registration) {
+            if (unregistered) {
+                registration.unregister();
+            } else {
+                cancelRegistration = registration;
+            }
+        }
+
+        synchronized void unregisterCancel() {
+            unregistered = true;
+            if (cancelRegistration != null) {
+                cancelRegistration.unregister();
+            }
+        }
+    }
+
+    /**
+     * A single request to the server for a fetch's tile
+     */
+    private static class Exchange {
+
+        final Fetch fetch;
+
+        // Nanos when the request was first sent, or 0 if it hasn't been
+        long startNanos;
+
+        // Whether the request holds a permit from the limiter
+        boolean holdsPermit;
+
+        // Whether the circuit breaker let the request through, and is waiting to hear how it went
+        boolean holdsBreakerPermit;
+
+        // Whether the request has been sent a second time, on a new connection
+        boolean resent;
+
+        Exchange(Fetch fetch) {
+            this.fetch = fetch;
+        }
+    }
+
+
+    /**
+     * A connection to the server, and the response being read from it
+     */
+    private static class Connection {
+
+        final SocketChannel channel;
+
+        SelectionKey key;
+
+        boolean connected;
+
+        // Whether a response has been read from this connection before
+        boolean reused;
+
+        // The request being answered, or null if the connection is idle
+        Exchange exchange;
+
+        // What is left of the request to be sent
+        ByteBuffer request;
+
+        // Nanos by which the server must connect or make progress, or 0 if the connection is idle
+        long deadlineNanos;
+
+        // The response so far - header and body as received
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+        int length;
+
+        // Length of the response header including its blank line, or -1 until it has all arrived
+        int headerLength;
+
+        int status;
+
+        // From the Content-Length header, or -1 if there was none
+        int contentLength;
+
+        boolean chunked;
+
+        // Whether the server will close the connection, or it can't be re-used, after this response
+        boolean closeAfterResponse;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void resetResponse() {
+            length = 0;
+            headerLength = -1;
+            status = 0;
+            contentLength = -1;
+            chunked = false;
+            closeAfterResponse = false;
+        }
+
+        void append(byte[] bytes, int count) {
+            if (length + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+            }
+            System.arraycopy(bytes, 0, buffer, length, count);
+            length += count;
+        }
+
+        /**
+         * @return Body of the response if it has all arrived, otherwise null
+         * @throws IOException If the response is malformed
+         */
+        byte[] parse() throws IOException {
+            if (headerLength < 0) {
+                int headerEnd = indexOf(buffer, CRLF_CRLF, 0, length);
+                if (headerEnd < 0) {
+                    if (length > MAX_HEADER_BYTES) {
+                        throw new IOException("Tile server response header too long");
+                    }
+                    return null;
+                }
+                parseHeader(new String(buffer, 0, headerEnd, US_ASCII));
+                headerLength = headerEnd + CRLF_CRLF.length;
+            }
+
+            if (chunked) {
+                return decodeChunked();
+            }
+            if (contentLength >= 0) {
+                int bodyLength = length - headerLength;
+                if (bodyLength < contentLength) {
+                    return null;
+                }
+                if (bodyLength > contentLength) {
+                    // More than was asked for, so what follows can't be trusted to be the next response
+                    closeAfterResponse = true;
+                }
+                return Arrays.copyOfRange(buffer, headerLength, headerLength + contentLength);
+            }
+            // The body ends when the server closes the connection
+            return null;
+        }
+
+        /**
+         * @return Body of a response whose end is marked by the server closing the connection, or null if the
+         * connection was closed too soon
+         */
+        byte[] bodyAtEndOfStream() {
+            if ((headerLength < 0) || chunked || (contentLength >= 0)) {
+                return null;
+            }
+            return Arrays.copyOfRange(buffer, headerLength, length);
+        }
+
+        private void parseHeader(String header) throws IOException {
+            String[] lines = header.split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+            if ((statusLine.length < 2) || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed tile server response: " + lines[0]);
+            }
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException nfex) {
+                throw new IOException("Malformed tile server response: " + lines[0]);
+            }
+            boolean keepAlive = !"HTTP/1.0".equals(statusLine[0]);
+
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.US);
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Integer.parseInt(value);
+                    } catch (NumberFormatException nfex) {
+                        throw new IOException("Malformed Content-Length from tile server: " + value);
+                    }
+                } else if (name.equals("transfer-encoding")) {
+                    chunked = value.contains("chunked");
+                } else if (name.equals("connection")) {
+                    keepAlive = value.contains("keep-alive") || (keepAlive && !value.contains("close"));
+                }
+            }
+
+            if ((status == 204) || (status == 304)) {
+                contentLength = 0;
+                chunked = false;
+            }
+            closeAfterResponse = !keepAlive || (!chunked && (contentLength < 0));
+        }
+
+        /**
+         * Decodes a chunked body from the start each time more of it arrives. Tiles are small enough for that to
+         * cost less than keeping track of a part-decoded chunk.
+         *
+         * @return The decoded body if it has all arrived, otherwise null
+         */
+        private byte[] decodeChunked() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(length - headerLength);
+            int position = headerLength;
+            while (true) {
+                int lineEnd = indexOf(buffer, CRLF, position, length);
+                if (lineEnd < 0) {
+                    return null;
+                }
+                String sizeLine = new String(buffer, position, lineEnd - position, US_ASCII);
+                int extension = sizeLine.indexOf(';');
+                int size;
+                try {
+                    size = Integer.parseInt(((extension < 0) ? sizeLine : sizeLine.substring(0, extension)).trim(),
+                                            16);
+                } catch (NumberFormatException nfex) {
+                    throw new IOException("Malformed chunk size from tile server: " + sizeLine);
+                }
+
+                if (size == 0) {
+                    // The last chunk, followed by optional trailers and a blank line
+                    int trailerEnd = indexOf(buffer, CRLF_CRLF, lineEnd, length);
+                    if (trailerEnd < 0) {
+                        return null;
+                    }
+                    if (trailerEnd + CRLF_CRLF.length < length) {
+                        closeAfterResponse = true;
+                    }
+                    return body.toByteArray();
+                }
+
+                position = lineEnd + CRLF.length;
+                if (position + size + CRLF.length > length) {
+                    return null;
+                }
+                body.write(buffer, position, size);
+                position += size + CRLF.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package bailey.rod.photomosaic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets a single mosaic job be cancelled from another thread, promptly. Work that would otherwise block for a long
+ * time - waiting for room in the pipeline, or for the tile server to answer - registers a callback that unblocks
+ * it (aborting the pipeline, disconnecting the connection), and the callback is run as soon as the job is
+ * cancelled rather than whenever the job next gets round to checking.
+ * <p/>
+ * A callback registered after the job has been cancelled is run straight away, so one registered while the job is
+ * being cancelled on another thread is never missed.
+ */
+public class MosaicCancellationToken {
+
+    // Callbacks to be run on cancellation. Null once cancelled.
+    private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+    /**
+     * Cancels the job, running every registered callback on the calling thread. Only the first call has any
+     * effect. A callback that throws doesn't stop the others from being run.
+     */
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (callbacks == null) {
+                return;
+            }
+            toRun = callbacks;
+            callbacks = null;
+        }
+
+        RuntimeException firstFailure = null;
+        for (Runnable callback : toRun) {
+            try {
+                callback.run();
+            } catch (RuntimeException rex) {
+                if (firstFailure == null) {
+                    firstFailure = rex;
+                }
+            }
+        }
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return callbacks == null;
+    }
+
+    /**
+     * @throws CancellationException If the job has been cancelled
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Mosaic job cancelled");
+        }
+    }
+
+    /**
+     * @param callback To be run when the job is cancelled, on the thread that cancels it. Run straight away, on
+     *                 this thread, if the job has already been cancelled. Should be quick and must not block.
+     * @return Unregisters the callback once whatever it unblocks has finished
+     */
+    public Registration onCancel(Runnable callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return new Registration(callback);
+            }
+        }
+        callback.run();
+        return new Registration(callback);
+    }
+
+    /**
+     * A callback registered with #onCancel
+     */
+    public class Registration {
+
+        private final Runnable callback;
+
+        private Registration(Runnable callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Stops the callback being run on cancellation, if it hasn't been run already
+         */
+        public void unregister() {
+            synchronized (MosaicCancellationToken.this) {
+                if (callbacks != null) {
+                    callbacks.remove(callback);
+                }
+            }
+        }
+    }
+}
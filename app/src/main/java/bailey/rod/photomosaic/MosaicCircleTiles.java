@@ -0,0 +1,126 @@
+package bailey.rod.photomosaic;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Draws tiles locally the way the tile server does: a circle of the tile's color, filling the tile, so squashed
+ * into an ellipse if the tile isn't square. The circle is blended over the pixels beneath it, so the image shows
+ * through around its edge.
+ * <p/>
+ * Each size of tile has a coverage mask, giving how much of each of its pixels the circle covers from 0 to 255.
+ * The edge is anti-aliased by sampling each pixel on a SUBSAMPLES x SUBSAMPLES grid. Masks are worked out once
+ * per size and shared by every tile after that, so drawing a tile is only integer blending.
+ * <p/>
+ * Masks are kept in an atomic array, so tiles can be drawn from several threads at once. Two threads that both
+ * find a size missing may both work out its mask, and either copy will do.
+ */
+public class MosaicCircleTiles implements MosaicTileAverager.TilePainter {
+
+    // Each pixel is sampled this many times in each direction to find how much of it the circle covers
+    private static final int SUBSAMPLES = 4;
+
+    // Widest and tallest tiles whose masks are kept
+    private final int maxWidth;
+
+    private final int maxHeight;
+
+    // Mask of each tile size, at index (width * (maxHeight + 1)) + height. Null until first used.
+    private final AtomicReferenceArray<byte[]> masks;
+
+    /**
+     * @param maxWidth  Widest tile whose mask is kept. Masks for wider tiles are worked out every time.
+     * @param maxHeight Tallest tile whose mask is kept
+     */
+    public MosaicCircleTiles(int maxWidth, int maxHeight) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        masks = new AtomicReferenceArray<byte[]>((maxWidth + 1) * (maxHeight + 1));
+    }
+
+    /**
+     * @return Coverage of each pixel of a tile of the given size, row by row, from 0 (none) to 255 (all). Must not
+     * be modified.
+     */
+    public byte[] mask(int width, int height) {
+        if ((width > maxWidth) || (height > maxHeight)) {
+            return createMask(width, height);
+        }
+
+        int index = (width * (maxHeight + 1)) + height;
+        byte[] mask = masks.get(index);
+        if (mask == null) {
+            // Threads racing to create the same mask create identical ones, so it doesn't matter whose is kept
+            mask = createMask(width, height);
+            masks.set(index, mask);
+        }
+        return mask;
+    }
+
+    private static byte[] createMask(int width, int height) {
+        byte[] mask = new byte[width * height];
+        double radiusX = width / 2.0;
+        double radiusY = height / 2.0;
+        int samples = SUBSAMPLES * SUBSAMPLES;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int inside = 0;
+                for (int subY = 0; subY < SUBSAMPLES; subY++) {
+                    double dy = (y + ((subY + 0.5) / SUBSAMPLES) - radiusY) / radiusY;
+                    for (int subX = 0; subX < SUBSAMPLES; subX++) {
+                        double dx = (x + ((subX + 0.5) / SUBSAMPLES) - radiusX) / radiusX;
+                        if (((dx * dx) + (dy * dy)) <= 1.0) {
+                            inside++;
+                        }
+                    }
+                }
+                mask[(y * width) + x] = (byte) (((inside * 255) + (samples / 2)) / samples);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Blends a circle of the given color over a tile-sized region of packed pixels. Pixels the circle covers
+     * completely become the color, those it misses are left as they are, and those on its edge are mixed.
+     */
+    @Override
+    public void paint(int[] pixels, int offset, int stride, int width, int height, int color) {
+        byte[] mask = mask(width, height);
+        int red = (color >> 16) & 0xFF;
+        int green = (color >> 8) & 0xFF;
+        int blue = color & 0xFF;
+        int opaqueColor = 0xFF000000 | color;
+
+        for (int y = 0; y < height; y++) {
+            int rowStart = offset + (y * stride);
+            int maskRowStart = y * width;
+            for (int x = 0; x < width; x++) {
+                int coverage = mask[maskRowStart + x] & 0xFF;
+                if (coverage == 0) {
+                    continue;
+                }
+
+                int i = rowStart + x;
+                if (coverage == 255) {
+                    pixels[i] = opaqueColor;
+                } else {
+                    int under = pixels[i];
+                    int rest = 255 - coverage;
+                    int blendedRed = divideBy255((red * coverage) + (((under >> 16) & 0xFF) * rest));
+                    int blendedGreen = divideBy255((green * coverage) + (((under >> 8) & 0xFF) * rest));
+                    int blendedBlue = divideBy255((blue * coverage) + ((under & 0xFF) * rest));
+                    pixels[i] = 0xFF000000 | (blendedRed << 16) | (blendedGreen << 8) | blendedBlue;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return value / 255, rounded to nearest, for any value from 0 to 255 * 255, without a division
+     */
+    private static int divideBy255(int value) {
+        int t = value + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,137 @@
+package bailey.rod.photomosaic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops requests being made to a server that keeps failing, so that callers can fall back to something local at
+ * once instead of each waiting out its own timeouts. After failureThreshold failures in a row the breaker opens,
+ * and refuses every request for openMillis. It then lets a single trial request through (half open). If that
+ * succeeds the breaker closes and requests flow again, otherwise it opens for another openMillis.
+ * <p/>
+ * Outcomes of requests that were let through before the breaker opened are ignored while it is open, so a burst
+ * of requests that were already in flight can't close it again early.
+ * <p/>
+ * One breaker is shared by the fetches of every job, so its state only changes under its own lock.
+ */
+public class MosaicCircuitBreaker {
+
+    public enum State {
+        CLOSED, // Requests are let through
+        OPEN, // Requests are refused until the open period is over
+        HALF_OPEN // A single trial request has been let through, and the others are refused until it is over
+    }
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+
+    // Failures in a row while closed
+    private int consecutiveFailures;
+
+    // When the open period ends. Only meaningful while open.
+    private long openUntilNanos;
+
+    // Whether the trial request is still in flight. Only meaningful while half open.
+    private boolean trialInFlight;
+
+    // Number of times the breaker has opened
+    private long openCount;
+
+    /**
+     * @param failureThreshold Failures in a row after which the breaker opens
+     * @param openMillis       How long the breaker stays open before letting a trial request through
+     */
+    public MosaicCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * @return True if a request may be made now, in which case exactly one of #onSuccess, #onFailure or #onIgnore
+     * must follow once it is over. False if the request should not be made, and something local used instead.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openUntilNanos < 0) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * @return True if requests are currently being refused
+     */
+    public synchronized boolean isOpen() {
+        return (state == State.OPEN) && (System.nanoTime() - openUntilNanos < 0);
+    }
+
+    /**
+     * Reports a request that succeeded
+     */
+    public synchronized void onSuccess() {
+        if (state == State.OPEN) {
+            return;
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Reports a request that failed in a way that suggests the server is in trouble, e.g. timed out
+     */
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if ((state == State.CLOSED) && (++consecutiveFailures >= failureThreshold)) {
+            open();
+        }
+    }
+
+    /**
+     * Reports a request whose outcome says nothing about the server, e.g. one cancelled along with its job
+     */
+    public synchronized void onIgnore() {
+        if (state == State.HALF_OPEN) {
+            // Let another request through in place of the trial
+            trialInFlight = false;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return Number of times the breaker has opened
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state + " (opened " + openCount + " times)";
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilNanos = System.nanoTime() + openNanos;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        openCount++;
+    }
+}
@@ -0,0 +1,158 @@
+package bailey.rod.photomosaic;
+
+/**
+ * Finds which of a fixed set of colors is nearest to a given color, in CIE L*a*b* space so that "nearest" means
+ * "looks most alike". The colors are held in a balanced k-d tree, laid out implicitly in flat arrays - the root of
+ * each subtree is the median of its range and its children are the halves either side - so there are no node
+ * objects and a lookup among 50,000 colors visits a few dozen entries rather than all of them.
+ * <p/>
+ * The arrays are filled in by the constructor and only read after that, so one tree serves every thread.
+ */
+public class MosaicColorKdTree {
+
+    // Number of dimensions - L*, a* and b*
+    private static final int K = 3;
+
+    // L*a*b* coords of each entry, K per entry, in tree order
+    private final float[] coords;
+
+    // Index in the original set of colors of each entry, in tree order
+    private final int[] ids;
+
+    /**
+     * @param colors Packed RGB colors to choose between. Alpha is ignored. Must not be empty.
+     */
+    public MosaicColorKdTree(int[] colors) {
+        if (colors.length == 0) {
+            throw new IllegalArgumentException("No colors to choose between");
+        }
+
+        coords = new float[colors.length * K];
+        ids = new int[colors.length];
+        float[] lab = new float[K];
+        for (int i = 0; i < colors.length; i++) {
+            LabColors.toLab(colors[i], lab);
+            System.arraycopy(lab, 0, coords, i * K, K);
+            ids[i] = i;
+        }
+
+        build(0, colors.length, 0);
+    }
+
+    /**
+     * @return Number of colors in the tree
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param color Packed RGB color. Alpha is ignored.
+     * @return Index, in the array given to the constructor, of the color nearest to the given one
+     */
+    public int nearest(int color) {
+        float[] target = new float[K];
+        LabColors.toLab(color, target);
+
+        Nearest best = new Nearest();
+        search(0, ids.length, 0, target, best);
+        return ids[best.entry];
+    }
+
+    /**
+     * Arranges entries [from, to) so the median on the given axis is in the middle, with smaller values before
+     * it and larger after, then does the same for each half on the next axis.
+     */
+    private void build(int from, int to, int axis) {
+        if (to - from <= 1) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, axis);
+        int nextAxis = (axis + 1) % K;
+        build(from, middle, nextAxis);
+        build(middle + 1, to, nextAxis);
+    }
+
+    /**
+     * Quickselect - partially sorts entries [left, right] on the given axis until the k'th is in place
+     */
+    private void select(int left, int right, int k, int axis) {
+        while (right > left) {
+            float pivot = coords[(((left + right) >>> 1) * K) + axis];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coords[(i * K) + axis] < pivot) {
+                    i++;
+                }
+                while (coords[(j * K) + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        for (int d = 0; d < K; d++) {
+            float coord = coords[(a * K) + d];
+            coords[(a * K) + d] = coords[(b * K) + d];
+            coords[(b * K) + d] = coord;
+        }
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+    }
+
+    private void search(int from, int to, int axis, float[] target, Nearest best) {
+        if (from >= to) {
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        int offset = middle * K;
+        float dl = coords[offset] - target[0];
+        float da = coords[offset + 1] - target[1];
+        float db = coords[offset + 2] - target[2];
+        float distanceSquared = (dl * dl) + (da * da) + (db * db);
+        if (distanceSquared < best.distanceSquared) {
+            best.distanceSquared = distanceSquared;
+            best.entry = middle;
+        }
+
+        // Search the side of the split that the target is on first. The other side can only hold a nearer entry
+        // if the target is nearer to the split than to the best entry so far.
+        float split = target[axis] - coords[offset + axis];
+        int nextAxis = (axis + 1) % K;
+        if (split < 0) {
+            search(from, middle, nextAxis, target, best);
+            if ((split * split) < best.distanceSquared) {
+                search(middle + 1, to, nextAxis, target, best);
+            }
+        } else {
+            search(middle + 1, to, nextAxis, target, best);
+            if ((split * split) < best.distanceSquared) {
+                search(from, middle, nextAxis, target, best);
+            }
+        }
+    }
+
+    /**
+     * Best entry found so far by a search
+     */
+    private static class Nearest {
+        int entry;
+
+        float distanceSquared = Float.MAX_VALUE;
+    }
+}
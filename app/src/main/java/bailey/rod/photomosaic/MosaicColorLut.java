@@ -0,0 +1,170 @@
+package bailey.rod.photomosaic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A precomputed table from RGB color to the index of the nearest color in a fixed palette. RGB space is divided
+ * into a cube of cells, 2^bitsPerChannel along each side, and each cell holds the palette entry nearest to its
+ * center. Choosing a palette entry for a color then costs one array lookup, however big the palette.
+ * <p/>
+ * Building the table costs one nearest-color search per cell, so it is done once per palette and saved. A saved
+ * table records a signature of the palette it was built for, and is ignored when loaded for any other palette.
+ * <p/>
+ * A table is never written once built, so jobs running side by side can share it.
+ */
+public class MosaicColorLut {
+
+    // Identifies a file written by this class - "MLUT"
+    private static final int MAGIC = 0x4D4C5554;
+
+    private static final int VERSION = 1;
+
+    // Header: magic, version, bits per channel, palette size (ints), palette signature (long)
+    private static final int HEADER_SIZE = 24;
+
+    private final int bitsPerChannel;
+
+    // Palette index of the nearest entry to each cell, indexed by (r << 2 * bits) | (g << bits) | b
+    private final int[] cells;
+
+    private final int paletteSize;
+
+    private final long paletteSignature;
+
+    private MosaicColorLut(int bitsPerChannel, int[] cells, int paletteSize, long paletteSignature) {
+        this.bitsPerChannel = bitsPerChannel;
+        this.cells = cells;
+        this.paletteSize = paletteSize;
+        this.paletteSignature = paletteSignature;
+    }
+
+    /**
+     * Builds a table for a palette.
+     *
+     * @param palette        Packed RGB colors of the palette. Alpha is ignored.
+     * @param bitsPerChannel Number of high bits of each of R, G and B that select a cell, from 1 to 8
+     * @return The table
+     */
+    public static MosaicColorLut build(int[] palette, int bitsPerChannel) {
+        if ((bitsPerChannel < 1) || (bitsPerChannel > 8)) {
+            throw new IllegalArgumentException("bitsPerChannel must be from 1 to 8 but was " + bitsPerChannel);
+        }
+
+        MosaicColorKdTree tree = new MosaicColorKdTree(palette);
+        int side = 1 << bitsPerChannel;
+        int shift = 8 - bitsPerChannel;
+        int half = (1 << shift) >> 1;
+        int[] cells = new int[side * side * side];
+
+        for (int r = 0; r < side; r++) {
+            for (int g = 0; g < side; g++) {
+                for (int b = 0; b < side; b++) {
+                    int center = ((r << shift) + half) << 16 | ((g << shift) + half) << 8 | ((b << shift) + half);
+                    cells[(((r << bitsPerChannel) | g) << bitsPerChannel) | b] = tree.nearest(center);
+                }
+            }
+        }
+
+        return new MosaicColorLut(bitsPerChannel, cells, palette.length, signatureOf(palette));
+    }
+
+    /**
+     * @param palette Packed RGB colors of a palette
+     * @return A hash of the palette, to tell whether a saved table was built for it
+     */
+    public static long signatureOf(int[] palette) {
+        long signature = palette.length;
+        for (int color : palette) {
+            signature = (signature * 1000003) ^ (color & 0xFFFFFF);
+        }
+        return signature;
+    }
+
+    /**
+     * Loads a saved table, if it was built for the given palette.
+     *
+     * @param lutFile        Where the table was saved
+     * @param palette        Packed RGB colors of the palette that the table is wanted for
+     * @param bitsPerChannel Number of bits per channel that the table is wanted with
+     * @return The table, or null if there is no saved table or it was built for some other palette or size
+     * @throws IOException If the file exists but couldn't be read
+     */
+    public static MosaicColorLut load(File lutFile, int[] palette, int bitsPerChannel) throws IOException {
+        if (!lutFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(lutFile, "r");
+        try {
+            long size = file.length();
+            if (size < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapping.order(ByteOrder.nativeOrder());
+            int cellCount = 1 << (3 * bitsPerChannel);
+            if ((mapping.getInt(0) != MAGIC) || (mapping.getInt(4) != VERSION) ||
+                    (mapping.getInt(8) != bitsPerChannel) || (mapping.getInt(12) != palette.length) ||
+                    (mapping.getLong(16) != signatureOf(palette)) || (size != HEADER_SIZE + (cellCount * 4L))) {
+                return null;
+            }
+
+            int[] cells = new int[cellCount];
+            mapping.position(HEADER_SIZE);
+            mapping.slice().order(ByteOrder.nativeOrder()).asIntBuffer().get(cells);
+            return new MosaicColorLut(bitsPerChannel, cells, palette.length, mapping.getLong(16));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Saves the table, replacing any saved before. The file only appears once it is complete.
+     *
+     * @param lutFile Where the table is to be saved
+     * @throws IOException If the table couldn't be written
+     */
+    public void save(File lutFile) throws IOException {
+        File tempFile = new File(lutFile.getPath() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (cells.length * 4)).order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(bitsPerChannel).putInt(paletteSize).putLong(paletteSignature);
+        buffer.asIntBuffer().put(cells);
+        buffer.position(0);
+
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+
+        if (!tempFile.renameTo(lutFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to move color table into place at " + lutFile);
+        }
+    }
+
+    /**
+     * @param color Packed RGB color. Alpha is ignored.
+     * @return Index in the palette of the entry nearest to the color's cell
+     */
+    public int lookup(int color) {
+        int shift = 8 - bitsPerChannel;
+        int mask = (1 << bitsPerChannel) - 1;
+        int r = (color >> (16 + shift)) & mask;
+        int g = (color >> (8 + shift)) & mask;
+        int b = (color >> shift) & mask;
+        return cells[(((r << bitsPerChannel) | g) << bitsPerChannel) | b];
+    }
+}
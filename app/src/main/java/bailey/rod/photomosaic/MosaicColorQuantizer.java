@@ -0,0 +1,143 @@
+package bailey.rod.photomosaic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snaps tile average colors to a limited set of representative colors, so that tiles whose colors differ
+ * imperceptibly ask for the same tile image. This bounds the number of distinct tiles - and so server
+ * requests - needed for an image. Two stages are available, and either or both may be switched off:
+ * <li> Bits per channel - each of R, G and B keeps only its top N bits, then is set to the middle of the
+ * bucket that those bits define.
+ * <li> Delta-E threshold - a color within the given CIE76 distance of a color already seen is replaced by
+ * that earlier color. Otherwise it becomes a representative itself.
+ * <p/>
+ * Representatives are remembered for the life of the quantizer, so use one quantizer per job. All methods
+ * are thread safe.
+ */
+public class MosaicColorQuantizer {
+
+    // Number of high bits kept in each color component. 8 means this stage is off.
+    private final int bitsPerChannel;
+
+    // Max CIE76 distance from a color to the representative that replaces it. 0 means this stage is off.
+    private final float maxDeltaE;
+
+    // Representatives seen so far, filed by the L*a*b* grid cell (of side maxDeltaE) that they fall in
+    private final Map<Long, List<Representative>> representativesByCell = new HashMap<Long, List<Representative>>();
+
+    /**
+     * @param bitsPerChannel Number of bits to keep in each of R, G and B, from 1 to 8
+     * @param maxDeltaE      Max perceptual distance a color may be moved. 0 to disable.
+     */
+    public MosaicColorQuantizer(int bitsPerChannel, double maxDeltaE) {
+        if ((bitsPerChannel < 1) || (bitsPerChannel > 8)) {
+            throw new IllegalArgumentException("bitsPerChannel must be from 1 to 8 but was " + bitsPerChannel);
+        }
+        this.bitsPerChannel = bitsPerChannel;
+        this.maxDeltaE = (float) maxDeltaE;
+    }
+
+    /**
+     * @return True if this quantizer would never change a color
+     */
+    public boolean isIdentity() {
+        return (bitsPerChannel == 8) && (maxDeltaE <= 0);
+    }
+
+    /**
+     * @return True if what a color snaps to depends on the colors quantized before it, so that colors have to
+     * be quantized in the same order every time to get the same results
+     */
+    public boolean remembersColors() {
+        return maxDeltaE > 0;
+    }
+
+    /**
+     * @param color Packed RGB color
+     * @return Opaque packed color of the representative that the given color snaps to
+     */
+    public int quantize(int color) {
+        color = 0xFF000000 | quantizeBits(color);
+        return (maxDeltaE > 0) ? snapToRepresentative(color) : color;
+    }
+
+    private int quantizeBits(int color) {
+        if (bitsPerChannel == 8) {
+            return color;
+        }
+        int shift = 8 - bitsPerChannel;
+        int mask = (0xFF >> shift) << shift;
+        int middle = 1 << (shift - 1);
+        int channelMask = (mask << 16) | (mask << 8) | mask;
+        int channelMiddle = (middle << 16) | (middle << 8) | middle;
+        return (color & channelMask) | channelMiddle;
+    }
+
+    private synchronized int snapToRepresentative(int color) {
+        float[] lab = new float[3];
+        LabColors.toLab(color, lab);
+
+        int cellL = cellOf(lab[0]);
+        int cellA = cellOf(lab[1]);
+        int cellB = cellOf(lab[2]);
+
+        // Anything within maxDeltaE is in the same cell or one of its 26 neighbours
+        Representative nearest = null;
+        float nearestDistance = maxDeltaE * maxDeltaE;
+        for (int dl = -1; dl <= 1; dl++) {
+            for (int da = -1; da <= 1; da++) {
+                for (int db = -1; db <= 1; db++) {
+                    List<Representative> cell = representativesByCell.get(cellKey(cellL + dl, cellA + da, cellB + db));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Representative candidate : cell) {
+                        float distance = LabColors.distanceSquared(lab, candidate.lab);
+                        if (distance <= nearestDistance) {
+                            nearest = candidate;
+                            nearestDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (nearest != null) {
+            return nearest.color;
+        }
+
+        Long key = cellKey(cellL, cellA, cellB);
+        List<Representative> cell = representativesByCell.get(key);
+        if (cell == null) {
+            cell = new ArrayList<Representative>();
+            representativesByCell.put(key, cell);
+        }
+        cell.add(new Representative(color, lab));
+        return color;
+    }
+
+    private int cellOf(float value) {
+        return (int) Math.floor(value / maxDeltaE);
+    }
+
+    private static Long cellKey(int l, int a, int b) {
+        return ((long) (l & 0xFFFFF) << 40) | ((long) (a & 0xFFFFF) << 20) | (b & 0xFFFFF);
+    }
+
+    /**
+     * A color that other colors may be snapped to
+     */
+    private static class Representative {
+        final int color;
+
+        final float[] lab;
+
+        Representative(int color, float[] lab) {
+            this.color = color;
+            this.lab = lab;
+        }
+    }
+}
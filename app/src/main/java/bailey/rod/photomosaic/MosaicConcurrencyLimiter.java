@@ -0,0 +1,148 @@
+package bailey.rod.photomosaic;
+
+/**
+ * Limits how many tile fetches are in flight at once, adapting the limit to how the tile server responds (additive
+ * increase, multiplicative decrease). While fetches come back about as fast as they do when the server is idle,
+ * the limit creeps up by about one per round trip. When they slow down enough to suggest that requests are queueing
+ * at the server, or fail outright, it is cut back. The limit so settles near the concurrency that the server
+ * handles best, be it a fast server on the LAN or an overloaded one far away.
+ * <p/>
+ * Latency is judged against a baseline - the fastest fetch seen, which drifts slowly up towards later fetches so
+ * that a server which has become slower for good is not held to its old standard forever.
+ * <p/>
+ * The limit, the count in flight and the latency estimates are only read or changed together, under the limiter's
+ * lock.
+ */
+public class MosaicConcurrencyLimiter {
+
+    // Weight given to each new fetch in the latency estimate
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    // Fetches slower than this many times the baseline suggest that requests are queueing at the server
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // The limit is multiplied by this on each failure, and over each limit's worth of slow fetches
+    private static final double BACKOFF = 0.9;
+
+    // The baseline moves this fraction of the way towards each fetch slower than it
+    private static final double BASELINE_DRIFT = 1.0 / 256;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    // Fractional, so that it can grow by less than one fetch at a time
+    private double limit;
+
+    private int inFlight;
+
+    // Smoothed latency of recent fetches, or 0 until the first
+    private double latencyNanos;
+
+    // Latency of fetches when the server isn't queueing them, or 0 until the first
+    private double baselineLatencyNanos;
+
+    /**
+     * @param initialLimit Max fetches in flight to begin with
+     * @param minLimit     The limit is never cut below this
+     * @param maxLimit     The limit never grows beyond this
+     */
+    public MosaicConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Makes room for another fetch if there is any, without waiting. Callers that are refused try again once some
+     * other fetch has ended. A successful tryAcquire must be followed by exactly one of #onSuccess, #onFailure or
+     * #onIgnore, once the fetch is over.
+     *
+     * @return True if there was room, false if the limit has been reached
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends a fetch that succeeded, adjusting the limit by how long it took.
+     *
+     * @param fetchNanos How long the fetch took
+     */
+    public synchronized void onSuccess(long fetchNanos) {
+        // Only a limit that is being made use of needs to grow
+        boolean busy = (inFlight * 2) >= (int) limit;
+        inFlight--;
+
+        if (latencyNanos == 0) {
+            latencyNanos = fetchNanos;
+            baselineLatencyNanos = fetchNanos;
+        } else {
+            latencyNanos += (fetchNanos - latencyNanos) * LATENCY_SMOOTHING;
+            baselineLatencyNanos = (fetchNanos < baselineLatencyNanos) ? fetchNanos :
+                    baselineLatencyNanos + ((fetchNanos - baselineLatencyNanos) * BASELINE_DRIFT);
+        }
+
+        if (latencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE) {
+            // A little for each slow fetch comes to BACKOFF over a limit's worth of them
+            limit = Math.max(minLimit, limit - (1 - BACKOFF));
+        } else if (busy) {
+            // A little for each fetch comes to one more over a limit's worth of them
+            limit = Math.min(maxLimit, limit + (1 / limit));
+        }
+    }
+
+    /**
+     * Ends a fetch that failed (e.g. timed out, or the server returned an error), cutting the limit back.
+     */
+    public synchronized void onFailure() {
+        inFlight--;
+        limit = Math.max(minLimit, limit * BACKOFF);
+    }
+
+    /**
+     * Ends a fetch that says nothing about the server, such as one cancelled along with its job, leaving the
+     * limit as it is.
+     */
+    public synchronized void onIgnore() {
+        inFlight--;
+    }
+
+    /**
+     * @return Max fetches that may be in flight at once
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return Number of fetches in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Smoothed latency of recent fetches, or 0 if there have been none
+     */
+    public synchronized long getLatencyNanos() {
+        return (long) latencyNanos;
+    }
+
+    /**
+     * @return Latency of fetches when the server isn't queueing them, or 0 if there have been none
+     */
+    public synchronized long getBaselineLatencyNanos() {
+        return (long) baselineLatencyNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("limit=%d, inFlight=%d, latency=%dms, baseline=%dms", (int) limit, inFlight,
+                             (long) latencyNanos / 1000000, (long) baselineLatencyNanos / 1000000);
+    }
+}
@@ -0,0 +1,102 @@
+package bailey.rod.photomosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A screen-resolution copy of a scratch canvas, for showing progress while the mosaic is being built. The
+ * canvas is sampled every 'step' pixels in each direction, where step is the smallest whole number that makes
+ * the copy fit within the given maximum size. Once created, the copy is kept up to date a band of rows at a
+ * time, reading only the canvas rows that are actually sampled, so each update costs a few screen rows rather
+ * than a decode of the whole image. Rows not yet finished can instead be shown from a quick preview.
+ */
+public class MosaicDisplayBitmap {
+
+    // Canvas being displayed
+    private final MosaicScratchCanvas canvas;
+
+    private final Bitmap bitmap;
+
+    // Distance in canvas pixels between samples, in both directions
+    private final int step;
+
+    // Reused to hold one full-width canvas row
+    private final int[] canvasRow;
+
+    // Reused to hold one display row
+    private final int[] displayRow;
+
+    /**
+     * @param canvas    Canvas to be displayed. Its current contents are copied in full.
+     * @param maxWidth  Max pixel width of the display copy
+     * @param maxHeight Max pixel height of the display copy
+     */
+    public MosaicDisplayBitmap(MosaicScratchCanvas canvas, int maxWidth, int maxHeight) {
+        this(canvas, maxWidth, maxHeight, null, 0);
+    }
+
+    /**
+     * @param canvas          Canvas to be displayed
+     * @param maxWidth        Max pixel width of the display copy
+     * @param maxHeight       Max pixel height of the display copy
+     * @param preview         Reduced-size preview of the whole canvas, scaled to fill the display copy before any
+     *                        rows are copied from the canvas. Null to copy every row from the canvas.
+     * @param finishedBottomY If there is a preview, the canvas rows above this are copied over it
+     */
+    public MosaicDisplayBitmap(MosaicScratchCanvas canvas, int maxWidth, int maxHeight, Bitmap preview,
+                               int finishedBottomY) {
+        this.canvas = canvas;
+        int widthStep = (canvas.getWidth() + maxWidth - 1) / maxWidth;
+        int heightStep = (canvas.getHeight() + maxHeight - 1) / maxHeight;
+        this.step = Math.max(1, Math.max(widthStep, heightStep));
+
+        int width = (canvas.getWidth() + step - 1) / step;
+        int height = (canvas.getHeight() + step - 1) / step;
+        this.bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        this.canvasRow = new int[canvas.getWidth()];
+        this.displayRow = new int[width];
+
+        if (preview == null) {
+            updateBand(0, canvas.getHeight());
+        } else {
+            new Canvas(bitmap).drawBitmap(preview, null, new Rect(0, 0, width, height),
+                                          new Paint(Paint.FILTER_BITMAP_FLAG));
+            updateBand(0, finishedBottomY);
+        }
+    }
+
+    /**
+     * @return The display copy. Modified in place by #updateBand.
+     */
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * @return The canvas that this is a copy of
+     */
+    public MosaicScratchCanvas getCanvas() {
+        return canvas;
+    }
+
+    /**
+     * Re-samples the rows of the display copy that come from the given band of canvas rows.
+     *
+     * @param topY    First canvas row that has changed
+     * @param bottomY Canvas row after the last that has changed
+     */
+    public void updateBand(int topY, int bottomY) {
+        int firstDisplayRow = (topY + step - 1) / step;
+        int endDisplayRow = Math.min(bitmap.getHeight(), (bottomY + step - 1) / step);
+
+        for (int displayY = firstDisplayRow; displayY < endDisplayRow; displayY++) {
+            canvas.readPixels(canvasRow, 0, canvasRow.length, 0, displayY * step, canvasRow.length, 1);
+            for (int displayX = 0; displayX < displayRow.length; displayX++) {
+                displayRow[displayX] = canvasRow[displayX * step];
+            }
+            bitmap.setPixels(displayRow, 0, displayRow.length, 0, displayY, displayRow.length, 1);
+        }
+    }
+}
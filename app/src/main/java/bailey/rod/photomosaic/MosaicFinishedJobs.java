@@ -0,0 +1,68 @@
+package bailey.rod.photomosaic;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Durable record of the jobs that need no more work, whether their mosaic was finished or they were cancelled.
+ * Each is recorded by an empty file named after the job's ID, so the record survives the process being killed.
+ * <p/>
+ * MosaicService has its Intents redelivered after such a kill, including those of jobs that had already ended,
+ * as it only stops once every job has. A finished job has no canvas or journal left to resume from, so without
+ * this record it would be run again from the start and exported a second time. Once the service stops with no
+ * jobs left, nothing can be redelivered, so the record is cleared.
+ */
+public class MosaicFinishedJobs {
+
+    private static final String MARKER_FILE_SUFFIX = ".done";
+
+    private final File directory;
+
+    /**
+     * @param directory Where the record is kept. Created when the first job is recorded.
+     */
+    public MosaicFinishedJobs(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param jobId ID of a job that needs no more work
+     * @throws IOException If the job couldn't be recorded
+     */
+    public void markFinished(long jobId) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        File marker = markerFile(jobId);
+        if (!marker.createNewFile() && !marker.isFile()) {
+            throw new IOException("Failed to create " + marker);
+        }
+    }
+
+    /**
+     * @param jobId ID of a job
+     * @return True if the job has been recorded by #markFinished since the record was last cleared
+     */
+    public boolean isFinished(long jobId) {
+        return markerFile(jobId).isFile();
+    }
+
+    /**
+     * Forgets every job recorded
+     */
+    public void clear() {
+        File[] markers = directory.listFiles();
+        if (markers == null) {
+            return;
+        }
+        for (File marker : markers) {
+            if (marker.getName().endsWith(MARKER_FILE_SUFFIX)) {
+                marker.delete();
+            }
+        }
+    }
+
+    private File markerFile(long jobId) {
+        return new File(directory, jobId + MARKER_FILE_SUFFIX);
+    }
+}
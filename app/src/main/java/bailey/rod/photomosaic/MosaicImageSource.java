@@ -0,0 +1,233 @@
+package bailey.rod.photomosaic;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The raw image to be mosaic'd, from which horizontal bands of pixels can be read. Small images are decoded
+ * whole into a single bitmap. Images whose decoded size would take too much of the heap are instead decoded
+ * a band at a time with a BitmapRegionDecoder, so memory use is bounded by the band size rather than by the
+ * size of the image.
+ */
+public abstract class MosaicImageSource {
+
+    private static final String TAG = MosaicImageSource.class.getSimpleName();
+
+    // Pixel width of the image
+    protected final int width;
+
+    // Pixel height of the image
+    protected final int height;
+
+    protected MosaicImageSource(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Opens an image in the Android Media Store, choosing whether to decode it whole or in bands.
+     *
+     * @param context         Application context
+     * @param imageUri        Location of image in Android Media Store
+     * @param maxHeapFraction Images whose decoded pixels would take more than this fraction of the max heap are
+     *                        decoded in bands
+     * @return The opened image. Close it when finished with.
+     * @throws IOException If the image couldn't be read
+     */
+    public static MosaicImageSource open(Context context, Uri imageUri, double maxHeapFraction) throws IOException {
+        BitmapFactory.Options bounds = decodeBounds(context, imageUri);
+
+        long decodedBytes = (long) bounds.outWidth * bounds.outHeight * 4;
+        boolean streaming = decodedBytes > Runtime.getRuntime().maxMemory() * maxHeapFraction;
+
+        Log.i(TAG, String.format("Image is %d x %d, %s", bounds.outWidth, bounds.outHeight,
+                                 streaming ? "decoding in bands" : "decoding whole"));
+
+        InputStream inputStream = context.getContentResolver().openInputStream(imageUri);
+        try {
+            if (streaming) {
+                return new BandedImageSource(BitmapRegionDecoder.newInstance(inputStream, false));
+            }
+            Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
+            if (bitmap == null) {
+                throw new IOException("Failed to decode image " + imageUri);
+            }
+            return new WholeImageSource(bitmap);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Reads the size of an image in the Android Media Store without decoding any of its pixels.
+     *
+     * @param context  Application context
+     * @param imageUri Location of image in Android Media Store
+     * @return Options whose outWidth and outHeight are the size of the image
+     * @throws IOException If the image couldn't be read
+     */
+    public static BitmapFactory.Options decodeBounds(Context context, Uri imageUri) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        InputStream inputStream = context.getContentResolver().openInputStream(imageUri);
+        try {
+            BitmapFactory.decodeStream(inputStream, null, bounds);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        if ((bounds.outWidth <= 0) || (bounds.outHeight <= 0)) {
+            throw new IOException("Failed to read size of image " + imageUri);
+        }
+        return bounds;
+    }
+
+    /**
+     * Decodes a reduced-size, mutable copy of an image in the Android Media Store. The decoder skips the pixels
+     * it doesn't need, so this is far quicker and smaller than decoding the image whole.
+     *
+     * @param context    Application context
+     * @param imageUri   Location of image in Android Media Store
+     * @param sampleSize Each pixel of the copy stands for this many pixels of the image in each direction. Should
+     *                   be a power of 2, as for BitmapFactory.Options.inSampleSize.
+     * @return The reduced-size copy
+     * @throws IOException If the image couldn't be read
+     */
+    public static Bitmap decodeSampled(Context context, Uri imageUri, int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        InputStream inputStream = context.getContentResolver().openInputStream(imageUri);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            if (bitmap == null) {
+                throw new IOException("Failed to decode image " + imageUri);
+            }
+            return bitmap;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return True if the image is being decoded a band at a time, rather than being held in memory whole
+     */
+    public abstract boolean isStreaming();
+
+    /**
+     * Copies a full-width band of rows out of the image.
+     *
+     * @param pixels     Receives the band as packed ARGB, 'width' pixels per row
+     * @param topY       First row of the band
+     * @param bandHeight Number of rows in the band
+     * @throws IOException If the band couldn't be decoded
+     */
+    public abstract void readBand(int[] pixels, int topY, int bandHeight) throws IOException;
+
+    /**
+     * Releases any memory and decoder held by the image. No more bands can be read afterwards.
+     */
+    public abstract void close();
+
+    /**
+     * An image that has been decoded whole into a bitmap
+     */
+    private static class WholeImageSource extends MosaicImageSource {
+
+        private Bitmap bitmap;
+
+        WholeImageSource(Bitmap bitmap) {
+            super(bitmap.getWidth(), bitmap.getHeight());
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void readBand(int[] pixels, int topY, int bandHeight) {
+            bitmap.getPixels(pixels, 0, width, 0, topY, width, bandHeight);
+        }
+
+        @Override
+        public void close() {
+            if (bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+        }
+    }
+
+    /**
+     * An image that is decoded a band at a time. The bitmap each band is decoded into is re-used for the next.
+     */
+    private static class BandedImageSource extends MosaicImageSource {
+
+        private final BitmapRegionDecoder decoder;
+
+        private final Rect region = new Rect();
+
+        private final BitmapFactory.Options options = new BitmapFactory.Options();
+
+        BandedImageSource(BitmapRegionDecoder decoder) {
+            super(decoder.getWidth(), decoder.getHeight());
+            this.decoder = decoder;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public void readBand(int[] pixels, int topY, int bandHeight) throws IOException {
+            region.set(0, topY, width, topY + bandHeight);
+
+            Bitmap band;
+            try {
+                band = decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException iae) {
+                // The previous band's bitmap can't be re-used for this one, e.g. it is too small
+                options.inBitmap = null;
+                band = decoder.decodeRegion(region, options);
+            }
+            if (band == null) {
+                throw new IOException("Failed to decode rows " + topY + " to " + (topY + bandHeight) + " of image");
+            }
+
+            band.getPixels(pixels, 0, width, 0, 0, width, bandHeight);
+            options.inBitmap = band;
+        }
+
+        @Override
+        public void close() {
+            decoder.recycle();
+            if (options.inBitmap != null) {
+                options.inBitmap.recycle();
+                options.inBitmap = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package bailey.rod.photomosaic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint of a mosaic job in progress, kept next to its scratch canvas, recording which tiles have been
+ * composited into the canvas. If the process is killed part way through a job, the job can be resumed from the
+ * canvas and this journal, redoing only the tiles that weren't finished.
+ * <p/>
+ * The file is memory-mapped, and holds a header (magic number, version, source fingerprint, tile capacity,
+ * length of the job parameters), the job parameters as UTF-8, then one bit per tile. A journal is only resumed if
+ * both the parameters and the fingerprint of the source image match, as otherwise the tiles would be different.
+ * Marking a tile complete touches one byte of mapped memory, which survives the death of the process.
+ * <p/>
+ * Tiles are marked by the compositor thread while the job's own thread checks which are finished, so both go through
+ * the journal's lock.
+ */
+public class MosaicJobJournal {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Identifies a file written by this class - "MJNL"
+    private static final int MAGIC = 0x4D4A4E4C;
+
+    private static final int VERSION = 1;
+
+    // Header: magic, version (ints), fingerprint (long), tile capacity, params length (ints)
+    private static final int HEADER_SIZE = 24;
+
+    private static final int FINGERPRINT_OFFSET = 8;
+
+    private static final int CAPACITY_OFFSET = 16;
+
+    private static final int PARAMS_LENGTH_OFFSET = 20;
+
+    // Bytes read at a time when taking a fingerprint
+    private static final int FINGERPRINT_BUFFER_SIZE = 64 * 1024;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer mapping;
+
+    // Offset in the file of the first byte of the bitset
+    private final int bitsOffset;
+
+    // Number of tiles that the bitset has room for
+    private final int tileCapacity;
+
+    // True if this journal was left by an earlier run of the same job
+    private final boolean resumed;
+
+    private MosaicJobJournal(RandomAccessFile file, MappedByteBuffer mapping, int bitsOffset, int tileCapacity,
+                             boolean resumed) {
+        this.file = file;
+        this.mapping = mapping;
+        this.bitsOffset = bitsOffset;
+        this.tileCapacity = tileCapacity;
+        this.resumed = resumed;
+    }
+
+    /**
+     * Creates (or overwrites) a journal in which no tile is yet complete.
+     *
+     * @param journalFile  Where the journal is to be stored
+     * @param params       Every parameter of the job that affects which tiles it has and what they look like
+     * @param fingerprint  Fingerprint of the source image, from #fingerprint
+     * @param tileCapacity Max number of tiles that can be recorded. Tiles beyond it are never recorded as complete,
+     *                     so are always redone on resume.
+     * @return The new journal. Close it when finished with.
+     * @throws IOException If the file couldn't be created or mapped
+     */
+    public static MosaicJobJournal create(File journalFile, String params, long fingerprint, int tileCapacity)
+            throws IOException {
+        byte[] paramBytes = params.getBytes(UTF_8);
+        int bitsOffset = HEADER_SIZE + paramBytes.length;
+        long size = bitsOffset + bitsetSize(tileCapacity);
+
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            // Truncate first, so no bits survive from an earlier journal
+            file.setLength(0);
+            file.setLength(size);
+            MappedByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapping.putInt(4, VERSION);
+            mapping.putLong(FINGERPRINT_OFFSET, fingerprint);
+            mapping.putInt(CAPACITY_OFFSET, tileCapacity);
+            mapping.putInt(PARAMS_LENGTH_OFFSET, paramBytes.length);
+            mapping.position(HEADER_SIZE);
+            mapping.put(paramBytes);
+
+            // The magic number goes in last, so a journal only half written is never resumed
+            mapping.putInt(0, MAGIC);
+            return new MosaicJobJournal(file, mapping, bitsOffset, tileCapacity, false);
+        } catch (IOException iox) {
+            file.close();
+            throw iox;
+        }
+    }
+
+    /**
+     * Opens the journal left by an earlier run of the same job, if there is one.
+     *
+     * @param journalFile Where the journal is stored
+     * @param params      Parameters of the job, which must be the same as when the journal was created
+     * @param fingerprint Fingerprint of the source image, which must be the same as when the journal was created
+     * @return The journal, or null if there is none, or it is for a different job or a different source image.
+     * Close it when finished with.
+     * @throws IOException If the journal exists but couldn't be read
+     */
+    public static MosaicJobJournal resume(File journalFile, String params, long fingerprint) throws IOException {
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        byte[] paramBytes = params.getBytes(UTF_8);
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        MosaicJobJournal journal = null;
+        try {
+            long size = file.length();
+            if (size >= HEADER_SIZE + paramBytes.length) {
+                MappedByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                int tileCapacity = mapping.getInt(CAPACITY_OFFSET);
+                int bitsOffset = HEADER_SIZE + paramBytes.length;
+                if ((mapping.getInt(0) == MAGIC) &&
+                        (mapping.getInt(4) == VERSION) &&
+                        (mapping.getLong(FINGERPRINT_OFFSET) == fingerprint) &&
+                        (mapping.getInt(PARAMS_LENGTH_OFFSET) == paramBytes.length) &&
+                        (tileCapacity >= 0) &&
+                        (size == bitsOffset + bitsetSize(tileCapacity)) &&
+                        Arrays.equals(paramBytes, storedParams(mapping, paramBytes.length))) {
+                    journal = new MosaicJobJournal(file, mapping, bitsOffset, tileCapacity, true);
+                }
+            }
+        } finally {
+            if (journal == null) {
+                file.close();
+            }
+        }
+        return journal;
+    }
+
+    private static byte[] storedParams(MappedByteBuffer mapping, int length) {
+        byte[] stored = new byte[length];
+        mapping.position(HEADER_SIZE);
+        mapping.get(stored);
+        return stored;
+    }
+
+    private static int bitsetSize(int tileCapacity) {
+        return (tileCapacity + 7) / 8;
+    }
+
+    /**
+     * Fingerprints an image, so that a journal is never resumed against an image that has since been edited or
+     * replaced. Reads the whole stream, but does not close it.
+     *
+     * @return CRC of the image's bytes in the low 32 bits, and their count in the high 32 bits
+     * @throws IOException If the stream couldn't be read
+     */
+    public static long fingerprint(InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[FINGERPRINT_BUFFER_SIZE];
+        long length = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            length += read;
+        }
+        return (length << 32) | crc.getValue();
+    }
+
+    /**
+     * @return True if this journal was left by an earlier run of the same job, so its tiles may already be complete
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @param tileIndex Index of a tile, in the order the job creates its tiles
+     * @return True if the tile has been composited into the scratch canvas
+     */
+    public synchronized boolean isComplete(int tileIndex) {
+        if ((tileIndex < 0) || (tileIndex >= tileCapacity)) {
+            return false;
+        }
+        return (mapping.get(bitsOffset + (tileIndex >> 3)) & (1 << (tileIndex & 7))) != 0;
+    }
+
+    /**
+     * Records that a tile has been composited into the scratch canvas. Call only once its pixels are there.
+     *
+     * @param tileIndex Index of a tile, in the order the job creates its tiles. Ignored if beyond the capacity.
+     */
+    public synchronized void markComplete(int tileIndex) {
+        if ((tileIndex < 0) || (tileIndex >= tileCapacity)) {
+            return;
+        }
+        int offset = bitsOffset + (tileIndex >> 3);
+        mapping.put(offset, (byte) (mapping.get(offset) | (1 << (tileIndex & 7))));
+    }
+
+    /**
+     * @return Number of tiles recorded as complete
+     */
+    public synchronized int getCompletedCount() {
+        int count = 0;
+        for (int i = bitsOffset; i < bitsOffset + bitsetSize(tileCapacity); i++) {
+            count += Integer.bitCount(mapping.get(i) & 0xFF);
+        }
+        return count;
+    }
+
+    /**
+     * Flushes the journal to storage and releases the file. The journal must not be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        mapping.force();
+        file.close();
+    }
+}
@@ -0,0 +1,252 @@
+package bailey.rod.photomosaic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time of a single mosaic job went. Each stage of the job has a MosaicLatencyHistogram of how long
+ * each occurrence of it took (each band read, each tile fetched, ...), alongside counters of cache hits and
+ * misses and samples of how deep the pipeline's queues got. Recording is cheap enough to do for every tile, and
+ * the summary replaces logging per tile.
+ * <p/>
+ * Fetch threads, the compositor and the job's own thread all record into the same instance, so every counter and
+ * gauge is atomic and nothing is locked.
+ */
+public class MosaicJobMetrics {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The timed stages of a job
+     */
+    public enum Stage {
+        SOURCE_DECODE, // Decoding (a band of) the raw image
+        AVERAGING, // Finding the tiles of a band and their average colors
+        TILE_FETCH, // Getting a tile's image data from the disk cache, server or library, or creating it
+        TILE_DECODE, // Decoding a tile's image data into a bitmap
+        COMPOSITE, // Copying a finished tile into the mosaic
+        SCRATCH_SAVE, // Copying the finished mosaic out of the scratch canvas into a bitmap
+        FINAL_ENCODE // Compressing the finished mosaic into the scratch file
+    }
+
+    /**
+     * The things that are counted during a job
+     */
+    public enum Counter {
+        TILES, // Tiles requested
+        FAILED_TILES, // Tiles for which no image could be had
+        FALLBACK_TILES, // Tiles drawn locally because the tile server failed them or was being left alone
+        RESUMED_TILES, // Tiles already finished by an earlier run of the job, so not requested again
+        PREFETCHED_TILES, // Tiles fetched ahead of need because the survey found them
+        MEMORY_CACHE_HITS,
+        MEMORY_CACHE_MISSES,
+        DISK_CACHE_HITS,
+        DISK_CACHE_MISSES,
+        BYTES_FETCHED // Bytes of tile image data fetched from the server
+    }
+
+    /**
+     * The queues whose depths are sampled during a job
+     */
+    public enum Queue {
+        TILES_IN_FLIGHT, // Tiles submitted to the pipeline but not yet composited
+        FETCH_QUEUE, // Tiles waiting for a fetch thread
+        COMPOSITE_QUEUE // Tiles fetched and waiting to be composited
+    }
+
+    /**
+     * The values, other than queue depths, that are sampled during a job
+     */
+    public enum Gauge {
+        FETCH_LIMIT, // Max tile fetches allowed in flight by the adaptive limiter
+        FETCH_LATENCY_MS // The limiter's smoothed estimate of how long a tile fetch takes
+    }
+
+    private final MosaicLatencyHistogram[] stages = new MosaicLatencyHistogram[Stage.values().length];
+
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    // For each queue - number of samples, sum of depths sampled, max depth sampled
+    private final AtomicLongArray queueSamples = new AtomicLongArray(Queue.values().length);
+
+    private final AtomicLongArray queueDepthTotals = new AtomicLongArray(Queue.values().length);
+
+    private final AtomicLongArray queueDepthMaxes = new AtomicLongArray(Queue.values().length);
+
+    // For each gauge - number of samples, sum of values sampled, last value sampled
+    private final AtomicLongArray gaugeSamples = new AtomicLongArray(Gauge.values().length);
+
+    private final AtomicLongArray gaugeTotals = new AtomicLongArray(Gauge.values().length);
+
+    private final AtomicLongArray gaugeLasts = new AtomicLongArray(Gauge.values().length);
+
+    private final long startNanos = System.nanoTime();
+
+    // Nanos from start to #finish, or -1 until then
+    private final AtomicLong elapsedNanos = new AtomicLong(-1);
+
+    // Identifies the job in the summary e.g. the URI of the image
+    private final String jobName;
+
+    /**
+     * @param jobName Identifies the job in the summary, e.g. the URI of the image. The job's clock starts now.
+     */
+    public MosaicJobMetrics(String jobName) {
+        this.jobName = jobName;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new MosaicLatencyHistogram();
+        }
+    }
+
+    /**
+     * @return A start time to be passed to #stop when a stage has finished
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records one occurrence of a stage.
+     *
+     * @param stage      The stage that has just finished
+     * @param startNanos The time returned by #start when it began
+     */
+    public void stop(Stage stage, long startNanos) {
+        stages[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(Counter counter, long amount) {
+        counters.addAndGet(counter.ordinal(), amount);
+    }
+
+    /**
+     * @param queue How deep this queue currently is
+     * @param depth Number of entries in the queue
+     */
+    public void sampleQueueDepth(Queue queue, int depth) {
+        int i = queue.ordinal();
+        queueSamples.incrementAndGet(i);
+        queueDepthTotals.addAndGet(i, depth);
+
+        long max = queueDepthMaxes.get(i);
+        while ((depth > max) && !queueDepthMaxes.compareAndSet(i, max, depth)) {
+            max = queueDepthMaxes.get(i);
+        }
+    }
+
+    /**
+     * @param gauge What is being sampled
+     * @param value Its current value
+     */
+    public void sampleGauge(Gauge gauge, long value) {
+        int i = gauge.ordinal();
+        gaugeSamples.incrementAndGet(i);
+        gaugeTotals.addAndGet(i, value);
+        gaugeLasts.set(i, value);
+    }
+
+    /**
+     * Stops the job's clock. Only the first call has any effect.
+     */
+    public void finish() {
+        elapsedNanos.compareAndSet(-1, System.nanoTime() - startNanos);
+    }
+
+    public MosaicLatencyHistogram getStage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public long getMaxQueueDepth(Queue queue) {
+        return queueDepthMaxes.get(queue.ordinal());
+    }
+
+    /**
+     * @return Value most recently sampled, or 0 if none has been
+     */
+    public long getLastGauge(Gauge gauge) {
+        return gaugeLasts.get(gauge.ordinal());
+    }
+
+    /**
+     * @return Nanos from the start of the job until #finish, or until now if not yet finished
+     */
+    public long getElapsedNanos() {
+        long elapsed = elapsedNanos.get();
+        return (elapsed < 0) ? System.nanoTime() - startNanos : elapsed;
+    }
+
+    /**
+     * @return Fraction of lookups that were hits, or 0 if there were none
+     */
+    private double hitRate(Counter hits, Counter misses) {
+        long lookups = getCount(hits) + getCount(misses);
+        return (lookups == 0) ? 0 : (double) getCount(hits) / lookups;
+    }
+
+    /**
+     * @return Human-readable summary of the job, one line per stage, counter, queue and gauge
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US, "Job %s: %.1fs%n", jobName, getElapsedNanos() / 1e9));
+
+        for (Stage stage : Stage.values()) {
+            summary.append(String.format(Locale.US, "  %-15s %s%n", stage, getStage(stage)));
+        }
+
+        for (Counter counter : Counter.values()) {
+            summary.append(String.format(Locale.US, "  %-19s %d%n", counter, getCount(counter)));
+        }
+        summary.append(String.format(Locale.US, "  memory cache hit rate %.1f%%%n",
+                                     100 * hitRate(Counter.MEMORY_CACHE_HITS, Counter.MEMORY_CACHE_MISSES)));
+        summary.append(String.format(Locale.US, "  disk cache hit rate %.1f%%%n",
+                                     100 * hitRate(Counter.DISK_CACHE_HITS, Counter.DISK_CACHE_MISSES)));
+
+        for (Queue queue : Queue.values()) {
+            int i = queue.ordinal();
+            long samples = queueSamples.get(i);
+            double meanDepth = (samples == 0) ? 0 : (double) queueDepthTotals.get(i) / samples;
+            summary.append(String.format(Locale.US, "  %-15s depth mean=%.1f max=%d%n", queue, meanDepth,
+                                         queueDepthMaxes.get(i)));
+        }
+
+        for (Gauge gauge : Gauge.values()) {
+            int i = gauge.ordinal();
+            long samples = gaugeSamples.get(i);
+            double mean = (samples == 0) ? 0 : (double) gaugeTotals.get(i) / samples;
+            summary.append(String.format(Locale.US, "  %-19s mean=%.1f last=%d%n", gauge, mean, gaugeLasts.get(i)));
+        }
+
+        return summary.toString();
+    }
+
+    /**
+     * Writes #summary to a file, replacing whatever was there.
+     *
+     * @param dumpFile Where the summary is to be written
+     * @throws IOException If it couldn't be written
+     */
+    public void writeSummary(File dumpFile) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(dumpFile), UTF_8);
+        try {
+            writer.write(summary());
+        } finally {
+            writer.close();
+        }
+    }
+}
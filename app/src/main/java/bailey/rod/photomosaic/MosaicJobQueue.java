@@ -0,0 +1,154 @@
+package bailey.rod.photomosaic;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs mosaic jobs a few at a time, highest priority first. Jobs of equal priority are run in the order they
+ * were queued. Every job has a MosaicCancellationToken. A job that is cancelled while still queued is run all the
+ * same when its turn comes, so that it can tidy up after itself, and is expected to see that its token has been
+ * cancelled and return at once.
+ * <p/>
+ * All methods are thread safe.
+ */
+public class MosaicJobQueue {
+
+    private static final String TAG = MosaicJobQueue.class.getSimpleName();
+
+    // Runs the jobs. Its queue hands out waiting jobs in priority order.
+    private final ThreadPoolExecutor executor;
+
+    // Every job that is queued or running, by ID
+    private final Map<Long, QueuedJob> jobs = new ConcurrentHashMap<Long, QueuedJob>();
+
+    // Order in which jobs were queued, for breaking ties in priority
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Run whenever the last job queued or running has finished. May be null.
+    private final Runnable idleListener;
+
+    /**
+     * @param maxConcurrentJobs Max number of jobs that may be run at once
+     * @param idleListener      Run on a job thread whenever the queue becomes empty, or null
+     */
+    public MosaicJobQueue(int maxConcurrentJobs, Runnable idleListener) {
+        this.idleListener = idleListener;
+        executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0L, TimeUnit.MILLISECONDS,
+                                          new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * @param jobId    Identifies the job, for #cancel. Must be unique among the jobs queued or running.
+     * @param priority Jobs with a higher priority are run before those with a lower one
+     * @param token    Cancelled by #cancel
+     * @param job      The job itself. Should give up promptly once its token is cancelled.
+     */
+    public void enqueue(long jobId, int priority, MosaicCancellationToken token, Runnable job) {
+        QueuedJob queued = new QueuedJob(jobId, priority, sequence.getAndIncrement(), token, job);
+        jobs.put(jobId, queued);
+        executor.execute(queued);
+    }
+
+    /**
+     * Cancels a job by cancelling its token, which is up to the job to act upon.
+     *
+     * @param jobId Identifies the job
+     * @return True if the job was queued or running, false if it was unknown or has already finished
+     */
+    public boolean cancel(long jobId) {
+        QueuedJob queued = jobs.get(jobId);
+        if (queued == null) {
+            return false;
+        }
+
+        queued.token.cancel();
+        return true;
+    }
+
+    /**
+     * Cancels every job that is queued or running
+     */
+    public void cancelAll() {
+        for (Long jobId : jobs.keySet()) {
+            cancel(jobId);
+        }
+    }
+
+    /**
+     * @return True if there are no jobs queued or running
+     */
+    public boolean isIdle() {
+        return jobs.isEmpty();
+    }
+
+    /**
+     * @return Number of jobs waiting to be run
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Cancels every job and releases the job threads once every job has given up.
+     */
+    public void shutdown() {
+        cancelAll();
+        executor.shutdown();
+    }
+
+    private void finished(QueuedJob queued) {
+        jobs.remove(queued.jobId);
+        if (jobs.isEmpty() && (idleListener != null)) {
+            idleListener.run();
+        }
+    }
+
+    /**
+     * A job as held by the executor's queue, ordered highest priority first and then first come, first served.
+     */
+    private class QueuedJob implements Runnable, Comparable<QueuedJob> {
+
+        final long jobId;
+
+        final int priority;
+
+        final long sequence;
+
+        final MosaicCancellationToken token;
+
+        final Runnable job;
+
+        QueuedJob(long jobId, int priority, long sequence, MosaicCancellationToken token, Runnable job) {
+            this.jobId = jobId;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.token = token;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            try {
+                job.run();
+            } catch (RuntimeException rex) {
+                Log.e(TAG, "Mosaic job " + jobId + " failed", rex);
+            } finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        public int compareTo(QueuedJob other) {
+            if (priority != other.priority) {
+                return (priority > other.priority) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+        }
+    }
+}
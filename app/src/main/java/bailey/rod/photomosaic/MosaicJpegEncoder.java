@@ -0,0 +1,495 @@
+package bailey.rod.photomosaic;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a baseline JPEG a few rows at a time, so that an image too big to be held in memory can still be
+ * encoded. Bitmap.compress needs the whole image in one bitmap; this needs just 8 rows of it, the height of a row
+ * of JPEG blocks. Rows are given top to bottom, in as many calls to #writeRows as suits the caller, then #finish
+ * writes the end of the image.
+ * <p/>
+ * The output is a JFIF file with full-resolution color (no chroma subsampling), the standard quantization tables
+ * scaled by quality as the IJG library does, and the standard Huffman tables.
+ */
+public class MosaicJpegEncoder {
+
+    // Pixel width and height of a JPEG block
+    private static final int BLOCK_SIZE = 8;
+
+    // Index in a block, in natural (row by row) order, of each coefficient in zig-zag order
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63};
+
+    // Quantization tables for 50% quality from Annex K of the JPEG standard, in natural order
+    private static final int[] LUMINANCE_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    // Huffman tables from Annex K: the number of codes of each length from 1 to 16, then the symbols in order
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    // Scale of each row and column of the output of the AAN forward DCT, relative to the true DCT
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    private final OutputStream out;
+
+    private final int width;
+
+    private final int height;
+
+    // Quantization tables in zig-zag order, as written to the file
+    private final int[] luminanceTable;
+
+    private final int[] chrominanceTable;
+
+    // What each AAN DCT output is multiplied by to quantize it, in natural order
+    private final float[] luminanceDivisors;
+
+    private final float[] chrominanceDivisors;
+
+    // Huffman code and code length of each symbol, indexed by symbol
+    private final HuffmanTable dcLuminance = new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+
+    private final HuffmanTable acLuminance = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+
+    private final HuffmanTable dcChrominance = new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+
+    private final HuffmanTable acChrominance = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    // Rows waiting to be encoded, one row of blocks' worth
+    private final int[] strip;
+
+    private int stripRowCount;
+
+    private int rowsWritten;
+
+    // Last DC coefficient of each of Y, Cb and Cr, which the next is coded relative to
+    private final int[] lastDc = new int[3];
+
+    // Working space for one block of one component
+    private final float[] block = new float[BLOCK_SIZE * BLOCK_SIZE];
+
+    private final int[] quantized = new int[BLOCK_SIZE * BLOCK_SIZE];
+
+    // Entropy coded bits not yet written, in the low bitCount bits of bitBuffer
+    private int bitBuffer;
+
+    private int bitCount;
+
+    /**
+     * Writes the JPEG headers at once.
+     *
+     * @param out            Receives the encoded image. Not closed.
+     * @param width          Pixel width of the image
+     * @param height         Pixel height of the image
+     * @param qualityPercent From 1 (smallest) to 100 (best), as for Bitmap.compress
+     * @throws IOException If the headers couldn't be written
+     */
+    public MosaicJpegEncoder(OutputStream out, int width, int height, int qualityPercent) throws IOException {
+        if ((width < 1) || (height < 1) || (width > 0xFFFF) || (height > 0xFFFF)) {
+            throw new IllegalArgumentException("Can't encode a JPEG of " + width + " x " + height);
+        }
+        this.out = new BufferedOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.strip = new int[width * BLOCK_SIZE];
+
+        int scale = (qualityPercent < 50) ? (5000 / Math.max(1, qualityPercent)) :
+                (200 - 2 * Math.min(100, qualityPercent));
+        luminanceTable = scaleTable(LUMINANCE_QUANTIZATION, scale);
+        chrominanceTable = scaleTable(CHROMINANCE_QUANTIZATION, scale);
+        luminanceDivisors = divisors(luminanceTable);
+        chrominanceDivisors = divisors(chrominanceTable);
+
+        writeHeaders();
+    }
+
+    /**
+     * Encodes the next rows of the image.
+     *
+     * @param pixels   Packed ARGB pixels. Alpha is ignored.
+     * @param offset   Index in pixels of the first pixel of the first row
+     * @param stride   Number of entries in pixels from one row to the next
+     * @param rowCount Number of rows to encode, each 'width' pixels
+     * @throws IOException If the encoded rows couldn't be written
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int rowCount) throws IOException {
+        if (rowsWritten + rowCount > height) {
+            throw new IllegalStateException("Image is only " + height + " rows high");
+        }
+        for (int row = 0; row < rowCount; row++) {
+            System.arraycopy(pixels, offset + (row * stride), strip, stripRowCount * width, width);
+            rowsWritten++;
+            if (++stripRowCount == BLOCK_SIZE) {
+                encodeStrip();
+            }
+        }
+    }
+
+    /**
+     * Encodes any rows still waiting and writes the end of the image. The output stream is flushed but not closed.
+     *
+     * @throws IOException If the end of the image couldn't be written
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written");
+        }
+        if (stripRowCount > 0) {
+            encodeStrip();
+        }
+        // Pad the last byte with 1 bits
+        if (bitCount > 0) {
+            writeBits(0x7F, 8 - bitCount);
+        }
+        writeMarker(0xD9);
+        out.flush();
+    }
+
+    /**
+     * Encodes the rows in the strip as one row of blocks. Blocks that stick out past the right or bottom of the
+     * image are filled out by repeating the last column or row.
+     */
+    private void encodeStrip() throws IOException {
+        for (int blockX = 0; blockX < width; blockX += BLOCK_SIZE) {
+            for (int component = 0; component < 3; component++) {
+                loadBlock(blockX, component);
+                forwardDct(block);
+                boolean luminance = component == 0;
+                quantize(block, luminance ? luminanceDivisors : chrominanceDivisors);
+                encodeBlock(component, luminance ? dcLuminance : dcChrominance,
+                            luminance ? acLuminance : acChrominance);
+            }
+        }
+        stripRowCount = 0;
+    }
+
+    /**
+     * Fills the working block with one component of the pixels of the block at blockX in the strip, converted to
+     * YCbCr as JFIF does, and shifted to be centered on zero.
+     */
+    private void loadBlock(int blockX, int component) {
+        for (int y = 0; y < BLOCK_SIZE; y++) {
+            int rowStart = Math.min(y, stripRowCount - 1) * width;
+            for (int x = 0; x < BLOCK_SIZE; x++) {
+                int pixel = strip[rowStart + Math.min(blockX + x, width - 1)];
+                int r = (pixel >> 16) & 0xFF;
+                int g = (pixel >> 8) & 0xFF;
+                int b = pixel & 0xFF;
+                float value;
+                if (component == 0) {
+                    value = (0.299f * r) + (0.587f * g) + (0.114f * b) - 128;
+                } else if (component == 1) {
+                    value = (-0.168736f * r) - (0.331264f * g) + (0.5f * b);
+                } else {
+                    value = (0.5f * r) - (0.418688f * g) - (0.081312f * b);
+                }
+                block[(y * BLOCK_SIZE) + x] = value;
+            }
+        }
+    }
+
+    /**
+     * Forward DCT of a block in place, by the Arai, Agui and Nakajima method. Each output is AAN_SCALE of its row
+     * times AAN_SCALE of its column times 8 times the true coefficient, which #divisors allows for.
+     */
+    private static void forwardDct(float[] data) {
+        // Rows, then columns
+        for (int pass = 0; pass < 2; pass++) {
+            int step = (pass == 0) ? 1 : BLOCK_SIZE;
+            int next = (pass == 0) ? BLOCK_SIZE : 1;
+            for (int line = 0; line < BLOCK_SIZE; line++) {
+                int i = line * next;
+                float tmp0 = data[i] + data[i + 7 * step];
+                float tmp7 = data[i] - data[i + 7 * step];
+                float tmp1 = data[i + step] + data[i + 6 * step];
+                float tmp6 = data[i + step] - data[i + 6 * step];
+                float tmp2 = data[i + 2 * step] + data[i + 5 * step];
+                float tmp5 = data[i + 2 * step] - data[i + 5 * step];
+                float tmp3 = data[i + 3 * step] + data[i + 4 * step];
+                float tmp4 = data[i + 3 * step] - data[i + 4 * step];
+
+                // Even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[i] = tmp10 + tmp11;
+                data[i + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[i + 2 * step] = tmp13 + z1;
+                data[i + 6 * step] = tmp13 - z1;
+
+                // Odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = (0.541196100f * tmp10) + z5;
+                float z4 = (1.306562965f * tmp12) + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[i + 5 * step] = z13 + z2;
+                data[i + 3 * step] = z13 - z2;
+                data[i + step] = z11 + z4;
+                data[i + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private void quantize(float[] data, float[] divisors) {
+        for (int i = 0; i < data.length; i++) {
+            quantized[i] = Math.round(data[i] * divisors[i]);
+        }
+    }
+
+    /**
+     * Entropy codes the quantized block: its DC coefficient relative to the last of the same component, then its
+     * AC coefficients in zig-zag order as runs of zeros and values.
+     */
+    private void encodeBlock(int component, HuffmanTable dc, HuffmanTable ac) throws IOException {
+        int dcValue = quantized[0];
+        int diff = dcValue - lastDc[component];
+        lastDc[component] = dcValue;
+        int category = bitLength(diff);
+        writeBits(dc.codes[category], dc.sizes[category]);
+        if (category > 0) {
+            writeBits(magnitudeBits(diff, category), category);
+        }
+
+        int zeroRun = 0;
+        for (int k = 1; k < ZIGZAG.length; k++) {
+            int value = quantized[ZIGZAG[k]];
+            if (value == 0) {
+                zeroRun++;
+                continue;
+            }
+            while (zeroRun > 15) {
+                // A run of 16 zeros
+                writeBits(ac.codes[0xF0], ac.sizes[0xF0]);
+                zeroRun -= 16;
+            }
+            category = bitLength(value);
+            int symbol = (zeroRun << 4) | category;
+            writeBits(ac.codes[symbol], ac.sizes[symbol]);
+            writeBits(magnitudeBits(value, category), category);
+            zeroRun = 0;
+        }
+        if (zeroRun > 0) {
+            // End of block
+            writeBits(ac.codes[0], ac.sizes[0]);
+        }
+    }
+
+    /**
+     * @return Number of bits needed for the magnitude of the value, 0 for 0
+     */
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * @return The bits that code the value within its category. Negative values are coded as one less than the
+     * value, in two's complement.
+     */
+    private static int magnitudeBits(int value, int category) {
+        return ((value < 0) ? (value - 1) : value) & ((1 << category) - 1);
+    }
+
+    private void writeBits(int bits, int count) throws IOException {
+        bitBuffer = (bitBuffer << count) | (bits & ((1 << count) - 1));
+        bitCount += count;
+        while (bitCount >= 8) {
+            int octet = (bitBuffer >> (bitCount - 8)) & 0xFF;
+            out.write(octet);
+            if (octet == 0xFF) {
+                // A 0xFF in entropy coded data is always followed by a 0, so it can't be taken for a marker
+                out.write(0);
+            }
+            bitCount -= 8;
+        }
+        bitBuffer &= (1 << bitCount) - 1;
+    }
+
+    private void writeHeaders() throws IOException {
+        writeMarker(0xD8);
+
+        // JFIF, version 1.1, no units, square pixels, no thumbnail
+        writeMarker(0xE0);
+        writeShort(16);
+        out.write(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0});
+        writeShort(1);
+        writeShort(1);
+        out.write(0);
+        out.write(0);
+
+        writeMarker(0xDB);
+        writeShort(2 + 2 * (1 + 64));
+        out.write(0);
+        writeTable(luminanceTable);
+        out.write(1);
+        writeTable(chrominanceTable);
+
+        // Baseline frame with Y, Cb and Cr at full resolution. Cb and Cr share the second quantization table.
+        writeMarker(0xC0);
+        writeShort(8 + 3 * 3);
+        out.write(8);
+        writeShort(height);
+        writeShort(width);
+        out.write(3);
+        for (int component = 1; component <= 3; component++) {
+            out.write(component);
+            out.write(0x11);
+            out.write((component == 1) ? 0 : 1);
+        }
+
+        writeMarker(0xC4);
+        writeShort(2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length +
+                           DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        // One scan of every component, interleaved
+        writeMarker(0xDA);
+        writeShort(6 + 2 * 3);
+        out.write(3);
+        for (int component = 1; component <= 3; component++) {
+            out.write(component);
+            out.write((component == 1) ? 0x00 : 0x11);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private void writeTable(int[] table) throws IOException {
+        for (int value : table) {
+            out.write(value);
+        }
+    }
+
+    private void writeHuffmanTable(int classAndId, int[] bits, int[] values) throws IOException {
+        out.write(classAndId);
+        writeTable(bits);
+        writeTable(values);
+    }
+
+    /**
+     * @return The table scaled by the given percentage and clamped to 1..255, in zig-zag order
+     */
+    private static int[] scaleTable(int[] table, int scalePercent) {
+        int[] scaled = new int[table.length];
+        for (int k = 0; k < table.length; k++) {
+            scaled[k] = Math.max(1, Math.min(255, ((table[ZIGZAG[k]] * scalePercent) + 50) / 100));
+        }
+        return scaled;
+    }
+
+    /**
+     * @param table Quantization table in zig-zag order
+     * @return What to multiply each output of #forwardDct by to get its quantized coefficient, in natural order
+     */
+    private static float[] divisors(int[] table) {
+        float[] divisors = new float[table.length];
+        for (int k = 0; k < table.length; k++) {
+            int natural = ZIGZAG[k];
+            divisors[natural] = (float) (1.0 / (table[k] * AAN_SCALE[natural / BLOCK_SIZE] *
+                    AAN_SCALE[natural % BLOCK_SIZE] * 8.0));
+        }
+        return divisors;
+    }
+
+    /**
+     * Canonical Huffman codes for a table given as in the JPEG file
+     */
+    private static class HuffmanTable {
+
+        final int[] codes = new int[256];
+
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code++;
+                    sizes[values[k]] = length;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+}
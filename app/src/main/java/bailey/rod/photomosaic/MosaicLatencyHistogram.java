@@ -0,0 +1,100 @@
+package bailey.rod.photomosaic;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, over many occurrences, cheaply enough to be recorded for every tile. Durations
+ * are counted in buckets whose bounds are powers of 2 nanoseconds, so recording one costs a couple of atomic
+ * increments and no allocation, from whichever thread, and percentiles are known to within a factor of 2.
+ */
+public class MosaicLatencyHistogram {
+
+    // Bucket 'i' counts durations of [2^i, 2^(i+1)) nanoseconds. Bucket 0 also counts durations of 0.
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos A duration in nanoseconds. Negative durations (from a clock going backwards) count as 0.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while ((nanos > max) && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * @return Number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param fraction Fraction of durations, e.g. 0.99 for the 99th percentile
+     * @return A duration, no more than twice the true percentile, that at least the given fraction of the
+     * recorded durations were no longer than. 0 if nothing has been recorded.
+     */
+    public long percentileNanos(double fraction) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long wanted = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= wanted) {
+                // Upper bound of the bucket, but never more than the longest duration actually recorded
+                long upperBound = (i >= 62) ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return Math.min(upperBound, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    private static int bucketOf(long nanos) {
+        return (nanos == 0) ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * @return e.g. "n=1024 total=812.3ms mean=0.793ms p50<=1.048ms p99<=4.194ms max=6.01ms"
+     */
+    @Override
+    public String toString() {
+        long n = count.get();
+        if (n == 0) {
+            return "n=0";
+        }
+        return String.format(Locale.US, "n=%d total=%.1fms mean=%.3fms p50<=%.3fms p99<=%.3fms max=%.3fms", n,
+                             millis(totalNanos.get()), millis(totalNanos.get() / n), millis(percentileNanos(0.5)),
+                             millis(percentileNanos(0.99)), millis(maxNanos.get()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,182 @@
+package bailey.rod.photomosaic;
+
+/**
+ * Divides a band of pixels into tiles of varying size according to how much detail there is. The band is first
+ * cut into blocks of the maximum tile size. Each block whose color variance is above a threshold is split into
+ * quarters (or halves, if only one direction can still be split), and so on recursively down to the minimum tile
+ * size. Flat areas such as sky end up covered by a few large tiles and detailed areas by many small ones.
+ * <p/>
+ * The variance of any rectangle within a block is found in constant time from summed-area tables of the red,
+ * green and blue components and of their squares, built with one pass over the block. The tables are allocated
+ * once, so an instance must only be used by one thread at a time.
+ */
+public class MosaicQuadtreeTiler {
+
+    private final int minTileWidth;
+
+    private final int minTileHeight;
+
+    private final int maxTileWidth;
+
+    private final int maxTileHeight;
+
+    // Areas whose mean per-component variance is above this are split, if they are big enough
+    private final double maxVariance;
+
+    // Summed-area tables of the block being tiled, (width + 1) entries per row with a leading row and column of 0
+    private final long[] sumRed;
+
+    private final long[] sumGreen;
+
+    private final long[] sumBlue;
+
+    private final long[] sumSquares;
+
+    // Row length of the tables for the block being tiled
+    private int tableStride;
+
+    /**
+     * Receives each tile found by the tiler.
+     */
+    public interface TileSink {
+        /**
+         * @param x            X coord of the top left of the tile, relative to the band
+         * @param y            Y coord of the top left of the tile, relative to the band
+         * @param width        Pixel width of the tile
+         * @param height       Pixel height of the tile
+         * @param averageColor Opaque packed color whose components are the (truncated) mean of those in the tile
+         */
+        void tile(int x, int y, int width, int height, int averageColor);
+    }
+
+    /**
+     * @param minTileWidth  Tiles are never split into tiles narrower than this
+     * @param minTileHeight Tiles are never split into tiles shorter than this
+     * @param maxTileWidth  Pixel width of the blocks that the band is first cut into
+     * @param maxTileHeight Pixel height of the blocks that the band is first cut into
+     * @param maxVariance   Areas whose variance, averaged over the red, green and blue components, is above this
+     *                      are split into smaller tiles
+     */
+    public MosaicQuadtreeTiler(int minTileWidth, int minTileHeight, int maxTileWidth, int maxTileHeight,
+                               double maxVariance) {
+        this.minTileWidth = Math.max(1, minTileWidth);
+        this.minTileHeight = Math.max(1, minTileHeight);
+        this.maxTileWidth = Math.max(this.minTileWidth, maxTileWidth);
+        this.maxTileHeight = Math.max(this.minTileHeight, maxTileHeight);
+        this.maxVariance = maxVariance;
+
+        int tableSize = (this.maxTileWidth + 1) * (this.maxTileHeight + 1);
+        this.sumRed = new long[tableSize];
+        this.sumGreen = new long[tableSize];
+        this.sumBlue = new long[tableSize];
+        this.sumSquares = new long[tableSize];
+    }
+
+    /**
+     * Divides a band of pixels into tiles. Every pixel of the band is covered by exactly one tile.
+     *
+     * @param pixels     Packed ARGB pixels. Alpha is ignored.
+     * @param offset     Index in pixels of the top left pixel of the band
+     * @param stride     Number of entries in pixels between the start of one row and the start of the next
+     * @param bandWidth  Width of the band in pixels
+     * @param bandHeight Height of the band in pixels
+     * @param sink       Receives each tile, block by block from left to right and top to bottom
+     */
+    public void tileBand(int[] pixels, int offset, int stride, int bandWidth, int bandHeight, TileSink sink) {
+        for (int blockY = 0; blockY < bandHeight; blockY += maxTileHeight) {
+            int blockHeight = Math.min(maxTileHeight, bandHeight - blockY);
+            for (int blockX = 0; blockX < bandWidth; blockX += maxTileWidth) {
+                int blockWidth = Math.min(maxTileWidth, bandWidth - blockX);
+                buildTables(pixels, offset + (blockY * stride) + blockX, stride, blockWidth, blockHeight);
+                split(blockX, blockY, 0, 0, blockWidth, blockHeight, sink);
+            }
+        }
+    }
+
+    private void buildTables(int[] pixels, int offset, int stride, int width, int height) {
+        tableStride = width + 1;
+        for (int x = 0; x <= width; x++) {
+            sumRed[x] = 0;
+            sumGreen[x] = 0;
+            sumBlue[x] = 0;
+            sumSquares[x] = 0;
+        }
+
+        for (int y = 0; y < height; y++) {
+            int rowStart = offset + (y * stride);
+            int above = y * tableStride;
+            int here = above + tableStride;
+            long rowRed = 0;
+            long rowGreen = 0;
+            long rowBlue = 0;
+            long rowSquares = 0;
+
+            sumRed[here] = 0;
+            sumGreen[here] = 0;
+            sumBlue[here] = 0;
+            sumSquares[here] = 0;
+
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[rowStart + x];
+                int red = (pixel >> 16) & 0xFF;
+                int green = (pixel >> 8) & 0xFF;
+                int blue = pixel & 0xFF;
+                rowRed += red;
+                rowGreen += green;
+                rowBlue += blue;
+                rowSquares += (red * red) + (green * green) + (blue * blue);
+
+                sumRed[here + x + 1] = sumRed[above + x + 1] + rowRed;
+                sumGreen[here + x + 1] = sumGreen[above + x + 1] + rowGreen;
+                sumBlue[here + x + 1] = sumBlue[above + x + 1] + rowBlue;
+                sumSquares[here + x + 1] = sumSquares[above + x + 1] + rowSquares;
+            }
+        }
+    }
+
+    /**
+     * @return Sum over the given rectangle of the block, from the given table
+     */
+    private long sum(long[] table, int x, int y, int width, int height) {
+        int top = y * tableStride;
+        int bottom = (y + height) * tableStride;
+        return table[bottom + x + width] - table[bottom + x] - table[top + x + width] + table[top + x];
+    }
+
+    private void split(int blockX, int blockY, int x, int y, int width, int height, TileSink sink) {
+        long count = (long) width * height;
+        long red = sum(sumRed, x, y, width, height);
+        long green = sum(sumGreen, x, y, width, height);
+        long blue = sum(sumBlue, x, y, width, height);
+
+        boolean splitX = (width / 2) >= minTileWidth;
+        boolean splitY = (height / 2) >= minTileHeight;
+
+        if (splitX || splitY) {
+            // Variance = E[c^2] - E[c]^2, averaged over the three components
+            double squares = sum(sumSquares, x, y, width, height);
+            double means = ((double) red * red + (double) green * green + (double) blue * blue) / count;
+            double variance = (squares - means) / (3.0 * count);
+
+            if (variance > maxVariance) {
+                int leftWidth = splitX ? width / 2 : width;
+                int topHeight = splitY ? height / 2 : height;
+                split(blockX, blockY, x, y, leftWidth, topHeight, sink);
+                if (splitX) {
+                    split(blockX, blockY, x + leftWidth, y, width - leftWidth, topHeight, sink);
+                }
+                if (splitY) {
+                    split(blockX, blockY, x, y + topHeight, leftWidth, height - topHeight, sink);
+                }
+                if (splitX && splitY) {
+                    split(blockX, blockY, x + leftWidth, y + topHeight, width - leftWidth, height - topHeight, sink);
+                }
+                return;
+            }
+        }
+
+        int averageColor = 0xFF000000 | ((int) (red / count) << 16) | ((int) (green / count) << 8) |
+                (int) (blue / count);
+        sink.tile(blockX + x, blockY + y, width, height, averageColor);
+    }
+}
@@ -0,0 +1,142 @@
+package bailey.rod.photomosaic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The pixels of a mosaic under construction, kept uncompressed in a memory-mapped file. Regions of pixels are
+ * read and written in place, so saving a finished row of tiles costs a copy of that row and nothing more -
+ * there is no need to re-encode the whole image as a JPEG after every row. Because the pixels live in the
+ * mapping rather than the Java heap, the OS can page them in and out as required.
+ * <p/>
+ * The file is a small header (magic number, width, height) followed by width x height packed ARGB ints in
+ * row-major order. Distinct regions may be read and written from different threads at once.
+ */
+public class MosaicScratchCanvas {
+
+    // Identifies a file written by this class - "MSCV"
+    private static final int MAGIC = 0x4D534356;
+
+    // Header: magic, width, height, unused (ints)
+    private static final int HEADER_SIZE = 16;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer mapping;
+
+    // View of the pixels that follow the header. Always duplicated before use so its position isn't shared.
+    private final IntBuffer pixels;
+
+    private final int width;
+
+    private final int height;
+
+    private MosaicScratchCanvas(RandomAccessFile file, MappedByteBuffer mapping, int width, int height) {
+        this.file = file;
+        this.mapping = mapping;
+        this.width = width;
+        this.height = height;
+
+        mapping.order(ByteOrder.nativeOrder());
+        mapping.position(HEADER_SIZE);
+        this.pixels = mapping.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Creates (or overwrites) a canvas file of the given size.
+     *
+     * @param canvasFile Where the canvas is to be stored
+     * @param width      Pixel width of the canvas
+     * @param height     Pixel height of the canvas
+     * @return The new canvas. Its pixels are undefined until written.
+     * @throws IOException If the file couldn't be created or mapped
+     */
+    public static MosaicScratchCanvas create(File canvasFile, int width, int height) throws IOException {
+        long size = HEADER_SIZE + ((long) width * height * 4);
+        RandomAccessFile file = new RandomAccessFile(canvasFile, "rw");
+        try {
+            file.setLength(size);
+            MappedByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapping.order(ByteOrder.nativeOrder());
+            mapping.putInt(4, width);
+            mapping.putInt(8, height);
+            mapping.putInt(0, MAGIC);
+            return new MosaicScratchCanvas(file, mapping, width, height);
+        } catch (IOException iox) {
+            file.close();
+            throw iox;
+        }
+    }
+
+    /**
+     * Opens an existing canvas file.
+     *
+     * @param canvasFile Where the canvas is stored
+     * @return The canvas
+     * @throws IOException If the file doesn't exist, couldn't be mapped or isn't a canvas
+     */
+    public static MosaicScratchCanvas open(File canvasFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(canvasFile, "rw");
+        try {
+            long size = file.length();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Scratch canvas is truncated: " + canvasFile);
+            }
+            MappedByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapping.order(ByteOrder.nativeOrder());
+            int width = mapping.getInt(4);
+            int height = mapping.getInt(8);
+            if ((mapping.getInt(0) != MAGIC) || (size != HEADER_SIZE + ((long) width * height * 4))) {
+                throw new IOException("Not a valid scratch canvas: " + canvasFile);
+            }
+            return new MosaicScratchCanvas(file, mapping, width, height);
+        } catch (IOException iox) {
+            file.close();
+            throw iox;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Copies a rectangle of pixels into the canvas. Arguments are as for Bitmap.setPixels.
+     */
+    public void writePixels(int[] source, int offset, int stride, int x, int y, int regionWidth, int regionHeight) {
+        IntBuffer view = pixels.duplicate();
+        for (int row = 0; row < regionHeight; row++) {
+            view.position(((y + row) * width) + x);
+            view.put(source, offset + (row * stride), regionWidth);
+        }
+    }
+
+    /**
+     * Copies a rectangle of pixels out of the canvas. Arguments are as for Bitmap.getPixels.
+     */
+    public void readPixels(int[] dest, int offset, int stride, int x, int y, int regionWidth, int regionHeight) {
+        IntBuffer view = pixels.duplicate();
+        for (int row = 0; row < regionHeight; row++) {
+            view.position(((y + row) * width) + x);
+            view.get(dest, offset + (row * stride), regionWidth);
+        }
+    }
+
+    /**
+     * Flushes the canvas to storage and releases the file. The mapping itself is released when garbage
+     * collected, so the canvas must not be used afterwards.
+     */
+    public void close() throws IOException {
+        mapping.force();
+        file.close();
+    }
+}
@@ -7,14 +7,12 @@ import android.graphics.BitmapFactory;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Environment;
-import android.provider.MediaStore;
 import android.text.format.DateFormat;
 import android.util.Log;
 
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -23,34 +21,61 @@ import java.util.Date;
 import static bailey.rod.photomosaic.Constants.*;
 
 /**
- * A local copy of the mosaic under construction. When the app starts, this file is initialized to be a
- * copy of the raw, un-processed image that is to be mosaic'd. As the mosaic'ing process continues, this scratch
- * file is continually updated so that, tile by tile, it is eventually transformed into the finished mosaic.
- * It is then copied back out to the Android Media Store and deleted.</p>
+ * A local copy of the mosaic under construction. When the app starts, a raw scratch canvas is created the same
+ * size as the raw, un-processed image that is to be mosaic'd. As the mosaic'ing process continues, the canvas
+ * is updated in place so that, row by row, it is eventually transformed into the finished mosaic. The finished
+ * mosaic is encoded just once into this scratch file, which is then copied back out to the Android Media Store.</p>
  * This scratch file is stored in a location that only the parent application can see. It is only after the mosaic'ing
- * is finished and a copy is exported, that the result of the world can see the result.
+ * is finished and a copy is exported, that the result of the world can see the result.</p>
+ * Each job has a scratch file (and canvas) of its own, named after the job's ID, so that jobs can run side by side.
  */
 public class MosaicScratchFile {
 
     // Logging tag
     private static final String TAG = MosaicScratchFile.class.getSimpleName();
 
+    // Number of pixel rows copied at a time between a bitmap and the scratch canvas
+    private static final int COPY_BAND_HEIGHT_PX = 64;
+
     // Actual path to the scratch file
     private final File scratchFile;
 
+    // Path to the raw pixels of the mosaic under construction
+    private final File scratchCanvasFile;
+
+    // Path to the journal of which tiles in the scratch canvas are finished
+    private final File scratchJournalFile;
+
     // Application context (wrt which the scratch file is stored)
     private final Context context;
 
+    // ID of the job whose mosaic this is
+    private final long jobId;
+
     /**
      * Constructs a MosaicScrachFile suitable for use as a working file for creating a mosaic.
      *
      * @param context Application context.
+     * @param jobId   ID of the job whose mosaic this is
      */
-    public MosaicScratchFile(Context context) {
+    public MosaicScratchFile(Context context, long jobId) {
+        this.jobId = jobId;
         scratchFile = getWorkingFilePath(context);
+        scratchCanvasFile = new File(scratchFile.getParentFile(), jobFileName(SCRATCH_CANVAS_FILE_NAME));
+        scratchJournalFile = new File(scratchFile.getParentFile(), jobFileName(SCRATCH_JOURNAL_FILE_NAME));
         this.context = context;
     }
 
+    /**
+     * @param fileName Simple file name shared by every job e.g. "mosaic.jpg"
+     * @return The file name with this job's ID inserted before the extension e.g. "mosaic_3.jpg"
+     */
+    private String jobFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot < 0) ? (fileName + "_" + jobId) : (fileName.substring(0, dot) + "_" + jobId +
+                fileName.substring(dot));
+    }
+
     /**
      * Adds the current scratch file to the Android Media Store, where it can be seen by other apps.
      * TODO: Is there some way to get back the Uri of the newly added image?
@@ -65,17 +90,18 @@ public class MosaicScratchFile {
      * directory. The public copy is the one that should be referenced by the Android Media Store (as the internasl
      * scratch file will be over-written in the next mosaic operation).
      *
-     * @return The location of the public copy of the scratch file.
+     * @return The location of the public copy of the scratch file, or null if it couldn't be copied
      */
     public File copyScratchFileToPublicDirectory() {
         File externalDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
 
         Log.d(TAG, "externalDir=" + externalDir);
 
-        // Randomly generate a filename using the current date/time/seconds to guarantee uniqueness.
+        // Randomly generate a filename using the current date/time/seconds to guarantee uniqueness. Jobs can finish
+        // within the same second, so the job ID is added too.
         DateFormat dateFormat = new DateFormat();
         CharSequence fileName = OUTPUT_IMAGE_FILE_PREFIX + dateFormat.format(OUTPUT_IMAGE_FILE_INFIX, new Date()) +
-                OUTPUT_IMAGE_FILE_SUFFIX;
+                "_" + jobId + OUTPUT_IMAGE_FILE_SUFFIX;
         File externalFile = new File(externalDir, (String) fileName);
 
         Log.d(TAG, "scratchFile=" + scratchFile.getAbsolutePath());
@@ -86,6 +112,8 @@ public class MosaicScratchFile {
             Log.i(TAG, String.format("Copied scratch file to %s OK", scratchFile.getAbsolutePath()));
         } catch (IOException iox) {
             Log.e(TAG, "Failed to copy scratch file to public", iox);
+            externalFile.delete();
+            return null;
         }
 
         return externalFile;
@@ -100,62 +128,190 @@ public class MosaicScratchFile {
     private File getWorkingFilePath(Context context) {
         ContextWrapper cw = new ContextWrapper(context);
         File directory = cw.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
-        return new File(directory, SCRATCH_FILE_NAME);
+        return new File(directory, jobFileName(SCRATCH_FILE_NAME));
+    }
+
+    /**
+     * @return True if the scratch file holds a finished mosaic, that has been neither exported nor deleted
+     */
+    public boolean hasScratchFile() {
+        return scratchFile.isFile();
+    }
+
+    /**
+     * Deletes the scratch canvas and its journal. The finished mosaic is in the scratch file by then, and any reader
+     * that still has the canvas open can carry on reading it.
+     */
+    public void deleteScratchCanvas() {
+        if (scratchCanvasFile.exists() && !scratchCanvasFile.delete()) {
+            Log.w(TAG, "Failed to delete scratch canvas " + scratchCanvasFile);
+        }
+        if (scratchJournalFile.exists() && !scratchJournalFile.delete()) {
+            Log.w(TAG, "Failed to delete scratch journal " + scratchJournalFile);
+        }
+    }
+
+    /**
+     * Deletes the scratch file, the scratch canvas and its journal, once the mosaic is no longer wanted or has been
+     * copied to the public directory.
+     */
+    public void delete() {
+        deleteScratchCanvas();
+        if (scratchFile.exists() && !scratchFile.delete()) {
+            Log.w(TAG, "Failed to delete scratch file " + scratchFile);
+        }
     }
 
     /**
-     * Saves image from the Android Media Store to the internal scratch file.
+     * Creates a new, empty scratch canvas, where the mosaic will be built up row by row. The canvas is
+     * uncompressed, so rows can be written to it without any JPEG encode.
      *
-     * @param imageUri Location of image in Android Media Store.
+     * @param width  Pixel width of the image to be mosaic'd
+     * @param height Pixel height of the image to be mosaic'd
+     * @return The scratch canvas. Close it when finished with.
+     * @throws IOException If the canvas couldn't be created
      */
-    public void initFromMediaStore(Uri imageUri) {
-        Bitmap bitmap = loadBitmapFromMediaStore(imageUri, context);
-        saveBitmapToScratchFile(bitmap);
+    public MosaicScratchCanvas createScratchCanvas(int width, int height) throws IOException {
+        return MosaicScratchCanvas.create(scratchCanvasFile, width, height);
     }
 
     /**
-     * Loads an image from the Anddroid media store into an immutable Bitmap
+     * Opens the scratch canvas, which holds the pixels of the mosaic under construction.
      *
-     * @param imageUri Location of image to get from Media Store eg.
-     *                 "content://media/external/images/media/9819"
-     * @param context  Application context
-     * @return Immutable bitmap containing the given image, or null if it couldn't be loaded.
+     * @return The scratch canvas. Close it when finished with.
+     * @throws IOException If the canvas doesn't exist or couldn't be opened
      */
-    private Bitmap loadBitmapFromMediaStore(Uri imageUri, Context context) {
-        Bitmap result = null;
-        try {
-            result = MediaStore.Images.Media.getBitmap(context.getContentResolver(), imageUri);
-        } catch (IOException iox) {
-            Log.e(TAG, "failed to load raw image from media store", iox);
-        }
-        return result;
+    public MosaicScratchCanvas openScratchCanvas() throws IOException {
+        return MosaicScratchCanvas.open(scratchCanvasFile);
+    }
+
+    /**
+     * Opens the journal left by an earlier run of this job, so the job can carry on from the tiles it finished.
+     *
+     * @param params      Parameters of the job, as given to #createJournal
+     * @param fingerprint Fingerprint of the source image, as given to #createJournal
+     * @return The journal, or null if there is none for this job, params and source image. Close it when finished
+     * with.
+     * @throws IOException If the journal exists but couldn't be read
+     */
+    public MosaicJobJournal resumeJournal(String params, long fingerprint) throws IOException {
+        return MosaicJobJournal.resume(scratchJournalFile, params, fingerprint);
     }
 
     /**
-     * Retrieves the contents of this scratch file in mutable Bitmap form.
+     * Creates a new journal, in which no tile of the scratch canvas is yet finished.
      *
-     * @return Mutable bitmap copy of the 'working file' that contains that mosaic currently under construction
+     * @param params       Every parameter of the job that affects its tiles
+     * @param fingerprint  Fingerprint of the source image
+     * @param tileCapacity Max number of tiles the journal can record
+     * @return The journal. Close it when finished with.
+     * @throws IOException If the journal couldn't be created
      */
-    public Bitmap loadMutableBitmapFromScratchFile() {
-        Bitmap result = null;
-        FileInputStream fileInputStream = null;
+    public MosaicJobJournal createJournal(String params, long fingerprint, int tileCapacity) throws IOException {
+        return MosaicJobJournal.create(scratchJournalFile, params, fingerprint, tileCapacity);
+    }
+
+    /**
+     * Encodes the given scratch canvas into this scratch file, a band of rows at a time, so the whole mosaic is
+     * never held in memory. JPEG output is encoded by MosaicJpegEncoder. Bitmap.compress can only encode a whole
+     * bitmap, so it is used just for any other output format.
+     *
+     * @param canvas  The finished mosaic
+     * @param metrics Receives the time taken to read the canvas and to encode it
+     * @throws IOException If the scratch file couldn't be written
+     */
+    public void saveScratchCanvasToScratchFile(MosaicScratchCanvas canvas, MosaicJobMetrics metrics)
+            throws IOException {
+        if (OUTPUT_IMAGE_COMPRESS_FORMAT != Bitmap.CompressFormat.JPEG) {
+            long copyStart = metrics.start();
+            Bitmap bitmap = copyCanvasToBitmap(canvas);
+            metrics.stop(MosaicJobMetrics.Stage.SCRATCH_SAVE, copyStart);
+            try {
+                long encodeStart = metrics.start();
+                saveBitmapToScratchFile(bitmap);
+                metrics.stop(MosaicJobMetrics.Stage.FINAL_ENCODE, encodeStart);
+            } finally {
+                bitmap.recycle();
+            }
+            return;
+        }
 
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        int[] band = new int[width * COPY_BAND_HEIGHT_PX];
+        FileOutputStream fileOutputStream = new FileOutputStream(scratchFile);
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inMutable = true;
-            fileInputStream = new FileInputStream(scratchFile);
-            result = BitmapFactory.decodeStream(fileInputStream, null, options);
-        } catch (IOException iox) {
-            Log.e(TAG, "Failed to load bitmap from scratch file", iox);
+            MosaicJpegEncoder encoder =
+                    new MosaicJpegEncoder(fileOutputStream, width, height, OUTPUT_IMAGE_QUALITY_PERCENT);
+            for (int y = 0; y < height; y += COPY_BAND_HEIGHT_PX) {
+                int bandHeight = Math.min(COPY_BAND_HEIGHT_PX, height - y);
+                long copyStart = metrics.start();
+                canvas.readPixels(band, 0, width, 0, y, width, bandHeight);
+                metrics.stop(MosaicJobMetrics.Stage.SCRATCH_SAVE, copyStart);
+
+                long encodeStart = metrics.start();
+                encoder.writeRows(band, 0, width, bandHeight);
+                metrics.stop(MosaicJobMetrics.Stage.FINAL_ENCODE, encodeStart);
+            }
+            encoder.finish();
         } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    /**
+     * Copies every pixel of a canvas into a new bitmap of the same size, a band of rows at a time.
+     */
+    private static Bitmap copyCanvasToBitmap(MosaicScratchCanvas canvas) {
+        int width = canvas.getWidth();
+        Bitmap bitmap = Bitmap.createBitmap(width, canvas.getHeight(), Bitmap.Config.ARGB_8888);
+        int[] band = new int[width * COPY_BAND_HEIGHT_PX];
+        for (int y = 0; y < canvas.getHeight(); y += COPY_BAND_HEIGHT_PX) {
+            int bandHeight = Math.min(COPY_BAND_HEIGHT_PX, canvas.getHeight() - y);
+            canvas.readPixels(band, 0, width, 0, y, width, bandHeight);
+            bitmap.setPixels(band, 0, width, 0, y, width, bandHeight);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Closes a canvas, if there is one, logging rather than throwing any failure.
+     */
+    public static void closeCanvas(MosaicScratchCanvas canvas) {
+        if (canvas != null) {
             try {
-                if (fileInputStream != null) {
-                    fileInputStream.close();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to close filoe input stream when reading scratch file");
+                canvas.close();
+            } catch (IOException iox) {
+                Log.e(TAG, "Failed to close scratch canvas", iox);
             }
         }
+    }
+
+    /**
+     * Retrieves the contents of this scratch file reduced to about the size of the screen, as the finished mosaic
+     * may be far too big to decode whole. Reads and decodes the file, so is not for the main thread.
+     *
+     * @param screenWidth  Pixel width of the screen
+     * @param screenHeight Pixel height of the screen
+     * @return Copy of the finished mosaic that still covers the screen, or null if it couldn't be read
+     */
+    public Bitmap loadScreenBitmapFromScratchFile(int screenWidth, int screenHeight) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(scratchFile.getAbsolutePath(), bounds);
+
+        // Largest power of 2 by which the mosaic can be reduced and still cover the screen
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (((bounds.outWidth / (options.inSampleSize * 2)) >= screenWidth) &&
+                ((bounds.outHeight / (options.inSampleSize * 2)) >= screenHeight)) {
+            options.inSampleSize *= 2;
+        }
+
+        Bitmap result = BitmapFactory.decodeFile(scratchFile.getAbsolutePath(), options);
+        if (result == null) {
+            Log.e(TAG, "Failed to load bitmap from scratch file " + scratchFile);
+        }
         return result;
     }
 
@@ -1,49 +1,61 @@
 package bailey.rod.photomosaic;
 
-import android.app.IntentService;
+import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static bailey.rod.photomosaic.Constants.*;
 
 /**
  * A service that applies a "Mosaic" effect to a given image file. The image file is specified with a
  * URI to the Android Media Store. The service broadcasts three types of Intents as it proceeds
- * through the mosaicing process - progress, finished and error.
+ * through the mosaicing process - progress, finished and error. Every broadcast carries the ID of its job
+ * in EXTRA_JOB_ID, so that each job has a progress stream of its own.
  * <p/>
  * To trigger the service, broadcast an Intent with the sole data of the URI to the image file
  * to be processed. From inside an Activity, do this:
  * <code>
  * <p/>
- * Intent intent = new Intent(this, MosaicService.class);
- * intent.setData(imageUri);
- * startService(intent);
+ * long jobId = MosaicService.startJob(this, imageUri, priority, exportWhenFinished);
  * </code>
- * Each time such an Intent is received, the following occurs:
+ * Each job is added to a job queue, which runs up to MAX_CONCURRENT_JOBS jobs at once, highest priority
+ * first. Every job shares the same tile caches and the same pool of tile fetch threads, so a batch of many
+ * images keeps the tile server busy while each image is decoded and encoded. When a job is run:
  * <li> The image is notionally divided into tiles
  * <li> For each request 'T':
  * <li> - The average color 'C' of the image's pixels within T is calculated
  * <li> - An external service is contacted that takes C and returns a mosaic request image 'M'
  * <li> - T's area in the mosaic is replaced with image 'M'
  */
-public class MosaicService extends IntentService {
+public class MosaicService extends Service {
 
     // Defines a custom Intent action for Intent broadcast every time the processing advances by another percent
     public static final String MOSAIC_CREATION_PROGRESSED =
@@ -57,228 +69,1378 @@ public class MosaicService extends IntentService {
     // The process proceeds one row at a time, from top to bottom of the image.
     public static final String MOSAIC_CREATION_ROW_FINISHED = "bailey.rod.photomosaic.MOSAIC_CREATION_ROW_FINISHED";
 
+    // Custom Intent broadcast when a quick preview of the mosaic is first available, before any of its tiles are
+    // drawn, and again as each row of its tiles is finished. The preview itself is available from #getPreviewBitmap.
+    public static final String MOSAIC_PREVIEW_UPDATED = "bailey.rod.photomosaic.MOSAIC_PREVIEW_UPDATED";
+
     // Defines the key for the status "extra" in an Intent
     public static final String EXTRA_PROGRESS =
             "bailey.rod.photomosaic.EXTRA_PROGRESS";
 
+    // Key for the "extra" in every Intent, broadcast or received, that gives the ID of the job concerned
+    public static final String EXTRA_JOB_ID = "bailey.rod.photomosaic.EXTRA_JOB_ID";
+
+    // Key for the "extra" in a received Intent that gives the job's priority. Higher priority jobs are run first.
+    public static final String EXTRA_PRIORITY = "bailey.rod.photomosaic.EXTRA_PRIORITY";
+
+    // Key for the "extra" in a received Intent that, if true, has the finished mosaic copied straight to the public
+    // Pictures directory and added to the Media Store, rather than left in the job's scratch file
+    public static final String EXTRA_EXPORT_WHEN_FINISHED = "bailey.rod.photomosaic.EXTRA_EXPORT_WHEN_FINISHED";
+
+    // Key for the "extra" in a FINISHED Intent that gives a human-readable summary of where the job's time went
+    public static final String EXTRA_JOB_SUMMARY = "bailey.rod.photomosaic.EXTRA_JOB_SUMMARY";
+
+    // Key for the "extra" in a FINISHED Intent that is true if the mosaic was to be exported but couldn't be. It is
+    // left in the job's scratch file.
+    public static final String EXTRA_EXPORT_FAILED = "bailey.rod.photomosaic.EXTRA_EXPORT_FAILED";
+
+    // Key for the "extra" in a ROW FINISHED Intent that gives the first pixel row of the image that has changed
+    public static final String EXTRA_DIRTY_TOP_Y = "bailey.rod.photomosaic.EXTRA_DIRTY_TOP_Y";
+
+    // Key for the "extra" in a ROW FINISHED Intent that gives the pixel row after the last that has changed
+    public static final String EXTRA_DIRTY_BOTTOM_Y = "bailey.rod.photomosaic.EXTRA_DIRTY_BOTTOM_Y";
+
     private static final String TAG = MosaicService.class.getSimpleName();
 
-    // A quick but dodgy way to bring this service to an immediate halt from an associated Activity.
-    // TODO Better way would be to use IBinder and bind service to activity in the usual manner
-    public static volatile boolean abortRequested;
+    // Largest reduction of the image for a preview. Beyond this the decoder stops averaging the pixels it skips,
+    // so preview tile colors would no longer be a fair match for the full-size image.
+    private static final int MAX_PREVIEW_SAMPLE_SIZE = 8;
+
+    // Reduction of the image surveyed for tiles to prefetch. As far as it can be reduced with fair colors.
+    private static final int SURVEY_SAMPLE_SIZE = MAX_PREVIEW_SAMPLE_SIZE;
+
+    // The image is read and tiled a band of this many pixel rows at a time - one row of the largest tiles
+    private static final int BAND_HEIGHT_PX = ADAPTIVE_TILING_ENABLED ? MAX_TILE_HEIGHT_PX : TILE_HEIGHT_PX;
+
+    // Every job that is queued or in progress, by ID, so that an Activity in the same process can follow it
+    private static final Map<Long, Job> jobs = new ConcurrentHashMap<Long, Job>();
+
+    // Source of job IDs. Starts from the clock, so a job redelivered after the process was killed can't share its
+    // ID (and so its scratch files) with a job started since.
+    private static final AtomicLong lastJobId = new AtomicLong(System.currentTimeMillis());
+
+    // Shares out the work of averaging each row of tiles between all available cores
+    private final ForkJoinPool averagingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final MosaicTileAverager tileAverager = new MosaicTileAverager(averagingPool);
+
+    // Runs the jobs, a few at a time
+    private MosaicJobQueue jobQueue;
+
+    // Creates tiles for every job in progress, and decodes tiles fetched from the server. Never waits on the server.
+    private ThreadPoolExecutor fetchExecutor;
+
+    // For stopping the service on the main thread once the job queue is empty
+    private Handler mainHandler;
+
+    // ID of the most recent start of the service. Only the most recent start may stop it.
+    private int lastStartId;
+
+    // Jobs that need no more work, so that they aren't run again if their Intents are redelivered
+    private MosaicFinishedJobs finishedJobs;
+
+    // True once the service is being destroyed. Jobs cut short then keep their scratch canvas and journal, so that
+    // they can resume when their Intents are redelivered.
+    private volatile boolean destroyed;
+
+    // Pixels of tile images already created, shared by every job this process runs. Many tiles in a typical
+    // image (sky, walls) have the same size and color, so most can be served from here. Pixels rather than
+    // bitmaps are kept, so they can be copied straight into the scratch canvas.
+    private static final MosaicTileMemoryCache<int[]> tileCache =
+            new MosaicTileMemoryCache<int[]>(TILE_CACHE_MAX_BYTES, new MosaicTileMemoryCache.Sizer<int[]>() {
+                @Override
+                public int sizeOf(int[] pixels) {
+                    return pixels.length * 4;
+                }
+            });
+
+    // Tiles currently being created or fetched. Tiles with the same key that are requested meanwhile wait for these.
+    private static final MosaicSingleFlight<MosaicTileKey, int[]> tileFetches =
+            new MosaicSingleFlight<MosaicTileKey, int[]>();
+
+    // Shared by tileFetches in place of a tile whose fetch was cut short by the cancellation of the job that made
+    // it. Requests from other jobs that were waiting for it start a fetch of their own.
+    private static final int[] ABANDONED_TILE = new int[0];
+
+    // Draws circle tiles when TILE_STRATEGY is CIRCLE, keeping a coverage mask for every size of tile
+    private static final MosaicCircleTiles circleTiles = new MosaicCircleTiles(MAX_TILE_WIDTH_PX, MAX_TILE_HEIGHT_PX);
+
+    // Bitmaps that tile images are decoded into. Each is handed back once its pixels have been copied out, ready
+    // for the next tile of the same size.
+    private static final MosaicTilePool<Bitmap> tileBitmapPool =
+            new MosaicTilePool<Bitmap>(TILE_BITMAP_POOL_MAX_PER_SIZE, TILE_BITMAP_POOL_MAX_SIZES,
+                                       new MosaicTilePool.Factory<Bitmap>() {
+                                           @Override
+                                           public Bitmap create(int width, int height) {
+                                               return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                                           }
+                                       });
+
+    // Tile images fetched from the server, kept across jobs and app restarts. Null if it couldn't be opened.
+    private MosaicTileDiskCache tileDiskCache;
+
+    // Local photos used as tiles when TILE_STRATEGY is LIBRARY. Null until the first job, or if it couldn't be opened.
+    private MosaicTileLibrary tileLibrary;
+
+    // Makes batch requests to the tile server, re-using connections across bands and jobs. HttpURLConnection's
+    // default keep-alive pool is plenty, as only the first tile of each band waits on a batch request.
+    private static final MosaicTileClient tileClient =
+            new MosaicTileClient(MOSAIC_SERVER_URL, MOSAIC_SERVER_BATCH_URL, TILE_CONNECT_TIMEOUT_MS,
+                                 TILE_READ_TIMEOUT_MS);
+
+    // How many single tile fetches may be in flight at once, across every job. Adapts to the server's latency.
+    private static final MosaicConcurrencyLimiter fetchLimiter =
+            new MosaicConcurrencyLimiter(MAX_THREAD_POOL_SIZE, MIN_FETCH_CONCURRENCY, MAX_FETCH_CONCURRENCY);
+
+    // Leaves the tile server alone for a while once it keeps failing, so tiles are drawn locally without waiting
+    private static final MosaicCircuitBreaker tileBreaker =
+            new MosaicCircuitBreaker(TILE_BREAKER_FAILURE_THRESHOLD, TILE_BREAKER_OPEN_MS);
+
+    // Fetches single tiles from the tile server on one thread of its own, as many at once as fetchLimiter allows.
+    // Hedges requests that are slow to be answered, and retries those that fail.
+    private static final MosaicAsyncTileClient asyncTileClient =
+            new MosaicAsyncTileClient(MOSAIC_SERVER_URL, MAX_FETCH_CONCURRENCY, TILE_CONNECT_TIMEOUT_MS,
+                                      TILE_READ_TIMEOUT_MS, fetchLimiter,
+                                      new MosaicAsyncTileClient.Resilience(tileBreaker, TILE_FETCH_MAX_RETRIES,
+                                                                           TILE_FETCH_RETRY_BACKOFF_MS,
+                                                                           TILE_HEDGE_MIN_DELAY_MS));
 
     public MosaicService() {
-        super("Photo Mosaic");
         Log.i(TAG, "MosaicService has been constructed");
     }
 
     /**
-     * @param imageUri URI in the Media Store of the image that is to be mosaic'd.
+     * @param job The job, with the URI in the Media Store of the image that is to be mosaic'd
+     * @return True if the finished mosaic was saved to the job's scratch file
      */
-    private void bigLoop(Uri imageUri) {
-        // Initialize the scratch file with the raw image to be mosaic'd. Subsequent modifications are made to this
-        // private copy.
-        MosaicScratchFile mosaicScratchFile = new MosaicScratchFile(this);
-        mosaicScratchFile.initFromMediaStore(imageUri);
-        Bitmap bitmap = mosaicScratchFile.loadMutableBitmapFromScratchFile();
+    private boolean bigLoop(Job job) {
+        Uri imageUri = job.imageUri;
+
+        // Tiles drawn locally need nothing fetched, so are painted straight over the full-size image, with no
+        // preview. Null if tiles have to be fetched or looked up.
+        MosaicTileAverager.TilePainter localPainter = localTilePainter();
+
+        // Snaps near-identical averages to the same color so that they share a tile
+        MosaicColorQuantizer colorQuantizer = new MosaicColorQuantizer(QUANTIZE_BITS_PER_CHANNEL, QUANTIZE_MAX_DELTA_E);
+
+        // What tile colors are snapped to besides each other, for the journal. "none" if only to each other.
+        String snap = "none";
+
+        // The preview's tiles are fetched before the full-size pass begins. If snapping to the preview is enabled,
+        // its colors stay in the quantizer for the full-size pass, so that full-size colors near them are served by
+        // the preview's tiles, already cached, instead of fetching tiles of their own.
+        boolean previewed = false;
+        if (QUICK_PREVIEW_ENABLED && (localPainter == null)) {
+            MosaicColorQuantizer previewQuantizer = PREVIEW_SNAP_ENABLED ?
+                    new MosaicColorQuantizer(QUANTIZE_BITS_PER_CHANNEL, Math.max(QUANTIZE_MAX_DELTA_E,
+                                                                                 PREVIEW_MAX_DELTA_E)) :
+                    new MosaicColorQuantizer(QUANTIZE_BITS_PER_CHANNEL, QUANTIZE_MAX_DELTA_E);
+            try {
+                BitmapFactory.Options bounds = MosaicImageSource.decodeBounds(this, imageUri);
+                int sampleSize = previewSampleSize(bounds.outWidth, bounds.outHeight);
+                if (sampleSize > 1) {
+                    previewed = previewLoop(job, sampleSize, previewQuantizer);
+                }
+            } catch (IOException iox) {
+                Log.e(TAG, "Failed to create preview of " + imageUri + ". Continuing without it.", iox);
+            }
 
-        // Lots of declarations up front to avoid overhead of constant re-creation in the tight loop below
-        int pixel;
-        int redComponent;
-        int blueComponent;
-        int greenComponent;
-        int numXPixelsInTile;
-        int numYPixelsInTile;
-        int averageRed;
-        int averageBlue;
-        int averageGreen;
-        int averageColor;
+            if (job.token.isCancelled()) {
+                return false;
+            }
+            if (previewed && PREVIEW_SNAP_ENABLED) {
+                colorQuantizer = previewQuantizer;
+                snap = "preview/" + PREVIEW_MAX_DELTA_E;
+            }
+        }
 
-        int tileCountX = (int) Math.ceil((double) bitmap.getWidth() / (double) TILE_WIDTH_PX);
-        int tileCountY = (int) Math.ceil((double) bitmap.getHeight() / (double) TILE_HEIGHT_PX);
+        // Open the raw image to be mosaic'd. Images too big to decode whole are read a band at a time.
+        MosaicImageSource source;
+        try {
+            long decodeStart = job.metrics.start();
+            source = MosaicImageSource.open(this, imageUri, STREAMING_MAX_HEAP_FRACTION);
+            job.metrics.stop(MosaicJobMetrics.Stage.SOURCE_DECODE, decodeStart);
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to load image to be mosaic'd from " + imageUri, iox);
+            return false;
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        // Without a preview, tiles would only be fetched once each band had been averaged at full size. So the tiles
+        // are first estimated from a survey of a much reduced copy of the image, and fetched while the bands are
+        // averaged. A job that had a preview has already fetched its tiles, so isn't surveyed as well. Full-size
+        // colors seldom come out exactly as surveyed, so the survey is only worth fetching if they are snapped to
+        // it, or quantized coarsely enough that they often do.
+        boolean surveyUseful = SURVEY_SNAP_ENABLED || (QUANTIZE_BITS_PER_CHANNEL < 8);
+        if (PREFETCH_SURVEY_ENABLED && surveyUseful && !previewed &&
+                (Constants.TILE_STRATEGY == MosaicTileImageStrategy.SERVER)) {
+            MosaicColorQuantizer surveyQuantizer = SURVEY_SNAP_ENABLED ?
+                    new MosaicColorQuantizer(QUANTIZE_BITS_PER_CHANNEL, Math.max(QUANTIZE_MAX_DELTA_E,
+                                                                                 SURVEY_MAX_DELTA_E)) :
+                    new MosaicColorQuantizer(QUANTIZE_BITS_PER_CHANNEL, QUANTIZE_MAX_DELTA_E);
+            try {
+                prefetchTiles(job, surveyTiles(job, width, height, surveyQuantizer));
+                if (SURVEY_SNAP_ENABLED) {
+                    colorQuantizer = surveyQuantizer;
+                    snap = "survey/" + SURVEY_MAX_DELTA_E;
+                }
+            } catch (IOException iox) {
+                Log.e(TAG, "Failed to survey " + imageUri + " for tiles to prefetch. Continuing without.", iox);
+            }
+        }
 
-        int numTilesProcessed = 0;
-        int totalTilesToProcess = tileCountX * tileCountY;
+        // Each tile is written to this private, uncompressed canvas as it is finished, and recorded in the journal.
+        // If an earlier run of the same job was cut short, its canvas is carried on with rather than overwritten.
+        MosaicScratchFile mosaicScratchFile = new MosaicScratchFile(this, job.id);
+        int bandCount = MosaicTileAverager.tileCount(height, BAND_HEIGHT_PX);
+        int bandTileCapacity = MosaicTileAverager.tileCount(width, TILE_WIDTH_PX) *
+                MosaicTileAverager.tileCount(BAND_HEIGHT_PX, TILE_HEIGHT_PX);
+        MosaicScratchCanvas canvas = null;
+        MosaicJobJournal journal = null;
+
+        try {
+            String params = jobParams(job, width, height, snap);
+            long fingerprint = fingerprintOf(imageUri);
+            journal = mosaicScratchFile.resumeJournal(params, fingerprint);
+            if (journal != null) {
+                canvas = openResumedCanvas(mosaicScratchFile, width, height);
+                if (canvas == null) {
+                    closeJournal(journal);
+                    journal = null;
+                } else {
+                    Log.i(TAG, String.format("Resuming mosaic of %s with %d tiles already finished", imageUri,
+                                             journal.getCompletedCount()));
+                }
+            }
+            if (journal == null) {
+                canvas = mosaicScratchFile.createScratchCanvas(width, height);
+                journal = mosaicScratchFile.createJournal(params, fingerprint, bandCount * bandTileCapacity);
+            }
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to set up scratch canvas and journal for " + imageUri, iox);
+            MosaicScratchFile.closeCanvas(canvas);
+            closeJournal(journal);
+            mosaicScratchFile.delete();
+            source.close();
+            return false;
+        }
 
-        Log.d(TAG, String.format("tileCountX=%d, tileCountY=%d, total tiles=%d", tileCountX, tileCountY,
-                                 totalTilesToProcess));
+        boolean resumed = journal.isResumed();
+        int totalTiles = 0;
+
+        Log.d(TAG, String.format("Image is %d x %d, bands=%d", width, height, bandCount));
+
+        // Each band of the image is copied out in one go into this buffer, which is reused for every band
+        int[] bandPixels = new int[width * BAND_HEIGHT_PX];
+
+        MosaicQuadtreeTiler tiler = createTiler(1);
+
+        // One pipeline for the whole job. Tiles stream through it a band at a time, so later bands are being
+        // averaged and fetched while earlier bands are still being composited.
+        MosaicTilePipeline<MosaicTileCreatorResult> pipeline =
+                new MosaicTilePipeline<MosaicTileCreatorResult>(bandCount,
+                                                                fetchExecutor,
+                                                                MAX_TILES_IN_FLIGHT,
+                                                                new CanvasCompositor(job, canvas, journal,
+                                                                                     BAND_HEIGHT_PX));
+
+        // Cancelling the job aborts the pipeline at once, which wakes this thread if it's waiting for room in it
+        MosaicCancellationToken.Registration abortOnCancel = job.token.onCancel(aborter(pipeline));
+        boolean saved = false;
+
+        try {
+            // An image held whole can be shown in full beneath the mosaic from the start. A streamed image can only
+            // be shown a band at a time, as each band is read. With a preview, it's the preview that is shown instead.
+            // A resumed canvas already has the image beneath its unfinished tiles. Tiles drawn locally are painted over
+            // each band as soon as it is read, so there is no point showing the image beneath them.
+            if (!source.isStreaming() && !resumed && (localPainter == null)) {
+                for (int y = 0; y < height; y += BAND_HEIGHT_PX) {
+                    int bandHeight = Math.min(BAND_HEIGHT_PX, height - y);
+                    long decodeStart = job.metrics.start();
+                    source.readBand(bandPixels, y, bandHeight);
+                    job.metrics.stop(MosaicJobMetrics.Stage.SOURCE_DECODE, decodeStart);
+                    canvas.writePixels(bandPixels, 0, width, 0, y, width, bandHeight);
+                }
+            }
+            job.canvas = canvas;
+
+            // Process mosaic tiles a band at a time from top to bottom i.e. same as western reading order.
+            for (int band = 0; (band < bandCount) && !job.token.isCancelled(); band++) {
+                int bandTopY = band * BAND_HEIGHT_PX;
+                int bandHeight = Math.min(BAND_HEIGHT_PX, height - bandTopY);
+
+                // Tiles drawn locally bypass the pipeline. The band is averaged and painted in place, then
+                // written to the canvas whole. The pipeline is only told the band is finished, so it reports it.
+                if (localPainter != null) {
+                    int firstTileIndex = band * bandTileCapacity;
+                    if (!journal.isComplete(firstTileIndex)) {
+                        long decodeStart = job.metrics.start();
+                        source.readBand(bandPixels, bandTopY, bandHeight);
+                        job.metrics.stop(MosaicJobMetrics.Stage.SOURCE_DECODE, decodeStart);
+
+                        long averagingStart = job.metrics.start();
+                        int bandTiles = paintLocalTiles(tiler, localPainter, bandPixels, width, bandHeight,
+                                                        colorQuantizer);
+                        job.metrics.stop(MosaicJobMetrics.Stage.AVERAGING, averagingStart);
+
+                        long compositeStart = job.metrics.start();
+                        canvas.writePixels(bandPixels, 0, width, 0, bandTopY, width, bandHeight);
+                        job.metrics.stop(MosaicJobMetrics.Stage.COMPOSITE, compositeStart);
+
+                        // The band's first tile is recorded last, so a band whose first tile is recorded is whole
+                        for (int i = Math.min(bandTiles, bandTileCapacity) - 1; i >= 0; i--) {
+                            journal.markComplete(firstTileIndex + i);
+                        }
+                        totalTiles += bandTiles;
+                        job.metrics.add(MosaicJobMetrics.Counter.TILES, bandTiles);
+                    } else if (colorQuantizer.remembersColors()) {
+                        // Finished by an earlier run, but its colors are snapped again without painting them, so
+                        // that the bands still to come snap to the same colors as they would have then
+                        source.readBand(bandPixels, bandTopY, bandHeight);
+                        paintLocalTiles(tiler, null, bandPixels, width, bandHeight, colorQuantizer);
+                    }
+                    pipeline.endRow(band);
+                    continue;
+                }
 
-        // Process mosaic tiles in row-major order i.e. same as western reading order.
-        for (int tileTopY = 0; (tileTopY < bitmap.getHeight()) && !abortRequested; tileTopY += TILE_HEIGHT_PX) {
-            ExecutorService rowExecutorService = Executors.newFixedThreadPool(Constants.MAX_THREAD_POOL_SIZE);
+                long decodeStart = job.metrics.start();
+                source.readBand(bandPixels, bandTopY, bandHeight);
+                job.metrics.stop(MosaicJobMetrics.Stage.SOURCE_DECODE, decodeStart);
+                if (source.isStreaming() && !resumed) {
+                    canvas.writePixels(bandPixels, 0, width, 0, bandTopY, width, bandHeight);
+                }
+                long averagingStart = job.metrics.start();
+                List<MosaicTileCreatorRequest> bandRequests = createBandRequests(tiler, bandPixels, width, bandHeight,
+                                                                                 bandTopY, colorQuantizer);
+                job.metrics.stop(MosaicJobMetrics.Stage.AVERAGING, averagingStart);
+                totalTiles += bandRequests.size();
+
+                // Tiles finished by an earlier run are already in the canvas
+                List<MosaicTileCreatorRequest> pendingRequests =
+                        pendingRequests(journal, bandRequests, band * bandTileCapacity, bandTileCapacity);
+                job.metrics.add(MosaicJobMetrics.Counter.TILES, pendingRequests.size());
+                job.metrics.add(MosaicJobMetrics.Counter.RESUMED_TILES,
+                                bandRequests.size() - pendingRequests.size());
+
+                // The first tile of the band to reach the server fetches all of the band's uncached tiles at once
+                MosaicTileBatch bandBatch = createTileBatch(job, pendingRequests);
+
+                for (MosaicTileCreatorRequest request : pendingRequests) {
+                    submitTile(pipeline, band, job, request, bandBatch);
+                }
 
-            List<Callable<MosaicTileCreatorResult>> creatorsForThisRow =
-                    new LinkedList<Callable<MosaicTileCreatorResult>>();
+                pipeline.endRow(band);
+                sampleQueueDepths(job, pipeline);
+            } // for band
+
+            // Every band has been read, so the raw image is no longer needed
+            source.close();
+
+            job.token.throwIfCancelled();
+            pipeline.awaitCompletion();
+
+            // The only time the whole mosaic is encoded, a band at a time
+            mosaicScratchFile.saveScratchCanvasToScratchFile(canvas, job.metrics);
+            saved = true;
+        } catch (CancellationException cex) {
+            Log.i(TAG, "Mosaic of " + imageUri + " cancelled");
+        } catch (InterruptedException iex) {
+            Log.e(TAG, "Interrupted while creating mosaic tiles", iex);
+            pipeline.abort();
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to read image or save mosaic of " + imageUri, iox);
+            pipeline.abort();
+        } finally {
+            abortOnCancel.unregister();
+            source.close();
+            MosaicScratchFile.closeCanvas(canvas);
+            closeJournal(journal);
+        }
 
-            for (int tileLeftX = 0; (tileLeftX < bitmap.getWidth()) && !abortRequested; tileLeftX += TILE_WIDTH_PX) {
+        // Only the scratch file is kept. The Activity may still be reading the canvas, which it can go on doing.
+        // A job cut short by the service being destroyed keeps everything, to resume from when it is redelivered.
+        // The job is recorded as finished before its canvas and journal go, so it is never redone from scratch.
+        if (saved) {
+            markFinished(job);
+            mosaicScratchFile.deleteScratchCanvas();
+        } else if (!destroyed) {
+            mosaicScratchFile.delete();
+        }
 
-                // Find the average colour for the pixels in the request by finding the average red, green and blue
-                // component values of each pixel individually.
-                redComponent = 0;
-                blueComponent = 0;
-                greenComponent = 0;
+        Log.i(TAG, "Tiles: " + totalTiles + ", tile cache: " + tileCache + ", coalesced fetches=" +
+                tileFetches.getCoalescedCount() + ", bitmap pool: " + tileBitmapPool + ", fetch limiter: " +
+                fetchLimiter + ", async fetches: " + asyncTileClient + ", tile breaker: " + tileBreaker);
+        return saved;
+    }
 
-                numXPixelsInTile = 0;
-                numYPixelsInTile = 0;
+    /**
+     * @param job               The job
+     * @param width             Pixel width of the image to be mosaic'd
+     * @param height            Pixel height of the image to be mosaic'd
+     * @param snap              What tile colors snap to besides each other, and how far, or "none"
+     * @return Every parameter of the job that affects which tiles it has and what they look like, so that a
+     * journal is never resumed by a job that would tile the image differently
+     */
+    private static String jobParams(Job job, int width, int height, String snap) {
+        return String.format(Locale.US, "%s %dx%d tile=%dx%d..%dx%d band=%d adaptive=%b/%s quantize=%d/%s " +
+                                     "strategy=%s snap=%s",
+                             job.imageUri, width, height, TILE_WIDTH_PX, TILE_HEIGHT_PX, MAX_TILE_WIDTH_PX,
+                             MAX_TILE_HEIGHT_PX, BAND_HEIGHT_PX, ADAPTIVE_TILING_ENABLED,
+                             ADAPTIVE_TILING_MAX_VARIANCE, QUANTIZE_BITS_PER_CHANNEL, QUANTIZE_MAX_DELTA_E,
+                             TILE_STRATEGY, snap);
+    }
 
-                // TODO: Investigate if bitmap.getpixels() is better than bitmap.getPixel() in a loop.
-                for (int pixelX = tileLeftX; (pixelX < (tileLeftX + TILE_WIDTH_PX)) && (pixelX < bitmap.getWidth());
-                     pixelX++) {
-                    numXPixelsInTile++;
-                    numYPixelsInTile = 0;
+    /**
+     * @return Fingerprint of the bytes of the given image, for MosaicJobJournal
+     * @throws IOException If the image couldn't be read
+     */
+    private long fingerprintOf(Uri imageUri) throws IOException {
+        InputStream inputStream = getContentResolver().openInputStream(imageUri);
+        if (inputStream == null) {
+            throw new IOException("Failed to open " + imageUri);
+        }
+        try {
+            return MosaicJobJournal.fingerprint(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
 
-                    for (int pixelY = tileTopY; (pixelY < (tileTopY + TILE_HEIGHT_PX)) && (pixelY < bitmap.getHeight());
-                         pixelY++) {
-                        numYPixelsInTile++;
+    /**
+     * Opens the canvas left by an earlier run of a job whose journal is being resumed
+     *
+     * @return The canvas, or null if it is missing or isn't the size of the image, in which case the job has to
+     * start again
+     */
+    private static MosaicScratchCanvas openResumedCanvas(MosaicScratchFile scratchFile, int width, int height) {
+        MosaicScratchCanvas canvas;
+        try {
+            canvas = scratchFile.openScratchCanvas();
+        } catch (IOException iox) {
+            Log.w(TAG, "Failed to open scratch canvas to resume. Starting again.", iox);
+            return null;
+        }
 
-                        // Find the average color of the request whose top left corner
-                        // is at  [x,y]
-                        pixel = bitmap.getPixel(pixelX, pixelY);
+        if ((canvas.getWidth() != width) || (canvas.getHeight() != height)) {
+            Log.w(TAG, "Scratch canvas to resume is the wrong size. Starting again.");
+            MosaicScratchFile.closeCanvas(canvas);
+            return null;
+        }
+        return canvas;
+    }
 
-                        redComponent += Color.red(pixel);
-                        blueComponent += Color.blue(pixel);
-                        greenComponent += Color.green(pixel);
-                    }
-                }
+    /**
+     * Numbers the tiles of a band for the journal, and picks out those not already finished
+     *
+     * @param journal          Records which tiles are finished
+     * @param bandRequests     Every tile of the band, in the order they were found
+     * @param firstTileIndex   Journal index of the band's first tile
+     * @param bandTileCapacity Number of journal indexes set aside for each band. Any tiles beyond it are never
+     *                         recorded, so are always created.
+     * @return Tiles of the band still to be created
+     */
+    private static List<MosaicTileCreatorRequest> pendingRequests(MosaicJobJournal journal,
+                                                                  List<MosaicTileCreatorRequest> bandRequests,
+                                                                  int firstTileIndex, int bandTileCapacity) {
+        List<MosaicTileCreatorRequest> pending = new ArrayList<MosaicTileCreatorRequest>(bandRequests.size());
+        for (int i = 0; i < bandRequests.size(); i++) {
+            MosaicTileCreatorRequest request = bandRequests.get(i);
+            request.tileIndex = (i < bandTileCapacity) ? (firstTileIndex + i) : -1;
+            if (!journal.isComplete(request.tileIndex)) {
+                pending.add(request);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Decodes a tile image into a pooled bitmap, rather than a new one, and copies out its pixels.
+     *
+     * @param tileData   Encoded tile image
+     * @param tileWidth  Pixel width of the tile. The image is scaled to fit if need be.
+     * @param tileHeight Pixel height of the tile
+     * @return Pixels of the tile, row by row, or null if the image couldn't be decoded
+     */
+    private static int[] decodeTilePixels(byte[] tileData, int tileWidth, int tileHeight) {
+        Bitmap reusable = tileBitmapPool.acquire(tileWidth, tileHeight);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = reusable;
+
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeByteArray(tileData, 0, tileData.length, options);
+        } catch (IllegalArgumentException iax) {
+            // The image is bigger than the pooled bitmap can hold
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(tileData, 0, tileData.length, options);
+        }
+        if (decoded != reusable) {
+            tileBitmapPool.release(reusable.getWidth(), reusable.getHeight(), reusable);
+        }
+        if (decoded == null) {
+            return null;
+        }
 
-                averageRed = redComponent / (numXPixelsInTile * numYPixelsInTile);
-                averageBlue = blueComponent / (numXPixelsInTile * numYPixelsInTile);
-                averageGreen = greenComponent / (numXPixelsInTile * numYPixelsInTile);
-                averageColor = Color.rgb(averageRed, averageGreen, averageBlue);
-
-                MosaicTileCreatorRequest request = new MosaicTileCreatorRequest();
-                request.topLeftX = tileLeftX;
-                request.topLeftY = tileTopY;
-                request.averageColor = averageColor;
-                request.tileWidth = numXPixelsInTile;
-                request.tileHeight = numYPixelsInTile;
-
-                // Use the Test or Server versions of the MosaicTileCreator, depending on whether we are
-                // in testing mode or not according to Constants.TILE_STRATEGY. This is just a testing
-                // convenience.
-                // TODO: Use dependency injection instead
-                creatorsForThisRow.add(Constants.TILE_STRATEGY == MosaicTileImageStrategy.SERVER ? //
-                                               new ServerMosaicTileCreator(request) : //
-                                               new TestMosaicTileCreator(request)); //
-
-
-                // Include the request just returned form the server in the content of the
-                // broadcast message.
-                int percentProgress = numTilesProcessed * 100 / totalTilesToProcess;
-                Log.d(TAG, String.format("Percent complete: %d, Tile [%d, %d] has average color of (R:%d G:%d B:%d)",
-                                         percentProgress, tileLeftX, tileTopY,
-                                         averageRed,
-                                         averageGreen,
-                                         averageBlue));
-
-            } // for x
-
-            // Before moving onto the next row, update the bitmap with all of the
-            // mosaic tiles for the current row.
+        int[] pixels = new int[tileWidth * tileHeight];
+        if ((decoded.getWidth() == tileWidth) && (decoded.getHeight() == tileHeight)) {
+            decoded.getPixels(pixels, 0, tileWidth, 0, 0, tileWidth, tileHeight);
+        } else {
+            Bitmap scaled = Bitmap.createScaledBitmap(decoded, tileWidth, tileHeight, true);
+            scaled.getPixels(pixels, 0, tileWidth, 0, 0, tileWidth, tileHeight);
+            scaled.recycle();
+        }
+        tileBitmapPool.release(decoded.getWidth(), decoded.getHeight(), decoded);
+        return pixels;
+    }
 
+    /**
+     * Closes a journal, if there is one, logging rather than throwing any failure.
+     */
+    private static void closeJournal(MosaicJobJournal journal) {
+        if (journal != null) {
             try {
-                List<Future<MosaicTileCreatorResult>> futures = rowExecutorService.invokeAll(creatorsForThisRow);
-
-                // Should do this from the individual creators so that progress arrives between rows
-                numTilesProcessed += futures.size();
-
-                for (Future<MosaicTileCreatorResult> future : futures) {
-                    // Get the calculated mosaic pixels out of the result
-                    MosaicTileCreatorResult result = future.get();
-
-                    int bitmapWidth = result.bitmap.getWidth();
-                    int bitmapHeight = result.bitmap.getHeight();
-                    int[] pixels = new int[bitmapHeight * bitmapWidth];
-
-                    result.bitmap.getPixels(pixels, // data out
-                                            0, // offset
-                                            bitmapWidth, // stride
-                                            0, // x
-                                            0, // y
-                                            bitmapWidth, // width
-                                            bitmapHeight);// height
-
-                    // Copy the mosaic pixels into the scratch file
-                    bitmap.setPixels(pixels, // data in
-                                     0, // offset
-                                     bitmapWidth, // stride
-                                     result.topLeftX, // x
-                                     result.topLeftY, // y
-                                     bitmapWidth, // width
-                                     bitmapHeight); // height
+                journal.close();
+            } catch (IOException iox) {
+                Log.e(TAG, "Failed to close job journal", iox);
+            }
+        }
+    }
+
+    /**
+     * Mosaics a reduced-size copy of the image, for a quick preview of the finished mosaic. The copy is divided into
+     * a grid of tiles of the usual size, so each preview tile stands in for many full-size tiles and there are few
+     * of them to fetch. The preview is published through #getPreviewBitmap before any tiles are drawn over it, and
+     * MOSAIC_PREVIEW_UPDATED is broadcast as each row of its tiles is finished.
+     *
+     * @param job            The job, with the URI in the Media Store of the image that is to be mosaic'd
+     * @param sampleSize     Each pixel of the preview stands for this many pixels of the image in each direction
+     * @param colorQuantizer Snaps each preview tile's average color to the color of the tile to be used. Its colors
+     *                       are left in it, for the full-size mosaic to snap to.
+     * @return True if every preview tile was found and fetched, so the quantizer holds all of the preview's colors
+     * @throws IOException If the reduced-size copy of the image couldn't be decoded
+     */
+    private boolean previewLoop(Job job, int sampleSize, MosaicColorQuantizer colorQuantizer) throws IOException {
+        long decodeStart = job.metrics.start();
+        Bitmap preview = MosaicImageSource.decodeSampled(this, job.imageUri, sampleSize);
+        job.metrics.stop(MosaicJobMetrics.Stage.SOURCE_DECODE, decodeStart);
+        int previewWidth = preview.getWidth();
+        int previewHeight = preview.getHeight();
+        int rowCount = MosaicTileAverager.tileCount(previewHeight, TILE_HEIGHT_PX);
+
+        Log.d(TAG, String.format("Preview is %d x %d, sample size %d", previewWidth, previewHeight, sampleSize));
+
+        // The preview is shown as it is, until tiles are drawn over it
+        job.previewBitmap = preview;
+        broadcastMosaicPreviewUpdated(job.id);
+
+        // The preview is small, so it is read all at once, before any tiles are drawn over it
+        int[] previewPixels = new int[previewWidth * previewHeight];
+        preview.getPixels(previewPixels, 0, previewWidth, 0, 0, previewWidth, previewHeight);
+
+        MosaicTilePipeline<MosaicTileCreatorResult> pipeline =
+                new MosaicTilePipeline<MosaicTileCreatorResult>(rowCount,
+                                                                fetchExecutor,
+                                                                MAX_TILES_IN_FLIGHT,
+                                                                new PreviewCompositor(job, preview));
+        MosaicCancellationToken.Registration abortOnCancel = job.token.onCancel(aborter(pipeline));
+
+        try {
+            for (int row = 0; (row < rowCount) && !job.token.isCancelled(); row++) {
+                long averagingStart = job.metrics.start();
+                int rowTopY = row * TILE_HEIGHT_PX;
+                int rowHeight = Math.min(TILE_HEIGHT_PX, previewHeight - rowTopY);
+                List<MosaicTileCreatorRequest> rowRequests = new ArrayList<MosaicTileCreatorRequest>();
+                for (int tileLeftX = 0; tileLeftX < previewWidth; tileLeftX += TILE_WIDTH_PX) {
+                    int tileWidth = Math.min(TILE_WIDTH_PX, previewWidth - tileLeftX);
+                    int average = MosaicTileAverager.averageColor(previewPixels, (rowTopY * previewWidth) + tileLeftX,
+                                                                  previewWidth, tileWidth, rowHeight);
+                    rowRequests.add(createRequest(tileLeftX, rowTopY, tileWidth, rowHeight,
+                                                  colorQuantizer.quantize(average)));
                 }
+                job.metrics.stop(MosaicJobMetrics.Stage.AVERAGING, averagingStart);
 
-                // TODO: Maybe just save the row we just changed, rather than the entire bitmap, most of which
-                // TODO: hasn't changed.
-                mosaicScratchFile.saveBitmapToScratchFile(bitmap);
+                MosaicTileBatch rowBatch = createTileBatch(job, rowRequests);
+                for (MosaicTileCreatorRequest request : rowRequests) {
+                    submitTile(pipeline, row, job, request, rowBatch);
+                }
 
-                Log.d(TAG, String.format("numTilesProcessed=%d, totalTilesToProcess=%d", numTilesProcessed,
-                                         totalTilesToProcess));
-                int progressPercent = 100 * numTilesProcessed / totalTilesToProcess;
-                broadcastProgressUpdate(progressPercent);
+                pipeline.endRow(row);
+                sampleQueueDepths(job, pipeline);
+            }
 
-                // Let external parties know that another row has been finished
-                broadcastMosaicCreationRowFinished();
+            job.token.throwIfCancelled();
+            pipeline.awaitCompletion();
+            return true;
+        } catch (CancellationException cex) {
+            // The unfinished preview is simply left as it is
+        } catch (InterruptedException iex) {
+            Log.e(TAG, "Interrupted while creating preview tiles", iex);
+            pipeline.abort();
+        } finally {
+            abortOnCancel.unregister();
+        }
+        return false;
+    }
+
+    /**
+     * Finds the tiles that the full-size mosaic is likely to need from a much reduced copy of the image, as
+     * MosaicTileSurvey does.
+     *
+     * @param job       The job, with the URI in the Media Store of the image that is to be mosaic'd
+     * @param width     Pixel width of the full-size image
+     * @param height    Pixel height of the full-size image
+     * @param quantizer Snaps each tile's average color to the color of the tile to be used
+     * @return Key of every tile found, without repeats, in the order the full-size mosaic will need them
+     * @throws IOException If the reduced copy of the image couldn't be decoded
+     */
+    private List<MosaicTileKey> surveyTiles(Job job, int width, int height, MosaicColorQuantizer quantizer)
+            throws IOException {
+        long decodeStart = job.metrics.start();
+        Bitmap survey = MosaicImageSource.decodeSampled(this, job.imageUri, SURVEY_SAMPLE_SIZE);
+        job.metrics.stop(MosaicJobMetrics.Stage.SOURCE_DECODE, decodeStart);
+
+        long averagingStart = job.metrics.start();
+        int surveyWidth = survey.getWidth();
+        int surveyHeight = survey.getHeight();
+        int[] surveyPixels = new int[surveyWidth * surveyHeight];
+        survey.getPixels(surveyPixels, 0, surveyWidth, 0, 0, surveyWidth, surveyHeight);
+        survey.recycle();
+        List<MosaicTileKey> keys = MosaicTileSurvey.findTiles(surveyPixels, surveyWidth, surveyHeight,
+                                                              SURVEY_SAMPLE_SIZE, width, height, BAND_HEIGHT_PX,
+                                                              TILE_WIDTH_PX, createTiler(SURVEY_SAMPLE_SIZE),
+                                                              quantizer);
+        job.metrics.stop(MosaicJobMetrics.Stage.AVERAGING, averagingStart);
+
+        Log.d(TAG, String.format("Survey at sample size %d found %d distinct tiles", SURVEY_SAMPLE_SIZE,
+                                 keys.size()));
+        return keys;
+    }
 
-            } catch (InterruptedException iex) {
-                Log.e(TAG, "Error invoking all creators for row", iex);
-            } catch (ExecutionException eex) {
-                Log.e(TAG, "Error invoking all creators for row", eex);
+    /**
+     * Starts fetching tiles into the caches on the fetch threads, in the order given, and returns at once. Stops
+     * short once the tiles would fill SURVEY_PREFETCH_CACHE_FRACTION of the tile cache. Tiles that are then
+     * requested while still being fetched share the fetch.
+     *
+     * @param job  The job that the tiles are for. Fetches still to start once it has been cancelled are dropped.
+     * @param keys Tiles to fetch, most urgent first
+     */
+    private void prefetchTiles(final Job job, List<MosaicTileKey> keys) {
+        long budgetBytes = (long) (TILE_CACHE_MAX_BYTES * SURVEY_PREFETCH_CACHE_FRACTION);
+        MosaicTileSurvey.prefetch(keys, budgetBytes, fetchExecutor, job.token, new MosaicTileSurvey.Prefetcher() {
+            @Override
+            public void prefetch(MosaicTileKey key) {
+                MosaicTileCreatorRequest request = createRequest(0, 0, key.width, key.height, 0xFF000000 | key.rgb);
+                new ServerMosaicTileCreator(job, request, null).prefetch();
             }
-        } // for y
+        });
+    }
+
+    /**
+     * @param sampleSize Each pixel of the image to be tiled stands for this many pixels of the full-size image
+     * @return A tiler that divides each band into tiles of varying size, with sizes scaled down to match the image,
+     * or null to use a grid of fixed-size tiles. A tiler keeps working tables, so each job needs its own.
+     */
+    private static MosaicQuadtreeTiler createTiler(int sampleSize) {
+        return ADAPTIVE_TILING_ENABLED ?
+                new MosaicQuadtreeTiler(TILE_WIDTH_PX / sampleSize, TILE_HEIGHT_PX / sampleSize,
+                                        MAX_TILE_WIDTH_PX / sampleSize, MAX_TILE_HEIGHT_PX / sampleSize,
+                                        ADAPTIVE_TILING_MAX_VARIANCE) : null;
+    }
+
+    /**
+     * @param width  Pixel width of the full-size image
+     * @param height Pixel height of the full-size image
+     * @return Largest power of 2 by which the image can be reduced and still cover the screen, or 1 if the image
+     * is already about the size of the screen
+     */
+    private int previewSampleSize(int width, int height) {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int sampleSize = 1;
+        while ((sampleSize < MAX_PREVIEW_SAMPLE_SIZE) &&
+                ((width / (sampleSize * 2)) >= metrics.widthPixels) &&
+                ((height / (sampleSize * 2)) >= metrics.heightPixels)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Divides a band of the full-size image into tiles - a row of fixed-size tiles, or tiles of varying size if
+     * adaptive tiling is enabled - and finds the color of each.
+     *
+     * @param tiler      Divides the band into tiles of varying size, or null for a row of fixed-size tiles
+     * @param bandPixels Pixels of the band, 'width' per row
+     * @param width      Pixel width of the image
+     * @param bandHeight Pixel height of the band
+     * @param bandTopY   Y coord of the top of the band in the image
+     * @param quantizer  Snaps each tile's average color to the color of the tile to be used
+     * @return A request for each tile in the band
+     */
+    private List<MosaicTileCreatorRequest> createBandRequests(MosaicQuadtreeTiler tiler, int[] bandPixels,
+                                                              int width, int bandHeight, final int bandTopY,
+                                                              final MosaicColorQuantizer quantizer) {
+        final List<MosaicTileCreatorRequest> bandRequests = new ArrayList<MosaicTileCreatorRequest>();
+
+        if (tiler == null) {
+            // Find the average colour of every tile in the row by finding the average red, green and blue
+            // component values of its pixels.
+            int[] averages = new int[MosaicTileAverager.tileCount(width, TILE_WIDTH_PX)];
+            tileAverager.averageBand(bandPixels, width, bandHeight, TILE_WIDTH_PX, averages);
+            for (int tileX = 0; tileX < averages.length; tileX++) {
+                int tileLeftX = tileX * TILE_WIDTH_PX;
+                bandRequests.add(createRequest(tileLeftX, bandTopY, Math.min(TILE_WIDTH_PX, width - tileLeftX),
+                                               bandHeight, quantizer.quantize(averages[tileX])));
+            }
+        } else {
+            tiler.tileBand(bandPixels, 0, width, width, bandHeight, new MosaicQuadtreeTiler.TileSink() {
+                @Override
+                public void tile(int x, int y, int tileWidth, int tileHeight, int averageColor) {
+                    bandRequests.add(createRequest(x, bandTopY + y, tileWidth, tileHeight,
+                                                   quantizer.quantize(averageColor)));
+                }
+            });
+        }
+
+        return bandRequests;
+    }
+
+    /**
+     * @return Painter of tiles drawn locally from their average color, or null if tiles have to be fetched or
+     * looked up. Tiles are solid blocks of color if TILE_STRATEGY is TEST or the tile library couldn't be opened,
+     * and circles if it is CIRCLE.
+     */
+    private MosaicTileAverager.TilePainter localTilePainter() {
+        if (Constants.TILE_STRATEGY == MosaicTileImageStrategy.CIRCLE) {
+            return circleTiles;
+        }
+        if ((Constants.TILE_STRATEGY == MosaicTileImageStrategy.TEST) ||
+                ((Constants.TILE_STRATEGY == MosaicTileImageStrategy.LIBRARY) && (tileLibrary == null))) {
+            return MosaicTileAverager.SOLID_PAINTER;
+        }
+        return null;
+    }
+
+    /**
+     * Paints every tile of a band over the band, in place. Adaptive tiles are each painted as soon as they have been
+     * averaged, while their pixels are still in the CPU cache. Fixed-size tiles are averaged and painted by all
+     * available cores, and their colors snapped in between on this thread. Either way colors are snapped in the
+     * same order every time.
+     *
+     * @param tiler      Finds adaptive tiles, or null for tiles all of the same size
+     * @param painter    Paints each tile from its color, or null to only snap the colors of a band painted already
+     * @param bandPixels Pixels of the band, painted over with the tiles
+     * @param width      Pixel width of the band
+     * @param bandHeight Pixel height of the band
+     * @param quantizer  Snaps each average to the color its tile is painted with
+     * @return Number of tiles in the band
+     */
+    private int paintLocalTiles(MosaicQuadtreeTiler tiler, final MosaicTileAverager.TilePainter painter,
+                                final int[] bandPixels, final int width, int bandHeight,
+                                final MosaicColorQuantizer quantizer) {
+        if (tiler == null) {
+            int[] colors = new int[MosaicTileAverager.tileCount(width, TILE_WIDTH_PX)];
+            tileAverager.averageAndFillBand(bandPixels, width, bandHeight, TILE_WIDTH_PX, colors, quantizer, painter);
+            return colors.length;
+        }
+
+        // The tiler has finished reading each block before it reports the block's tiles, so they can be painted
+        final int[] tileCount = new int[1];
+        tiler.tileBand(bandPixels, 0, width, width, bandHeight, new MosaicQuadtreeTiler.TileSink() {
+            @Override
+            public void tile(int x, int y, int tileWidth, int tileHeight, int averageColor) {
+                int color = quantizer.quantize(averageColor);
+                if (painter != null) {
+                    painter.paint(bandPixels, (y * width) + x, width, tileWidth, tileHeight, color);
+                }
+                tileCount[0]++;
+            }
+        });
+        return tileCount[0];
+    }
+
+    /**
+     * @return A request for a tile of the given size, color and position
+     */
+    private MosaicTileCreatorRequest createRequest(int topLeftX, int topLeftY, int tileWidth, int tileHeight,
+                                                   int averageColor) {
+        MosaicTileCreatorRequest request = new MosaicTileCreatorRequest();
+        request.topLeftX = topLeftX;
+        request.topLeftY = topLeftY;
+        request.averageColor = averageColor;
+        request.tileWidth = tileWidth;
+        request.tileHeight = tileHeight;
+
+        // Logging every tile is costly on large images, so is off unless asked for with "adb shell setprop"
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, String.format("Tile [%d, %d] %d x %d has average color of %s", topLeftX, topLeftY,
+                                     tileWidth, tileHeight, Utils.packagedColorIntToRGBHexString(averageColor)));
+        }
+        return request;
+    }
+
+    /**
+     * Queues a tile in a pipeline, to be fetched from the server or created locally depending on
+     * Constants.TILE_STRATEGY.
+     *
+     * @param pipeline The job's pipeline
+     * @param band     Index of the band of tiles to which the tile belongs
+     * @param job      The job to which the tile belongs
+     * @param request  Size, color and position of a mosaic tile
+     * @param batch    Batch request that may include the tile, or null
+     * @throws InterruptedException If interrupted while waiting for room in the pipeline
+     */
+    private void submitTile(MosaicTilePipeline<MosaicTileCreatorResult> pipeline, int band, Job job,
+                            MosaicTileCreatorRequest request, MosaicTileBatch batch) throws InterruptedException {
+        // Tiles from the server are waited for by the async client's thread, not by a fetch thread
+        if (Constants.TILE_STRATEGY == MosaicTileImageStrategy.SERVER) {
+            pipeline.submitAsync(band, new ServerMosaicTileCreator(job, request, batch));
+        } else {
+            pipeline.submit(band, createTileCreator(job, request));
+        }
+    }
+
+    /**
+     * @param job     The job to which the tile belongs
+     * @param request Size, color and position of a mosaic tile
+     * @return A task that will create the tile image locally, from the tile cache if possible
+     */
+    private Callable<MosaicTileCreatorResult> createTileCreator(Job job, MosaicTileCreatorRequest request) {
+        // Use the Test or Library versions of the MosaicTileCreator, depending on Constants.TILE_STRATEGY. If the
+        // tile library couldn't be opened, fall back to Test.
+        // TODO: Use dependency injection instead
+        Callable<MosaicTileCreatorResult> creator;
+        if ((Constants.TILE_STRATEGY == MosaicTileImageStrategy.LIBRARY) && (tileLibrary != null)) {
+            // Snap the request to the color of the library image that will be used for it, so that every request
+            // served by the same image shares one cached tile
+            int libraryIndex = tileLibrary.nearestTile(request.averageColor);
+            request.averageColor = tileLibrary.getColor(libraryIndex);
+            creator = new LibraryMosaicTileCreator(job, request, libraryIndex);
+        } else {
+            creator = new TestMosaicTileCreator(job, request);
+        }
+        return new CachingMosaicTileCreator(job, request, creator);
+    }
+
+    /**
+     * @param job      The job to which the tiles belong
+     * @param requests Tiles that are about to be created, typically one row's worth
+     * @return A batch of those tiles that aren't already cached, or null if batching wouldn't help
+     */
+    private MosaicTileBatch createTileBatch(Job job, List<MosaicTileCreatorRequest> requests) {
+        if ((Constants.TILE_STRATEGY != MosaicTileImageStrategy.SERVER) || !tileClient.isBatchSupported() ||
+                tileBreaker.isOpen()) {
+            return null;
+        }
+
+        Set<MosaicTileKey> keys = new LinkedHashSet<MosaicTileKey>();
+        for (MosaicTileCreatorRequest request : requests) {
+            MosaicTileKey key = new MosaicTileKey(request.tileWidth, request.tileHeight, request.averageColor);
+            if (!tileCache.containsKey(key) && ((tileDiskCache == null) || !tileDiskCache.containsKey(key))) {
+                keys.add(key);
+            }
+        }
+
+        return (keys.size() < 2) ? null :
+                new MosaicTileBatch(tileClient, new ArrayList<MosaicTileKey>(keys), job.token);
+    }
+
+    /**
+     * @return Aborts the given pipeline when run. For registering with the job's cancellation token.
+     */
+    private static Runnable aborter(final MosaicTilePipeline<?> pipeline) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                pipeline.abort();
+            }
+        };
+    }
+
+    /**
+     * Queues a mosaic of the given image. Broadcasts about the job carry the returned ID in EXTRA_JOB_ID.
+     *
+     * @param context            Context from which to start the service
+     * @param imageUri           URI in the Media Store of the image that is to be mosaic'd
+     * @param priority           Jobs with a higher priority are run before those with a lower one
+     * @param exportWhenFinished True to copy the finished mosaic straight to the public Pictures directory and
+     *                           the Media Store, false to leave it in the job's scratch file
+     * @return ID of the job
+     */
+    public static long startJob(Context context, Uri imageUri, int priority, boolean exportWhenFinished) {
+        long jobId = lastJobId.incrementAndGet();
+        Intent intent = new Intent(context, MosaicService.class);
+        intent.setData(imageUri);
+        intent.putExtra(EXTRA_JOB_ID, jobId);
+        intent.putExtra(EXTRA_PRIORITY, priority);
+        intent.putExtra(EXTRA_EXPORT_WHEN_FINISHED, exportWhenFinished);
+        context.startService(intent);
+        return jobId;
+    }
+
+    /**
+     * Cancels a job, whether it is queued or in progress. Queued tiles are dropped and tile requests in flight are
+     * disconnected straight away, so the job's place is soon taken by the next. Safe to call from any thread.
+     *
+     * @param jobId ID of the job, as returned by #startJob
+     */
+    public static void cancelJob(long jobId) {
+        Job job = jobs.get(jobId);
+        if (job != null) {
+            job.token.cancel();
+        }
+    }
+
+    /**
+     * Samples how deep each of a pipeline's queues is, and where the fetch limiter stands, for the job metrics
+     */
+    private void sampleQueueDepths(Job job, MosaicTilePipeline<?> pipeline) {
+        job.metrics.sampleQueueDepth(MosaicJobMetrics.Queue.TILES_IN_FLIGHT, pipeline.getTilesInFlight());
+        job.metrics.sampleQueueDepth(MosaicJobMetrics.Queue.FETCH_QUEUE, pipeline.getFetchQueueDepth());
+        job.metrics.sampleQueueDepth(MosaicJobMetrics.Queue.COMPOSITE_QUEUE, pipeline.getCompositeQueueDepth());
+        job.metrics.sampleGauge(MosaicJobMetrics.Gauge.FETCH_LIMIT, fetchLimiter.getLimit());
+        job.metrics.sampleGauge(MosaicJobMetrics.Gauge.FETCH_LATENCY_MS, fetchLimiter.getLatencyNanos() / 1000000);
     }
 
     /**
      * Broadcasts to MosaicActivity that this service has finished the mosaic creation process
+     *
+     * @param jobId        ID of the job that has finished
+     * @param jobSummary   Human-readable summary of where the job's time went
+     * @param exportFailed True if the mosaic was to be exported as soon as it was finished, but couldn't be
      */
-    private void broadcastMosaicCreationFinished() {
+    private void broadcastMosaicCreationFinished(long jobId, String jobSummary, boolean exportFailed) {
         Log.d(TAG, "Broadcasting MOSAIC FINISHED");
         Intent broadcastIntent = new Intent(MOSAIC_CREATION_FINISHED);
+        broadcastIntent.putExtra(EXTRA_JOB_ID, jobId);
+        broadcastIntent.putExtra(EXTRA_JOB_SUMMARY, jobSummary);
+        broadcastIntent.putExtra(EXTRA_EXPORT_FAILED, exportFailed);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcastIntent);
     }
 
     /**
      * Broadcasts to MosaicActivity this service has finished mosaic process for another row of tiles in the image.
-     * Some clients will use this to perform screen refreshes of one row at a time.
+     * Some clients will use this to perform screen refreshes of one row at a time, by reading just the rows that
+     * have changed from #getActiveCanvas.
+     *
+     * @param jobId        ID of the job concerned
+     * @param dirtyTopY    First pixel row of the image that has changed
+     * @param dirtyBottomY Pixel row after the last that has changed
      */
-    private void broadcastMosaicCreationRowFinished() {
+    private void broadcastMosaicCreationRowFinished(long jobId, int dirtyTopY, int dirtyBottomY) {
         Log.d(TAG, "Broadcasting ROW FINISHED");
         Intent broadcastIntent = new Intent(MOSAIC_CREATION_ROW_FINISHED);
+        broadcastIntent.putExtra(EXTRA_JOB_ID, jobId);
+        broadcastIntent.putExtra(EXTRA_DIRTY_TOP_Y, dirtyTopY);
+        broadcastIntent.putExtra(EXTRA_DIRTY_BOTTOM_Y, dirtyBottomY);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcastIntent);
     }
 
+    /**
+     * Broadcasts to MosaicActivity that a quick preview of the mosaic is available, or has had more tiles drawn
+     *
+     * @param jobId ID of the job concerned
+     */
+    private void broadcastMosaicPreviewUpdated(long jobId) {
+        Log.d(TAG, "Broadcasting PREVIEW UPDATED");
+        Intent broadcastIntent = new Intent(MOSAIC_PREVIEW_UPDATED);
+        broadcastIntent.putExtra(EXTRA_JOB_ID, jobId);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcastIntent);
+    }
+
+    /**
+     * @param jobId ID of a job, as returned by #startJob
+     * @return Screen-resolution preview of the job's mosaic, or null if there is none (yet)
+     */
+    public static Bitmap getPreviewBitmap(long jobId) {
+        Job job = jobs.get(jobId);
+        return (job == null) ? null : job.previewBitmap;
+    }
+
+    /**
+     * @param jobId ID of a job, as returned by #startJob
+     * @return Pixel row of the job's #getActiveCanvas after the last finished row of tiles
+     */
+    public static int getFinishedBottomY(long jobId) {
+        Job job = jobs.get(jobId);
+        return (job == null) ? 0 : job.finishedBottomY;
+    }
+
+    /**
+     * @param jobId ID of a job, as returned by #startJob
+     * @return Scratch canvas of the job's mosaic, or null if the job isn't in progress. Its pixels remain readable
+     * after the job finishes, for as long as the canvas is referenced.
+     */
+    public static MosaicScratchCanvas getActiveCanvas(long jobId) {
+        Job job = jobs.get(jobId);
+        return (job == null) ? null : job.canvas;
+    }
+
     /**
      * Broadcasts to MosaicActivity that this service has made further progress in creating the mosaic, by
      * processing another request.
      *
+     * @param jobId           ID of the job concerned
      * @param percentProgress The percentage progress in [0,100]
      */
-    private void broadcastProgressUpdate(int percentProgress) {
+    private void broadcastProgressUpdate(long jobId, int percentProgress) {
         Log.d(TAG, "Broadcasting PROGRESS percent = " + percentProgress);
         Intent broadcastIntent = new Intent(MOSAIC_CREATION_PROGRESSED);
+        broadcastIntent.putExtra(EXTRA_JOB_ID, jobId);
         broadcastIntent.putExtra(EXTRA_PROGRESS, percentProgress);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcastIntent);
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
         Log.i(TAG, "intent = " + intent);
-        Log.i(TAG, "dataString = " + intent.getDataString());
+        lastStartId = startId;
+
+        if ((intent == null) || (intent.getData() == null)) {
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
+        // Jobs not started through #startJob are given an ID here
+        long jobId = intent.hasExtra(EXTRA_JOB_ID) ? intent.getLongExtra(EXTRA_JOB_ID, 0) :
+                lastJobId.incrementAndGet();
+
+        // A redelivered job was cut short when the process died, taking any Activity following it with it, so
+        // nobody is left to export the mosaic but the job itself
+        boolean redelivered = (flags & START_FLAG_REDELIVERY) != 0;
+        if (redelivered) {
+            Log.i(TAG, "Resuming job " + jobId + " after a restart");
+        }
+        final Job job = new Job(jobId, intent.getData(),
+                                redelivered || intent.getBooleanExtra(EXTRA_EXPORT_WHEN_FINISHED, false),
+                                redelivered);
+        jobs.put(jobId, job);
+
+        jobQueue.enqueue(jobId, intent.getIntExtra(EXTRA_PRIORITY, 0), job.token, new Runnable() {
+            @Override
+            public void run() {
+                runJob(job);
+            }
+        });
+
+        // If the process is killed before the job finishes, have the Intent delivered again so the job can resume
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * Creates the mosaic for a single job, on one of the job queue's threads
+     */
+    private void runJob(Job job) {
+        try {
+            // Cancelled while still queued
+            if (job.token.isCancelled()) {
+                return;
+            }
+
+            // Redelivered, although it had already ended before the process died. Its mosaic is exported if it
+            // was finished but not yet exported - exporting deletes the scratch file, so it is only done once.
+            if (job.redelivered && finishedJobs.isFinished(job.id)) {
+                Log.i(TAG, "Job " + job.id + " had already ended, so isn't run again");
+                MosaicScratchFile scratchFile = new MosaicScratchFile(this, job.id);
+                if (job.exportWhenFinished && scratchFile.hasScratchFile() && !exportMosaic(scratchFile)) {
+                    Log.e(TAG, "Failed to export mosaic of job " + job.id + ". It is left in its scratch file.");
+                }
+                return;
+            }
+
+            if (Constants.TILE_STRATEGY == MosaicTileImageStrategy.LIBRARY) {
+                openTileLibrary();
+            }
+
+            job.metrics = new MosaicJobMetrics(job.imageUri.toString());
+            boolean saved = bigLoop(job);
+            job.metrics.finish();
 
-        abortRequested = false;
+            String jobSummary = job.metrics.summary();
+            Log.i(TAG, jobSummary);
+            writeJobSummary(job.metrics);
 
-        Uri imageUri = Uri.parse(intent.getDataString());
-        bigLoop(imageUri);
+            if (!job.token.isCancelled()) {
+                boolean exportFailed = saved && job.exportWhenFinished &&
+                        !exportMosaic(new MosaicScratchFile(this, job.id));
+                broadcastMosaicCreationFinished(job.id, jobSummary, exportFailed);
+            }
+        } finally {
+            // A cancelled job is over too, unless it was only cut short by the service being destroyed
+            if (job.token.isCancelled() && !destroyed) {
+                markFinished(job);
+            }
+            jobs.remove(job.id);
+        }
+    }
 
-        if (!abortRequested) {
-            broadcastMosaicCreationFinished();
+    /**
+     * Records that a job needs no more work, in case its Intent is redelivered
+     */
+    private void markFinished(Job job) {
+        try {
+            finishedJobs.markFinished(job.id);
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to record job " + job.id + " as finished", iox);
+        }
+    }
+
+    /**
+     * Writes the metrics of a finished job to the dump file, replacing those of the last job to finish
+     */
+    private void writeJobSummary(MosaicJobMetrics metrics) {
+        // Jobs finishing at the same time take turns, so the file holds one whole summary
+        synchronized (MosaicService.class) {
+            try {
+                metrics.writeSummary(new File(getFilesDir(), JOB_METRICS_FILE_NAME));
+            } catch (IOException iox) {
+                Log.e(TAG, "Failed to write job metrics", iox);
+            }
+        }
+    }
+
+    /**
+     * Copies a finished mosaic to the public Pictures directory, adds it to the Media Store and deletes the
+     * scratch file, which is no longer needed. If it can't be copied, the scratch file is kept, as the only copy.
+     *
+     * @return True if the mosaic was copied
+     */
+    private boolean exportMosaic(MosaicScratchFile scratchFile) {
+        File publicCopy = scratchFile.copyScratchFileToPublicDirectory();
+        if (publicCopy == null) {
+            return false;
+        }
+        scratchFile.addScratchFileToAndroidMediaStore(publicCopy, new IAddedToMediaStore() {
+            @Override
+            public void added(String pathToUnderlyingImageFile, Uri mediaStoreUri) {
+                Log.i(TAG, "Added mosaic " + pathToUnderlyingImageFile + " to Media Store as " + mediaStoreUri);
+            }
+        });
+        scratchFile.delete();
+        return true;
+    }
+
+    /**
+     * Stops the service if there are no jobs queued or in progress. Called on the main thread, as is
+     * #onStartCommand, so a job can't be queued while this is deciding. Once stopped, no Intent of any job is
+     * redelivered, so the record of finished jobs is no longer needed.
+     */
+    private void stopIfIdle() {
+        if (jobQueue.isIdle()) {
+            stopSelf(lastStartId);
+            finishedJobs.clear();
+        }
+    }
+
+    /**
+     * Opens the library of local photos to be used as tiles, building its atlas first if need be. This can take
+     * some time on first use, so is done on a job thread rather than in #onCreate. Only the first job to get here
+     * opens it - any others running meanwhile wait for it.
+     */
+    private synchronized void openTileLibrary() {
+        if (tileLibrary != null) {
+            return;
+        }
+
+        File libraryDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
+                                   TILE_LIBRARY_DIR_NAME);
+        try {
+            tileLibrary = MosaicTileLibrary.open(libraryDir, new File(getFilesDir(), TILE_ATLAS_FILE_NAME),
+                                                 new File(getFilesDir(), TILE_LUT_FILE_NAME), TILE_WIDTH_PX,
+                                                 TILE_HEIGHT_PX);
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to open tile library at " + libraryDir + ". Using solid tiles instead.", iox);
         }
     }
 
     @Override
-    public void onStart(Intent intent, int startId) {
-        super.onStart(intent, startId);
-        Log.i(TAG, "MosaicService is being started");
+    public void onCreate() {
+        super.onCreate();
+        mainHandler = new Handler(Looper.getMainLooper());
+        fetchExecutor = MosaicTilePipeline.createFetchExecutor(MAX_THREAD_POOL_SIZE);
+        finishedJobs = new MosaicFinishedJobs(new File(getFilesDir(), FINISHED_JOBS_DIR_NAME));
+        jobQueue = new MosaicJobQueue(MAX_CONCURRENT_JOBS, new Runnable() {
+            @Override
+            public void run() {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopIfIdle();
+                    }
+                });
+            }
+        });
+
+        try {
+            tileDiskCache = new MosaicTileDiskCache(new File(getFilesDir(), TILE_DISK_CACHE_DIR_NAME),
+                                                    TILE_DISK_CACHE_MAX_BYTES,
+                                                    TILE_DISK_CACHE_MAX_ENTRIES);
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to open tile disk cache. Continuing without it.", iox);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        jobQueue.shutdown();
+        fetchExecutor.shutdown();
+        averagingPool.shutdown();
+        if (tileDiskCache != null) {
+            tileDiskCache.close();
+        }
+        if (tileLibrary != null) {
+            tileLibrary.close();
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        // Jobs are only ever started, never bound to
+        return null;
+    }
+
+    /**
+     * A mosaic of a single image, queued or in progress. Whatever an Activity needs to follow the job's progress
+     * is published here, for #getActiveCanvas and the like.
+     */
+    private static class Job {
+
+        final long id;
+
+        // URI in the Media Store of the image that is to be mosaic'd
+        final Uri imageUri;
+
+        // True to export the finished mosaic rather than leave it in the job's scratch file
+        final boolean exportWhenFinished;
+
+        // True if the job's Intent was redelivered after the process died
+        final boolean redelivered;
+
+        final MosaicCancellationToken token = new MosaicCancellationToken();
+
+        // Timings and counts for the job. Created when the job is run, so time spent queued isn't counted.
+        MosaicJobMetrics metrics;
+
+        // Scratch canvas of the mosaic, once created, so that an Activity in the same process can read finished
+        // rows straight from memory rather than decoding a file
+        volatile MosaicScratchCanvas canvas;
+
+        // Pixel row of the canvas after the last finished row of tiles. Rows above it are finished.
+        volatile int finishedBottomY;
+
+        // Quick preview of the mosaic, or null if there is none (yet)
+        volatile Bitmap previewBitmap;
+
+        Job(long id, Uri imageUri, boolean exportWhenFinished, boolean redelivered) {
+            this.id = id;
+            this.imageUri = imageUri;
+            this.exportWhenFinished = exportWhenFinished;
+            this.redelivered = redelivered;
+        }
+    }
+
+    /**
+     * Final stage of the tile pipeline. Copies each finished tile straight into the scratch canvas and, as each
+     * band of tiles is completed, lets external parties know.
+     */
+    private class CanvasCompositor implements MosaicTilePipeline.Compositor<MosaicTileCreatorResult> {
+
+        private final Job job;
+
+        // The mosaic under construction
+        private final MosaicScratchCanvas canvas;
+
+        // Records each tile as it is written to the canvas
+        private final MosaicJobJournal journal;
+
+        // Pixel height of every band but the last
+        private final int bandHeightPx;
+
+        private int numTilesProcessed;
+
+        CanvasCompositor(Job job, MosaicScratchCanvas canvas, MosaicJobJournal journal, int bandHeightPx) {
+            this.job = job;
+            this.canvas = canvas;
+            this.journal = journal;
+            this.bandHeightPx = bandHeightPx;
+        }
+
+        @Override
+        public void composite(MosaicTileCreatorResult result) {
+            numTilesProcessed++;
+            if (result.pixels == null) {
+                // Left as it is, and not journalled, so that resuming the job tries the tile again
+                return;
+            }
+            long compositeStart = job.metrics.start();
+
+            // Clip the tile to the edges of the mosaic
+            int tileWidth = Math.min(result.tileWidth, canvas.getWidth() - result.topLeftX);
+            int tileHeight = Math.min(result.tileHeight, canvas.getHeight() - result.topLeftY);
+
+            // Copy the tile's pixels straight into the scratch canvas
+            canvas.writePixels(result.pixels, // data in
+                               0, // offset
+                               result.tileWidth, // stride
+                               result.topLeftX, // x
+                               result.topLeftY, // y
+                               tileWidth, // width
+                               tileHeight); // height
+            journal.markComplete(result.tileIndex);
+            job.metrics.stop(MosaicJobMetrics.Stage.COMPOSITE, compositeStart);
+        }
+
+        @Override
+        public void rowFinished(int band) {
+            // Adaptive tiles vary in size, so progress is measured in pixel rows rather than tiles
+            int bandTopY = band * bandHeightPx;
+            int bandBottomY = Math.min(bandTopY + bandHeightPx, canvas.getHeight());
+
+            Log.d(TAG, String.format("numTilesProcessed=%d, bandBottomY=%d", numTilesProcessed, bandBottomY));
+            int progressPercent = (int) (100L * bandBottomY / canvas.getHeight());
+            broadcastProgressUpdate(job.id, progressPercent);
+
+            job.finishedBottomY = bandBottomY;
+
+            // Let external parties know that another band has been finished
+            broadcastMosaicCreationRowFinished(job.id, bandTopY, bandBottomY);
+        }
+    }
+
+    /**
+     * Final stage of the tile pipeline for a quick preview. Copies each finished tile over the area of the
+     * reduced-size image that it covers, and lets external parties know as each row of tiles is finished.
+     */
+    private class PreviewCompositor implements MosaicTilePipeline.Compositor<MosaicTileCreatorResult> {
+
+        private final Job job;
+
+        private final Bitmap preview;
+
+        PreviewCompositor(Job job, Bitmap preview) {
+            this.job = job;
+            this.preview = preview;
+        }
+
+        @Override
+        public void composite(MosaicTileCreatorResult result) {
+            if (result.pixels == null) {
+                // The reduced-size image is left showing through
+                return;
+            }
+            long compositeStart = job.metrics.start();
+            preview.setPixels(result.pixels, 0, result.tileWidth, result.topLeftX, result.topLeftY,
+                              result.tileWidth, result.tileHeight);
+            job.metrics.stop(MosaicJobMetrics.Stage.COMPOSITE, compositeStart);
+        }
+
+        @Override
+        public void rowFinished(int row) {
+            broadcastMosaicPreviewUpdated(job.id);
+        }
     }
 
     /**
@@ -300,20 +1462,105 @@ public class MosaicService extends IntentService {
         // Y coord of the top left of the tile in the raw image (and mosaic image)
         public int topLeftY;
 
+        // Index of the tile in the job's MosaicJobJournal, or -1 if it isn't recorded there
+        public int tileIndex = -1;
+
     }
 
     /**
      * Encapsulates the results of processing a MosaicTileCreatorRequest
      */
     public class MosaicTileCreatorResult {
-        // The requested tile, in bitmpa form
-        public Bitmap bitmap;
+        // Pixels of the requested tile, row by row, or null if no image could be had for it
+        public int[] pixels;
+
+        // Taken from the "tileWidth" attribute of the corresponding MosaicTileCreatorRequest
+        public int tileWidth;
+
+        // Taken from the "tileHeight" attribute of the corresponding MosaicTileCreatorRequest
+        public int tileHeight;
 
         // Taken from the "topLeftX" attribute of the corresponding MosaicTileCreatorRequest
         public int topLeftX;
 
         // Taken from the "topLeftY" attribute of the corresponding MosaicTileCreatorRequest
         public int topLeftY;
+
+        // Taken from the "tileIndex" attribute of the corresponding MosaicTileCreatorRequest
+        public int tileIndex = -1;
+    }
+
+    /**
+     * Executable task that serves the given MosaicTileCreatorRequest from the tile cache if a tile of
+     * the same size and color has been created before, and otherwise calls another creator and caches
+     * whatever it produces. If a tile with the same size and color is already being created for some
+     * other request, waits for and shares that tile rather than creating another. If that request's job is
+     * cancelled before its tile is created, creates the tile afresh.
+     */
+    public class CachingMosaicTileCreator implements Callable<MosaicTileCreatorResult> {
+        private final Job job;
+
+        private final MosaicTileCreatorRequest request;
+
+        private final Callable<MosaicTileCreatorResult> creator;
+
+        /**
+         * @param job     The job to which the tile belongs
+         * @param tile    The tile to be created
+         * @param creator Creates the tile if it isn't already in the cache
+         */
+        CachingMosaicTileCreator(Job job, MosaicTileCreatorRequest tile, Callable<MosaicTileCreatorResult> creator) {
+            this.job = job;
+            this.request = tile;
+            this.creator = creator;
+        }
+
+        @Override
+        public MosaicTileCreatorResult call() throws Exception {
+            final MosaicTileKey key = new MosaicTileKey(request.tileWidth, request.tileHeight, request.averageColor);
+            int[] pixels = tileCache.get(key);
+
+            if (pixels == null) {
+                job.metrics.increment(MosaicJobMetrics.Counter.MEMORY_CACHE_MISSES);
+                Callable<int[]> loader = new Callable<int[]>() {
+                    @Override
+                    public int[] call() throws Exception {
+                        try {
+                            int[] created = creator.call().pixels;
+                            if (created != null) {
+                                tileCache.put(key, created);
+                                return created;
+                            }
+                        } catch (Exception ex) {
+                            if (!job.token.isCancelled()) {
+                                throw ex;
+                            }
+                        }
+                        return job.token.isCancelled() ? ABANDONED_TILE : null;
+                    }
+                };
+                do {
+                    pixels = tileFetches.load(key, loader);
+                } while ((pixels == ABANDONED_TILE) && !job.token.isCancelled());
+                if (pixels == ABANDONED_TILE) {
+                    pixels = null;
+                } else if (pixels == null) {
+                    job.metrics.increment(MosaicJobMetrics.Counter.FAILED_TILES);
+                }
+            } else {
+                job.metrics.increment(MosaicJobMetrics.Counter.MEMORY_CACHE_HITS);
+            }
+
+            MosaicTileCreatorResult result = new MosaicTileCreatorResult();
+            result.topLeftX = request.topLeftX;
+            result.topLeftY = request.topLeftY;
+            result.tileIndex = request.tileIndex;
+            result.tileWidth = request.tileWidth;
+            result.tileHeight = request.tileHeight;
+            result.pixels = pixels;
+
+            return result;
+        }
     }
 
     /**
@@ -323,76 +1570,316 @@ public class MosaicService extends IntentService {
      * this can be handy for testing.
      */
     public class TestMosaicTileCreator implements Callable<MosaicTileCreatorResult> {
+        private final Job job;
+
         private final MosaicTileCreatorRequest request;
 
-        public TestMosaicTileCreator(MosaicTileCreatorRequest tile) {
+        TestMosaicTileCreator(Job job, MosaicTileCreatorRequest tile) {
+            this.job = job;
             this.request = tile;
         }
 
         @Override
         public MosaicTileCreatorResult call() throws Exception {
-            Log.d(TAG, String.format("Creating bitmap with top left [%d, %d] and size %d x %d",
-                                     request.topLeftX,
-                                     request.topLeftY,
-                                     request.tileWidth,
-                                     request.tileHeight));
-            Bitmap bitmap = Bitmap.createBitmap(request.tileWidth, request.tileHeight, Bitmap.Config.RGB_565);
-            bitmap.eraseColor(request.averageColor);
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, String.format("Creating bitmap with top left [%d, %d] and size %d x %d",
+                                         request.topLeftX,
+                                         request.topLeftY,
+                                         request.tileWidth,
+                                         request.tileHeight));
+            }
+            long createStart = job.metrics.start();
+            int[] pixels = new int[request.tileWidth * request.tileHeight];
+            Arrays.fill(pixels, request.averageColor);
+            job.metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, createStart);
 
             MosaicTileCreatorResult result = new MosaicTileCreatorResult();
             result.topLeftX = request.topLeftX;
             result.topLeftY = request.topLeftY;
-            result.bitmap = bitmap;
+            result.tileWidth = request.tileWidth;
+            result.tileHeight = request.tileHeight;
+            result.pixels = pixels;
 
             return result;
         }
     }
 
-    public class ServerMosaicTileCreator implements Callable<MosaicTileCreatorResult> {
+    /**
+     * Executable task that when called, serves the given MosaicTileCreatorRequest with a thumbnail of the local
+     * photo that has already been chosen for it from the tile library.
+     */
+    public class LibraryMosaicTileCreator implements Callable<MosaicTileCreatorResult> {
+        private final Job job;
+
         private final MosaicTileCreatorRequest request;
 
-        public ServerMosaicTileCreator(MosaicTileCreatorRequest tile) {
+        private final int libraryIndex;
+
+        /**
+         * @param job          The job to which the tile belongs
+         * @param tile         The tile to be created
+         * @param libraryIndex Index in the tile library of the photo to be used
+         */
+        LibraryMosaicTileCreator(Job job, MosaicTileCreatorRequest tile, int libraryIndex) {
+            this.job = job;
             this.request = tile;
+            this.libraryIndex = libraryIndex;
         }
 
         @Override
         public MosaicTileCreatorResult call() throws Exception {
-            String serverUrl = String.format(Constants.MOSAIC_SERVER_URL, request.tileWidth, request.tileHeight,
-                                             Utils.packagedColorIntToRGBHexString(request.averageColor));
+            MosaicTileCreatorResult result = new MosaicTileCreatorResult();
+            result.topLeftX = request.topLeftX;
+            result.topLeftY = request.topLeftY;
+            result.tileWidth = request.tileWidth;
+            result.tileHeight = request.tileHeight;
+            long fetchStart = job.metrics.start();
+            result.pixels = tileLibrary.createTile(libraryIndex, request.tileWidth, request.tileHeight);
+            job.metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, fetchStart);
+
+            return result;
+        }
+    }
+
+    /**
+     * Serves the given MosaicTileCreatorRequest from the tile cache, the tile disk cache, the band's batch
+     * request or, failing those, the tile server. Single tile requests are made through the async tile client, so
+     * no fetch thread waits for the server to answer them, and the tile that comes back is decoded on a fetch
+     * thread. Only the band's batch request, if any, is still made on a fetch thread. If a tile with the same size
+     * and color is already being fetched for some other request, shares that tile rather than fetching another.
+     * <p/>
+     * If the server can't supply the tile, or is being left alone by tileBreaker, the tile is drawn locally as a
+     * solid fill of its average color, like TestMosaicTileCreator does, so the job still finishes on time. Such
+     * tiles aren't cached, so the server's own tile is used once it recovers.
+     * <p/>
+     * A fetch is cut short when the job that started it is cancelled. Requests of other jobs that were sharing it
+     * then start a fetch of their own, so they never go without a tile for the sake of a job they have nothing to
+     * do with.
+     */
+    public class ServerMosaicTileCreator implements MosaicTilePipeline.AsyncCreator<MosaicTileCreatorResult> {
+        private final Job job;
+
+        private final MosaicTileCreatorRequest request;
+
+        private final MosaicTileBatch batch;
 
-            Log.d(TAG, String.format("Fetching bitmap with top left [%d, %d] from URL %s",
-                                     request.topLeftX,
-                                     request.topLeftY,
-                                     serverUrl));
+        private final MosaicTileKey key;
+
+        /**
+         * @param job   The job to which the tile belongs
+         * @param tile  The tile to be fetched
+         * @param batch Batch request that may include the tile, or null
+         */
+        ServerMosaicTileCreator(Job job, MosaicTileCreatorRequest tile, MosaicTileBatch batch) {
+            this.job = job;
+            this.request = tile;
+            this.batch = batch;
+            this.key = new MosaicTileKey(tile.tileWidth, tile.tileHeight, tile.averageColor);
+        }
 
-            InputStream inputStream = null;
-            Bitmap bitmap = null;
+        @Override
+        public void create(final MosaicTilePipeline.Completion<MosaicTileCreatorResult> completion) {
+            int[] cached = tileCache.get(key);
+            if (cached != null) {
+                job.metrics.increment(MosaicJobMetrics.Counter.MEMORY_CACHE_HITS);
+                completion.complete(createResult(cached));
+                return;
+            }
+            job.metrics.increment(MosaicJobMetrics.Counter.MEMORY_CACHE_MISSES);
+
+            boolean leader = tileFetches.join(key, new MosaicSingleFlight.Listener<int[]>() {
+                @Override
+                public void loaded(int[] pixels) {
+                    if (pixels == ABANDONED_TILE) {
+                        retry(completion);
+                        return;
+                    }
+                    if (pixels == null) {
+                        job.metrics.increment(MosaicJobMetrics.Counter.FAILED_TILES);
+                    }
+                    completion.complete(createResult(pixels));
+                }
+            });
+            if (leader) {
+                fetch();
+            }
+        }
+
+        /**
+         * Starts again on a fetch thread, after the fetch being shared was abandoned by the job that started it.
+         * Gives up if this job has been cancelled too.
+         */
+        private void retry(final MosaicTilePipeline.Completion<MosaicTileCreatorResult> completion) {
+            if (!job.token.isCancelled()) {
+                try {
+                    fetchExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            create(completion);
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException reex) {
+                    // The service is being destroyed
+                }
+            }
+            completion.complete(createResult(null));
+        }
+
+        /**
+         * Fetches the tile into the caches, unless it is there already, without anyone waiting for it. Requests for
+         * the same tile made meanwhile share the fetch.
+         */
+        void prefetch() {
+            if (tileCache.containsKey(key)) {
+                return;
+            }
+            boolean leader = tileFetches.join(key, new MosaicSingleFlight.Listener<int[]>() {
+                @Override
+                public void loaded(int[] pixels) {
+                    // Nobody is waiting for it here
+                }
+            });
+            if (leader) {
+                job.metrics.increment(MosaicJobMetrics.Counter.PREFETCHED_TILES);
+                fetch();
+            }
+        }
+
+        /**
+         * Gets the tile's image data from wherever it can be had, then decodes it. Whatever happens, ends with
+         * tileFetches.finish, which completes this request and every other that is waiting for the same tile.
+         */
+        private void fetch() {
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, String.format("Fetching bitmap with top left [%d, %d] from URL %s",
+                                         request.topLeftX,
+                                         request.topLeftY,
+                                         asyncTileClient.tileUrl(key)));
+            }
 
+            final long fetchStart = job.metrics.start();
             try {
-                URL url = new URL(serverUrl);
-                URLConnection connection = url.openConnection();
-                inputStream = connection.getInputStream();
-                bitmap = BitmapFactory.decodeStream(inputStream);
+                // Tiles fetched by earlier jobs, even before the app was last restarted, are kept on disk
+                byte[] tileData = (tileDiskCache == null) ? null : tileDiskCache.get(key);
+                if (tileData != null) {
+                    job.metrics.increment(MosaicJobMetrics.Counter.DISK_CACHE_HITS);
+                    job.metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, fetchStart);
+                    decodeAndFinish(tileData, false);
+                    return;
+                }
+                if (tileDiskCache != null) {
+                    job.metrics.increment(MosaicJobMetrics.Counter.DISK_CACHE_MISSES);
+                }
+
+                // No use queueing for a server that is being left alone
+                if (tileBreaker.isOpen()) {
+                    job.metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, fetchStart);
+                    fallBack();
+                    return;
+                }
 
+                tileData = (batch == null) ? null : batch.get(key);
+                if (tileData != null) {
+                    job.metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, fetchStart);
+                    storeAndDecode(tileData);
+                    return;
+                }
+
+                asyncTileClient.fetch(key, job.token, new MosaicAsyncTileClient.Callback() {
+                    @Override
+                    public void onTile(MosaicTileKey tileKey, final byte[] tileData) {
+                        job.metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, fetchStart);
+                        // Writing to disk and decoding are no work for the client's thread
+                        try {
+                            fetchExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    storeAndDecode(tileData);
+                                }
+                            });
+                        } catch (RejectedExecutionException reex) {
+                            // The service is being destroyed
+                            tileFetches.finish(key, null);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(MosaicTileKey tileKey, IOException failure) {
+                        failed(failure);
+                    }
+                });
             } catch (Exception ex) {
-                Log.e(TAG, "Failed to load mosaic tile from server", ex);
-            } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException iox) {
-                        Log.e(TAG, "Failed to close input stream from mosaic tile server", iox);
+                failed(ex);
+            }
+        }
+
+        /**
+         * Decodes image data that has just been fetched, keeping it in the disk cache if it decodes
+         */
+        private void storeAndDecode(byte[] tileData) {
+            job.metrics.add(MosaicJobMetrics.Counter.BYTES_FETCHED, tileData.length);
+            decodeAndFinish(tileData, true);
+        }
+
+        /**
+         * @param tileData   Image data of the tile
+         * @param keepOnDisk True to keep the image data in the disk cache once it has decoded. Data that doesn't
+         *                   decode, such as an error page or a truncated body, is never kept.
+         */
+        private void decodeAndFinish(byte[] tileData, boolean keepOnDisk) {
+            int[] pixels = null;
+            try {
+                long decodeStart = job.metrics.start();
+                pixels = decodeTilePixels(tileData, request.tileWidth, request.tileHeight);
+                job.metrics.stop(MosaicJobMetrics.Stage.TILE_DECODE, decodeStart);
+                if (pixels != null) {
+                    tileCache.put(key, pixels);
+                    if (keepOnDisk && (tileDiskCache != null)) {
+                        try {
+                            tileDiskCache.put(key, tileData);
+                        } catch (RuntimeException rex) {
+                            Log.e(TAG, "Failed to keep mosaic tile " + key + " on disk", rex);
+                        }
                     }
                 }
+            } catch (RuntimeException rex) {
+                Log.e(TAG, "Failed to decode mosaic tile " + key, rex);
+            } finally {
+                tileFetches.finish(key, pixels);
+            }
+        }
+
+        private void failed(Exception failure) {
+            // Tiles in flight when the job is cancelled all fail, and that is no error. Other jobs' requests for the
+            // same tile fetch it themselves.
+            if (job.token.isCancelled()) {
+                tileFetches.finish(key, ABANDONED_TILE);
+                return;
             }
+            Log.e(TAG, "Failed to load mosaic tile " + key + " from server, so drawing it locally", failure);
+            fallBack();
+        }
+
+        /**
+         * Draws the tile locally instead, and shares it with every request waiting for it. Not cached.
+         */
+        private void fallBack() {
+            job.metrics.increment(MosaicJobMetrics.Counter.FALLBACK_TILES);
+            int[] pixels = new int[request.tileWidth * request.tileHeight];
+            Arrays.fill(pixels, request.averageColor);
+            tileFetches.finish(key, pixels);
+        }
 
+        private MosaicTileCreatorResult createResult(int[] pixels) {
             MosaicTileCreatorResult result = new MosaicTileCreatorResult();
             result.topLeftX = request.topLeftX;
             result.topLeftY = request.topLeftY;
-            result.bitmap = bitmap;
-
+            result.tileIndex = request.tileIndex;
+            result.tileWidth = request.tileWidth;
+            result.tileHeight = request.tileHeight;
+            result.pixels = pixels;
             return result;
         }
-
     }
 }
@@ -0,0 +1,127 @@
+package bailey.rod.photomosaic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent requests for the same key into a single call. The first caller for a key runs the
+ * loader; anyone asking for that key while it is running waits for and shares its result (or exception)
+ * instead of running the loader again. Once the loader finishes, the next request for the key starts afresh,
+ * so this is no substitute for a cache - it is what stops a cache miss from being fetched many times over.
+ * <p/>
+ * Loads that finish asynchronously use #join and #finish instead of #load, so that nobody blocks while they are
+ * in flight. Asynchronous loads are only collapsed with each other, not with loads made by #load.
+ *
+ * @param <K> Type of key
+ * @param <V> Type of value produced by the loaders
+ */
+public class MosaicSingleFlight<K, V> {
+
+    // Loads in progress
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    // Asynchronous loads in progress, with everyone waiting for each. Guarded by itself.
+    private final Map<K, List<Listener<V>>> listeners = new HashMap<K, List<Listener<V>>>();
+
+    // Number of requests that were served by waiting on another caller's load
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * @param key    Identifies the value wanted
+     * @param loader Produces the value if no other caller is already doing so
+     * @return The value produced by this caller's loader or by the one already in flight
+     * @throws Exception Whatever the loader that ran threw
+     */
+    public V load(K key, Callable<V> loader) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return getResult(existing);
+        }
+
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return getResult(task);
+    }
+
+    /**
+     * Asks for a value that is to be loaded asynchronously.
+     *
+     * @param key      Identifies the value wanted
+     * @param listener Told the value once it has been loaded
+     * @return True if no other caller is loading the value, so this caller must load it and then call #finish.
+     * False if another caller is already loading it, in which case the listener will be told when they finish.
+     */
+    public boolean join(K key, Listener<V> listener) {
+        synchronized (listeners) {
+            List<Listener<V>> waiting = listeners.get(key);
+            if (waiting != null) {
+                waiting.add(listener);
+                coalescedCount.incrementAndGet();
+                return false;
+            }
+            waiting = new ArrayList<Listener<V>>();
+            waiting.add(listener);
+            listeners.put(key, waiting);
+            return true;
+        }
+    }
+
+    /**
+     * Ends an asynchronous load, telling everyone who asked for the value. Must be called exactly once by each
+     * caller that #join told to load.
+     *
+     * @param key   Identifies the value that has been loaded
+     * @param value The value, or null if it couldn't be loaded
+     */
+    public void finish(K key, V value) {
+        List<Listener<V>> waiting;
+        synchronized (listeners) {
+            waiting = listeners.remove(key);
+        }
+        if (waiting != null) {
+            for (Listener<V> listener : waiting) {
+                listener.loaded(value);
+            }
+        }
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Told the outcome of an asynchronous load
+     */
+    public interface Listener<V> {
+
+        /**
+         * @param value The value, or null if it couldn't be loaded. Called on the thread that finished the load.
+         */
+        void loaded(V value);
+    }
+
+    private static <V> V getResult(FutureTask<V> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException eex) {
+            Throwable cause = eex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw eex;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package bailey.rod.photomosaic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A packed file of tile thumbnails, all the same size, together with the average color of each. The file is
+ * memory-mapped read-only, so thumbnails are read straight from the page cache with no decoding and tens of
+ * thousands of them cost almost nothing on the heap.
+ * <p/>
+ * The file is a header (magic number, version, tile width, tile height, count, signature), then the pixels of
+ * each thumbnail as tileWidth x tileHeight packed ARGB ints, then the average color of each thumbnail. The
+ * signature identifies whatever the thumbnails were made from, so the owner can tell when the atlas is stale.
+ * Atlases are written with a Writer, to a temporary file that only replaces the real one once complete.
+ * <p/>
+ * Each read goes through its own view of the mapping, so any number of threads can read tiles at once.
+ */
+public class MosaicTileAtlas {
+
+    // Identifies a file written by this class - "MTAT"
+    private static final int MAGIC = 0x4D544154;
+
+    private static final int VERSION = 1;
+
+    // Header: magic, version, tile width, tile height, count, unused (ints), signature (long)
+    private static final int HEADER_SIZE = 32;
+
+    private final RandomAccessFile file;
+
+    private final IntBuffer pixels;
+
+    private final int[] colors;
+
+    private final int tileWidth;
+
+    private final int tileHeight;
+
+    private final long signature;
+
+    private MosaicTileAtlas(RandomAccessFile file, MappedByteBuffer mapping, int tileWidth, int tileHeight,
+                           int count, long signature) {
+        this.file = file;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.signature = signature;
+
+        mapping.position(HEADER_SIZE);
+        ByteBuffer body = mapping.slice().order(ByteOrder.nativeOrder());
+        this.pixels = body.asIntBuffer();
+
+        // Colors are wanted all at once, to build a color index, so they are copied out rather than left mapped
+        this.colors = new int[count];
+        IntBuffer colorView = pixels.duplicate();
+        colorView.position(count * tileWidth * tileHeight);
+        colorView.get(colors);
+    }
+
+    /**
+     * Opens an existing atlas.
+     *
+     * @param atlasFile Where the atlas is stored
+     * @return The atlas
+     * @throws IOException If the file doesn't exist, couldn't be mapped or isn't a complete atlas
+     */
+    public static MosaicTileAtlas open(File atlasFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(atlasFile, "r");
+        try {
+            long size = file.length();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Tile atlas is truncated: " + atlasFile);
+            }
+            MappedByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapping.order(ByteOrder.nativeOrder());
+            int tileWidth = mapping.getInt(8);
+            int tileHeight = mapping.getInt(12);
+            int count = mapping.getInt(16);
+            if ((mapping.getInt(0) != MAGIC) || (mapping.getInt(4) != VERSION) || (tileWidth <= 0) ||
+                    (tileHeight <= 0) || (count < 0) || (size != fileSize(tileWidth, tileHeight, count))) {
+                throw new IOException("Not a valid tile atlas: " + atlasFile);
+            }
+            return new MosaicTileAtlas(file, mapping, tileWidth, tileHeight, count, mapping.getLong(24));
+        } catch (IOException iox) {
+            file.close();
+            throw iox;
+        }
+    }
+
+    private static long fileSize(int tileWidth, int tileHeight, int count) {
+        return HEADER_SIZE + ((long) count * tileWidth * tileHeight * 4) + ((long) count * 4);
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * @return Number of thumbnails in the atlas
+     */
+    public int getCount() {
+        return colors.length;
+    }
+
+    /**
+     * @return Identifies whatever the thumbnails were made from, as given to the Writer
+     */
+    public long getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return Average color of every thumbnail, by index. Not to be modified.
+     */
+    public int[] getColors() {
+        return colors;
+    }
+
+    /**
+     * Copies the pixels of a thumbnail. Thread safe.
+     *
+     * @param index Which thumbnail
+     * @param dest  Receives tileWidth x tileHeight packed ARGB pixels, with no padding between rows
+     */
+    public void readTile(int index, int[] dest) {
+        IntBuffer view = pixels.duplicate();
+        view.position(index * tileWidth * tileHeight);
+        view.get(dest, 0, tileWidth * tileHeight);
+    }
+
+    /**
+     * Releases the file. The mapping itself is released when garbage collected, so the atlas must not be used
+     * afterwards.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Writes a new atlas, one thumbnail at a time. Nothing is visible at the atlas file until #finish succeeds.
+     */
+    public static class Writer {
+
+        private final File atlasFile;
+
+        private final File tempFile;
+
+        private final FileChannel channel;
+
+        private final int tileWidth;
+
+        private final int tileHeight;
+
+        private final long signature;
+
+        // Reused to write each thumbnail
+        private final ByteBuffer tileBuffer;
+
+        // Average color of each thumbnail written so far
+        private int[] colors = new int[256];
+
+        private int count;
+
+        /**
+         * @param atlasFile  Where the atlas is to be stored. Any existing atlas is replaced when finished.
+         * @param tileWidth  Pixel width of every thumbnail
+         * @param tileHeight Pixel height of every thumbnail
+         * @param signature  Identifies whatever the thumbnails are made from
+         * @throws IOException If the temporary file couldn't be created
+         */
+        public Writer(File atlasFile, int tileWidth, int tileHeight, long signature) throws IOException {
+            this.atlasFile = atlasFile;
+            this.tempFile = new File(atlasFile.getPath() + ".tmp");
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.signature = signature;
+            this.tileBuffer = ByteBuffer.allocateDirect(tileWidth * tileHeight * 4).order(ByteOrder.nativeOrder());
+
+            RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+            file.setLength(0);
+            this.channel = file.getChannel();
+            this.channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * @param tilePixels   tileWidth x tileHeight packed ARGB pixels, with no padding between rows
+         * @param averageColor Average color of the thumbnail
+         * @return Index of the thumbnail in the atlas
+         * @throws IOException If the thumbnail couldn't be written
+         */
+        public int add(int[] tilePixels, int averageColor) throws IOException {
+            tileBuffer.clear();
+            tileBuffer.asIntBuffer().put(tilePixels, 0, tileWidth * tileHeight);
+            writeFully(tileBuffer);
+
+            if (count == colors.length) {
+                int[] grown = new int[colors.length * 2];
+                System.arraycopy(colors, 0, grown, 0, count);
+                colors = grown;
+            }
+            colors[count] = averageColor;
+            return count++;
+        }
+
+        /**
+         * Writes the colors and header, then moves the finished atlas into place.
+         *
+         * @throws IOException If the atlas couldn't be written or moved into place
+         */
+        public void finish() throws IOException {
+            try {
+                ByteBuffer colorBuffer = ByteBuffer.allocate(count * 4).order(ByteOrder.nativeOrder());
+                colorBuffer.asIntBuffer().put(colors, 0, count);
+                writeFully(colorBuffer);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+                header.putInt(MAGIC).putInt(VERSION).putInt(tileWidth).putInt(tileHeight).putInt(count).putInt(0)
+                      .putLong(signature);
+                header.flip();
+                channel.position(0);
+                writeFully(header);
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+
+            if (!tempFile.renameTo(atlasFile)) {
+                tempFile.delete();
+                throw new IOException("Failed to move tile atlas into place at " + atlasFile);
+            }
+        }
+
+        /**
+         * Discards the atlas written so far
+         */
+        public void abandon() {
+            try {
+                channel.close();
+            } catch (IOException iox) {
+                // Nothing more can be done
+            }
+            tempFile.delete();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            buffer.position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package bailey.rod.photomosaic;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the average color of every tile in a horizontal band of pixels. A band is one row of tiles,
+ * copied out of the image in a single bulk operation (e.g. Bitmap.getPixels) into a plain int[] of packed
+ * ARGB pixels. The band is scanned in row-major order so memory is read sequentially, and the red, green
+ * and blue totals of each tile are accumulated in arrays that are allocated once per task rather than once
+ * per pixel.
+ * <p/>
+ * Where tiles are drawn locally from their average color (as a solid block, say), #averageAndFillBand also snaps
+ * each average with a quantizer and paints the tile. The averaging and painting are shared between threads, but
+ * the snapping is done on the calling thread, one tile after another from the left, because a quantizer with a
+ * delta-E threshold snaps each color to those it has already seen. The colors then don't depend on how the tiles
+ * happened to be shared out.
+ * <p/>
+ * The tiles of a band are split between the threads of the ForkJoinPool given to the constructor.
+ */
+public class MosaicTileAverager {
+
+    // Minimum number of tiles that a single fork-join task will average without splitting further
+    private static final int MIN_TILES_PER_TASK = 8;
+
+    /**
+     * Paints each tile as a solid block of its color
+     */
+    public static final TilePainter SOLID_PAINTER = new TilePainter() {
+        @Override
+        public void paint(int[] pixels, int offset, int stride, int width, int height, int color) {
+            fill(pixels, offset, stride, width, height, color);
+        }
+    };
+
+    // Pool whose threads share out the tiles of each band
+    private final ForkJoinPool pool;
+
+    /**
+     * @param pool Pool whose threads will share out the averaging work. Not shut down by this class.
+     */
+    public MosaicTileAverager(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Finds the average color of a single rectangular region of packed pixels.
+     *
+     * @param pixels Packed ARGB pixels. Alpha is ignored.
+     * @param offset Index in pixels of the top left pixel of the region
+     * @param stride Number of entries in pixels between the start of one row and the start of the next
+     * @param width  Width of the region in pixels
+     * @param height Height of the region in pixels
+     * @return Opaque packed color whose components are the (truncated) mean of those in the region
+     */
+    public static int averageColor(int[] pixels, int offset, int stride, int width, int height) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+
+        for (int y = 0; y < height; y++) {
+            int rowStart = offset + (y * stride);
+            int rowEnd = rowStart + width;
+            for (int i = rowStart; i < rowEnd; i++) {
+                int pixel = pixels[i];
+                red += (pixel >> 16) & 0xFF;
+                green += (pixel >> 8) & 0xFF;
+                blue += pixel & 0xFF;
+            }
+        }
+
+        return packAverage(red, green, blue, (long) width * height);
+    }
+
+    /**
+     * Finds the average color of every tile in a band of pixels. All tiles are bandHeight pixels high and
+     * tileWidth pixels wide, except the last tile in the band which is narrower if bandWidth is not a
+     * multiple of tileWidth.
+     *
+     * @param band       Packed ARGB pixels of the band, bandWidth pixels per row with no padding
+     * @param bandWidth  Width of the band in pixels
+     * @param bandHeight Height of the band in pixels
+     * @param tileWidth  Nominal width of each tile in pixels
+     * @param averages   Receives the average color of tile 'i' (counting from the left) at index 'i'. Must
+     *                   have room for at least tileCount(bandWidth, tileWidth) entries.
+     */
+    public void averageBand(int[] band, int bandWidth, int bandHeight, int tileWidth, int[] averages) {
+        int tileCount = tileCount(bandWidth, tileWidth);
+        pool.invoke(new BandAveragingTask(band, bandWidth, bandHeight, tileWidth, averages, null, 0, tileCount));
+    }
+
+    /**
+     * Paints every tile in a band of pixels with its average color, snapped by a quantizer. Tiles are laid out as
+     * for #averageBand.
+     *
+     * @param band       Packed ARGB pixels of the band, bandWidth pixels per row with no padding. Overwritten
+     *                   unless painter is null.
+     * @param bandWidth  Width of the band in pixels
+     * @param bandHeight Height of the band in pixels
+     * @param tileWidth  Nominal width of each tile in pixels
+     * @param colors     Receives the color that tile 'i' (counting from the left) was filled with at index 'i'.
+     *                   Must have room for at least tileCount(bandWidth, tileWidth) entries.
+     * @param quantizer  Snaps each average to the color that the tile is filled with, in order from the left
+     * @param painter    Paints each tile over the band's pixels. Called from several threads at once. Null to
+     *                   only snap the colors, as for a band painted already, so the quantizer still sees them.
+     */
+    public void averageAndFillBand(int[] band, int bandWidth, int bandHeight, int tileWidth, int[] colors,
+                                   MosaicColorQuantizer quantizer, TilePainter painter) {
+        int tileCount = tileCount(bandWidth, tileWidth);
+        pool.invoke(new BandAveragingTask(band, bandWidth, bandHeight, tileWidth, colors, null, 0, tileCount));
+        for (int tile = 0; tile < tileCount; tile++) {
+            colors[tile] = quantizer.quantize(colors[tile]);
+        }
+        if (painter != null) {
+            pool.invoke(new BandAveragingTask(band, bandWidth, bandHeight, tileWidth, colors, painter, 0,
+                                              tileCount));
+        }
+    }
+
+    /**
+     * Fills a rectangular region of packed pixels with a single color.
+     *
+     * @param pixels Packed ARGB pixels
+     * @param offset Index in pixels of the top left pixel of the region
+     * @param stride Number of entries in pixels between the start of one row and the start of the next
+     * @param width  Width of the region in pixels
+     * @param height Height of the region in pixels
+     * @param color  Packed color to fill the region with
+     */
+    public static void fill(int[] pixels, int offset, int stride, int width, int height, int color) {
+        for (int y = 0; y < height; y++) {
+            int rowStart = offset + (y * stride);
+            Arrays.fill(pixels, rowStart, rowStart + width, color);
+        }
+    }
+
+    /**
+     * @return Number of tiles of the given width needed to span the given number of pixels
+     */
+    public static int tileCount(int extentPx, int tilePx) {
+        return (extentPx + tilePx - 1) / tilePx;
+    }
+
+    /**
+     * Draws a tile of a given color over a region of packed pixels
+     */
+    public interface TilePainter {
+        /**
+         * @param pixels Packed ARGB pixels, painted over in place
+         * @param offset Index in pixels of the top left pixel of the tile
+         * @param stride Number of entries in pixels between the start of one row and the start of the next
+         * @param width  Width of the tile in pixels
+         * @param height Height of the tile in pixels
+         * @param color  Opaque packed color of the tile
+         */
+        void paint(int[] pixels, int offset, int stride, int width, int height, int color);
+    }
+
+    private static int packAverage(long red, long green, long blue, long pixelCount) {
+        int averageRed = (int) (red / pixelCount);
+        int averageGreen = (int) (green / pixelCount);
+        int averageBlue = (int) (blue / pixelCount);
+        return 0xFF000000 | (averageRed << 16) | (averageGreen << 8) | averageBlue;
+    }
+
+    /**
+     * Averages a contiguous range of tiles [firstTile, endTile) within a band, splitting the range in half
+     * until it is small enough to be done in one pass. Given a painter, paints each tile with its color instead.
+     */
+    private static class BandAveragingTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] band;
+
+        private final int bandWidth;
+
+        private final int bandHeight;
+
+        private final int tileWidth;
+
+        // Receives the average of each tile or, if there is a painter, holds the color each tile is painted with
+        private final int[] averages;
+
+        // Paints each tile with its color, or null to find the averages
+        private final TilePainter painter;
+
+        private final int firstTile;
+
+        private final int endTile;
+
+        BandAveragingTask(int[] band, int bandWidth, int bandHeight, int tileWidth, int[] averages,
+                          TilePainter painter, int firstTile, int endTile) {
+            this.band = band;
+            this.bandWidth = bandWidth;
+            this.bandHeight = bandHeight;
+            this.tileWidth = tileWidth;
+            this.averages = averages;
+            this.painter = painter;
+            this.firstTile = firstTile;
+            this.endTile = endTile;
+        }
+
+        @Override
+        protected void compute() {
+            int numTiles = endTile - firstTile;
+            if (numTiles > MIN_TILES_PER_TASK) {
+                int middleTile = firstTile + (numTiles / 2);
+                invokeAll(new BandAveragingTask(band, bandWidth, bandHeight, tileWidth, averages, painter,
+                                                firstTile, middleTile),
+                          new BandAveragingTask(band, bandWidth, bandHeight, tileWidth, averages, painter,
+                                                middleTile, endTile));
+            } else if (painter == null) {
+                averageDirectly(numTiles);
+            } else {
+                fillDirectly(numTiles);
+            }
+        }
+
+        private void averageDirectly(int numTiles) {
+            long[] red = new long[numTiles];
+            long[] green = new long[numTiles];
+            long[] blue = new long[numTiles];
+
+            int startX = firstTile * tileWidth;
+            int endX = Math.min(endTile * tileWidth, bandWidth);
+
+            // Walk each pixel row of the range left to right, switching accumulator at tile boundaries
+            for (int y = 0; y < bandHeight; y++) {
+                int rowOffset = y * bandWidth;
+                int tile = 0;
+                int nextTileX = startX + tileWidth;
+
+                for (int x = startX; x < endX; x++) {
+                    if (x == nextTileX) {
+                        tile++;
+                        nextTileX += tileWidth;
+                    }
+                    int pixel = band[rowOffset + x];
+                    red[tile] += (pixel >> 16) & 0xFF;
+                    green[tile] += (pixel >> 8) & 0xFF;
+                    blue[tile] += pixel & 0xFF;
+                }
+            }
+
+            for (int tile = 0; tile < numTiles; tile++) {
+                int tileLeftX = startX + (tile * tileWidth);
+                int tilePixelWidth = Math.min(tileWidth, bandWidth - tileLeftX);
+                averages[firstTile + tile] = packAverage(red[tile], green[tile], blue[tile],
+                                                         (long) tilePixelWidth * bandHeight);
+            }
+        }
+
+        private void fillDirectly(int numTiles) {
+            for (int tile = 0; tile < numTiles; tile++) {
+                int tileLeftX = (firstTile + tile) * tileWidth;
+                int tilePixelWidth = Math.min(tileWidth, bandWidth - tileLeftX);
+                painter.paint(band, tileLeftX, bandWidth, tilePixelWidth, bandHeight, averages[firstTile + tile]);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package bailey.rod.photomosaic;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A set of tiles - typically the uncached tiles of one row - that are fetched from the tile server in a single
+ * batch request. The request is made by whichever tile creator first asks for one of the tiles; any others that
+ * ask for a tile in the batch meanwhile wait for it to finish, without holding a lock that would stall those asking
+ * for tiles outside it. Tiles the batch didn't return must be fetched individually.
+ */
+public class MosaicTileBatch {
+
+    private static final String TAG = MosaicTileBatch.class.getSimpleName();
+
+    private final Set<MosaicTileKey> keys;
+
+    // The batch request. Yields the tiles returned, or null if it failed.
+    private final FutureTask<Map<MosaicTileKey, byte[]>> request;
+
+    // True once some caller has been chosen to make the request
+    private final AtomicBoolean requested = new AtomicBoolean();
+
+    /**
+     * @param client Makes the batch request
+     * @param keys   Sizes and colors of the tiles in the batch, without duplicates
+     * @param token  Cancellation of the job that wants the tiles
+     */
+    public MosaicTileBatch(final MosaicTileClient client, final List<MosaicTileKey> keys,
+                           final MosaicCancellationToken token) {
+        this.keys = new HashSet<MosaicTileKey>(keys);
+        this.request = new FutureTask<Map<MosaicTileKey, byte[]>>(new Callable<Map<MosaicTileKey, byte[]>>() {
+            @Override
+            public Map<MosaicTileKey, byte[]> call() {
+                try {
+                    return client.fetchBatch(keys, token);
+                } catch (IOException iox) {
+                    Log.e(TAG, "Failed to fetch batch of " + keys.size() + " tiles", iox);
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * @param key Size and color of a tile
+     * @return Encoded image of the tile, or null if the tile isn't in the batch, or the batch request failed or
+     * didn't include it. Returns at once for a tile that isn't in the batch.
+     */
+    public byte[] get(MosaicTileKey key) {
+        if (!keys.contains(key)) {
+            return null;
+        }
+        if (requested.compareAndSet(false, true)) {
+            request.run();
+        }
+
+        Map<MosaicTileKey, byte[]> tiles;
+        try {
+            tiles = request.get();
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException eex) {
+            Log.e(TAG, "Failed to fetch batch of " + keys.size() + " tiles", eex.getCause());
+            return null;
+        }
+        return (tiles == null) ? null : tiles.get(key);
+    }
+}
@@ -0,0 +1,255 @@
+package bailey.rod.photomosaic;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Fetches encoded tile images from the mosaic tile server over persistent HTTP/1.1 connections. Every response
+ * body is read to the end and its stream closed (never disconnected), which lets HttpURLConnection return the
+ * socket to its keep-alive pool for the next request instead of opening a new one per tile.
+ * <p/>
+ * Tiles can be fetched one at a time from the server's "/color/%d/%d/%s" endpoint, or many at once from an
+ * optional batch endpoint. A batch request is a POST whose body has one line per tile, "width height rrggbb".
+ * The response is, for each requested tile in order, a 4 byte big-endian length followed by that many bytes of
+ * encoded image. A length of zero means the server has no image for that tile. If the server answers a batch
+ * request with 404, 405 or 501, batching is switched off for the life of the client and callers should fall
+ * back to single tile requests.
+ * <p/>
+ * Every request has connect and read timeouts, and is disconnected as soon as the job it is for is cancelled,
+ * so a slow or unreachable server never holds up a cancelled job.
+ * <p/>
+ * One client serves all the fetch threads. Each request has a connection of its own, and the only state kept
+ * between requests is whether the server supports batches.
+ */
+public class MosaicTileClient {
+
+    private static final String TAG = MosaicTileClient.class.getSimpleName();
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // Format of the single tile URL - width, height and 6 character hex color
+    private final String tileUrlFormat;
+
+    // URL of the batch endpoint, or null if batching is not to be tried
+    private final String batchUrl;
+
+    // Max millis to wait for a connection to the server
+    private final int connectTimeoutMillis;
+
+    // Max millis to wait for each read of a response
+    private final int readTimeoutMillis;
+
+    // False once the server has shown it doesn't support batch requests
+    private volatile boolean batchSupported;
+
+    /**
+     * @param tileUrlFormat  Format of the single tile URL, as for Constants.MOSAIC_SERVER_URL
+     * @param batchUrl             URL of the batch endpoint, or null to never try batch requests
+     * @param connectTimeoutMillis Max millis to wait for a connection to the server
+     * @param readTimeoutMillis    Max millis to wait for each read of a response
+     */
+    public MosaicTileClient(String tileUrlFormat, String batchUrl, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.tileUrlFormat = tileUrlFormat;
+        this.batchUrl = batchUrl;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.batchSupported = batchUrl != null;
+    }
+
+    /**
+     * @return True unless batch requests are disabled or the server has shown it doesn't support them
+     */
+    public boolean isBatchSupported() {
+        return batchSupported;
+    }
+
+    /**
+     * @param key Size and color of the tile wanted
+     * @return URL of the single tile endpoint for the given tile
+     */
+    public String tileUrl(MosaicTileKey key) {
+        return String.format(Locale.US, tileUrlFormat, key.width, key.height,
+                             Utils.packagedColorIntToRGBHexString(key.rgb));
+    }
+
+    /**
+     * Fetches a single tile.
+     *
+     * @param key   Size and color of the tile wanted
+     * @param token Cancellation of the job that wants the tile, which disconnects the request
+     * @return Encoded image of the tile
+     * @throws IOException If the server couldn't be reached or didn't return the tile in time, or the job was
+     *                     cancelled
+     */
+    public byte[] fetch(MosaicTileKey key, MosaicCancellationToken token) throws IOException {
+        HttpURLConnection connection = openConnection(tileUrl(key));
+        MosaicCancellationToken.Registration disconnectOnCancel = token.onCancel(disconnector(connection));
+        try {
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                drainAndClose(connection);
+                throw new IOException("Tile server returned " + status + " for " + key);
+            }
+
+            InputStream inputStream = connection.getInputStream();
+            try {
+                return readToEnd(inputStream, connection.getContentLength());
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException iox) {
+            throw explainFailure(iox, token);
+        } finally {
+            disconnectOnCancel.unregister();
+        }
+    }
+
+    /**
+     * Fetches many tiles in one round trip.
+     *
+     * @param keys  Sizes and colors of the tiles wanted. Should contain no duplicates.
+     * @param token Cancellation of the job that wants the tiles, which disconnects the request
+     * @return Encoded image of each tile that the server returned, by key. Null if the server doesn't support
+     * batch requests, in which case #isBatchSupported will now be false.
+     * @throws IOException If the server couldn't be reached, didn't answer in time or the response was
+     *                     malformed, or the job was cancelled
+     */
+    public Map<MosaicTileKey, byte[]> fetchBatch(List<MosaicTileKey> keys, MosaicCancellationToken token)
+            throws IOException {
+        if (!batchSupported) {
+            return null;
+        }
+
+        StringBuilder body = new StringBuilder(keys.size() * 16);
+        for (MosaicTileKey key : keys) {
+            body.append(key.width).append(' ').append(key.height).append(' ')
+                .append(Utils.packagedColorIntToRGBHexString(key.rgb)).append('\n');
+        }
+        byte[] bodyBytes = body.toString().getBytes(US_ASCII);
+
+        HttpURLConnection connection = openConnection(batchUrl);
+        MosaicCancellationToken.Registration disconnectOnCancel = token.onCancel(disconnector(connection));
+        try {
+            return fetchBatch(connection, keys, bodyBytes);
+        } catch (IOException iox) {
+            throw explainFailure(iox, token);
+        } finally {
+            disconnectOnCancel.unregister();
+        }
+    }
+
+    private Map<MosaicTileKey, byte[]> fetchBatch(HttpURLConnection connection, List<MosaicTileKey> keys,
+                                                  byte[] bodyBytes) throws IOException {
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/plain");
+        connection.setFixedLengthStreamingMode(bodyBytes.length);
+
+        OutputStream outputStream = connection.getOutputStream();
+        try {
+            outputStream.write(bodyBytes);
+        } finally {
+            outputStream.close();
+        }
+
+        int status = connection.getResponseCode();
+        if ((status == HttpURLConnection.HTTP_NOT_FOUND) || (status == HttpURLConnection.HTTP_BAD_METHOD) ||
+                (status == HttpURLConnection.HTTP_NOT_IMPLEMENTED)) {
+            Log.i(TAG, "Tile server doesn't support batch requests (" + status + "). Using single requests.");
+            batchSupported = false;
+            drainAndClose(connection);
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            drainAndClose(connection);
+            throw new IOException("Tile server returned " + status + " for batch of " + keys.size());
+        }
+
+        Map<MosaicTileKey, byte[]> tiles = new HashMap<MosaicTileKey, byte[]>();
+        DataInputStream inputStream = new DataInputStream(connection.getInputStream());
+        try {
+            for (MosaicTileKey key : keys) {
+                int length = inputStream.readInt();
+                if (length > 0) {
+                    byte[] data = new byte[length];
+                    inputStream.readFully(data);
+                    tiles.put(key, data);
+                }
+            }
+            // Consume anything left over so the connection can be re-used
+            readToEnd(inputStream, -1);
+        } finally {
+            inputStream.close();
+        }
+        return tiles;
+    }
+
+    private HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        return connection;
+    }
+
+    /**
+     * @return Disconnects the given connection, aborting any read or write in progress on another thread
+     */
+    private static Runnable disconnector(final HttpURLConnection connection) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        };
+    }
+
+    /**
+     * A request that was disconnected on cancellation fails with whatever IOException the connection happened to
+     * throw. This swaps it for one that says what really happened.
+     *
+     * @return The failure to be thrown
+     */
+    private static IOException explainFailure(IOException failure, MosaicCancellationToken token) {
+        if (!token.isCancelled()) {
+            return failure;
+        }
+        InterruptedIOException cancelled = new InterruptedIOException("Mosaic job cancelled");
+        cancelled.initCause(failure);
+        return cancelled;
+    }
+
+    private static byte[] readToEnd(InputStream inputStream, int expectedLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((expectedLength > 0) ? expectedLength : 4096);
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void drainAndClose(HttpURLConnection connection) {
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null) {
+            try {
+                readToEnd(errorStream, -1);
+                errorStream.close();
+            } catch (IOException iox) {
+                Log.d(TAG, "Failed to drain error response: " + iox);
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package bailey.rod.photomosaic;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent cache of encoded mosaic tile images, keyed by tile size and color, that survives app restarts.
+ * Each tile is stored in its own file in the cache directory. Which tiles are present is recorded in a
+ * fixed-size index file that is memory-mapped and laid out as an open-addressed hash table, so a lookup
+ * touches one or two slots of mapped memory and never has to list or stat the directory.
+ * <p/>
+ * Writes are crash safe - a tile file is written under a temporary name, synced, then renamed into place,
+ * and only after that is it entered into the index. If the process dies part way through, the worst case is
+ * an orphaned file or an index entry whose file is missing or the wrong length, and such entries are dropped
+ * the next time they are looked up.
+ * <p/>
+ * When the cached files exceed the byte budget, or the index runs out of room, the least recently used tiles
+ * are deleted. All methods are thread safe. Only the index is guarded by the cache's lock. Tile files are read,
+ * written and synced outside it, so that threads fetching different tiles don't wait on each other's storage.
+ */
+public class MosaicTileDiskCache {
+
+    private static final String TAG = MosaicTileDiskCache.class.getSimpleName();
+
+    private static final String INDEX_FILE_NAME = "index";
+
+    private static final String TILE_FILE_SUFFIX = ".tile";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // Identifies an index file written by this class - "MTDC"
+    private static final int MAGIC = 0x4D544443;
+
+    private static final int VERSION = 1;
+
+    // Header: magic, version, slot count, entry count (ints), total bytes, access clock (longs)
+    private static final int HEADER_SIZE = 32;
+
+    private static final int HEADER_ENTRY_COUNT_OFFSET = 12;
+
+    private static final int HEADER_TOTAL_BYTES_OFFSET = 16;
+
+    private static final int HEADER_CLOCK_OFFSET = 24;
+
+    // Slot: width, height, rgb, file length (ints), last access time (long). Width 0 means empty.
+    private static final int SLOT_SIZE = 24;
+
+    // When evicting, free space down to this fraction of the budget so eviction isn't needed on every put
+    private static final double EVICT_TO_FRACTION = 0.9;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final int maxEntries;
+
+    private final int slotCount;
+
+    private final RandomAccessFile indexFile;
+
+    private final MappedByteBuffer index;
+
+    /**
+     * @param directory  Where the tile files and index are kept. Created if it doesn't exist.
+     * @param maxBytes   Total size the tile files may occupy
+     * @param maxEntries Max number of tiles. The index has room for twice this many to keep probes short.
+     * @throws IOException If the directory or index can't be created
+     */
+    public MosaicTileDiskCache(File directory, long maxBytes, int maxEntries) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.slotCount = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create tile cache directory " + directory);
+        }
+
+        File file = new File(directory, INDEX_FILE_NAME);
+        long indexSize = HEADER_SIZE + ((long) slotCount * SLOT_SIZE);
+        boolean valid = file.length() == indexSize;
+
+        indexFile = new RandomAccessFile(file, "rw");
+        indexFile.setLength(indexSize);
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+
+        if (!valid || (index.getInt(0) != MAGIC) || (index.getInt(4) != VERSION) || (index.getInt(8) != slotCount)) {
+            Log.i(TAG, "Discarding incompatible or missing tile cache index in " + directory);
+            reset();
+        }
+    }
+
+    /**
+     * The file is read outside the lock, so that other tiles can be looked up and written meanwhile.
+     *
+     * @param key Size and color of the tile wanted
+     * @return Encoded image of the tile, or null if it isn't in the cache
+     */
+    public byte[] get(MosaicTileKey key) {
+        int length;
+        synchronized (this) {
+            int slot = findSlot(key);
+            if (!isOccupied(slot)) {
+                return null;
+            }
+            length = index.getInt(slotOffset(slot) + 12);
+
+            // Touched before it is read, so that it isn't the next to be evicted while it's being read
+            index.putLong(slotOffset(slot) + 16, tick());
+        }
+
+        File file = tileFile(key);
+        byte[] data = null;
+
+        if (file.length() == length) {
+            try {
+                data = readFully(file, length);
+            } catch (IOException iox) {
+                Log.e(TAG, "Failed to read cached tile " + file, iox);
+            }
+        }
+
+        if (data == null) {
+            synchronized (this) {
+                // Index and directory disagree, probably because of a crash. Forget the entry - unless it was
+                // evicted or replaced while the file was being read, in which case it is left as it now is.
+                int slot = findSlot(key);
+                if (isOccupied(slot) && (index.getInt(slotOffset(slot) + 12) == length)) {
+                    removeSlot(slot);
+                    file.delete();
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Checks the index only, so is cheap, but the tile may yet turn out to be unreadable when fetched by #get.
+     *
+     * @param key Size and color of the tile wanted
+     * @return True if the index lists a tile with the given key
+     */
+    public synchronized boolean containsKey(MosaicTileKey key) {
+        return isOccupied(findSlot(key));
+    }
+
+    /**
+     * Adds a tile to the cache, replacing any with the same key, then evicts least recently used tiles until
+     * the cache is within its limits. The file is written, synced and renamed into place outside the lock, so
+     * only the index update waits for other threads.
+     *
+     * @param key  Size and color of the tile
+     * @param data Encoded image of the tile
+     */
+    public void put(MosaicTileKey key, byte[] data) {
+        if (data.length > maxBytes) {
+            return;
+        }
+
+        // Each put writes a temporary file of its own, in case the same tile is put by two threads at once
+        File file = tileFile(key);
+        File tempFile = null;
+
+        try {
+            tempFile = File.createTempFile(file.getName(), TEMP_FILE_SUFFIX, directory);
+            writeFullyAndSync(tempFile, data);
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to write cached tile " + file, iox);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            return;
+        }
+
+        // Any existing file is replaced atomically, so if this fails the old index entry is still valid
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Failed to rename cached tile into place " + file);
+            tempFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            int slot = findSlot(key);
+            if (isOccupied(slot)) {
+                adjustTotalBytes(-index.getInt(slotOffset(slot) + 12));
+            } else {
+                adjustEntryCount(1);
+            }
+
+            int offset = slotOffset(slot);
+            index.putInt(offset, key.width);
+            index.putInt(offset + 4, key.height);
+            index.putInt(offset + 8, key.rgb);
+            index.putInt(offset + 12, data.length);
+            index.putLong(offset + 16, tick());
+            adjustTotalBytes(data.length);
+
+            if ((getTotalBytes() > maxBytes) || (getEntryCount() > maxEntries)) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Flushes the index to storage and releases it. The cache must not be used afterwards.
+     */
+    public synchronized void close() {
+        index.force();
+        try {
+            indexFile.close();
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to close tile cache index", iox);
+        }
+    }
+
+    public synchronized int getEntryCount() {
+        return index.getInt(HEADER_ENTRY_COUNT_OFFSET);
+    }
+
+    public synchronized long getTotalBytes() {
+        return index.getLong(HEADER_TOTAL_BYTES_OFFSET);
+    }
+
+    /**
+     * Deletes every tile file and empties the index.
+     */
+    private void reset() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TILE_FILE_SUFFIX) || file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+
+        for (int i = 0; i < index.capacity(); i += 8) {
+            index.putLong(i, 0L);
+        }
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+        index.putInt(8, slotCount);
+    }
+
+    /**
+     * Deletes the least recently used tiles until the cache is comfortably within both of its limits.
+     */
+    private void evict() {
+        List<long[]> occupied = new ArrayList<long[]>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (isOccupied(slot)) {
+                occupied.add(new long[]{index.getLong(slotOffset(slot) + 16), slot});
+            }
+        }
+        Collections.sort(occupied, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+            }
+        });
+
+        long targetBytes = (long) (maxBytes * EVICT_TO_FRACTION);
+        int targetEntries = (int) (maxEntries * EVICT_TO_FRACTION);
+
+        // Removing a slot can shift others, so look each victim up again by key rather than by slot number
+        List<MosaicTileKey> victims = new ArrayList<MosaicTileKey>();
+        long totalBytes = getTotalBytes();
+        int entryCount = getEntryCount();
+        for (long[] entry : occupied) {
+            if ((totalBytes <= targetBytes) && (entryCount <= targetEntries)) {
+                break;
+            }
+            int offset = slotOffset((int) entry[1]);
+            victims.add(new MosaicTileKey(index.getInt(offset), index.getInt(offset + 4), index.getInt(offset + 8)));
+            totalBytes -= index.getInt(offset + 12);
+            entryCount--;
+        }
+
+        for (MosaicTileKey victim : victims) {
+            removeSlot(findSlot(victim));
+            tileFile(victim).delete();
+        }
+
+        Log.d(TAG, String.format("Evicted %d tiles, %d tiles (%d bytes) remain", victims.size(), getEntryCount(),
+                                 getTotalBytes()));
+    }
+
+    /**
+     * @return The slot holding the given key, or else the empty slot where it would be inserted
+     */
+    private int findSlot(MosaicTileKey key) {
+        int mask = slotCount - 1;
+        int slot = mix(key.hashCode()) & mask;
+        while (isOccupied(slot)) {
+            int offset = slotOffset(slot);
+            if ((index.getInt(offset) == key.width) && (index.getInt(offset + 4) == key.height) &&
+                    (index.getInt(offset + 8) == key.rgb)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties a slot, then moves any later entries of the same probe run back so they can still be found.
+     */
+    private void removeSlot(int slot) {
+        int mask = slotCount - 1;
+        adjustEntryCount(-1);
+        adjustTotalBytes(-index.getInt(slotOffset(slot) + 12));
+
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (isOccupied(next)) {
+            int offset = slotOffset(next);
+            MosaicTileKey key = new MosaicTileKey(index.getInt(offset), index.getInt(offset + 4),
+                                                  index.getInt(offset + 8));
+            int home = mix(key.hashCode()) & mask;
+
+            // The entry at 'next' may fill the hole unless its home lies cyclically within (hole, next]
+            boolean homeBetween = (hole <= next) ? ((hole < home) && (home <= next)) : ((hole < home) || (home <= next));
+            if (!homeBetween) {
+                copySlot(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        index.putInt(slotOffset(hole), 0);
+    }
+
+    private void copySlot(int from, int to) {
+        int fromOffset = slotOffset(from);
+        int toOffset = slotOffset(to);
+        for (int i = 0; i < SLOT_SIZE; i += 4) {
+            index.putInt(toOffset + i, index.getInt(fromOffset + i));
+        }
+    }
+
+    private boolean isOccupied(int slot) {
+        return index.getInt(slotOffset(slot)) != 0;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + (slot * SLOT_SIZE);
+    }
+
+    private static int mix(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85EBCA6B;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+    private long tick() {
+        long clock = index.getLong(HEADER_CLOCK_OFFSET) + 1;
+        index.putLong(HEADER_CLOCK_OFFSET, clock);
+        return clock;
+    }
+
+    private void adjustEntryCount(int delta) {
+        index.putInt(HEADER_ENTRY_COUNT_OFFSET, index.getInt(HEADER_ENTRY_COUNT_OFFSET) + delta);
+    }
+
+    private void adjustTotalBytes(long delta) {
+        index.putLong(HEADER_TOTAL_BYTES_OFFSET, index.getLong(HEADER_TOTAL_BYTES_OFFSET) + delta);
+    }
+
+    private File tileFile(MosaicTileKey key) {
+        return new File(directory, String.format("%d_%d_%06x%s", key.width, key.height, key.rgb, TILE_FILE_SUFFIX));
+    }
+
+    private static byte[] readFully(File file, int length) throws IOException {
+        byte[] data = new byte[length];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < length) {
+                int count = inputStream.read(data, read, length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return data;
+    }
+
+    private static void writeFullyAndSync(File file, byte[] data) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+            outputStream.flush();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package bailey.rod.photomosaic;
+
+/**
+ * Identifies a mosaic tile image by everything that determines its content - its pixel size and the
+ * color it represents. Two requests with equal keys can be served by the same tile image.
+ */
+public final class MosaicTileKey {
+
+    // Pixel width of the tile
+    public final int width;
+
+    // Pixel height of the tile
+    public final int height;
+
+    // Packed RGB color of the tile. Alpha is always stripped.
+    public final int rgb;
+
+    /**
+     * @param width  Pixel width of the tile
+     * @param height Pixel height of the tile
+     * @param color  Packed color of the tile. Alpha is ignored.
+     */
+    public MosaicTileKey(int width, int height, int color) {
+        this.width = width;
+        this.height = height;
+        this.rgb = color & 0x00FFFFFF;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof MosaicTileKey)) {
+            return false;
+        }
+        MosaicTileKey that = (MosaicTileKey) other;
+        return (width == that.width) && (height == that.height) && (rgb == that.rgb);
+    }
+
+    @Override
+    public int hashCode() {
+        return (((width * 31) + height) * 31) + rgb;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dx%d#%06x", width, height, rgb);
+    }
+}
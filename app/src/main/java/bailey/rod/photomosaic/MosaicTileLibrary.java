@@ -0,0 +1,275 @@
+package bailey.rod.photomosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A library of local photos to be used as mosaic tiles, for true photo mosaics with no network at all. Every
+ * image in the library directory is cropped and scaled to a thumbnail of tile size, once, and packed into a
+ * MosaicTileAtlas along with its average color. A MosaicColorLut over those colors then finds the best thumbnail
+ * for any tile color with a single array lookup, however many images there are.
+ * <p/>
+ * The atlas records a signature of the directory's contents (names, sizes and modification times), and is
+ * rebuilt whenever the library is opened and the signature no longer matches. The color table is saved next to
+ * the atlas, and rebuilt whenever it doesn't match the atlas's colors.
+ */
+public class MosaicTileLibrary {
+
+    private static final String TAG = MosaicTileLibrary.class.getSimpleName();
+
+    // Log progress of an atlas build after each of this many images
+    private static final int BUILD_PROGRESS_INTERVAL = 500;
+
+    private final MosaicTileAtlas atlas;
+
+    private final MosaicColorLut colorIndex;
+
+    private MosaicTileLibrary(MosaicTileAtlas atlas, MosaicColorLut colorIndex) {
+        this.atlas = atlas;
+        this.colorIndex = colorIndex;
+    }
+
+    /**
+     * Opens the library of images in a directory, first building its atlas if there is none or the directory's
+     * contents have changed since it was built. Building may take some time, so don't call on the main thread.
+     *
+     * @param libraryDir Directory whose images are to be used as tiles
+     * @param atlasFile  Where the library's atlas is (to be) stored
+     * @param lutFile    Where the library's table from color to nearest image is (to be) stored
+     * @param tileWidth  Pixel width of each thumbnail
+     * @param tileHeight Pixel height of each thumbnail
+     * @return The library. Close it when finished with.
+     * @throws IOException If the atlas couldn't be built or opened, or there are no usable images
+     */
+    public static MosaicTileLibrary open(File libraryDir, File atlasFile, File lutFile, int tileWidth,
+                                         int tileHeight) throws IOException {
+        File[] imageFiles = listImageFiles(libraryDir);
+        long signature = signatureOf(imageFiles);
+
+        MosaicTileAtlas atlas = null;
+        if (atlasFile.exists()) {
+            try {
+                atlas = MosaicTileAtlas.open(atlasFile);
+                if ((atlas.getSignature() != signature) || (atlas.getTileWidth() != tileWidth) ||
+                        (atlas.getTileHeight() != tileHeight)) {
+                    Log.i(TAG, "Tile library has changed since its atlas was built");
+                    atlas.close();
+                    atlas = null;
+                }
+            } catch (IOException iox) {
+                Log.w(TAG, "Discarding unreadable tile atlas " + atlasFile, iox);
+            }
+        }
+
+        if (atlas == null) {
+            buildAtlas(imageFiles, atlasFile, tileWidth, tileHeight, signature);
+            atlas = MosaicTileAtlas.open(atlasFile);
+        }
+
+        if (atlas.getCount() == 0) {
+            atlas.close();
+            throw new IOException("No usable images in tile library " + libraryDir);
+        }
+
+        MosaicColorLut colorIndex = openColorLut(lutFile, atlas.getColors());
+        Log.i(TAG, String.format("Opened tile library of %d images", atlas.getCount()));
+        return new MosaicTileLibrary(atlas, colorIndex);
+    }
+
+    /**
+     * @return Number of images in the library
+     */
+    public int size() {
+        return atlas.getCount();
+    }
+
+    /**
+     * @param color Packed RGB color. Alpha is ignored.
+     * @return Index of the library image whose average color looks most like the given color
+     */
+    public int nearestTile(int color) {
+        return colorIndex.lookup(color);
+    }
+
+    /**
+     * @param index Index of a library image
+     * @return Average color of the image
+     */
+    public int getColor(int index) {
+        return atlas.getColors()[index];
+    }
+
+    /**
+     * @param index  Index of a library image
+     * @param width  Pixel width of the tile wanted
+     * @param height Pixel height of the tile wanted
+     * @return Pixels of the image's thumbnail, row by row, scaled if the tile isn't the size of the thumbnails
+     */
+    public int[] createTile(int index, int width, int height) {
+        int tileWidth = atlas.getTileWidth();
+        int tileHeight = atlas.getTileHeight();
+        int[] pixels = new int[tileWidth * tileHeight];
+        atlas.readTile(index, pixels);
+        if ((width == tileWidth) && (height == tileHeight)) {
+            return pixels;
+        }
+
+        Bitmap thumbnail = Bitmap.createBitmap(pixels, tileWidth, tileHeight, Bitmap.Config.ARGB_8888);
+        Bitmap scaled = Bitmap.createScaledBitmap(thumbnail, width, height, true);
+        thumbnail.recycle();
+        int[] scaledPixels = new int[width * height];
+        scaled.getPixels(scaledPixels, 0, width, 0, 0, width, height);
+        scaled.recycle();
+        return scaledPixels;
+    }
+
+    /**
+     * Releases the atlas. The library must not be used afterwards.
+     */
+    public void close() {
+        try {
+            atlas.close();
+        } catch (IOException iox) {
+            Log.e(TAG, "Failed to close tile atlas", iox);
+        }
+    }
+
+    /**
+     * @return The image files in the given directory, in name order. Empty if there is no such directory.
+     */
+    private static File[] listImageFiles(File libraryDir) {
+        File[] files = libraryDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName().toLowerCase(Locale.US);
+                return file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") ||
+                        name.endsWith(".webp"));
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return A hash of the names, sizes and modification times of the given files
+     */
+    private static long signatureOf(File[] files) {
+        long signature = files.length;
+        for (File file : files) {
+            signature = (signature * 31) + file.getName().hashCode();
+            signature = (signature * 31) + file.length();
+            signature = (signature * 31) + file.lastModified();
+        }
+        return signature;
+    }
+
+    /**
+     * @return The saved color table for the given palette, or a newly built (and saved) one if there is no saved
+     * table for it
+     */
+    private static MosaicColorLut openColorLut(File lutFile, int[] palette) {
+        MosaicColorLut lut = null;
+        try {
+            lut = MosaicColorLut.load(lutFile, palette, Constants.TILE_LUT_BITS_PER_CHANNEL);
+        } catch (IOException iox) {
+            Log.w(TAG, "Discarding unreadable color table " + lutFile, iox);
+        }
+        if (lut != null) {
+            return lut;
+        }
+
+        Log.i(TAG, String.format("Building color table for %d images", palette.length));
+        lut = MosaicColorLut.build(palette, Constants.TILE_LUT_BITS_PER_CHANNEL);
+        try {
+            lut.save(lutFile);
+        } catch (IOException iox) {
+            Log.w(TAG, "Failed to save color table to " + lutFile + ". It will be rebuilt next time.", iox);
+        }
+        return lut;
+    }
+
+    private static void buildAtlas(File[] imageFiles, File atlasFile, int tileWidth, int tileHeight, long signature)
+            throws IOException {
+        Log.i(TAG, String.format("Building tile atlas from %d images", imageFiles.length));
+
+        // Every image is drawn into the same thumbnail bitmap in turn
+        Bitmap thumbnail = Bitmap.createBitmap(tileWidth, tileHeight, Bitmap.Config.ARGB_8888);
+        Canvas thumbnailCanvas = new Canvas(thumbnail);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect crop = new Rect();
+        Rect thumbnailArea = new Rect(0, 0, tileWidth, tileHeight);
+        int[] pixels = new int[tileWidth * tileHeight];
+
+        MosaicTileAtlas.Writer writer = new MosaicTileAtlas.Writer(atlasFile, tileWidth, tileHeight, signature);
+        try {
+            for (int i = 0; i < imageFiles.length; i++) {
+                Bitmap image = decodeAtLeast(imageFiles[i], tileWidth, tileHeight);
+                if (image == null) {
+                    Log.w(TAG, "Skipping tile library image that couldn't be decoded: " + imageFiles[i]);
+                    continue;
+                }
+
+                // Crop the middle of the image to the shape of a tile, so it isn't distorted when scaled
+                int cropWidth = Math.max(1, Math.min(image.getWidth(), (image.getHeight() * tileWidth) / tileHeight));
+                int cropHeight = Math.max(1, Math.min(image.getHeight(), (image.getWidth() * tileHeight) / tileWidth));
+                int cropLeft = (image.getWidth() - cropWidth) / 2;
+                int cropTop = (image.getHeight() - cropHeight) / 2;
+                crop.set(cropLeft, cropTop, cropLeft + cropWidth, cropTop + cropHeight);
+
+                thumbnail.eraseColor(0xFF000000);
+                thumbnailCanvas.drawBitmap(image, crop, thumbnailArea, paint);
+                image.recycle();
+
+                thumbnail.getPixels(pixels, 0, tileWidth, 0, 0, tileWidth, tileHeight);
+                writer.add(pixels, MosaicTileAverager.averageColor(pixels, 0, tileWidth, tileWidth, tileHeight));
+
+                if (((i + 1) % BUILD_PROGRESS_INTERVAL) == 0) {
+                    Log.i(TAG, String.format("Added %d of %d images to tile atlas", i + 1, imageFiles.length));
+                }
+            }
+            writer.finish();
+        } catch (IOException iox) {
+            writer.abandon();
+            throw iox;
+        } finally {
+            thumbnail.recycle();
+        }
+    }
+
+    /**
+     * Decodes an image file, reduced by the largest power of 2 that leaves it at least the given size.
+     *
+     * @return The reduced image, or null if it couldn't be decoded
+     */
+    private static Bitmap decodeAtLeast(File imageFile, int minWidth, int minHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imageFile.getPath(), options);
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (((options.outWidth / (sampleSize * 2)) >= minWidth) &&
+                ((options.outHeight / (sampleSize * 2)) >= minHeight)) {
+            sampleSize *= 2;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(imageFile.getPath(), options);
+    }
+}
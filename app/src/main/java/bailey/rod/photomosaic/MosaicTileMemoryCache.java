@@ -0,0 +1,132 @@
+package bailey.rod.photomosaic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of mosaic tile images, keyed by tile size and color. When the total size of the cached
+ * images exceeds a byte budget, the least recently used images are evicted until it fits again. Sizes are
+ * measured by a Sizer, so they reflect the real memory held by each image rather than a count of entries.
+ * <p/>
+ * All methods are thread safe.
+ *
+ * @param <V> Type of the cached tile images
+ */
+public class MosaicTileMemoryCache<V> {
+
+    // Entries in order of access, least recently used first
+    private final LinkedHashMap<MosaicTileKey, V> entries = new LinkedHashMap<MosaicTileKey, V>(64, 0.75f, true);
+
+    private final Sizer<V> sizer;
+
+    // Total bytes the cached values may occupy
+    private final long maxBytes;
+
+    // Total bytes the cached values currently occupy
+    private long currentBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    /**
+     * @param maxBytes Total number of bytes the cached tiles may occupy
+     * @param sizer    Measures the size of each tile image in bytes
+     */
+    public MosaicTileMemoryCache(long maxBytes, Sizer<V> sizer) {
+        this.maxBytes = maxBytes;
+        this.sizer = sizer;
+    }
+
+    /**
+     * @param key Size and color of the tile wanted
+     * @return The cached tile with the given key, or null if there isn't one
+     */
+    public synchronized V get(MosaicTileKey key) {
+        V value = entries.get(key);
+        if (value == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Unlike #get, neither counts as a hit or miss nor makes the tile more recently used.
+     *
+     * @param key Size and color of the tile wanted
+     * @return True if the cache holds a tile with the given key
+     */
+    public synchronized boolean containsKey(MosaicTileKey key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Adds a tile to the cache, then evicts least recently used tiles until the cache is within budget.
+     * A tile that is bigger than the whole budget is not cached at all.
+     *
+     * @param key   Size and color of the tile
+     * @param value The tile image
+     */
+    public synchronized void put(MosaicTileKey key, V value) {
+        int size = sizer.sizeOf(value);
+        if (size > maxBytes) {
+            return;
+        }
+
+        V previous = entries.put(key, value);
+        currentBytes += size;
+        if (previous != null) {
+            currentBytes -= sizer.sizeOf(previous);
+        }
+
+        Iterator<Map.Entry<MosaicTileKey, V>> iterator = entries.entrySet().iterator();
+        while ((currentBytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<MosaicTileKey, V> eldest = iterator.next();
+            currentBytes -= sizer.sizeOf(eldest.getValue());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes every tile from the cache. Counters are not reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d tiles, %d/%d bytes, hits=%d, misses=%d, evictions=%d", entries.size(),
+                             currentBytes, maxBytes, hitCount, missCount, evictionCount);
+    }
+
+    /**
+     * Measures how many bytes of memory a tile image occupies
+     */
+    public interface Sizer<V> {
+        int sizeOf(V value);
+    }
+}
@@ -0,0 +1,366 @@
+package bailey.rod.photomosaic;
+
+import android.util.Log;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Streams the tiles of a single mosaic job through three stages:
+ * <li> Averaging - done by the thread that calls #submit, one row of tiles at a time
+ * <li> Fetching - each tile's creator is called on one of a fixed set of fetch threads, which may be shared with
+ * the pipelines of other jobs. An asynchronous creator may instead start its work there and finish it later on
+ * some other thread, so that no fetch thread is held up waiting on the network.
+ * <li> Compositing - each finished tile is handed to a Compositor on a single compositor thread
+ * <p/>
+ * All three stages run at once, so row N+1 can be averaged and fetched while row N is still being
+ * composited. There is no barrier at the end of each row. The number of tiles that have been submitted
+ * but not yet composited is capped, so the averaging stage blocks rather than running ahead of a slow
+ * tile server and filling up memory.
+ * <p/>
+ * The compositor thread is created when the pipeline is constructed and lives until #awaitCompletion or #abort
+ * is called. The fetch threads belong to whoever supplies them. Aborting drops every tile of this pipeline that
+ * has yet to be fetched, stops the compositor and wakes any thread waiting in #submit or #awaitCompletion, so it
+ * can be called from another thread to cancel a job promptly.
+ *
+ * @param <R> Type of result produced by the tile creators
+ */
+public class MosaicTilePipeline<R> {
+
+    private static final String TAG = MosaicTilePipeline.class.getSimpleName();
+
+    // Runs the tile creators. Not owned by this pipeline, so never shut down by it.
+    private final ThreadPoolExecutor fetchExecutor;
+
+    // Tiles that have been fetched (or failed) and are waiting to be composited, plus row markers
+    private final BlockingQueue<Event<R>> compositeQueue = new LinkedBlockingQueue<Event<R>>();
+
+    // One permit for each tile that may be submitted but not yet composited
+    private final Semaphore inFlightPermits;
+
+    // Number of permits that inFlightPermits started with
+    private final int maxTilesInFlight;
+
+    // For each row, the number of tiles submitted but not yet composited
+    private final AtomicIntegerArray tilesOutstandingPerRow;
+
+    private final Compositor<R> compositor;
+
+    private final Thread compositorThread;
+
+    // Set once #abort has been called
+    private volatile boolean aborted;
+
+    /**
+     * @param rowCount         Number of tile rows in the job
+     * @param fetchExecutor    Runs the tile creators. May be shared by several pipelines, so should have an
+     *                         unbounded queue - each pipeline's own share of it is capped by maxTilesInFlight.
+     * @param maxTilesInFlight Max number of tiles that may be submitted but not yet composited
+     * @param compositor       Receives every fetched tile, and is told when each row is complete
+     */
+    public MosaicTilePipeline(int rowCount, ThreadPoolExecutor fetchExecutor, int maxTilesInFlight,
+                              Compositor<R> compositor) {
+        this.compositor = compositor;
+        this.tilesOutstandingPerRow = new AtomicIntegerArray(rowCount);
+        this.maxTilesInFlight = maxTilesInFlight;
+        this.inFlightPermits = new Semaphore(maxTilesInFlight);
+        this.fetchExecutor = fetchExecutor;
+
+        compositorThread = new Thread(new CompositorLoop(rowCount), "Mosaic compositor");
+        compositorThread.start();
+    }
+
+    /**
+     * Queues a tile for fetching, blocking while the maximum number of tiles are already in flight.
+     *
+     * @param row     Index of the row of tiles to which the tile belongs
+     * @param creator Creates or fetches the tile image
+     * @throws InterruptedException  If interrupted while waiting for room in the pipeline
+     * @throws CancellationException If the pipeline has been aborted
+     */
+    public void submit(final int row, final Callable<R> creator) throws InterruptedException {
+        submitAsync(row, new AsyncCreator<R>() {
+            @Override
+            public void create(Completion<R> completion) throws Exception {
+                completion.complete(creator.call());
+            }
+        });
+    }
+
+    /**
+     * Queues a tile whose creator finishes asynchronously, blocking while the maximum number of tiles are already
+     * in flight. The tile counts as in flight until its creator reports that it has finished.
+     *
+     * @param row     Index of the row of tiles to which the tile belongs
+     * @param creator Starts creating or fetching the tile image
+     * @throws InterruptedException  If interrupted while waiting for room in the pipeline
+     * @throws CancellationException If the pipeline has been aborted
+     */
+    public void submitAsync(final int row, final AsyncCreator<R> creator) throws InterruptedException {
+        inFlightPermits.acquire();
+        if (aborted) {
+            inFlightPermits.release();
+            throw new CancellationException("Tile pipeline aborted");
+        }
+        tilesOutstandingPerRow.incrementAndGet(row);
+
+        try {
+            execute(row, creator);
+        } catch (RejectedExecutionException reex) {
+            // Aborted since the check above
+            tilesOutstandingPerRow.decrementAndGet(row);
+            inFlightPermits.release();
+            throw new CancellationException("Tile pipeline aborted");
+        }
+    }
+
+    /**
+     * @return A new pool of fetch threads for one or more pipelines to share
+     */
+    public static ThreadPoolExecutor createFetchExecutor(int fetchThreadCount) {
+        return new ThreadPoolExecutor(fetchThreadCount, fetchThreadCount, 0L, TimeUnit.MILLISECONDS,
+                                      new LinkedBlockingQueue<Runnable>());
+    }
+
+    private void execute(final int row, final AsyncCreator<R> creator) {
+        fetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Tiles still queued when the pipeline was aborted are dropped without a word
+                if (aborted) {
+                    return;
+                }
+
+                TileCompletion completion = new TileCompletion(row);
+                try {
+                    creator.create(completion);
+                } catch (Exception ex) {
+                    completion.fail(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Signals that every tile in the given row has been submitted. Rows must be ended in order.
+     *
+     * @param row Index of the row of tiles
+     */
+    public void endRow(int row) {
+        Event<R> event = new Event<R>(row);
+        event.endOfRow = true;
+        compositeQueue.add(event);
+    }
+
+    /**
+     * Waits until every submitted tile has been composited, then releases the compositor thread.
+     *
+     * @throws InterruptedException  If interrupted while waiting
+     * @throws CancellationException If the pipeline has been aborted
+     */
+    public void awaitCompletion() throws InterruptedException {
+        // Every permit is back once every submitted tile has been composited
+        inFlightPermits.acquire(maxTilesInFlight);
+        if (aborted) {
+            throw new CancellationException("Tile pipeline aborted");
+        }
+        compositeQueue.add(new Event<R>(Event.END_OF_JOB));
+        compositorThread.join();
+    }
+
+    /**
+     * Abandons all tiles that have not yet been composited and releases the compositor thread. Tiles already
+     * being fetched are left to finish, or to be cut short by whatever cancels their job. Thread safe, and only
+     * the first call has any effect.
+     */
+    public void abort() {
+        if (aborted) {
+            return;
+        }
+        aborted = true;
+        compositorThread.interrupt();
+
+        // Wake anyone waiting for permits. They see the pipeline has been aborted and give up.
+        inFlightPermits.release(maxTilesInFlight);
+    }
+
+    /**
+     * @return Number of tiles submitted but not yet composited
+     */
+    public int getTilesInFlight() {
+        return maxTilesInFlight - inFlightPermits.availablePermits();
+    }
+
+    /**
+     * @return Number of tiles waiting for a fetch thread, including those of other pipelines sharing the threads
+     */
+    public int getFetchQueueDepth() {
+        return fetchExecutor.getQueue().size();
+    }
+
+    /**
+     * @return Number of fetched tiles (and row markers) waiting to be composited
+     */
+    public int getCompositeQueueDepth() {
+        return compositeQueue.size();
+    }
+
+    /**
+     * Receives the output of the pipeline. All methods are called on the compositor thread.
+     */
+    public interface Compositor<R> {
+
+        /**
+         * @param result A tile that has just been created. Never called for tiles whose creator failed.
+         */
+        void composite(R result) throws Exception;
+
+        /**
+         * Called once for each row, in row order, after every tile in that row has been composited.
+         *
+         * @param row Index of the row that has just been completed
+         */
+        void rowFinished(int row);
+    }
+
+    /**
+     * Creates a tile, possibly finishing on some thread other than the fetch thread that it was started on
+     */
+    public interface AsyncCreator<R> {
+
+        /**
+         * Starts creating a tile. Called on a fetch thread, so should not block for long.
+         *
+         * @param completion To be told once the tile has been created, or has failed, from any thread. Throwing
+         *                   instead counts as failing, unless the completion has been told already.
+         */
+        void create(Completion<R> completion) throws Exception;
+    }
+
+    /**
+     * Told the outcome of an AsyncCreator. Only the first call to either method has any effect.
+     */
+    public interface Completion<R> {
+
+        void complete(R result);
+
+        void fail(Exception error);
+    }
+
+    /**
+     * Hands the outcome of a tile to the compositor thread
+     */
+    private class TileCompletion implements Completion<R> {
+
+        private final int row;
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        TileCompletion(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public void complete(R result) {
+            if (done.compareAndSet(false, true)) {
+                Event<R> event = new Event<R>(row);
+                event.result = result;
+                compositeQueue.add(event);
+            }
+        }
+
+        @Override
+        public void fail(Exception error) {
+            if (done.compareAndSet(false, true)) {
+                Event<R> event = new Event<R>(row);
+                event.error = error;
+                compositeQueue.add(event);
+            }
+        }
+    }
+
+    /**
+     * Something that the compositor thread has to act on - either a fetched tile or a marker.
+     */
+    private static class Event<R> {
+        static final int END_OF_JOB = -1;
+
+        final int row;
+
+        boolean endOfRow;
+
+        R result;
+
+        Exception error;
+
+        Event(int row) {
+            this.row = row;
+        }
+    }
+
+    /**
+     * Body of the compositor thread. Composites tiles in the order they arrive, and reports rows as finished
+     * strictly in row order.
+     */
+    private class CompositorLoop implements Runnable {
+
+        // Whether endRow has been called for each row
+        private final boolean[] rowEnded;
+
+        // Index of the next row to be reported as finished
+        private int nextRowToFinish;
+
+        CompositorLoop(int rowCount) {
+            rowEnded = new boolean[rowCount];
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Event<R> event = compositeQueue.take();
+
+                    if (event.row == Event.END_OF_JOB) {
+                        return;
+                    }
+
+                    if (event.endOfRow) {
+                        rowEnded[event.row] = true;
+                    } else {
+                        compositeTile(event);
+                    }
+
+                    while ((nextRowToFinish < rowEnded.length) && rowEnded[nextRowToFinish] &&
+                            (tilesOutstandingPerRow.get(nextRowToFinish) == 0)) {
+                        compositor.rowFinished(nextRowToFinish++);
+                    }
+                }
+            } catch (InterruptedException iex) {
+                Log.i(TAG, "Compositor interrupted");
+            }
+        }
+
+        private void compositeTile(Event<R> event) {
+            try {
+                if (event.error != null) {
+                    Log.e(TAG, "Failed to create tile in row " + event.row, event.error);
+                } else {
+                    compositor.composite(event.result);
+                }
+            } catch (Exception ex) {
+                Log.e(TAG, "Failed to composite tile in row " + event.row, ex);
+            } finally {
+                tilesOutstandingPerRow.decrementAndGet(event.row);
+                inFlightPermits.release();
+            }
+        }
+    }
+}
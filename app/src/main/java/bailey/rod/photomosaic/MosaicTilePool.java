@@ -0,0 +1,138 @@
+package bailey.rod.photomosaic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of reusable tile-sized buffers (such as bitmaps that tiles are decoded into), kept apart by pixel size. A
+ * buffer is taken with #acquire and handed back with #release once finished with, so that a steady stream of tiles
+ * of the same few sizes needs no new buffers at all.
+ * <p/>
+ * A mosaic has only a handful of tile sizes (plus the clipped tiles at its edges), so sizes are found by a linear
+ * search rather than by hashing, which would allocate a key for every call.
+ * <p/>
+ * All methods are thread safe.
+ *
+ * @param <T> Type of the pooled buffers
+ */
+public class MosaicTilePool<T> {
+
+    private final Factory<T> factory;
+
+    // Max number of idle buffers kept of each size
+    private final int maxPerSize;
+
+    // Max number of different sizes kept. Buffers of any further sizes are dropped when released.
+    private final int maxSizes;
+
+    // Idle buffers, by size
+    private final List<Slot<T>> slots = new ArrayList<Slot<T>>();
+
+    private long createdCount;
+
+    private long reusedCount;
+
+    /**
+     * @param maxPerSize Max number of idle buffers kept of each size
+     * @param maxSizes   Max number of different sizes kept
+     * @param factory    Creates a new buffer when there is no idle one of the size wanted
+     */
+    public MosaicTilePool(int maxPerSize, int maxSizes, Factory<T> factory) {
+        this.maxPerSize = maxPerSize;
+        this.maxSizes = maxSizes;
+        this.factory = factory;
+    }
+
+    /**
+     * @return An idle buffer of the given size if there is one, otherwise a new one. Hand it back with #release.
+     */
+    public T acquire(int width, int height) {
+        synchronized (this) {
+            Slot<T> slot = findSlot(width, height);
+            T buffer = (slot == null) ? null : slot.idle.pollLast();
+            if (buffer != null) {
+                reusedCount++;
+                return buffer;
+            }
+            createdCount++;
+        }
+        return factory.create(width, height);
+    }
+
+    /**
+     * Hands back a buffer for re-use. It must not be used by the caller afterwards.
+     *
+     * @param width  Pixel width of the buffer, which may differ from the width it was acquired with
+     * @param height Pixel height of the buffer
+     */
+    public synchronized void release(int width, int height, T buffer) {
+        Slot<T> slot = findSlot(width, height);
+        if (slot == null) {
+            if (slots.size() >= maxSizes) {
+                return;
+            }
+            slot = new Slot<T>(width, height);
+            slots.add(slot);
+        }
+        if (slot.idle.size() < maxPerSize) {
+            slot.idle.addLast(buffer);
+        }
+    }
+
+    private Slot<T> findSlot(int width, int height) {
+        for (int i = 0; i < slots.size(); i++) {
+            Slot<T> slot = slots.get(i);
+            if ((slot.width == width) && (slot.height == height)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Number of buffers #acquire has had to create
+     */
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * @return Number of times #acquire has handed out an idle buffer
+     */
+    public synchronized long getReusedCount() {
+        return reusedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("created=%d, reused=%d, sizes=%d", createdCount, reusedCount, slots.size());
+    }
+
+    /**
+     * Creates the pool's buffers
+     */
+    public interface Factory<T> {
+        /**
+         * @return A new buffer of the given pixel size
+         */
+        T create(int width, int height);
+    }
+
+    /**
+     * Idle buffers of one size, most recently released last
+     */
+    private static class Slot<T> {
+
+        final int width;
+
+        final int height;
+
+        final ArrayDeque<T> idle = new ArrayDeque<T>();
+
+        Slot(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package bailey.rod.photomosaic;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Finds the tiles that a mosaic is likely to need from a much reduced copy of the image, so that they can be
+ * fetched while the full-size image is still being averaged. The copy is tiled the way the full-size image will
+ * be, at its own scale, and each tile found is scaled back up to the full-size image. Sizes found this way mostly
+ * match those found at full size. Colors only match exactly where the image is flat, or where the quantizer snaps
+ * full-size colors to the surveyed ones.
+ */
+public abstract class MosaicTileSurvey {
+
+    /**
+     * @param pixels       Pixels of the whole reduced copy, 'surveyWidth' per row
+     * @param surveyWidth  Pixel width of the reduced copy
+     * @param surveyHeight Pixel height of the reduced copy
+     * @param sampleSize   Each pixel of the copy stands for this many pixels of the image in each direction
+     * @param width        Pixel width of the full-size image
+     * @param height       Pixel height of the full-size image
+     * @param bandHeight   Pixel height of each band of the full-size image, as it will be tiled
+     * @param tileWidth    Pixel width of fixed-size tiles
+     * @param tiler        Tiler whose tile sizes are scaled down to match the copy, or null for fixed-size tiles
+     * @param quantizer    Snaps each tile's average color to the color of the tile to be used
+     * @return Key of every tile found, without repeats, in the order the full-size mosaic will need them
+     */
+    public static List<MosaicTileKey> findTiles(int[] pixels, int surveyWidth, int surveyHeight, int sampleSize,
+                                                int width, int height, int bandHeight, int tileWidth,
+                                                MosaicQuadtreeTiler tiler, MosaicColorQuantizer quantizer) {
+        Set<MosaicTileKey> keys = new LinkedHashSet<MosaicTileKey>();
+        int[] area = new int[4];
+        for (int bandTopY = 0; bandTopY < height; bandTopY += bandHeight) {
+            int bandBottomY = Math.min(bandTopY + bandHeight, height);
+            if (tiler == null) {
+                for (int tileLeftX = 0; tileLeftX < width; tileLeftX += tileWidth) {
+                    int tileRightX = Math.min(tileLeftX + tileWidth, width);
+                    surveyArea(tileLeftX, bandTopY, tileRightX, bandBottomY, sampleSize, surveyWidth, surveyHeight,
+                               area);
+                    int average = MosaicTileAverager.averageColor(pixels, (area[1] * surveyWidth) + area[0],
+                                                                  surveyWidth, area[2] - area[0], area[3] - area[1]);
+                    keys.add(new MosaicTileKey(tileRightX - tileLeftX, bandBottomY - bandTopY,
+                                               quantizer.quantize(average)));
+                }
+            } else {
+                surveyArea(0, bandTopY, width, bandBottomY, sampleSize, surveyWidth, surveyHeight, area);
+                findAdaptiveTiles(pixels, surveyWidth, area[1], area[3], sampleSize, width, bandBottomY, tiler,
+                                  quantizer, keys);
+            }
+        }
+        return new ArrayList<MosaicTileKey>(keys);
+    }
+
+    /**
+     * Starts prefetching tiles in the order given, and returns at once. Stops short once the tiles would take up
+     * more than budgetBytes, so that the first to be fetched aren't evicted by the last before they are used.
+     *
+     * @param keys        Tiles to fetch, most urgent first
+     * @param budgetBytes Most memory the pixels of the tiles may take up
+     * @param executor    Runs each prefetch
+     * @param token       Cancellation of the job that wants the tiles. Prefetches yet to run once it has been
+     *                    cancelled are dropped.
+     * @param prefetcher  Fetches each tile
+     * @return Number of tiles whose prefetch was started
+     */
+    public static int prefetch(List<MosaicTileKey> keys, long budgetBytes, Executor executor,
+                               final MosaicCancellationToken token, final Prefetcher prefetcher) {
+        int started = 0;
+        for (final MosaicTileKey key : keys) {
+            budgetBytes -= 4L * key.width * key.height;
+            if ((budgetBytes < 0) || token.isCancelled()) {
+                break;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!token.isCancelled()) {
+                            prefetcher.prefetch(key);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException reex) {
+                // The executor is being shut down
+                break;
+            }
+            started++;
+        }
+        return started;
+    }
+
+    /**
+     * Fetches a tile ahead of need, into wherever it will be looked for
+     */
+    public interface Prefetcher {
+        void prefetch(MosaicTileKey key);
+    }
+
+    /**
+     * Finds the adaptive tiles of a band from the rows of the reduced copy that it covers
+     */
+    private static void findAdaptiveTiles(int[] pixels, final int surveyWidth, final int areaTop, final int areaBottom,
+                                          final int sampleSize, final int width, final int bandBottomY,
+                                          MosaicQuadtreeTiler tiler, final MosaicColorQuantizer quantizer,
+                                          final Set<MosaicTileKey> keys) {
+        tiler.tileBand(pixels, areaTop * surveyWidth, surveyWidth, surveyWidth, areaBottom - areaTop,
+                       new MosaicQuadtreeTiler.TileSink() {
+                           @Override
+                           public void tile(int x, int y, int tileWidth, int tileHeight, int averageColor) {
+                               // Scale up to the full-size image. Tiles at the right and bottom edges of the copy
+                               // are stretched to the edges of the image, in case rounding left the copy short.
+                               int left = x * sampleSize;
+                               int top = (areaTop + y) * sampleSize;
+                               int right = ((x + tileWidth) == surveyWidth) ? width :
+                                       Math.min(width, (x + tileWidth) * sampleSize);
+                               int bottom = ((areaTop + y + tileHeight) == areaBottom) ? bandBottomY :
+                                       Math.min(bandBottomY, (areaTop + y + tileHeight) * sampleSize);
+                               if ((right > left) && (bottom > top)) {
+                                   keys.add(new MosaicTileKey(right - left, bottom - top,
+                                                              quantizer.quantize(averageColor)));
+                               }
+                           }
+                       });
+    }
+
+    /**
+     * Finds the area of the reduced copy covered by an area of the full-size image. The area found is never
+     * empty, even at the edges of the copy where rounding may leave less than a pixel.
+     *
+     * @param area Receives left, top, right and bottom of the area of the copy
+     */
+    private static void surveyArea(int left, int top, int right, int bottom, int sampleSize, int surveyWidth,
+                                   int surveyHeight, int[] area) {
+        area[0] = Math.min(left / sampleSize, surveyWidth - 1);
+        area[1] = Math.min(top / sampleSize, surveyHeight - 1);
+        area[2] = Math.max(area[0] + 1, Math.min(surveyWidth, (right + sampleSize - 1) / sampleSize));
+        area[3] = Math.max(area[1] + 1, Math.min(surveyHeight, (bottom + sampleSize - 1) / sampleSize));
+    }
+}
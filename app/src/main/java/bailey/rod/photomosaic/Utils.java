@@ -1,29 +1,23 @@
 package bailey.rod.photomosaic;
 
-import android.graphics.Color;
-
 /**
  * Miscellaneous utility methods
  */
 public abstract class Utils {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * @param packedColor RGBA packed together. A is ignored.
      * @return 6 character hex string representing the RGB components of the given packedColor
      */
     public static String packagedColorIntToRGBHexString(int packedColor) {
-        int redComponentInt = Color.red(packedColor);
-        int greenComponentInt = Color.green(packedColor);
-        int blueComponentInt = Color.blue(packedColor);
-
-        String redComponentStr = padHexToTwoChars(Integer.toHexString(redComponentInt));
-        String blueComponentStr = padHexToTwoChars(Integer.toHexString(blueComponentInt));
-        String greenComponentStr = padHexToTwoChars(Integer.toHexString(greenComponentInt));
-
-        return redComponentStr + greenComponentStr + blueComponentStr;
-    }
-
-    private static String padHexToTwoChars(String hexString) {
-        return hexString.length() == 1 ? "0" + hexString : hexString;
+        // Shifting rather than android.graphics.Color keeps this usable (and cheap) off the device
+        char[] hex = new char[6];
+        for (int i = 5; i >= 0; i--) {
+            hex[i] = HEX_DIGITS[packedColor & 0xF];
+            packedColor >>= 4;
+        }
+        return new String(hex);
     }
 }
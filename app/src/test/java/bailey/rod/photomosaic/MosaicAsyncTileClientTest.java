@@ -0,0 +1,226 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MosaicAsyncTileClientTest {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private final MosaicCancellationToken token = new MosaicCancellationToken();
+
+    private MosaicTileStandInServer server;
+
+    private MosaicAsyncTileClient client;
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void fetch_keepsHundredsOfRequestsInFlightOnOneThread() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        server.setTileDelayMillis(50);
+        MosaicConcurrencyLimiter limiter = new MosaicConcurrencyLimiter(50, 50, 50);
+        client = new MosaicAsyncTileClient(server.tileUrlFormat(), 50, TIMEOUT_MS, TIMEOUT_MS, limiter);
+        int tileCount = 300;
+        RecordingCallback callback = new RecordingCallback(tileCount);
+
+        long start = System.nanoTime();
+        for (int color = 0; color < tileCount; color++) {
+            client.fetch(new MosaicTileKey(32, 32, color), token, callback);
+        }
+        assertTrue(client.getPendingCount() > 50);
+        assertTrue(callback.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(0, callback.failures.size());
+        for (int color = 0; color < tileCount; color++) {
+            assertArrayEquals(MosaicTileStandInServer.tileBody(String.format("32 32 %06x", color)),
+                              callback.tiles.get(new MosaicTileKey(32, 32, color)));
+        }
+        // One at a time, the server's delay alone would come to 15 seconds
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis < 3000);
+        assertTrue(server.getConnectionCount() <= 50);
+        assertEquals(0, client.getPendingCount());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void fetch_reusesOneConnectionForSequentialTiles() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        client = new MosaicAsyncTileClient(server.tileUrlFormat(), 4, TIMEOUT_MS, TIMEOUT_MS, null);
+
+        for (int color = 0; color < 20; color++) {
+            RecordingCallback callback = new RecordingCallback(1);
+            client.fetch(new MosaicTileKey(8, 16, color), token, callback);
+            assertTrue(callback.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertArrayEquals(MosaicTileStandInServer.tileBody(String.format("8 16 %06x", color)),
+                              callback.tiles.get(new MosaicTileKey(8, 16, color)));
+        }
+
+        assertEquals(20, server.getTileRequestCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void fetch_cancelAbandonsRequestsInFlightAndQueued() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        server.setTileDelayMillis(TIMEOUT_MS);
+        client = new MosaicAsyncTileClient(server.tileUrlFormat(), 1, TIMEOUT_MS, TIMEOUT_MS, null);
+        RecordingCallback callback = new RecordingCallback(2);
+
+        client.fetch(new MosaicTileKey(32, 32, 1), token, callback);
+        client.fetch(new MosaicTileKey(32, 32, 2), token, callback);
+        while (server.getTileRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        long cancelledAt = System.nanoTime();
+        token.cancel();
+
+        assertTrue(callback.done.await(TIMEOUT_MS / 2, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - cancelledAt < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS / 2));
+        assertEquals(2, callback.failures.size());
+        for (IOException failure : callback.failures.values()) {
+            assertTrue(String.valueOf(failure), failure instanceof InterruptedIOException);
+            assertFalse(String.valueOf(failure), failure instanceof SocketTimeoutException);
+        }
+        assertEquals(1, server.getTileRequestCount());
+    }
+
+    @Test
+    public void fetch_failsWhenServerIsSlowerThanReadTimeout() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        server.setTileDelayMillis(2000);
+        MosaicConcurrencyLimiter limiter = new MosaicConcurrencyLimiter(4, 1, 4);
+        client = new MosaicAsyncTileClient(server.tileUrlFormat(), 4, TIMEOUT_MS, 100, limiter);
+        RecordingCallback callback = new RecordingCallback(1);
+
+        client.fetch(new MosaicTileKey(32, 32, 1), token, callback);
+
+        assertTrue(callback.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        IOException failure = callback.failures.get(new MosaicTileKey(32, 32, 1));
+        assertTrue(String.valueOf(failure), failure instanceof SocketTimeoutException);
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void fetch_retriesServerErrorsWithBackoffThenGivesUp() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        client = new MosaicAsyncTileClient(server.tileUrlFormat(), 4, TIMEOUT_MS, TIMEOUT_MS, null,
+                                           new MosaicAsyncTileClient.Resilience(null, 2, 10, 0));
+        server.failNextTiles(2);
+        RecordingCallback recovered = new RecordingCallback(1);
+
+        client.fetch(new MosaicTileKey(32, 32, 1), token, recovered);
+
+        assertTrue(recovered.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertArrayEquals(MosaicTileStandInServer.tileBody("32 32 000001"),
+                          recovered.tiles.get(new MosaicTileKey(32, 32, 1)));
+        assertEquals(3, server.getTileRequestCount());
+        assertEquals(2, client.getRetryCount());
+
+        server.failNextTiles(3);
+        RecordingCallback gaveUp = new RecordingCallback(1);
+        client.fetch(new MosaicTileKey(32, 32, 2), token, gaveUp);
+
+        assertTrue(gaveUp.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        IOException failure = gaveUp.failures.get(new MosaicTileKey(32, 32, 2));
+        assertTrue(String.valueOf(failure), String.valueOf(failure).contains("503"));
+        assertEquals(6, server.getTileRequestCount());
+    }
+
+    @Test
+    public void fetch_hedgesRequestStalledBeyondUsualLatency() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        client = new MosaicAsyncTileClient(server.tileUrlFormat(), 4, TIMEOUT_MS, TIMEOUT_MS, null,
+                                           new MosaicAsyncTileClient.Resilience(null, 0, 0, 20));
+
+        // Enough quick answers to know how long an answer usually takes
+        RecordingCallback quick = new RecordingCallback(30);
+        for (int color = 0; color < 30; color++) {
+            client.fetch(new MosaicTileKey(32, 32, color), token, quick);
+        }
+        assertTrue(quick.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, client.getHedgeCount());
+
+        server.stallNextTiles(1, TIMEOUT_MS);
+        RecordingCallback stalled = new RecordingCallback(1);
+        long start = System.nanoTime();
+        client.fetch(new MosaicTileKey(32, 32, 0xABCDEF), token, stalled);
+
+        assertTrue(stalled.done.await(TIMEOUT_MS / 2, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS / 2));
+        assertArrayEquals(MosaicTileStandInServer.tileBody("32 32 abcdef"),
+                          stalled.tiles.get(new MosaicTileKey(32, 32, 0xABCDEF)));
+        assertEquals(1, client.getHedgeCount());
+        assertEquals(32, server.getTileRequestCount());
+    }
+
+    @Test
+    public void fetch_failsAtOnceWhileCircuitBreakerIsOpen() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        MosaicCircuitBreaker breaker = new MosaicCircuitBreaker(2, TIMEOUT_MS);
+        client = new MosaicAsyncTileClient(server.tileUrlFormat(), 4, TIMEOUT_MS, TIMEOUT_MS, null,
+                                           new MosaicAsyncTileClient.Resilience(breaker, 3, 10, 0));
+        server.failNextTiles(100);
+
+        RecordingCallback first = new RecordingCallback(1);
+        client.fetch(new MosaicTileKey(32, 32, 1), token, first);
+
+        // The second failure in a row opened the breaker, which stopped any more retries
+        assertTrue(first.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, first.failures.size());
+        assertEquals(MosaicCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, server.getTileRequestCount());
+
+        RecordingCallback second = new RecordingCallback(1);
+        client.fetch(new MosaicTileKey(32, 32, 2), token, second);
+
+        assertTrue(second.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        IOException failure = second.failures.get(new MosaicTileKey(32, 32, 2));
+        assertTrue(String.valueOf(failure), String.valueOf(failure).contains("circuit breaker"));
+        assertEquals(2, server.getTileRequestCount());
+        assertEquals(1, client.getRefusedCount());
+    }
+
+    /**
+     * Keeps whatever the client calls back with
+     */
+    private static class RecordingCallback implements MosaicAsyncTileClient.Callback {
+
+        final Map<MosaicTileKey, byte[]> tiles = new ConcurrentHashMap<MosaicTileKey, byte[]>();
+
+        final Map<MosaicTileKey, IOException> failures = new ConcurrentHashMap<MosaicTileKey, IOException>();
+
+        final CountDownLatch done;
+
+        RecordingCallback(int expectedCount) {
+            done = new CountDownLatch(expectedCount);
+        }
+
+        @Override
+        public void onTile(MosaicTileKey key, byte[] tileData) {
+            tiles.put(key, tileData);
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(MosaicTileKey key, IOException failure) {
+            failures.put(key, failure);
+            done.countDown();
+        }
+    }
+}
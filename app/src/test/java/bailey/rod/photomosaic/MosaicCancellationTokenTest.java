@@ -0,0 +1,53 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MosaicCancellationTokenTest {
+
+    @Test
+    public void cancel_runsEachRegisteredCallbackOnce() throws Exception {
+        MosaicCancellationToken token = new MosaicCancellationToken();
+        AtomicInteger kept = new AtomicInteger();
+        AtomicInteger unregistered = new AtomicInteger();
+        token.onCancel(counter(kept));
+        token.onCancel(counter(unregistered)).unregister();
+
+        token.cancel();
+        token.cancel();
+
+        assertTrue(token.isCancelled());
+        assertEquals(1, kept.get());
+        assertEquals(0, unregistered.get());
+    }
+
+    @Test
+    public void onCancel_runsCallbackStraightAwayOnceCancelled() throws Exception {
+        MosaicCancellationToken token = new MosaicCancellationToken();
+        token.cancel();
+        AtomicInteger count = new AtomicInteger();
+
+        token.onCancel(counter(count));
+
+        assertEquals(1, count.get());
+        try {
+            token.throwIfCancelled();
+            fail("Expected CancellationException");
+        } catch (CancellationException cex) {
+            // Expected
+        }
+    }
+
+    private static Runnable counter(final AtomicInteger count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+    }
+}
@@ -0,0 +1,56 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MosaicCircleTilesTest {
+
+    private final MosaicCircleTiles circles = new MosaicCircleTiles(32, 32);
+
+    @Test
+    public void mask_coversCentreNotCornersAndIsSharedPerSize() throws Exception {
+        byte[] mask = circles.mask(16, 8);
+
+        assertEquals(255, mask[(4 * 16) + 8] & 0xFF);
+        assertEquals(0, mask[0] & 0xFF);
+        assertEquals(0, mask[(7 * 16) + 15] & 0xFF);
+
+        // Symmetric left to right and top to bottom
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 16; x++) {
+                assertEquals(mask[(y * 16) + x], mask[(y * 16) + (15 - x)]);
+                assertEquals(mask[(y * 16) + x], mask[((7 - y) * 16) + x]);
+            }
+        }
+
+        assertSame(mask, circles.mask(16, 8));
+        assertNotSame(circles.mask(40, 40), circles.mask(40, 40));
+    }
+
+    @Test
+    public void paint_blendsColorByCoverage() throws Exception {
+        int under = 0xFF000000;
+        int color = 0xFFFFFFFF;
+        int[] pixels = new int[12 * 12];
+        Arrays.fill(pixels, under);
+
+        // Paint a 10 x 10 tile inset by one pixel, which must leave the border alone
+        circles.paint(pixels, 13, 12, 10, 10, color);
+
+        byte[] mask = circles.mask(10, 10);
+        for (int y = 0; y < 12; y++) {
+            for (int x = 0; x < 12; x++) {
+                int pixel = pixels[(y * 12) + x];
+                if ((x == 0) || (y == 0) || (x == 11) || (y == 11)) {
+                    assertEquals(under, pixel);
+                } else {
+                    int coverage = mask[((y - 1) * 10) + (x - 1)] & 0xFF;
+                    assertEquals(0xFF000000 | (coverage << 16) | (coverage << 8) | coverage, pixel);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MosaicCircuitBreakerTest {
+
+    @Test
+    public void onFailure_opensAfterThresholdInARowAndRefusesUntilOpenPeriodIsOver() throws Exception {
+        MosaicCircuitBreaker breaker = new MosaicCircuitBreaker(3, 10000);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+        assertEquals(MosaicCircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure();
+        assertEquals(MosaicCircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+
+        // Requests that were already in flight can't close it early
+        breaker.onSuccess();
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getOpenCount());
+    }
+
+    @Test
+    public void allowRequest_letsOneTrialThroughOnceOpenPeriodIsOver() throws Exception {
+        MosaicCircuitBreaker breaker = new MosaicCircuitBreaker(1, 20);
+        breaker.onFailure();
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(40);
+
+        // A failed trial opens it again
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(MosaicCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenCount());
+        Thread.sleep(40);
+
+        // A cancelled trial is replaced by another, and a successful trial closes it
+        assertTrue(breaker.allowRequest());
+        breaker.onIgnore();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(MosaicCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+}
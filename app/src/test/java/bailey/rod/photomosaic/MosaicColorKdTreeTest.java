@@ -0,0 +1,46 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MosaicColorKdTreeTest {
+
+    @Test
+    public void nearest_exactColorFindsItself() throws Exception {
+        int[] colors = {0xFF0000, 0x00FF00, 0x0000FF, 0xFFFFFF, 0x000000};
+        MosaicColorKdTree tree = new MosaicColorKdTree(colors);
+        for (int i = 0; i < colors.length; i++) {
+            assertEquals(i, tree.nearest(colors[i]));
+        }
+    }
+
+    @Test
+    public void nearest_agreesWithBruteForceSearch() throws Exception {
+        Random random = new Random(42);
+        int[] colors = new int[5000];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt() & 0xFFFFFF;
+        }
+        MosaicColorKdTree tree = new MosaicColorKdTree(colors);
+
+        float[] target = new float[3];
+        float[] candidate = new float[3];
+        for (int trial = 0; trial < 500; trial++) {
+            int color = random.nextInt() & 0xFFFFFF;
+            LabColors.toLab(color, target);
+
+            float bestDistance = Float.MAX_VALUE;
+            for (int colorToTry : colors) {
+                LabColors.toLab(colorToTry, candidate);
+                bestDistance = Math.min(bestDistance, LabColors.distanceSquared(target, candidate));
+            }
+
+            LabColors.toLab(colors[tree.nearest(color)], candidate);
+            assertEquals("color " + Integer.toHexString(color), bestDistance,
+                         LabColors.distanceSquared(target, candidate), 0.0f);
+        }
+    }
+}
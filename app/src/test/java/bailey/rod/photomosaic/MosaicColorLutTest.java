@@ -0,0 +1,55 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class MosaicColorLutTest {
+
+    private static final int[] PALETTE = {0xFF0000, 0x00FF00, 0x0000FF, 0xFFFFFF, 0x000000};
+
+    private File lutFile;
+
+    @Before
+    public void setUp() throws Exception {
+        lutFile = File.createTempFile("colors", ".lut");
+        lutFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        lutFile.delete();
+    }
+
+    @Test
+    public void lookup_agreesWithKdTreeAtCellCenters() throws Exception {
+        MosaicColorLut lut = MosaicColorLut.build(PALETTE, 4);
+        MosaicColorKdTree tree = new MosaicColorKdTree(PALETTE);
+        for (int i = 0; i < PALETTE.length; i++) {
+            assertEquals(i, lut.lookup(PALETTE[i]));
+        }
+        // 0x88 is the center of the cell 0x80..0x8F at 4 bits per channel
+        assertEquals(tree.nearest(0x8888F8), lut.lookup(0x8080FF));
+    }
+
+    @Test
+    public void load_onlyReturnsTableSavedForSamePalette() throws Exception {
+        assertNull(MosaicColorLut.load(lutFile, PALETTE, 4));
+
+        MosaicColorLut built = MosaicColorLut.build(PALETTE, 4);
+        built.save(lutFile);
+
+        MosaicColorLut loaded = MosaicColorLut.load(lutFile, PALETTE, 4);
+        assertNotNull(loaded);
+        for (int color = 0; color <= 0xFFFFFF; color += 0x010307) {
+            assertEquals(built.lookup(color), loaded.lookup(color));
+        }
+
+        assertNull(MosaicColorLut.load(lutFile, new int[]{0xFF0000, 0x00FF00, 0x0000FF, 0xFFFFFF, 0x111111}, 4));
+        assertNull(MosaicColorLut.load(lutFile, PALETTE, 5));
+    }
+}
@@ -0,0 +1,32 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MosaicColorQuantizerTest {
+
+    @Test
+    public void quantize_withAllBitsAndNoDeltaE_onlyMakesOpaque() throws Exception {
+        MosaicColorQuantizer quantizer = new MosaicColorQuantizer(8, 0);
+        assertTrue(quantizer.isIdentity());
+        assertEquals(0xFF123456, quantizer.quantize(0x00123456));
+    }
+
+    @Test
+    public void quantize_withFewerBits_snapsToMiddleOfBucket() throws Exception {
+        MosaicColorQuantizer quantizer = new MosaicColorQuantizer(4, 0);
+        assertEquals(0xFF183858, quantizer.quantize(0xFF123456));
+        assertEquals(0xFF183858, quantizer.quantize(0xFF1F3F5F));
+        assertEquals(0xFF081828, quantizer.quantize(0xFF001020));
+    }
+
+    @Test
+    public void quantize_withDeltaE_reusesEarlierSimilarColorOnly() throws Exception {
+        MosaicColorQuantizer quantizer = new MosaicColorQuantizer(8, 3.0);
+        assertEquals(0xFF808080, quantizer.quantize(0xFF808080));
+        assertEquals(0xFF808080, quantizer.quantize(0xFF818181));
+        assertEquals(0xFFFF0000, quantizer.quantize(0xFFFF0000));
+        assertEquals(0xFF808080, quantizer.quantize(0xFF7F7F80));
+    }
+}
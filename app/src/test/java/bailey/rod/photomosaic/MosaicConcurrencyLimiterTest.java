@@ -0,0 +1,80 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MosaicConcurrencyLimiterTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void onSuccess_growsLimitWhileBusyAndFast() throws Exception {
+        MosaicConcurrencyLimiter limiter = new MosaicConcurrencyLimiter(4, 1, 6);
+
+        for (int round = 0; round < 50; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                assertTrue(limiter.tryAcquire());
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.onSuccess(10 * MILLIS);
+            }
+        }
+
+        assertEquals(6, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(10 * MILLIS, limiter.getLatencyNanos());
+        assertEquals(10 * MILLIS, limiter.getBaselineLatencyNanos());
+    }
+
+    @Test
+    public void onSuccessAndOnFailure_shrinkLimitWhenSlowOrFailingButNotBelowMin() throws Exception {
+        MosaicConcurrencyLimiter limiter = new MosaicConcurrencyLimiter(10, 2, 20);
+        assertTrue(limiter.tryAcquire());
+        limiter.onSuccess(10 * MILLIS);
+
+        // Requests queueing at the server make every fetch far slower than the baseline
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onSuccess(100 * MILLIS);
+        }
+        int slowLimit = limiter.getLimit();
+        assertTrue("limit " + slowLimit, slowLimit < 10);
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onFailure();
+        }
+        assertEquals(2, limiter.getLimit());
+
+        // Cancelled fetches say nothing about the server
+        assertTrue(limiter.tryAcquire());
+        limiter.onIgnore();
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void tryAcquire_refusesAtLimitUntilAFetchEnds() throws Exception {
+        MosaicConcurrencyLimiter limiter = new MosaicConcurrencyLimiter(2, 2, 2);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        // However the fetch ends, it makes room for another
+        limiter.onSuccess(MILLIS);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        limiter.onIgnore();
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        limiter.onFailure();
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+    }
+}
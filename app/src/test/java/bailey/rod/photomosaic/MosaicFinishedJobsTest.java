@@ -0,0 +1,67 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class MosaicFinishedJobsTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("finished", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void isFinished_remembersFinishedJobsAcrossRestarts() throws Exception {
+        MosaicFinishedJobs finishedJobs = new MosaicFinishedJobs(directory);
+        assertFalse(finishedJobs.isFinished(1L));
+        finishedJobs.markFinished(1L);
+        finishedJobs.markFinished(3L);
+
+        // As after the process was killed and the jobs redelivered
+        MosaicFinishedJobs afterRestart = new MosaicFinishedJobs(directory);
+        assertTrue(afterRestart.isFinished(1L));
+        assertFalse(afterRestart.isFinished(2L));
+        assertTrue(afterRestart.isFinished(3L));
+    }
+
+    @Test
+    public void markFinished_canRecordSameJobAgain() throws Exception {
+        MosaicFinishedJobs finishedJobs = new MosaicFinishedJobs(directory);
+        finishedJobs.markFinished(7L);
+        finishedJobs.markFinished(7L);
+        assertTrue(finishedJobs.isFinished(7L));
+    }
+
+    @Test
+    public void clear_forgetsEveryJob() throws Exception {
+        MosaicFinishedJobs finishedJobs = new MosaicFinishedJobs(directory);
+        finishedJobs.clear();
+        finishedJobs.markFinished(1L);
+        finishedJobs.markFinished(2L);
+
+        finishedJobs.clear();
+
+        assertFalse(finishedJobs.isFinished(1L));
+        assertFalse(finishedJobs.isFinished(2L));
+        assertFalse(new MosaicFinishedJobs(directory).isFinished(1L));
+    }
+}
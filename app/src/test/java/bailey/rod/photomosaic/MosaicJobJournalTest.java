@@ -0,0 +1,78 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class MosaicJobJournalTest {
+
+    private static final String PARAMS = "4000x3000 tile=32x32";
+
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        journalFile = File.createTempFile("mosaic", ".journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journalFile.delete();
+    }
+
+    @Test
+    public void resume_remembersCompletedTilesOfSameJob() throws Exception {
+        MosaicJobJournal journal = MosaicJobJournal.create(journalFile, PARAMS, 42L, 100);
+        assertFalse(journal.isResumed());
+        journal.markComplete(0);
+        journal.markComplete(9);
+        journal.markComplete(99);
+        journal.markComplete(100);
+        journal.close();
+
+        MosaicJobJournal resumed = MosaicJobJournal.resume(journalFile, PARAMS, 42L);
+        assertNotNull(resumed);
+        assertTrue(resumed.isResumed());
+        assertTrue(resumed.isComplete(0));
+        assertTrue(resumed.isComplete(9));
+        assertTrue(resumed.isComplete(99));
+        assertFalse(resumed.isComplete(8));
+        assertFalse(resumed.isComplete(100));
+        assertEquals(3, resumed.getCompletedCount());
+        resumed.close();
+    }
+
+    @Test
+    public void resume_returnsNullForDifferentJobOrSource() throws Exception {
+        assertNull(MosaicJobJournal.resume(journalFile, PARAMS, 42L));
+
+        MosaicJobJournal journal = MosaicJobJournal.create(journalFile, PARAMS, 42L, 100);
+        journal.markComplete(5);
+        journal.close();
+
+        assertNull(MosaicJobJournal.resume(journalFile, PARAMS, 43L));
+        assertNull(MosaicJobJournal.resume(journalFile, "4000x3000 tile=16x16", 42L));
+
+        // Creating afresh forgets every tile
+        MosaicJobJournal fresh = MosaicJobJournal.create(journalFile, PARAMS, 42L, 100);
+        assertEquals(0, fresh.getCompletedCount());
+        fresh.close();
+    }
+
+    @Test
+    public void fingerprint_differsWhenContentDiffers() throws Exception {
+        long first = MosaicJobJournal.fingerprint(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        long same = MosaicJobJournal.fingerprint(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        long edited = MosaicJobJournal.fingerprint(new ByteArrayInputStream(new byte[]{1, 2, 4}));
+        long longer = MosaicJobJournal.fingerprint(new ByteArrayInputStream(new byte[]{1, 2, 3, 0}));
+
+        assertEquals(first, same);
+        assertTrue(first != edited);
+        assertTrue(first != longer);
+    }
+}
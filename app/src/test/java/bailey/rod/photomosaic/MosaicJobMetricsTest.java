@@ -0,0 +1,55 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MosaicJobMetricsTest {
+
+    @Test
+    public void summary_reportsStagesCountersQueueDepthsAndGauges() throws Exception {
+        MosaicJobMetrics metrics = new MosaicJobMetrics("test.jpg");
+        metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, metrics.start());
+        metrics.stop(MosaicJobMetrics.Stage.TILE_FETCH, metrics.start());
+        metrics.add(MosaicJobMetrics.Counter.TILES, 4);
+        metrics.increment(MosaicJobMetrics.Counter.MEMORY_CACHE_HITS);
+        metrics.increment(MosaicJobMetrics.Counter.MEMORY_CACHE_MISSES);
+        metrics.sampleQueueDepth(MosaicJobMetrics.Queue.TILES_IN_FLIGHT, 10);
+        metrics.sampleQueueDepth(MosaicJobMetrics.Queue.TILES_IN_FLIGHT, 30);
+        metrics.sampleGauge(MosaicJobMetrics.Gauge.FETCH_LIMIT, 10);
+        metrics.sampleGauge(MosaicJobMetrics.Gauge.FETCH_LIMIT, 13);
+        metrics.finish();
+
+        assertEquals(2, metrics.getStage(MosaicJobMetrics.Stage.TILE_FETCH).getCount());
+        assertEquals(0, metrics.getStage(MosaicJobMetrics.Stage.COMPOSITE).getCount());
+        assertEquals(4, metrics.getCount(MosaicJobMetrics.Counter.TILES));
+        assertEquals(30, metrics.getMaxQueueDepth(MosaicJobMetrics.Queue.TILES_IN_FLIGHT));
+        assertEquals(13, metrics.getLastGauge(MosaicJobMetrics.Gauge.FETCH_LIMIT));
+        assertEquals(metrics.getElapsedNanos(), metrics.getElapsedNanos());
+
+        String summary = metrics.summary();
+        assertTrue(summary, summary.startsWith("Job test.jpg: "));
+        assertTrue(summary, summary.contains("TILE_FETCH      n=2 "));
+        assertTrue(summary, summary.contains("memory cache hit rate 50.0%"));
+        assertTrue(summary, summary.contains("TILES_IN_FLIGHT depth mean=20.0 max=30"));
+        assertTrue(summary, summary.contains("FETCH_LIMIT         mean=11.5 last=13"));
+    }
+
+    @Test
+    public void writeSummary_writesSummaryToFile() throws Exception {
+        MosaicJobMetrics metrics = new MosaicJobMetrics("test.jpg");
+        metrics.finish();
+        File dumpFile = File.createTempFile("metrics", ".txt");
+        try {
+            metrics.writeSummary(dumpFile);
+            String written = new String(Files.readAllBytes(dumpFile.toPath()), Charset.forName("UTF-8"));
+            assertEquals(metrics.summary(), written);
+        } finally {
+            dumpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MosaicJobQueueTest {
+
+    private final CountDownLatch idle = new CountDownLatch(1);
+
+    private final MosaicJobQueue queue = new MosaicJobQueue(1, new Runnable() {
+        @Override
+        public void run() {
+            idle.countDown();
+        }
+    });
+
+    // IDs of the jobs run, in the order they were run
+    private final List<Long> runOrder = Collections.synchronizedList(new ArrayList<Long>());
+
+    @After
+    public void tearDown() throws Exception {
+        queue.shutdown();
+    }
+
+    @Test
+    public void enqueue_runsHighestPriorityFirstThenInOrderQueued() throws Exception {
+        // Hold the only job thread until every other job has been queued
+        CountDownLatch release = new CountDownLatch(1);
+        queue.enqueue(1, 0, new MosaicCancellationToken(), blocker(1, release));
+
+        queue.enqueue(2, 0, new MosaicCancellationToken(), recorder(2));
+        queue.enqueue(3, 5, new MosaicCancellationToken(), recorder(3));
+        queue.enqueue(4, 0, new MosaicCancellationToken(), recorder(4));
+        queue.enqueue(5, 5, new MosaicCancellationToken(), recorder(5));
+        assertEquals(4, queue.getQueuedCount());
+
+        release.countDown();
+
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1L, 3L, 5L, 2L, 4L), runOrder);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void cancel_cancelsTokenOfQueuedJob() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        queue.enqueue(1, 0, new MosaicCancellationToken(), blocker(1, release));
+        final MosaicCancellationToken token = new MosaicCancellationToken();
+        final boolean[] sawCancelled = new boolean[1];
+        queue.enqueue(2, 0, token, new Runnable() {
+            @Override
+            public void run() {
+                sawCancelled[0] = token.isCancelled();
+            }
+        });
+
+        assertTrue(queue.cancel(2));
+        assertFalse(queue.cancel(99));
+        release.countDown();
+
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        assertTrue(sawCancelled[0]);
+        assertFalse(queue.cancel(2));
+    }
+
+    private Runnable recorder(final long jobId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runOrder.add(jobId);
+            }
+        };
+    }
+
+    private Runnable blocker(final long jobId, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runOrder.add(jobId);
+                try {
+                    release.await();
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,91 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class MosaicJpegEncoderTest {
+
+    @Test
+    public void writeRows_encodesImageFedInUnevenBandsThatDecodesToSamePixels() throws Exception {
+        // Neither side a multiple of the 8 pixel block size
+        int width = 37;
+        int height = 29;
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Solid blocks of color, as in a mosaic, over a gentle gradient
+                int r = ((x / 12) % 2 == 0) ? 200 : 40;
+                int g = (y * 255) / height;
+                int b = ((x / 12 + y / 10) % 3) * 100;
+                pixels[(y * width) + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MosaicJpegEncoder encoder = new MosaicJpegEncoder(out, width, height, 100);
+        int[] bandHeights = {3, 8, 13, 5};
+        int y = 0;
+        for (int bandHeight : bandHeights) {
+            encoder.writeRows(pixels, y * width, width, bandHeight);
+            y += bandHeight;
+        }
+        assertEquals(height, y);
+        encoder.finish();
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(decoded);
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        int maxError = 0;
+        for (y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = pixels[(y * width) + x];
+                int actual = decoded.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int error = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                    maxError = Math.max(maxError, error);
+                }
+            }
+        }
+        assertTrue("max error " + maxError, maxError <= 8);
+    }
+
+    @Test
+    public void constructor_lowerQualityMakesSmallerFile() throws Exception {
+        int width = 64;
+        int height = 48;
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // Noise, which compresses poorly at best quality
+            pixels[i] = 0xFF000000 | (int) ((i * 2654435761L) & 0xFFFFFF);
+        }
+
+        byte[] best = encode(pixels, width, height, 100);
+        byte[] small = encode(pixels, width, height, 30);
+
+        assertTrue(small.length < best.length);
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(small)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finish_refusesImageWithRowsMissing() throws Exception {
+        MosaicJpegEncoder encoder = new MosaicJpegEncoder(new ByteArrayOutputStream(), 16, 16, 90);
+        encoder.writeRows(new int[16 * 8], 0, 16, 8);
+        encoder.finish();
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, int quality) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MosaicJpegEncoder encoder = new MosaicJpegEncoder(out, width, height, quality);
+        encoder.writeRows(pixels, 0, width, height);
+        encoder.finish();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,37 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MosaicLatencyHistogramTest {
+
+    @Test
+    public void percentileNanos_isWithinFactorOf2AndNeverAboveMax() throws Exception {
+        MosaicLatencyHistogram histogram = new MosaicLatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050000L, histogram.getTotalNanos());
+        assertEquals(100000L, histogram.getMaxNanos());
+
+        long median = histogram.percentileNanos(0.5);
+        assertTrue("median " + median, (median >= 50000L) && (median < 100000L));
+        assertEquals(100000L, histogram.percentileNanos(1.0));
+    }
+
+    @Test
+    public void record_countsNegativeAndZeroDurationsAsZero() throws Exception {
+        MosaicLatencyHistogram histogram = new MosaicLatencyHistogram();
+        assertEquals(0, histogram.percentileNanos(0.99));
+
+        histogram.record(-5);
+        histogram.record(0);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getTotalNanos());
+        assertEquals(0, histogram.percentileNanos(0.99));
+    }
+}
@@ -0,0 +1,84 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MosaicQuadtreeTilerTest {
+
+    @Test
+    public void tileBand_flatBandIsCoveredByMaxSizeTiles() throws Exception {
+        int[] band = new int[100 * 64];
+        Arrays.fill(band, 0xFF336699);
+
+        List<int[]> tiles = tile(new MosaicQuadtreeTiler(8, 8, 64, 64, 10.0), band, 100, 64);
+
+        assertEquals(2, tiles.size());
+        assertArrayEquals(new int[]{0, 0, 64, 64, 0xFF336699}, tiles.get(0));
+        assertArrayEquals(new int[]{64, 0, 36, 64, 0xFF336699}, tiles.get(1));
+    }
+
+    @Test
+    public void tileBand_detailedQuarterIsSplitDownToMinSize() throws Exception {
+        int[] band = new int[64 * 64];
+        Arrays.fill(band, 0xFF808080);
+        Random random = new Random(7);
+        for (int y = 32; y < 64; y++) {
+            for (int x = 32; x < 64; x++) {
+                band[(y * 64) + x] = random.nextInt();
+            }
+        }
+
+        List<int[]> tiles = tile(new MosaicQuadtreeTiler(8, 8, 64, 64, 10.0), band, 64, 64);
+
+        // Three flat 32x32 quarters, and the noisy quarter in 16 tiles of 8x8
+        assertEquals(3 + 16, tiles.size());
+        for (int[] tile : tiles) {
+            boolean noisy = (tile[0] >= 32) && (tile[1] >= 32);
+            assertEquals(noisy ? 8 : 32, tile[2]);
+            assertEquals(noisy ? 8 : 32, tile[3]);
+            assertEquals(MosaicTileAverager.averageColor(band, (tile[1] * 64) + tile[0], 64, tile[2], tile[3]),
+                         tile[4]);
+        }
+    }
+
+    @Test
+    public void tileBand_everyPixelIsCoveredExactlyOnce() throws Exception {
+        int width = 203;
+        int height = 77;
+        int[] band = new int[width * height];
+        Random random = new Random(42);
+        for (int i = 0; i < band.length; i++) {
+            band[i] = random.nextBoolean() ? random.nextInt() : 0xFF000000;
+        }
+
+        int[] coverCount = new int[band.length];
+        for (int[] tile : tile(new MosaicQuadtreeTiler(5, 7, 50, 40, 1000.0), band, width, height)) {
+            for (int y = tile[1]; y < tile[1] + tile[3]; y++) {
+                for (int x = tile[0]; x < tile[0] + tile[2]; x++) {
+                    coverCount[(y * width) + x]++;
+                }
+            }
+        }
+
+        for (int i = 0; i < coverCount.length; i++) {
+            assertEquals("pixel " + i, 1, coverCount[i]);
+        }
+    }
+
+    private static List<int[]> tile(MosaicQuadtreeTiler tiler, int[] band, int width, int height) {
+        final List<int[]> tiles = new ArrayList<int[]>();
+        tiler.tileBand(band, 0, width, width, height, new MosaicQuadtreeTiler.TileSink() {
+            @Override
+            public void tile(int x, int y, int tileWidth, int tileHeight, int averageColor) {
+                tiles.add(new int[]{x, y, tileWidth, tileHeight, averageColor});
+            }
+        });
+        return tiles;
+    }
+}
@@ -0,0 +1,153 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MosaicSingleFlightTest {
+
+    private static final int CALLER_COUNT = 8;
+
+    private final MosaicSingleFlight<String, Object> flight = new MosaicSingleFlight<String, Object>();
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(CALLER_COUNT);
+
+    @After
+    public void tearDown() throws Exception {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void load_runsLoaderOnceAndSharesResultWithEveryCaller() throws Exception {
+        final Object result = new Object();
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Object>> results = loadConcurrently(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                loadCount.incrementAndGet();
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+                return result;
+            }
+        });
+        awaitCoalescedCount(CALLER_COUNT - 1);
+        release.countDown();
+
+        for (Future<Object> future : results) {
+            assertSame(result, future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    public void load_throwsLoadersExceptionToEveryCallerThenLoadsAfresh() throws Exception {
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Object>> results = loadConcurrently(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                loadCount.incrementAndGet();
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+                throw new IllegalStateException("no tile");
+            }
+        });
+        awaitCoalescedCount(CALLER_COUNT - 1);
+        release.countDown();
+
+        for (Future<Object> future : results) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Expected the loader's exception");
+            } catch (ExecutionException eex) {
+                assertTrue(eex.getCause() instanceof IllegalStateException);
+                assertEquals("no tile", eex.getCause().getMessage());
+            }
+        }
+        assertEquals(1, loadCount.get());
+
+        // The failed load is over, so the key is free for another
+        assertEquals("again", flight.load("key", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                loadCount.incrementAndGet();
+                return "again";
+            }
+        }));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    public void join_makesFirstCallerLeaderAndFinishTellsEveryListener() throws Exception {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        RecordingListener third = new RecordingListener();
+
+        assertTrue(flight.join("key", first));
+        assertFalse(flight.join("key", second));
+        assertFalse(flight.join("key", third));
+        assertEquals(2, flight.getCoalescedCount());
+        assertEquals(0, first.values.size());
+
+        flight.finish("key", "tile");
+
+        assertEquals("tile", first.values.get(0));
+        assertEquals("tile", second.values.get(0));
+        assertEquals("tile", third.values.get(0));
+
+        // The next caller leads a new load, and listeners of the last one aren't told again
+        RecordingListener later = new RecordingListener();
+        assertTrue(flight.join("key", later));
+        flight.finish("key", null);
+        assertEquals(1, later.values.size());
+        assertNull(later.values.get(0));
+        assertEquals(1, first.values.size());
+    }
+
+    private List<Future<Object>> loadConcurrently(final Callable<Object> loader) {
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < CALLER_COUNT; i++) {
+            results.add(callers.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return flight.load("key", loader);
+                }
+            }));
+        }
+        return results;
+    }
+
+    /**
+     * Waits until that many callers are waiting on a load already in flight
+     */
+    private void awaitCoalescedCount(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((flight.getCoalescedCount() < count) && (System.nanoTime() < deadline)) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, flight.getCoalescedCount());
+    }
+
+    private static class RecordingListener implements MosaicSingleFlight.Listener<Object> {
+
+        final List<Object> values = new ArrayList<Object>();
+
+        @Override
+        public void loaded(Object value) {
+            values.add(value);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class MosaicTileAtlasTest {
+
+    private File atlasFile;
+
+    @Before
+    public void setUp() throws Exception {
+        atlasFile = File.createTempFile("tiles", ".atlas");
+        atlasFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        atlasFile.delete();
+    }
+
+    @Test
+    public void open_returnsThumbnailsAndColorsWritten() throws Exception {
+        MosaicTileAtlas.Writer writer = new MosaicTileAtlas.Writer(atlasFile, 2, 3, 1234L);
+        assertEquals(0, writer.add(new int[]{1, 2, 3, 4, 5, 6}, 0xFF112233));
+        assertEquals(1, writer.add(new int[]{7, 8, 9, 10, 11, 12}, 0xFF445566));
+        writer.finish();
+
+        MosaicTileAtlas atlas = MosaicTileAtlas.open(atlasFile);
+        assertEquals(2, atlas.getTileWidth());
+        assertEquals(3, atlas.getTileHeight());
+        assertEquals(2, atlas.getCount());
+        assertEquals(1234L, atlas.getSignature());
+        assertArrayEquals(new int[]{0xFF112233, 0xFF445566}, atlas.getColors());
+
+        int[] tile = new int[6];
+        atlas.readTile(1, tile);
+        assertArrayEquals(new int[]{7, 8, 9, 10, 11, 12}, tile);
+        atlas.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsAbandonedAtlas() throws Exception {
+        MosaicTileAtlas.Writer writer = new MosaicTileAtlas.Writer(atlasFile, 2, 2, 0L);
+        writer.add(new int[]{1, 2, 3, 4}, 0xFF000000);
+        writer.abandon();
+
+        MosaicTileAtlas.open(atlasFile);
+    }
+}
@@ -0,0 +1,129 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class MosaicTileAveragerTest {
+
+    @Test
+    public void averageColor_isTruncatedMeanOfEachComponent() throws Exception {
+        int[] pixels = {0xFF000000, 0xFF0A1403, 0x80FFFFFF, 0xFF010101};
+        assertEquals(0xFF424540, MosaicTileAverager.averageColor(pixels, 0, 2, 2, 2));
+    }
+
+    @Test
+    public void averageBand_matchesPerTileAverageIncludingNarrowLastTile() throws Exception {
+        int bandWidth = 103;
+        int bandHeight = 7;
+        int tileWidth = 10;
+        int[] band = new int[bandWidth * bandHeight];
+        Random random = new Random(42);
+        for (int i = 0; i < band.length; i++) {
+            band[i] = random.nextInt();
+        }
+
+        int tileCount = MosaicTileAverager.tileCount(bandWidth, tileWidth);
+        assertEquals(11, tileCount);
+
+        int[] averages = new int[tileCount];
+        new MosaicTileAverager(new ForkJoinPool(4)).averageBand(band, bandWidth, bandHeight, tileWidth, averages);
+
+        for (int tile = 0; tile < tileCount; tile++) {
+            int left = tile * tileWidth;
+            int width = Math.min(tileWidth, bandWidth - left);
+            assertEquals("tile " + tile,
+                         MosaicTileAverager.averageColor(band, left, bandWidth, width, bandHeight),
+                         averages[tile]);
+        }
+    }
+
+    @Test
+    public void averageAndFillBand_fillsEachTileWithItsQuantizedAverage() throws Exception {
+        int bandWidth = 103;
+        int bandHeight = 7;
+        int tileWidth = 10;
+        int[] band = new int[bandWidth * bandHeight];
+        Random random = new Random(7);
+        for (int i = 0; i < band.length; i++) {
+            band[i] = random.nextInt();
+        }
+        int[] original = band.clone();
+
+        MosaicColorQuantizer quantizer = new MosaicColorQuantizer(4, 0);
+        int[] colors = new int[MosaicTileAverager.tileCount(bandWidth, tileWidth)];
+        new MosaicTileAverager(new ForkJoinPool(4)).averageAndFillBand(band, bandWidth, bandHeight, tileWidth,
+                                                                       colors, quantizer,
+                                                                       MosaicTileAverager.SOLID_PAINTER);
+
+        for (int tile = 0; tile < colors.length; tile++) {
+            int left = tile * tileWidth;
+            int width = Math.min(tileWidth, bandWidth - left);
+            int expected = quantizer.quantize(MosaicTileAverager.averageColor(original, left, bandWidth, width,
+                                                                              bandHeight));
+            assertEquals("tile " + tile, expected, colors[tile]);
+            for (int y = 0; y < bandHeight; y++) {
+                for (int x = left; x < left + width; x++) {
+                    assertEquals(expected, band[(y * bandWidth) + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void averageAndFillBand_snapsColorsInTileOrderWhateverThreadsDoTheWork() throws Exception {
+        int bandWidth = 640;
+        int bandHeight = 4;
+        int tileWidth = 4;
+        int[] band = new int[bandWidth * bandHeight];
+        for (int y = 0; y < bandHeight; y++) {
+            for (int x = 0; x < bandWidth; x++) {
+                // A slow ramp, so that each tile's color is within the threshold of its neighbours'
+                int level = x / 8;
+                band[(y * bandWidth) + x] = 0xFF000000 | (level << 16) | (level << 8) | level;
+            }
+        }
+
+        // Snapped one after another, from the left
+        MosaicColorQuantizer inOrder = new MosaicColorQuantizer(8, 2.3);
+        int[] expected = new int[MosaicTileAverager.tileCount(bandWidth, tileWidth)];
+        for (int tile = 0; tile < expected.length; tile++) {
+            expected[tile] = inOrder.quantize(MosaicTileAverager.averageColor(band, tile * tileWidth, bandWidth,
+                                                                              tileWidth, bandHeight));
+        }
+
+        MosaicTileAverager averager = new MosaicTileAverager(new ForkJoinPool(8));
+        for (int run = 0; run < 20; run++) {
+            int[] colors = new int[expected.length];
+            averager.averageAndFillBand(band.clone(), bandWidth, bandHeight, tileWidth, colors,
+                                        new MosaicColorQuantizer(8, 2.3), MosaicTileAverager.SOLID_PAINTER);
+            for (int tile = 0; tile < expected.length; tile++) {
+                assertEquals("run " + run + ", tile " + tile, expected[tile], colors[tile]);
+            }
+        }
+    }
+
+    @Test
+    public void averageAndFillBand_withoutPainterOnlySnapsColors() throws Exception {
+        int bandWidth = 50;
+        int bandHeight = 3;
+        int[] band = new int[bandWidth * bandHeight];
+        Random random = new Random(3);
+        for (int i = 0; i < band.length; i++) {
+            band[i] = random.nextInt();
+        }
+        int[] original = band.clone();
+
+        int[] colors = new int[MosaicTileAverager.tileCount(bandWidth, 10)];
+        new MosaicTileAverager(new ForkJoinPool(4)).averageAndFillBand(band, bandWidth, bandHeight, 10, colors,
+                                                                       new MosaicColorQuantizer(4, 0), null);
+
+        assertArrayEquals(original, band);
+        assertEquals(new MosaicColorQuantizer(4, 0).quantize(MosaicTileAverager.averageColor(original, 0, bandWidth,
+                                                                                             10, bandHeight)),
+                     colors[0]);
+    }
+}
@@ -0,0 +1,160 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MosaicTileClientTest {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private final MosaicCancellationToken token = new MosaicCancellationToken();
+
+    private MosaicTileStandInServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void fetch_reusesOneConnectionForSequentialTiles() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        MosaicTileClient client = new MosaicTileClient(server.tileUrlFormat(), null, TIMEOUT_MS, TIMEOUT_MS);
+
+        for (int color = 0; color < 20; color++) {
+            byte[] tile = client.fetch(new MosaicTileKey(32, 32, color), token);
+            assertArrayEquals(MosaicTileStandInServer.tileBody(String.format("32 32 %06x", color)), tile);
+        }
+
+        assertEquals(20, server.getTileRequestCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void fetchBatch_returnsEveryTileInOneRequest() throws Exception {
+        server = new MosaicTileStandInServer(true);
+        MosaicTileClient client = new MosaicTileClient(server.tileUrlFormat(), server.batchUrl(), TIMEOUT_MS,
+                                                       TIMEOUT_MS);
+        List<MosaicTileKey> keys = Arrays.asList(new MosaicTileKey(32, 32, 0xFF0000),
+                                                 new MosaicTileKey(8, 32, 0xABCDEF));
+
+        Map<MosaicTileKey, byte[]> tiles = client.fetchBatch(keys, token);
+
+        assertEquals(2, tiles.size());
+        assertArrayEquals(MosaicTileStandInServer.tileBody("8 32 abcdef"), tiles.get(keys.get(1)));
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(0, server.getTileRequestCount());
+        assertTrue(client.isBatchSupported());
+    }
+
+    @Test
+    public void fetchBatch_disablesBatchingWhenServerDoesNotSupportIt() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        MosaicTileClient client = new MosaicTileClient(server.tileUrlFormat(), server.batchUrl(), TIMEOUT_MS,
+                                                       TIMEOUT_MS);
+        List<MosaicTileKey> keys = Arrays.asList(new MosaicTileKey(32, 32, 1), new MosaicTileKey(32, 32, 2));
+
+        MosaicTileBatch batch = new MosaicTileBatch(client, keys, token);
+
+        assertNull(batch.get(keys.get(0)));
+        assertNull(batch.get(keys.get(1)));
+        assertFalse(client.isBatchSupported());
+        assertNull(client.fetchBatch(keys, token));
+        assertEquals(1, server.getBatchRequestCount());
+    }
+
+    @Test
+    public void batchGet_makesOneRequestAndNeverHoldsUpTilesOutsideBatch() throws Exception {
+        server = new MosaicTileStandInServer(true);
+        server.setBatchDelayMillis(1000);
+        MosaicTileClient client = new MosaicTileClient(server.tileUrlFormat(), server.batchUrl(), TIMEOUT_MS,
+                                                       TIMEOUT_MS);
+        final List<MosaicTileKey> keys = Arrays.asList(new MosaicTileKey(32, 32, 1), new MosaicTileKey(32, 32, 2));
+        final MosaicTileBatch batch = new MosaicTileBatch(client, keys, token);
+        final AtomicReference<byte[]> second = new AtomicReference<byte[]>();
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                batch.get(keys.get(0));
+            }
+        });
+        first.start();
+        while (server.getBatchRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                second.set(batch.get(keys.get(1)));
+            }
+        });
+        waiter.start();
+
+        // The batch request is still in flight, but a tile outside it is answered at once
+        long start = System.nanoTime();
+        assertNull(batch.get(new MosaicTileKey(32, 32, 3)));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        waiter.join(TIMEOUT_MS);
+        first.join(TIMEOUT_MS);
+        assertArrayEquals(MosaicTileStandInServer.tileBody("32 32 000002"), second.get());
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(0, server.getTileRequestCount());
+    }
+
+    @Test
+    public void fetch_cancelDisconnectsRequestInFlight() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        server.setTileDelayMillis(TIMEOUT_MS);
+        final MosaicTileClient client = new MosaicTileClient(server.tileUrlFormat(), null, TIMEOUT_MS,
+                                                             TIMEOUT_MS);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread fetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.fetch(new MosaicTileKey(32, 32, 1), token);
+                } catch (Exception ex) {
+                    failure.set(ex);
+                }
+            }
+        });
+
+        fetcher.start();
+        while (server.getTileRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        long cancelledAt = System.nanoTime();
+        token.cancel();
+        fetcher.join(TIMEOUT_MS);
+
+        assertFalse(fetcher.isAlive());
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof InterruptedIOException);
+        assertTrue(System.nanoTime() - cancelledAt < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS / 2));
+    }
+
+    @Test
+    public void fetch_failsWhenServerIsSlowerThanReadTimeout() throws Exception {
+        server = new MosaicTileStandInServer(false);
+        server.setTileDelayMillis(2000);
+        MosaicTileClient client = new MosaicTileClient(server.tileUrlFormat(), null, TIMEOUT_MS, 100);
+
+        try {
+            client.fetch(new MosaicTileKey(32, 32, 1), token);
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException stex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package bailey.rod.photomosaic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class MosaicTileDiskCacheTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("tiles", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void get_returnsTilesPutBeforeReopening() throws Exception {
+        MosaicTileDiskCache cache = new MosaicTileDiskCache(directory, 1000, 16);
+        cache.put(new MosaicTileKey(32, 32, 0x112233), new byte[]{1, 2, 3});
+        cache.put(new MosaicTileKey(32, 16, 0x112233), new byte[]{4, 5});
+        cache.close();
+
+        cache = new MosaicTileDiskCache(directory, 1000, 16);
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get(new MosaicTileKey(32, 32, 0xFF112233)));
+        assertArrayEquals(new byte[]{4, 5}, cache.get(new MosaicTileKey(32, 16, 0x112233)));
+        assertNull(cache.get(new MosaicTileKey(16, 16, 0x112233)));
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(5, cache.getTotalBytes());
+        cache.close();
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedTilesWhenOverBudget() throws Exception {
+        MosaicTileDiskCache cache = new MosaicTileDiskCache(directory, 100, 64);
+        for (int color = 1; color <= 10; color++) {
+            cache.put(new MosaicTileKey(8, 8, color), new byte[10]);
+        }
+        cache.get(new MosaicTileKey(8, 8, 1));
+        cache.put(new MosaicTileKey(8, 8, 11), new byte[10]);
+
+        assertNotNull(cache.get(new MosaicTileKey(8, 8, 1)));
+        assertNull(cache.get(new MosaicTileKey(8, 8, 2)));
+        assertNotNull(cache.get(new MosaicTileKey(8, 8, 11)));
+        assertTrue(cache.getTotalBytes() <= 90);
+        cache.close();
+    }
+
+    @Test
+    public void get_dropsEntryWhoseFileWentMissing() throws Exception {
+        MosaicTileDiskCache cache = new MosaicTileDiskCache(directory, 1000, 16);
+        MosaicTileKey key = new MosaicTileKey(4, 4, 0xABCDEF);
+        cache.put(key, new byte[]{9});
+        deleteTileFiles();
+
+        assertNull(cache.get(key));
+        assertEquals(0, cache.getEntryCount());
+        cache.close();
+    }
+
+    @Test
+    public void put_sameTileFromManyThreadsAtOnceLeavesOneReadableEntry() throws Exception {
+        final MosaicTileDiskCache cache = new MosaicTileDiskCache(directory, 1000, 16);
+        final MosaicTileKey key = new MosaicTileKey(8, 8, 0x445566);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20; j++) {
+                        cache.put(key, new byte[]{7, 8, 9});
+                        cache.get(key);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertArrayEquals(new byte[]{7, 8, 9}, cache.get(key));
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(3, cache.getTotalBytes());
+        for (File file : directory.listFiles()) {
+            assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+        }
+        cache.close();
+    }
+
+    private void deleteTileFiles() throws IOException {
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".tile")) {
+                file.delete();
+            }
+        }
+    }
+}
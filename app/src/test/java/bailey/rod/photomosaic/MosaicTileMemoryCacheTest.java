@@ -0,0 +1,57 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MosaicTileMemoryCacheTest {
+
+    private static final MosaicTileMemoryCache.Sizer<byte[]> BYTE_ARRAY_SIZER =
+            new MosaicTileMemoryCache.Sizer<byte[]>() {
+                @Override
+                public int sizeOf(byte[] value) {
+                    return value.length;
+                }
+            };
+
+    @Test
+    public void get_keyIgnoresAlphaAndCountsHitsAndMisses() throws Exception {
+        MosaicTileMemoryCache<byte[]> cache = new MosaicTileMemoryCache<byte[]>(100, BYTE_ARRAY_SIZER);
+        byte[] tile = new byte[10];
+        cache.put(new MosaicTileKey(32, 32, 0xFF123456), tile);
+
+        assertSame(tile, cache.get(new MosaicTileKey(32, 32, 0x00123456)));
+        assertNull(cache.get(new MosaicTileKey(32, 16, 0xFF123456)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedUntilWithinByteBudget() throws Exception {
+        MosaicTileMemoryCache<byte[]> cache = new MosaicTileMemoryCache<byte[]>(100, BYTE_ARRAY_SIZER);
+        MosaicTileKey a = new MosaicTileKey(1, 1, 1);
+        MosaicTileKey b = new MosaicTileKey(1, 1, 2);
+        MosaicTileKey c = new MosaicTileKey(1, 1, 3);
+
+        cache.put(a, new byte[40]);
+        cache.put(b, new byte[40]);
+        cache.get(a);
+        cache.put(c, new byte[40]);
+
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertEquals(80, cache.getCurrentBytes());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void put_ignoresTileLargerThanBudget() throws Exception {
+        MosaicTileMemoryCache<byte[]> cache = new MosaicTileMemoryCache<byte[]>(100, BYTE_ARRAY_SIZER);
+        cache.put(new MosaicTileKey(1, 1, 1), new byte[10]);
+        cache.put(new MosaicTileKey(1, 1, 2), new byte[101]);
+
+        assertNotNull(cache.get(new MosaicTileKey(1, 1, 1)));
+        assertEquals(10, cache.getCurrentBytes());
+    }
+}
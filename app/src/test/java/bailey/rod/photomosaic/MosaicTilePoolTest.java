@@ -0,0 +1,42 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MosaicTilePoolTest {
+
+    private static final MosaicTilePool.Factory<int[]> INT_ARRAY_FACTORY = new MosaicTilePool.Factory<int[]>() {
+        @Override
+        public int[] create(int width, int height) {
+            return new int[width * height];
+        }
+    };
+
+    @Test
+    public void acquire_reusesReleasedBufferOfSameSizeOnly() throws Exception {
+        MosaicTilePool<int[]> pool = new MosaicTilePool<int[]>(2, 4, INT_ARRAY_FACTORY);
+        int[] first = pool.acquire(32, 32);
+        pool.release(32, 32, first);
+
+        assertNotSame(first, pool.acquire(32, 16));
+        assertSame(first, pool.acquire(32, 32));
+        assertNotSame(first, pool.acquire(32, 32));
+        assertEquals(3, pool.getCreatedCount());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void release_dropsBuffersBeyondLimits() throws Exception {
+        MosaicTilePool<int[]> pool = new MosaicTilePool<int[]>(1, 1, INT_ARRAY_FACTORY);
+        int[] kept = new int[4];
+        pool.release(2, 2, kept);
+        pool.release(2, 2, new int[4]);
+        pool.release(1, 1, new int[1]);
+
+        assertSame(kept, pool.acquire(2, 2));
+        assertNotSame(kept, pool.acquire(2, 2));
+        pool.acquire(1, 1);
+        assertEquals(2, pool.getCreatedCount());
+    }
+}
@@ -0,0 +1,202 @@
+package bailey.rod.photomosaic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the mosaic tile server, so tile clients can be tested offline. Serves the single tile
+ * endpoint "/color/width/height/rrggbb" and, optionally, the batch endpoint "/batch" described in
+ * MosaicTileClient. Instead of an image, each tile's body is the ASCII text "width height rrggbb", which is
+ * enough for tests to check that the right tile came back. Single tile requests can be made to fail or stall, to
+ * test how clients cope with a server in trouble.
+ */
+public class MosaicTileStandInServer {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final HttpServer server;
+
+    private final AtomicInteger tileRequestCount = new AtomicInteger();
+
+    private final AtomicInteger batchRequestCount = new AtomicInteger();
+
+    // Remote ports seen, one per client connection
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    // Milliseconds to wait before answering each single tile request
+    private volatile int tileDelayMillis;
+
+    // Milliseconds to wait before answering each batch request
+    private volatile int batchDelayMillis;
+
+    // Number of single tile requests still to be answered with 503
+    private final AtomicInteger tilesToFail = new AtomicInteger();
+
+    // Number of single tile requests still to be stalled for stallMillis rather than tileDelayMillis
+    private final AtomicInteger tilesToStall = new AtomicInteger();
+
+    private volatile int stallMillis;
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @param batchSupported False to answer batch requests with 404, like a server that doesn't support them
+     */
+    public MosaicTileStandInServer(final boolean batchSupported) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+
+        server.createContext("/color/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                tileRequestCount.incrementAndGet();
+                if (takeOne(tilesToFail)) {
+                    respond(exchange, 503, new byte[0]);
+                    return;
+                }
+                sleepQuietly(takeOne(tilesToStall) ? stallMillis : tileDelayMillis);
+
+                String[] parts = exchange.getRequestURI().getPath().split("/");
+                respond(exchange, 200, tileBody(parts[2] + " " + parts[3] + " " + parts[4]));
+            }
+        });
+
+        server.createContext("/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                batchRequestCount.incrementAndGet();
+                sleepQuietly(batchDelayMillis);
+                if (!batchSupported) {
+                    drain(exchange.getRequestBody());
+                    respond(exchange, 404, new byte[0]);
+                    return;
+                }
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(body);
+                BufferedReader reader =
+                        new BufferedReader(new InputStreamReader(exchange.getRequestBody(), US_ASCII));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    byte[] tile = tileBody(line.trim());
+                    out.writeInt(tile.length);
+                    out.write(tile);
+                }
+                respond(exchange, 200, body.toByteArray());
+            }
+        });
+
+        server.start();
+    }
+
+    /**
+     * @return Body that the server returns for the tile described as "width height rrggbb"
+     */
+    public static byte[] tileBody(String description) {
+        return description.getBytes(US_ASCII);
+    }
+
+    public String tileUrlFormat() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/color/%d/%d/%s";
+    }
+
+    public String batchUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/batch";
+    }
+
+    public int getTileRequestCount() {
+        return tileRequestCount.get();
+    }
+
+    public int getBatchRequestCount() {
+        return batchRequestCount.get();
+    }
+
+    public int getConnectionCount() {
+        return clientPorts.size();
+    }
+
+    public void setTileDelayMillis(int tileDelayMillis) {
+        this.tileDelayMillis = tileDelayMillis;
+    }
+
+    public void setBatchDelayMillis(int batchDelayMillis) {
+        this.batchDelayMillis = batchDelayMillis;
+    }
+
+    /**
+     * @param count Number of the following single tile requests to be answered with 503 Service Unavailable
+     */
+    public void failNextTiles(int count) {
+        tilesToFail.set(count);
+    }
+
+    /**
+     * @param count  Number of the following single tile requests to be stalled
+     * @param millis How long to stall each before answering it
+     */
+    public void stallNextTiles(int count, int millis) {
+        stallMillis = millis;
+        tilesToStall.set(count);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+            // Discard
+        }
+    }
+
+    /**
+     * @return True if the counter was positive, in which case it has been decremented
+     */
+    private static boolean takeOne(AtomicInteger counter) {
+        int count;
+        do {
+            count = counter.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!counter.compareAndSet(count, count - 1));
+        return true;
+    }
+
+    private static void sleepQuietly(int millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
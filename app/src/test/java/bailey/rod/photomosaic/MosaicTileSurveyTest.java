@@ -0,0 +1,192 @@
+package bailey.rod.photomosaic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class MosaicTileSurveyTest {
+
+    private static final int RED = 0xFFC81E1E;
+
+    private static final int BLUE = 0xFF1E1EC8;
+
+    private static final int GREEN = 0xFF1EC81E;
+
+    private final MosaicCancellationToken token = new MosaicCancellationToken();
+
+    @Test
+    public void findTiles_findsEachDistinctTileOnceInOrderOfNeed() throws Exception {
+        // A 250 x 64 image, reduced by 8. Red on the left, blue on the right, and a green bottom band.
+        int sampleSize = 8;
+        int surveyWidth = 32;
+        int surveyHeight = 8;
+        int[] pixels = new int[surveyWidth * surveyHeight];
+        for (int y = 0; y < surveyHeight; y++) {
+            for (int x = 0; x < surveyWidth; x++) {
+                pixels[(y * surveyWidth) + x] = (y >= 4) ? GREEN : ((x < 16) ? RED : BLUE);
+            }
+        }
+
+        List<MosaicTileKey> keys = MosaicTileSurvey.findTiles(pixels, surveyWidth, surveyHeight, sampleSize, 250,
+                                                              64, 32, 32, null, new MosaicColorQuantizer(8, 0));
+
+        // The last tile of each band is clipped to the right edge of the image
+        assertEquals(Arrays.asList(new MosaicTileKey(32, 32, RED),
+                                   new MosaicTileKey(32, 32, BLUE),
+                                   new MosaicTileKey(26, 32, BLUE),
+                                   new MosaicTileKey(32, 32, GREEN),
+                                   new MosaicTileKey(26, 32, GREEN)),
+                     keys);
+    }
+
+    @Test
+    public void findTiles_scalesAdaptiveTilesUpToFullSize() throws Exception {
+        int sampleSize = 8;
+        int surveyWidth = 16;
+        int surveyHeight = 16;
+        int[] pixels = new int[surveyWidth * surveyHeight];
+        Arrays.fill(pixels, BLUE);
+
+        // A flat image is covered by the largest tiles, 128 x 128 at full size
+        MosaicQuadtreeTiler tiler = new MosaicQuadtreeTiler(32 / sampleSize, 32 / sampleSize, 128 / sampleSize,
+                                                            128 / sampleSize, 100);
+        List<MosaicTileKey> keys = MosaicTileSurvey.findTiles(pixels, surveyWidth, surveyHeight, sampleSize, 128,
+                                                              128, 128, 32, tiler, new MosaicColorQuantizer(8, 0));
+
+        assertEquals(Arrays.asList(new MosaicTileKey(128, 128, BLUE)), keys);
+    }
+
+    @Test
+    public void findTiles_fullSizeColorsSnapToSurveyedTiles() throws Exception {
+        // A 256 x 64 image of 32 x 32 tiles of different colors, with a fine dither within each. A copy reduced by 8
+        // only samples every eighth column, where the dither is always 0, so the copy's averages are a little off.
+        int sampleSize = 8;
+        int width = 256;
+        int height = 64;
+        int[] image = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int base = 40 + (x / 32) * 20 + (y / 32) * 7;
+                int dither = (x % sampleSize) / 2;
+                image[(y * width) + x] = 0xFF000000 | ((base + dither) << 16) | ((200 - base) << 8) | (90 + dither);
+            }
+        }
+        int surveyWidth = width / sampleSize;
+        int surveyHeight = height / sampleSize;
+        int[] survey = new int[surveyWidth * surveyHeight];
+        for (int y = 0; y < surveyHeight; y++) {
+            for (int x = 0; x < surveyWidth; x++) {
+                survey[(y * surveyWidth) + x] = image[(y * sampleSize * width) + (x * sampleSize)];
+            }
+        }
+
+        // Exact colors miss the survey's tiles
+        assertEquals(0, countHits(image, width, height, survey, surveyWidth, surveyHeight, sampleSize, 0));
+
+        // Colors snapped to the survey's find every one of them
+        assertEquals(16, countHits(image, width, height, survey, surveyWidth, surveyHeight, sampleSize, 2.3));
+    }
+
+    /**
+     * Surveys the reduced copy, then averages the full-size image into 32 x 32 tiles with the same quantizer, as
+     * MosaicService does
+     *
+     * @return Number of full-size tiles whose key was among those found by the survey
+     */
+    private static int countHits(int[] image, int width, int height, int[] survey, int surveyWidth,
+                                 int surveyHeight, int sampleSize, double maxDeltaE) {
+        MosaicColorQuantizer quantizer = new MosaicColorQuantizer(8, maxDeltaE);
+        List<MosaicTileKey> surveyed = MosaicTileSurvey.findTiles(survey, surveyWidth, surveyHeight, sampleSize, width,
+                                                                  height, 32, 32, null, quantizer);
+        int hits = 0;
+        for (int y = 0; y < height; y += 32) {
+            for (int x = 0; x < width; x += 32) {
+                int average = MosaicTileAverager.averageColor(image, (y * width) + x, width, 32, 32);
+                if (surveyed.contains(new MosaicTileKey(32, 32, quantizer.quantize(average)))) {
+                    hits++;
+                }
+            }
+        }
+        return hits;
+    }
+
+    @Test
+    public void prefetch_fetchesInOrderUntilBudgetIsSpent() throws Exception {
+        List<MosaicTileKey> keys = Arrays.asList(new MosaicTileKey(32, 32, RED),
+                                                 new MosaicTileKey(32, 32, BLUE),
+                                                 new MosaicTileKey(32, 32, GREEN));
+        RecordingPrefetcher prefetcher = new RecordingPrefetcher();
+
+        // Room for two 32 x 32 tiles of 4 bytes a pixel, but not three
+        int started = MosaicTileSurvey.prefetch(keys, 3 * 32 * 32 * 4 - 1, DIRECT, token, prefetcher);
+
+        assertEquals(2, started);
+        assertEquals(keys.subList(0, 2), prefetcher.keys);
+    }
+
+    @Test
+    public void prefetch_dropsFetchesNotYetRunOnceJobIsCancelled() throws Exception {
+        List<MosaicTileKey> keys = Arrays.asList(new MosaicTileKey(32, 32, RED),
+                                                 new MosaicTileKey(32, 32, BLUE));
+        QueueingExecutor executor = new QueueingExecutor();
+        RecordingPrefetcher prefetcher = new RecordingPrefetcher();
+
+        assertEquals(2, MosaicTileSurvey.prefetch(keys, Long.MAX_VALUE, executor, token, prefetcher));
+        executor.tasks.get(0).run();
+        token.cancel();
+        executor.tasks.get(1).run();
+
+        assertEquals(keys.subList(0, 1), prefetcher.keys);
+
+        // Nothing more is started for a job already cancelled
+        assertEquals(0, MosaicTileSurvey.prefetch(keys, Long.MAX_VALUE, executor, token, prefetcher));
+        assertEquals(2, executor.tasks.size());
+    }
+
+    @Test
+    public void prefetch_stopsWhenExecutorRefuses() throws Exception {
+        List<MosaicTileKey> keys = Arrays.asList(new MosaicTileKey(32, 32, RED),
+                                                 new MosaicTileKey(32, 32, BLUE));
+        Executor refusing = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                throw new RejectedExecutionException("shut down");
+            }
+        };
+
+        assertEquals(0, MosaicTileSurvey.prefetch(keys, Long.MAX_VALUE, refusing, token, new RecordingPrefetcher()));
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private static class QueueingExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+    }
+
+    private static class RecordingPrefetcher implements MosaicTileSurvey.Prefetcher {
+
+        final List<MosaicTileKey> keys = new ArrayList<MosaicTileKey>();
+
+        @Override
+        public void prefetch(MosaicTileKey key) {
+            keys.add(key);
+        }
+    }
+}
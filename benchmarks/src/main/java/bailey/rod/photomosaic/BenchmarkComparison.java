@@ -0,0 +1,150 @@
+package bailey.rod.photomosaic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two sets of JMH results, as written with "-rf csv", benchmark by benchmark. A benchmark has regressed
+ * if it got worse by more than the error margins of the two scores put together. Exits with status 1 if any
+ * benchmark regressed, so the comparison can gate a build.
+ * <p/>
+ * Usage: BenchmarkComparison baseline.csv results.csv
+ */
+public class BenchmarkComparison {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BenchmarkComparison <baseline csv> <results csv>");
+            System.exit(2);
+        }
+
+        File baselineFile = new File(args[0]);
+        if (!baselineFile.exists()) {
+            System.err.println("No baseline at " + baselineFile + ". Record one with :benchmarks:jmhBaseline");
+            System.exit(2);
+        }
+
+        Map<String, Score> baseline = readScores(baselineFile);
+        Map<String, Score> results = readScores(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> entry : results.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            Score after = entry.getValue();
+            if (before == null) {
+                System.out.println(String.format(Locale.US, "%-90s %10s -> %10.3f %s  (new)", entry.getKey(), "",
+                                                 after.value, after.unit));
+                continue;
+            }
+
+            // Throughput is better when higher, every other mode (times) when lower
+            double change = (after.value - before.value) / before.value;
+            double worsening = after.higherIsBetter ? before.value - after.value : after.value - before.value;
+            boolean regressed = worsening > (before.error + after.error);
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.US, "%-90s %10.3f -> %10.3f %s  %+6.1f%%%s", entry.getKey(),
+                                             before.value, after.value, after.unit, change * 100,
+                                             regressed ? "  REGRESSED" : ""));
+        }
+
+        System.out.println(String.format(Locale.US, "%d of %d benchmarks regressed", regressions, results.size()));
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return Score of each benchmark in a JMH CSV file, keyed by benchmark name, mode and parameters
+     */
+    private static Map<String, Score> readScores(File csvFile) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), UTF_8));
+        try {
+            List<String> header = splitCsvLine(reader.readLine());
+            int benchmarkColumn = header.indexOf("Benchmark");
+            int modeColumn = header.indexOf("Mode");
+            int scoreColumn = header.indexOf("Score");
+            int unitColumn = header.indexOf("Unit");
+            int errorColumn = -1;
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Score Error")) {
+                    errorColumn = i;
+                }
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> fields = splitCsvLine(line);
+                StringBuilder key = new StringBuilder(fields.get(benchmarkColumn));
+                key.append(' ').append(fields.get(modeColumn));
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && (i < fields.size()) && !fields.get(i).isEmpty()) {
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(fields.get(i));
+                    }
+                }
+
+                Score score = new Score();
+                score.value = Double.parseDouble(fields.get(scoreColumn));
+                String error = (errorColumn < 0) ? "" : fields.get(errorColumn);
+                score.error = (error.isEmpty() || error.equals("NaN")) ? 0 : Double.parseDouble(error);
+                score.unit = fields.get(unitColumn);
+                score.higherIsBetter = fields.get(modeColumn).equals("thrpt");
+                scores.put(key.toString(), score);
+            }
+        } finally {
+            reader.close();
+        }
+        return scores;
+    }
+
+    /**
+     * Splits a line of CSV into fields, removing the quotes around any quoted field
+     */
+    private static List<String> splitCsvLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && (i + 1 < line.length()) && (line.charAt(i + 1) == '"')) {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if ((c == ',') && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * One benchmark's result
+     */
+    private static class Score {
+        double value;
+
+        double error;
+
+        String unit;
+
+        boolean higherIsBetter;
+    }
+}
@@ -0,0 +1,49 @@
+package bailey.rod.photomosaic;
+
+import java.util.Random;
+
+/**
+ * Synthetic inputs shared by the benchmarks. Everything is generated from a fixed seed, so every run of a
+ * benchmark sees the same data.
+ */
+public abstract class BenchmarkFixtures {
+
+    private static final long SEED = 42;
+
+    /**
+     * @param count Number of pixels
+     * @return Opaque packed ARGB pixels of random color
+     */
+    public static int[] randomPixels(int count) {
+        Random random = new Random(SEED);
+        int[] pixels = new int[count];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt();
+        }
+        return pixels;
+    }
+
+    /**
+     * @param count Number of colors
+     * @return Packed RGB colors of random value, with no alpha
+     */
+    public static int[] randomColors(int count) {
+        Random random = new Random(SEED + 1);
+        int[] colors = new int[count];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt() & 0xFFFFFF;
+        }
+        return colors;
+    }
+
+    /**
+     * @param size Image size as a JMH parameter, e.g. "1024x768"
+     * @return Width and height, in that order
+     */
+    public static int[] parseSize(String size) {
+        int separator = size.indexOf('x');
+        int width = Integer.parseInt(size.substring(0, separator));
+        int height = Integer.parseInt(size.substring(separator + 1));
+        return new int[]{width, height};
+    }
+}
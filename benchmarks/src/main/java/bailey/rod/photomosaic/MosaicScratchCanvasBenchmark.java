@@ -0,0 +1,91 @@
+package bailey.rod.photomosaic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compositing tiles into the memory-mapped scratch canvas, as the composite stage does for every tile of a row,
+ * and reading a band back out of it. This is the pixel copy that replaced getPixels/setPixels on a whole-image
+ * bitmap in bigLoop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MosaicScratchCanvasBenchmark {
+
+    @Param({"1024x768", "4096x3072"})
+    public String imageSize;
+
+    @Param({"16", "32", "64"})
+    public int tileSize;
+
+    private File canvasFile;
+
+    private MosaicScratchCanvas canvas;
+
+    private int[] tilePixels;
+
+    private int[] band;
+
+    // Row of tiles to be written next, so successive invocations touch the whole canvas
+    private int nextRowTop;
+
+    @Setup
+    public void setUp() throws IOException {
+        int[] size = BenchmarkFixtures.parseSize(imageSize);
+        canvasFile = File.createTempFile("benchmark", ".raw");
+        canvas = MosaicScratchCanvas.create(canvasFile, size[0], size[1]);
+        tilePixels = BenchmarkFixtures.randomPixels(tileSize * tileSize);
+        band = new int[size[0] * tileSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        canvas.close();
+        canvasFile.delete();
+    }
+
+    /**
+     * Writes one tile at every position along a row, clipping the last as the compositor does
+     */
+    @Benchmark
+    public MosaicScratchCanvas compositeRow() {
+        int rowTop = nextRowTop;
+        int rowHeight = Math.min(tileSize, canvas.getHeight() - rowTop);
+        for (int tileLeft = 0; tileLeft < canvas.getWidth(); tileLeft += tileSize) {
+            int tileWidth = Math.min(tileSize, canvas.getWidth() - tileLeft);
+            canvas.writePixels(tilePixels, 0, tileSize, tileLeft, rowTop, tileWidth, rowHeight);
+        }
+        nextRowTop = (rowTop + tileSize < canvas.getHeight()) ? rowTop + tileSize : 0;
+        return canvas;
+    }
+
+    /**
+     * Reads a whole band back out, as the display does to refresh a finished row
+     */
+    @Benchmark
+    public int[] readBand() {
+        int rowTop = nextRowTop;
+        int rowHeight = Math.min(tileSize, canvas.getHeight() - rowTop);
+        canvas.readPixels(band, 0, canvas.getWidth(), 0, rowTop, canvas.getWidth(), rowHeight);
+        nextRowTop = (rowTop + tileSize < canvas.getHeight()) ? rowTop + tileSize : 0;
+        return band;
+    }
+}
@@ -0,0 +1,115 @@
+package bailey.rod.photomosaic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Averaging the tile colors of a whole image, a band at a time as bigLoop does: each band is copied out of the
+ * image into a reused buffer (standing in for Bitmap.getPixels) and then averaged.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MosaicTileAveragerBenchmark {
+
+    @Param({"1024x768", "4096x3072"})
+    public String imageSize;
+
+    @Param({"16", "32", "64"})
+    public int tileSize;
+
+    private int imageWidth;
+
+    private int imageHeight;
+
+    private int[] image;
+
+    private int[] band;
+
+    private int[] averages;
+
+    private ForkJoinPool pool;
+
+    private MosaicTileAverager averager;
+
+    private MosaicColorQuantizer identityQuantizer;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkFixtures.parseSize(imageSize);
+        imageWidth = size[0];
+        imageHeight = size[1];
+        image = BenchmarkFixtures.randomPixels(imageWidth * imageHeight);
+        band = new int[imageWidth * tileSize];
+        averages = new int[MosaicTileAverager.tileCount(imageWidth, tileSize)];
+        pool = new ForkJoinPool(Constants.MAX_THREAD_POOL_SIZE);
+        averager = new MosaicTileAverager(pool);
+        identityQuantizer = new MosaicColorQuantizer(8, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * The averaging stage as bigLoop runs it - bands shared out between the threads of a ForkJoinPool
+     */
+    @Benchmark
+    public int[] averageBands() {
+        for (int bandTop = 0; bandTop < imageHeight; bandTop += tileSize) {
+            int bandHeight = Math.min(tileSize, imageHeight - bandTop);
+            System.arraycopy(image, bandTop * imageWidth, band, 0, imageWidth * bandHeight);
+            averager.averageBand(band, imageWidth, bandHeight, tileSize, averages);
+        }
+        return averages;
+    }
+
+    /**
+     * The TEST strategy's fused pass - each band averaged and filled with solid tiles in place, as bigLoop does
+     * when no tile needs fetching. Colors are left unquantized, so the work compares with #averageBands.
+     */
+    @Benchmark
+    public int[] averageAndFillBands() {
+        for (int bandTop = 0; bandTop < imageHeight; bandTop += tileSize) {
+            int bandHeight = Math.min(tileSize, imageHeight - bandTop);
+            System.arraycopy(image, bandTop * imageWidth, band, 0, imageWidth * bandHeight);
+            averager.averageAndFillBand(band, imageWidth, bandHeight, tileSize, averages, identityQuantizer,
+                                        MosaicTileAverager.SOLID_PAINTER);
+        }
+        return band;
+    }
+
+    /**
+     * The same work on a single thread, averaging each tile in place in the image
+     */
+    @Benchmark
+    public int averageTilesInPlace() {
+        int checksum = 0;
+        for (int tileTop = 0; tileTop < imageHeight; tileTop += tileSize) {
+            int tileHeight = Math.min(tileSize, imageHeight - tileTop);
+            for (int tileLeft = 0; tileLeft < imageWidth; tileLeft += tileSize) {
+                int tileWidth = Math.min(tileSize, imageWidth - tileLeft);
+                checksum += MosaicTileAverager.averageColor(image, (tileTop * imageWidth) + tileLeft, imageWidth,
+                                                            tileWidth, tileHeight);
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,120 @@
+package bailey.rod.photomosaic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-tile work of finding a tile for a color: naming it (hex color and server URL), looking it up in the
+ * memory cache, and choosing a library image for it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MosaicTileLookupBenchmark {
+
+    // Number of distinct colors that lookups cycle through. A power of 2.
+    private static final int COLOR_COUNT = 4096;
+
+    @Param({"16", "32", "64"})
+    public int tileSize;
+
+    // Number of tiles in the memory cache, and of images in the library palette
+    @Param({"1000", "50000"})
+    public int paletteSize;
+
+    private int[] colors;
+
+    private MosaicTileKey[] cachedKeys;
+
+    private MosaicTileKey[] uncachedKeys;
+
+    private MosaicTileClient client;
+
+    private MosaicTileMemoryCache<int[]> cache;
+
+    private MosaicColorKdTree kdTree;
+
+    private MosaicColorLut lut;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        colors = BenchmarkFixtures.randomColors(COLOR_COUNT);
+        client = new MosaicTileClient(Constants.MOSAIC_SERVER_URL, null, Constants.MAX_THREAD_POOL_SIZE,
+                                      Constants.TILE_CONNECT_TIMEOUT_MS, Constants.TILE_READ_TIMEOUT_MS);
+
+        // Every cached tile shares one pixel array, so the byte budget never evicts
+        final int[] tilePixels = new int[tileSize * tileSize];
+        cache = new MosaicTileMemoryCache<int[]>(Long.MAX_VALUE, new MosaicTileMemoryCache.Sizer<int[]>() {
+            @Override
+            public int sizeOf(int[] value) {
+                return 1;
+            }
+        });
+        int[] palette = BenchmarkFixtures.randomColors(paletteSize);
+        for (int color : palette) {
+            cache.put(new MosaicTileKey(tileSize, tileSize, color), tilePixels);
+        }
+
+        // Hits use colors known to be cached. Misses use a tile size that never is.
+        cachedKeys = new MosaicTileKey[COLOR_COUNT];
+        uncachedKeys = new MosaicTileKey[COLOR_COUNT];
+        for (int i = 0; i < COLOR_COUNT; i++) {
+            cachedKeys[i] = new MosaicTileKey(tileSize, tileSize, palette[i % palette.length]);
+            uncachedKeys[i] = new MosaicTileKey(tileSize + 1, tileSize, colors[i]);
+        }
+
+        kdTree = new MosaicColorKdTree(palette);
+        lut = MosaicColorLut.build(palette, 6);
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (COLOR_COUNT - 1);
+        return next;
+    }
+
+    @Benchmark
+    public String hexString() {
+        return Utils.packagedColorIntToRGBHexString(colors[nextIndex()]);
+    }
+
+    @Benchmark
+    public String tileUrl() {
+        return client.tileUrl(cachedKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public int[] memoryCacheHit() {
+        return cache.get(cachedKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public int[] memoryCacheMiss() {
+        return cache.get(uncachedKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public int nearestColorByKdTree() {
+        return kdTree.nearest(colors[nextIndex()]);
+    }
+
+    @Benchmark
+    public int nearestColorByLut() {
+        return lut.lookup(colors[nextIndex()]);
+    }
+}